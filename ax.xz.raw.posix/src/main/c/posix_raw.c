@@ -24,10 +24,10 @@
 #include "posix_raw.h"
 
 #ifdef __linux__
-static int tun_alloc_mq(char *dev, int queues, int *fds)
+static int tun_alloc_mq(char *dev, short flags, int queues, int *fds)
   {
       struct ifreq ifr;
-      int fd, err, i;
+      int fd, err = -1, i;
 
       if (!dev)
           return -1;
@@ -38,8 +38,10 @@ static int tun_alloc_mq(char *dev, int queues, int *fds)
        *
        *        IFF_NO_PI - Do not provide packet information
        *        IFF_MULTI_QUEUE - Create a queue of multiqueue device
+       *
+       * every queue has to be opened with the same flags as the primary one
        */
-      ifr.ifr_flags = IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE;
+      ifr.ifr_flags = flags;
       strcpy(ifr.ifr_name, dev);
 
       for (i = 0; i < queues; i++) {
@@ -60,24 +62,57 @@ static int tun_alloc_mq(char *dev, int queues, int *fds)
       return err;
   }
 
-int open_tun(char *name, int nameLength, int *multiqueueCount, int *multiqueues) {
+static int open_primary_queue(struct ifreq *ifr) {
 	int fd = open("/dev/net/tun", O_RDWR);
 	if (fd < 0) {
 		return -1;
 	}
 
+	if (ioctl(fd, TUNSETIFF, ifr) < 0) {
+		close(fd);
+		return -1;
+	}
+
+	return fd;
+}
+
+int open_tun(char *name, int nameLength, int *offload, int *multiqueueCount, int *multiqueues) {
 	struct ifreq ifr;
 	memset(&ifr, 0, sizeof(ifr));
 	ifr.ifr_flags = IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE;
-	int err = ioctl(fd, TUNSETIFF, &ifr);
-	if (err < 0) {
-		close(fd);
-		return -1;
+
+	int fd = -1;
+	if (*offload) {
+		// prefix every packet with a virtio_net_hdr, and let the kernel hand us unsegmented TCP packets and packets
+		// without checksums
+		ifr.ifr_flags |= IFF_VNET_HDR;
+		fd = open_primary_queue(&ifr);
+
+		if (fd >= 0 && ioctl(fd, TUNSETOFFLOAD, TUN_F_CSUM | TUN_F_TSO4 | TUN_F_TSO6) < 0) {
+			perror("TUNSETOFFLOAD");
+			close(fd);
+			fd = -1;
+		}
+
+		// fall back to a tun without offloads
+		if (fd < 0) {
+			*offload = 0;
+			memset(&ifr, 0, sizeof(ifr));
+			ifr.ifr_flags = IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE;
+		}
+	}
+
+	if (fd < 0) {
+		fd = open_primary_queue(&ifr);
+		if (fd < 0) {
+			return -1;
+		}
 	}
 
 	strncpy(name, ifr.ifr_name, nameLength);
 
-	if (tun_alloc_mq(ifr.ifr_name, *multiqueueCount, multiqueues) < 0) {
+	// if the extra queues can't be attached, carry on with just the primary one
+	if (*multiqueueCount > 0 && tun_alloc_mq(ifr.ifr_name, ifr.ifr_flags, *multiqueueCount, multiqueues) < 0) {
 		perror("tun_alloc_mq");
 		*multiqueueCount = 0;
 	}
@@ -121,7 +156,7 @@ static int get_utun_ctl_addr(struct sockaddr_ctl *addr) {
 	return 0;
 }
 
-int open_tun(char *name, int nameLength, int *multiqueueCount, int *multiqueues) {
+int open_tun(char *name, int nameLength, int *offload, int *multiqueueCount, int *multiqueues) {
 	int fd = socket(PF_SYSTEM, SOCK_DGRAM, SYSPROTO_CONTROL);
 	if (fd < 0) {
 		return -1;
@@ -141,6 +176,7 @@ int open_tun(char *name, int nameLength, int *multiqueueCount, int *multiqueues)
 
        	snprintf(name, nameLength, "utun%d", i);
        	*multiqueueCount = 0;
+       	*offload = 0;
        	return fd;
 	}
 
@@ -1,6 +1,6 @@
 #pragma once
 
-int open_tun(char *name, int nameLength, int *multiqueueCount, int *multiqueues);
+int open_tun(char *name, int nameLength, int *offload, int *multiqueueCount, int *multiqueues);
 
 int mtu(char const* name, int nameLength);
 int set_mtu(char const* name, int nameLength, int mtu);
\ No newline at end of file
@@ -6,14 +6,6 @@
 #include <net/if.h>
 #include <stdio.h>
 
-#ifdef __linux__
-#include <sys/sysinfo.h>
-//#define MULTIQUEUES get_nprocs()
-#define MULTIQUEUES 0
-#else
-#define MULTIQUEUES 0
-#endif
-
 static jobject createFdObject(JNIEnv *env, int fd) {
     jclass sharedSecretsCls = FIND_CLASS(env, "jdk/internal/access/SharedSecrets");
     jclass javaIOFileDescriptorAccessCls = FIND_CLASS(env, "jdk/internal/access/JavaIOFileDescriptorAccess");
@@ -32,16 +24,17 @@ static jobject createFdObject(JNIEnv *env, int fd) {
     return fdObj;
 }
 
-JNIEXPORT jobject JNICALL Java_ax_xz_raw_posix_POSIXTunProvider_open(JNIEnv *env, jclass clazz) {
+JNIEXPORT jobject JNICALL Java_ax_xz_raw_posix_POSIXTunProvider_openQueues(JNIEnv *env, jobject provider, jint requestedQueues, jboolean requestedOffload) {
 	// open tun device
 	jclass posixTunCls = FIND_CLASS(env, "ax/xz/raw/posix/POSIXTun");
-    jmethodID posixTunConstructor = GET_METHOD_ID(env, posixTunCls, "<init>", "([Ljava/io/FileDescriptor;Ljava/lang/String;)V");
+    jmethodID posixTunConstructor = GET_METHOD_ID(env, posixTunCls, "<init>", "([Ljava/io/FileDescriptor;Ljava/lang/String;Z)V");
 
     char name[IFNAMSIZ];
-    int queueCount = MULTIQUEUES; // it's broken atm
-    int queues[queueCount + 1]; // +1 for primary fd
+    int queueCount = requestedQueues - 1; // the primary fd is the first queue
+    int queues[requestedQueues];
+    int offload = requestedOffload;
 
-    int primaryFd = IO_TRY(env, open_tun(name, sizeof(name), &queueCount, queues + 1));
+    int primaryFd = IO_TRY(env, open_tun(name, sizeof(name), &offload, &queueCount, queues + 1));
     if (primaryFd < 0) {
 		return NULL;
 	}
@@ -56,7 +49,7 @@ JNIEXPORT jobject JNICALL Java_ax_xz_raw_posix_POSIXTunProvider_open(JNIEnv *env
 	}
 
     jstring nameObj = (*env)->NewStringUTF(env, name);
-    return (*env)->NewObject(env, posixTunCls, posixTunConstructor, fds, nameObj);
+    return (*env)->NewObject(env, posixTunCls, posixTunConstructor, fds, nameObj, offload ? JNI_TRUE : JNI_FALSE);
 }
 
 static void getName(JNIEnv *env, jobject tunObj, char *name, int nameLength) {
@@ -1,7 +1,7 @@
 #pragma once
 #include <jni.h>
 
-JNIEXPORT jobject JNICALL Java_ax_xz_raw_posix_POSIXTunProvider_open(JNIEnv *env, jclass clazz);
+JNIEXPORT jobject JNICALL Java_ax_xz_raw_posix_POSIXTunProvider_openQueues(JNIEnv *env, jobject provider, jint requestedQueues, jboolean requestedOffload);
 JNIEXPORT void JNICALL Java_ax_xz_raw_posix_POSIXTun_setMTU(JNIEnv *env, jobject tunObj, jint mtu);
 JNIEXPORT jint JNICALL Java_ax_xz_raw_posix_POSIXTun_mtu(JNIEnv *env, jobject tunObj);
 
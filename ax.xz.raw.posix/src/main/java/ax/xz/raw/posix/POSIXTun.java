@@ -20,16 +20,10 @@ import static java.util.Objects.requireNonNull;
 public class POSIXTun implements Tun {
 	private static final boolean needsAfTypePrefix = System.getProperty("os.name").toLowerCase().contains("bsd") || System.getProperty("os.name").toLowerCase().contains("os x");
 
-	private static final VarHandle FILE_DESCRIPTOR_READ_INDEX;
-	private static final VarHandle FILE_DESCRIPTOR_WRITE_INDEX;
-
 	private static final VarHandle STATE;
 
 	static {
 		try {
-			FILE_DESCRIPTOR_READ_INDEX = MethodHandles.lookup().findVarHandle(POSIXTun.class, "readFdIndex", int.class);
-			FILE_DESCRIPTOR_WRITE_INDEX = MethodHandles.lookup().findVarHandle(POSIXTun.class, "writeFdIndex", int.class);
-
 			STATE = MethodHandles.lookup().findVarHandle(POSIXTun.class, "state", State.class);
 		} catch (ReflectiveOperationException e) {
 			throw new ExceptionInInitializerError(e);
@@ -44,19 +38,18 @@ public class POSIXTun implements Tun {
 	private final FileChannel[] inputChannels;
 	private final FileChannel[] outputChannels;
 
-	private volatile int readFdIndex = 0;
-	private volatile int writeFdIndex = 0;
+	private final boolean virtioNetHeaders;
 
 	private volatile State state = State.DOWN;
 
-	private POSIXTun(FileDescriptor[] fds, String name) {
+	private POSIXTun(FileDescriptor[] fds, String name, boolean virtioNetHeaders) {
 		for (var fd : fds)
 			if (!fd.valid())
 				throw new IllegalArgumentException("Invalid file descriptor");
 
 		this.fileDescriptors = fds;
 		this.name = requireNonNull(name, "name must not be null");
-
+		this.virtioNetHeaders = virtioNetHeaders;
 
 		this.inputChannels = new FileChannel[fileDescriptors.length];
 		this.outputChannels = new FileChannel[fileDescriptors.length];
@@ -66,15 +59,34 @@ public class POSIXTun implements Tun {
 			outputChannels[i] = new FileOutputStream(fileDescriptors[i]).getChannel();
 		}
 
-		logger.log(INFO, "Opened tun {0} with file descriptors {1}", name, Arrays.toString(fileDescriptors));
+		logger.log(INFO, "Opened tun {0} with file descriptors {1} (offload {2})", name, Arrays.toString(fileDescriptors), virtioNetHeaders ? "enabled" : "disabled");
 	}
 
 	@Override
 	public int write(ByteBuffer buffer) throws IOException {
+		return write(0, buffer);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		return read(0, buffer);
+	}
+
+	@Override
+	public int queueCount() {
+		return fileDescriptors.length;
+	}
+
+	@Override
+	public boolean hasVirtioNetHeaders() {
+		return virtioNetHeaders;
+	}
+
+	@Override
+	public int write(int queue, ByteBuffer buffer) throws IOException {
 		requireOpen();
 
-		int fdIndex = rotateFdIndex(FILE_DESCRIPTOR_WRITE_INDEX);
-		var outputChannel = outputChannels[fdIndex];
+		var outputChannel = outputChannels[queue];
 
 		if (needsAfTypePrefix)
 			return (int) (outputChannel.write(new ByteBuffer[]{getPacketFamily(buffer), buffer}) - 4);
@@ -83,15 +95,14 @@ public class POSIXTun implements Tun {
 	}
 
 	@Override
-	public int read(ByteBuffer buffer) throws IOException {
+	public int read(int queue, ByteBuffer buffer) throws IOException {
 		interface TempHolder {
 			ThreadLocal<ByteBuffer> PACKET_FAMILY = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4));
 		}
 
 		requireOpen();
 
-		int fdIndex = rotateFdIndex(FILE_DESCRIPTOR_READ_INDEX);
-		var inputChannel = inputChannels[fdIndex];
+		var inputChannel = inputChannels[queue];
 
 		if (needsAfTypePrefix)
 			return (int) (inputChannel.read(new ByteBuffer[]{TempHolder.PACKET_FAMILY.get().clear(), buffer}) - 4);
@@ -99,10 +110,6 @@ public class POSIXTun implements Tun {
 			return inputChannel.read(buffer);
 	}
 
-	private int rotateFdIndex(VarHandle vh) {
-		return (int) (Integer.toUnsignedLong((int) vh.getAndAdd(this, 1)) % fileDescriptors.length);
-	}
-
 	@Override
 	public void close() throws IOException {
 		if (!(STATE.compareAndSet(this, State.UP, State.CLOSED) || STATE.compareAndSet(this, State.DOWN, State.CLOSED)))
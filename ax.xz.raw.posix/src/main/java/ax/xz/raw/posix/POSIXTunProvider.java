@@ -21,8 +21,37 @@ public class POSIXTunProvider implements TunProvider {
 		isAvailable = loadSuccess;
 	}
 
+	// linux's limit on the number of queues in a tun (MAX_TAP_QUEUES)
+	private static final int MAX_QUEUES = 256;
+
+	@Override
+	public Tun open() throws IOException {
+		return open(1);
+	}
+
+	/**
+	 * Opens a new tun device.  On Linux, the tun has the requested number of queues if the kernel can provide them,
+	 * and a single queue otherwise.  Other platforms always get one queue.
+	 */
+	@Override
+	public Tun open(int queueCount) throws IOException {
+		return open(queueCount, false);
+	}
+
+	/**
+	 * Opens a new tun device with the given number of queues, as in {@link #open(int)}.  On Linux, if {@code offload}
+	 * is true, the tun is opened with {@code IFF_VNET_HDR} and TCP segmentation and checksum offload, falling back to
+	 * a tun without offloads if the kernel doesn't support them.
+	 */
 	@Override
-	public native Tun open() throws IOException;
+	public Tun open(int queueCount, boolean offload) throws IOException {
+		if (queueCount < 1 || queueCount > MAX_QUEUES)
+			throw new IllegalArgumentException("Queue count must be between 1 and " + MAX_QUEUES);
+
+		return openQueues(queueCount, offload);
+	}
+
+	private native Tun openQueues(int queueCount, boolean offload) throws IOException;
 
 	@Override
 	public boolean isAvailable() {
@@ -6,12 +6,69 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
 import java.util.Set;
 
 public interface Tun extends Closeable, WritableByteChannel, ReadableByteChannel {
+	/**
+	 * Writes a packet to the first queue.
+	 */
 	int write(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Reads a packet from the first queue.  If the tun has more than one queue, packets routed to the other queues
+	 * won't be read.
+	 */
 	int read(ByteBuffer buffer) throws IOException;
 
+	/**
+	 * Returns the number of queues this tun has.  The kernel spreads outgoing packets across the queues by flow, so
+	 * each queue needs its own reader, but a packet may be written to any queue.
+	 *
+	 * @return the number of queues
+	 */
+	default int queueCount() {
+		return 1;
+	}
+
+	/**
+	 * Writes a packet to the given queue.
+	 *
+	 * @param queue  the index of the queue, between 0 and {@link #queueCount()}
+	 * @param buffer the packet to write
+	 * @return the number of bytes written
+	 * @throws IOException if the packet could not be written
+	 */
+	default int write(int queue, ByteBuffer buffer) throws IOException {
+		Objects.checkIndex(queue, queueCount());
+		return write(buffer);
+	}
+
+	/**
+	 * Reads a packet from the given queue, blocking until one is available.
+	 *
+	 * @param queue  the index of the queue, between 0 and {@link #queueCount()}
+	 * @param buffer the buffer to read the packet into
+	 * @return the number of bytes read
+	 * @throws IOException if the packet could not be read
+	 */
+	default int read(int queue, ByteBuffer buffer) throws IOException {
+		Objects.checkIndex(queue, queueCount());
+		return read(buffer);
+	}
+
+	/**
+	 * Returns true if this tun was opened with offloads (see {@link TunProvider#open(int, boolean)}).  Every packet read
+	 * from or written to such a tun is prefixed with a 10-byte {@code virtio_net_hdr}.  Packets read from it may be TCP
+	 * packets of up to 64KiB that have to be segmented as the header describes, or may be missing their checksum.
+	 * Packets written to it may likewise be coalesced TCP packets, which the kernel segments itself.
+	 *
+	 * @return true if packets are prefixed with a {@code virtio_net_hdr}
+	 */
+	default boolean hasVirtioNetHeaders() {
+		return false;
+	}
+
 	/**
 	 * Assigns the specified subnet to the interface.
 	 *
@@ -22,6 +22,34 @@ public interface TunProvider {
 	 */
 	Tun open() throws IOException;
 
+	/**
+	 * Opens a new tun device with up to the given number of queues, which can be read from and written to in parallel.
+	 * Providers that don't support multiple queues return a tun with a single queue.
+	 *
+	 * @param queueCount the number of queues to ask for
+	 * @return a new tun device
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if the provider is not available
+	 */
+	default Tun open(int queueCount) throws IOException {
+		return open();
+	}
+
+	/**
+	 * Opens a new tun device with up to the given number of queues, and if {@code offload} is true and the provider
+	 * supports it, with TCP segmentation and checksum offload.  Callers must check {@link Tun#hasVirtioNetHeaders()}
+	 * to find out whether offloads were enabled.
+	 *
+	 * @param queueCount the number of queues to ask for
+	 * @param offload    whether to ask for offloads
+	 * @return a new tun device
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if the provider is not available
+	 */
+	default Tun open(int queueCount, boolean offload) throws IOException {
+		return open(queueCount);
+	}
+
 	/**
 	 * Checks if the provider is available
 	 * @return true if the provider is available (i.e. the OS is supported)
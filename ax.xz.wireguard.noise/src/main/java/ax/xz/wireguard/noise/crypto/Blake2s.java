@@ -1,8 +1,12 @@
 package ax.xz.wireguard.noise.crypto;
 
+import java.lang.foreign.MemorySegment;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
 /**
  * The BLAKE2s digest algorithm. This BLAKE2 flavor is optimized for 8 to
  * 32-bit platforms and produces digests of any size between 1 and 32 bytes.
@@ -39,12 +43,17 @@ public final class Blake2s extends MessageDigest {
 
 	private final int digestLength;
 	private final byte[] buffer;
-	private final byte[] key;
-	private int[] h; // internal state
+	private final byte[] key = new byte[32];
+	private int keyLength;
+	private final int[] h = new int[8]; // internal state
 	private int t0; // counter's LSB
 	private int t1; // counter's MSB
 	private int c; // number of bytes in the buffer
 
+	// working space for F, kept so that hashing doesn't allocate
+	private final int[] v = new int[16];
+	private final int[] m = new int[16];
+
 	/**
 	 * Creates a new unkeyed {@code Blake2s} instance.
 	 *
@@ -78,11 +87,47 @@ public final class Blake2s extends MessageDigest {
 			throw new IllegalArgumentException("digestLength must be in [1, 32]");
 
 		this.buffer = new byte[BLOCK_LENGTH];
-		this.key = Arrays.copyOf(key, key.length);
 		this.digestLength = digestLength;
+		setKey(key);
+	}
+
+	/**
+	 * Replaces the key, and resets the digest.  This lets one instance compute MACs under different keys without
+	 * allocating.  The given key can be safely erased from memory after this method has been called.
+	 *
+	 * @param key the key to use, or an empty array for an unkeyed digest.
+	 * @throws IllegalArgumentException if {@code key}'s length is greater than {@code 32}
+	 */
+	public void setKey(byte[] key) {
+		if (!(key.length <= 32))
+			throw new IllegalArgumentException("key's length must be at most 32");
+
+		System.arraycopy(key, 0, this.key, 0, key.length);
+		Arrays.fill(this.key, key.length, this.key.length, (byte) 0);
+		this.keyLength = key.length;
 		reset();
 	}
 
+	/**
+	 * Updates the digest with the contents of the given segment, without copying it to an array first.
+	 *
+	 * @param input the data to hash
+	 */
+	public void update(MemorySegment input) {
+		long index = 0;
+		long remaining = input.byteSize();
+		while (remaining > 0) {
+			if (c == BLOCK_LENGTH) {
+				processBuffer(false);
+			}
+			int cpLen = (int) Math.min(BLOCK_LENGTH - c, remaining);
+			MemorySegment.copy(input, JAVA_BYTE, index, buffer, c, cpLen);
+			remaining -= cpLen;
+			index += cpLen;
+			c += cpLen;
+		}
+	}
+
 	public static String algorithm() {
 		return "BLAKE2s";
 	}
@@ -90,11 +135,11 @@ public final class Blake2s extends MessageDigest {
 	public void engineReset() {
 		t0 = 0;
 		t1 = 0;
-		h = Arrays.copyOf(IV, IV.length);
-		h[0] ^= digestLength | (key.length << 8) | 0x01010000;
-		if (key.length > 0) {
-			System.arraycopy(key, 0, buffer, 0, key.length);
-			Arrays.fill(buffer, key.length, BLOCK_LENGTH, (byte) 0);
+		System.arraycopy(IV, 0, h, 0, IV.length);
+		h[0] ^= digestLength | (keyLength << 8) | 0x01010000;
+		if (keyLength > 0) {
+			System.arraycopy(key, 0, buffer, 0, keyLength);
+			Arrays.fill(buffer, keyLength, BLOCK_LENGTH, (byte) 0);
 			c = BLOCK_LENGTH;
 		} else {
 			c = 0;
@@ -127,18 +172,38 @@ public final class Blake2s extends MessageDigest {
 	}
 
 	public byte[] engineDigest() {
+		byte[] out = new byte[digestLength];
+		finish(out, 0);
+		return out;
+	}
+
+	@Override
+	protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+		if (len < digestLength)
+			throw new DigestException("partial digests not returned");
+		if (buf.length - offset < digestLength)
+			throw new DigestException("insufficient space in the output buffer to store the digest");
+
+		finish(buf, offset);
+		return digestLength;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return digestLength;
+	}
+
+	private void finish(byte[] out, int offset) {
 		Arrays.fill(buffer, c, BLOCK_LENGTH, (byte) 0);
 		processBuffer(true);
-		byte[] out = new byte[digestLength];
 		int i = 0;
 		while (i < h.length && i * 4 < digestLength - 4) {
-			encode(h[i], out, i * 4);
+			encode(h[i], out, offset + i * 4);
 			i++;
 		}
-		byte[] last = encode(	h[i]);
-		System.arraycopy(last, 0, out, i * 4, digestLength - (i * 4));
+		for (int j = i * 4; j < digestLength; j++)
+			out[offset + j] = (byte) (h[i] >>> ((j - i * 4) * 8));
 		reset();
-		return out;
 	}
 
 	private void processBuffer(boolean lastBlock) {
@@ -153,7 +218,8 @@ public final class Blake2s extends MessageDigest {
 	}
 
 	private void F(byte[] input, boolean lastBlock) {
-		int[] v = new int[16];
+		int[] v = this.v;
+		int[] m = this.m;
 		System.arraycopy(h, 0, v, 0, h.length);
 		System.arraycopy(IV, 0, v, h.length, IV.length);
 		v[12] ^= t0;
@@ -161,7 +227,6 @@ public final class Blake2s extends MessageDigest {
 		if (lastBlock) {
 			v[14] = ~v[14];
 		}
-		int[] m = new int[16];
 		for (int j = 0; j < 16; j++) {
 			m[j] = decodeInt(input, j * 4);
 		}
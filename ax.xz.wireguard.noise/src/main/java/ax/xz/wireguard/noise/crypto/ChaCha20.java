@@ -7,41 +7,57 @@ import java.lang.invoke.MethodHandles;
 import static java.lang.foreign.MemoryLayout.sequenceLayout;
 import static java.lang.foreign.ValueLayout.*;
 
+/**
+ * The ChaCha20 stream cipher.
+ *
+ * <p>
+ * There are two implementations:  a pure-Java one written against the Vector API, which computes several blocks at
+ * once ({@link ChaCha20Vector}), and the generic C implementation in {@code libchacha}, called through a downcall.
+ * The vectorised one is used unless the {@code ax.xz.wireguard.chacha20} system property is {@code native}, in which
+ * case {@code libchacha} has to be on the library path.
+ * </p>
+ */
 public class ChaCha20 {
-	private static final MethodHandle CHACHA20_CIPHER$MH;
-	private static final MethodHandle CHACHA20_BLOCK_KEYSTREAM$MH;
-
-	static {
-		System.loadLibrary("chacha");
-
-		var symbols = SymbolLookup.loaderLookup();
-		var linker = Linker.nativeLinker();
-
-		// void chacha_cipher(uint32_t *state, uint8_t *dst, const uint8_t *src,
-		//			  unsigned int bytes, int nrounds)
-		var chacha_cipherDescriptor = FunctionDescriptor.ofVoid(
-			ADDRESS.withTargetLayout(sequenceLayout(4, JAVA_INT)).withName("state"),
-			ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("dst"),
-			ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("src"),
-			JAVA_INT.withName("bytes"),
-			JAVA_INT.withName("nrounds")
-		);
-
-		var chachaCipher = symbols.find("chacha_cipher").map(addr -> linker.downcallHandle(addr, chacha_cipherDescriptor)).orElseThrow();
-		CHACHA20_CIPHER$MH = MethodHandles.insertArguments(chachaCipher, 4, (int)20);
-
-		// void chacha_block_keystream(uint32_t *state, uint8_t *dst, int nrounds)
-		var chacha_block_keystreamDescriptor = FunctionDescriptor.ofVoid(
-			ADDRESS.withTargetLayout(sequenceLayout(16, JAVA_INT)).withName("state"),
-			ADDRESS.withTargetLayout(sequenceLayout(64, JAVA_BYTE)).withName("dst"),
-			JAVA_INT.withName("nrounds")
-		);
-
-		var chachaBlockKeystream = symbols.find("chacha_block_keystream").map(addr -> linker.downcallHandle(addr, chacha_block_keystreamDescriptor)).orElseThrow();
-		CHACHA20_BLOCK_KEYSTREAM$MH = MethodHandles.insertArguments(chachaBlockKeystream, 2, 20);
+	/**
+	 * Whether to use {@code libchacha} instead of the vectorised implementation
+	 */
+	static final boolean NATIVE = System.getProperty("ax.xz.wireguard.chacha20", "vector").equalsIgnoreCase("native");
+
+	private static final class Native {
+		private static final MethodHandle CHACHA20_CIPHER$MH;
+		private static final MethodHandle CHACHA20_BLOCK_KEYSTREAM$MH;
+
+		static {
+			System.loadLibrary("chacha");
+
+			var symbols = SymbolLookup.loaderLookup();
+			var linker = Linker.nativeLinker();
+
+			// void chacha_cipher(uint32_t *state, uint8_t *dst, const uint8_t *src,
+			//			  unsigned int bytes, int nrounds)
+			var chacha_cipherDescriptor = FunctionDescriptor.ofVoid(
+				ADDRESS.withTargetLayout(sequenceLayout(4, JAVA_INT)).withName("state"),
+				ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("dst"),
+				ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("src"),
+				JAVA_INT.withName("bytes"),
+				JAVA_INT.withName("nrounds")
+			);
+
+			var chachaCipher = symbols.find("chacha_cipher").map(addr -> linker.downcallHandle(addr, chacha_cipherDescriptor)).orElseThrow();
+			CHACHA20_CIPHER$MH = MethodHandles.insertArguments(chachaCipher, 4, (int)20);
+
+			// void chacha_block_keystream(uint32_t *state, uint8_t *dst, int nrounds)
+			var chacha_block_keystreamDescriptor = FunctionDescriptor.ofVoid(
+				ADDRESS.withTargetLayout(sequenceLayout(16, JAVA_INT)).withName("state"),
+				ADDRESS.withTargetLayout(sequenceLayout(64, JAVA_BYTE)).withName("dst"),
+				JAVA_INT.withName("nrounds")
+			);
+
+			var chachaBlockKeystream = symbols.find("chacha_block_keystream").map(addr -> linker.downcallHandle(addr, chacha_block_keystreamDescriptor)).orElseThrow();
+			CHACHA20_BLOCK_KEYSTREAM$MH = MethodHandles.insertArguments(chachaBlockKeystream, 2, 20);
+		}
 	}
 
-
 	// Method to initialize the state matrix
 	static void initializeState(byte[] key, byte[] nonce, MemorySegment state, int counter) {
 		if (state.byteSize() != 64) {
@@ -83,9 +99,16 @@ public class ChaCha20 {
 
 
 	public static void chacha20Block(MemorySegment state, MemorySegment output, int counter) {
-		try {
-			state.setAtIndex(JAVA_INT, 12, counter);
+		state.setAtIndex(JAVA_INT, 12, counter);
 
+		if (NATIVE)
+			chacha20BlockNative(state, output);
+		else
+			ChaCha20Vector.block(state, output);
+	}
+
+	static void chacha20BlockNative(MemorySegment state, MemorySegment output) {
+		try {
 			if (state.isNative() && output.isNative()) {
 				chacha20BlockDirect(state, output);
 			} else {
@@ -105,7 +128,7 @@ public class ChaCha20 {
 
 	private static void chacha20BlockDirect(MemorySegment state, MemorySegment output) {
 		try {
-			CHACHA20_BLOCK_KEYSTREAM$MH.invokeExact(state.asSlice(0, sequenceLayout(16, JAVA_INT)), output.asSlice(0, sequenceLayout(64, JAVA_BYTE)));
+			Native.CHACHA20_BLOCK_KEYSTREAM$MH.invokeExact(state.asSlice(0, sequenceLayout(16, JAVA_INT)), output.asSlice(0, sequenceLayout(64, JAVA_BYTE)));
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
@@ -114,6 +137,13 @@ public class ChaCha20 {
 	private static final ThreadLocal<MemorySegment> STATE = ThreadLocal.withInitial(() -> Arena.ofConfined().allocate(16 * 4, 16));
 
 	public static void chacha20(MemorySegment key, MemorySegment nonce, MemorySegment input, MemorySegment output, int counter) {
+		if (NATIVE)
+			chacha20Native(key, nonce, input, output, counter);
+		else
+			ChaCha20Vector.chacha20(key, nonce, input, output, counter);
+	}
+
+	static void chacha20Native(MemorySegment key, MemorySegment nonce, MemorySegment input, MemorySegment output, int counter) {
 		var state = STATE.get();
 		initializeState(key, nonce, state, counter);
 
@@ -136,7 +166,7 @@ public class ChaCha20 {
 		}
 
 		try {
-			CHACHA20_CIPHER$MH.invokeExact(state, output.asSlice(0, input.byteSize()), input.asSlice(0, input.byteSize()), (int)input.byteSize());
+			Native.CHACHA20_CIPHER$MH.invokeExact(state, output.asSlice(0, input.byteSize()), input.asSlice(0, input.byteSize()), (int)input.byteSize());
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,226 @@
+package ax.xz.wireguard.noise.crypto;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+
+import static ax.xz.wireguard.noise.crypto.ChaCha20Vector.LANES;
+
+/**
+ * ChaCha20-Poly1305 over several messages under the same key, without additional data.
+ *
+ * <p>
+ * Rather than filling the lanes of {@link ChaCha20Vector} with consecutive blocks of one message, the lanes are filled
+ * with blocks from as many messages as it takes, each under its own nonce.  This keeps every lane busy even when the
+ * messages are only a block or two long, and each message's Poly1305 key block shares a pass with the blocks of its
+ * neighbours instead of costing a pass of its own.  The key is only read once for the whole batch.
+ * </p>
+ *
+ * <p>
+ * When encrypting, a message is MACed as soon as its last block has been encrypted, while its ciphertext is still in
+ * cache.  When decrypting, every message's tag is checked before any keystream is applied, and messages that fail
+ * aren't decrypted at all.
+ * </p>
+ *
+ * <p>
+ * Instances aren't thread-safe, and are kept one per thread through {@link #get()}.
+ * </p>
+ */
+final class ChaCha20Poly1305Batch {
+	private static final ThreadLocal<ChaCha20Poly1305Batch> INSTANCE = ThreadLocal.withInitial(ChaCha20Poly1305Batch::new);
+
+	private static final int BLOCK_SIZE = 64;
+
+	private final int[] key = new int[8];
+	private final int[] keystream = new int[16 * LANES];
+
+	// the lanes of the next pass
+	private final int[] counters = new int[LANES];
+	private final int[] nonces0 = new int[LANES], nonces1 = new int[LANES], nonces2 = new int[LANES];
+	private final int[] laneMessages = new int[LANES];
+	private int filledLanes;
+
+	private final Poly1305Java poly1305 = new Poly1305Java();
+	private final MemorySegment poly1305Key = MemorySegment.ofArray(new byte[32]);
+	private final MemorySegment expectedTag = MemorySegment.ofArray(new byte[16]);
+
+	// the batch being processed
+	private boolean decrypting;
+	private MemorySegment[] inputs, outputs, tags;
+	private boolean[] authentic;
+
+	// one entry per message, grown as needed
+	private int[] blocksRemaining = new int[0];
+	private MemorySegment poly1305Keys = MemorySegment.ofArray(new byte[0]);
+
+	private ChaCha20Poly1305Batch() {
+	}
+
+	static ChaCha20Poly1305Batch get() {
+		return INSTANCE.get();
+	}
+
+	/**
+	 * Encrypts {@code count} messages, writing each one's ciphertext and tag to the corresponding output and tag.
+	 */
+	void encrypt(MemorySegment key, MemorySegment[] nonces, MemorySegment[] plaintexts, MemorySegment[] ciphertexts, MemorySegment[] tags, int count) {
+		begin(key, false, plaintexts, ciphertexts, tags, null, count);
+
+		try {
+			for (int message = 0; message < count; message++) {
+				if (ciphertexts[message].byteSize() < plaintexts[message].byteSize())
+					throw new IllegalArgumentException("Output buffer must be at least as large as input buffer");
+
+				// the Poly1305 key, and then the keystream
+				int blocks = 1 + blockCount(plaintexts[message].byteSize());
+				blocksRemaining[message] = blocks;
+
+				for (int block = 0; block < blocks; block++)
+					addLane(nonces[message], message, block);
+			}
+
+			flushLanes();
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Decrypts {@code count} messages, skipping any whose entry in {@code authentic} is false.  On return, an entry in
+	 * {@code authentic} is true if and only if that message's tag was valid, and it has been decrypted.
+	 */
+	void decrypt(MemorySegment key, MemorySegment[] nonces, MemorySegment[] ciphertexts, MemorySegment[] plaintexts, MemorySegment[] tags, boolean[] authentic, int count) {
+		begin(key, true, ciphertexts, plaintexts, tags, authentic, count);
+
+		try {
+			for (int message = 0; message < count; message++) {
+				if (plaintexts[message].byteSize() < ciphertexts[message].byteSize())
+					throw new IllegalArgumentException("Output buffer must be at least as large as input buffer");
+			}
+
+			// check every tag first
+			for (int message = 0; message < count; message++) {
+				if (authentic[message])
+					addLane(nonces[message], message, 0);
+			}
+			flushLanes();
+
+			// and only then decrypt the messages that passed
+			for (int message = 0; message < count; message++) {
+				if (!authentic[message])
+					continue;
+
+				int blocks = 1 + blockCount(ciphertexts[message].byteSize());
+				blocksRemaining[message] = blocks - 1;
+
+				for (int block = 1; block < blocks; block++)
+					addLane(nonces[message], message, block);
+			}
+			flushLanes();
+		} finally {
+			end();
+		}
+	}
+
+	private void begin(MemorySegment key, boolean decrypting, MemorySegment[] inputs, MemorySegment[] outputs, MemorySegment[] tags, boolean[] authentic, int count) {
+		ChaCha20Vector.keyWords(key, this.key);
+
+		this.decrypting = decrypting;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.tags = tags;
+		this.authentic = authentic;
+
+		if (blocksRemaining.length < count) {
+			blocksRemaining = new int[count];
+			poly1305Keys = MemorySegment.ofArray(new byte[count * 32]);
+		}
+	}
+
+	private void end() {
+		// don't leave the keys lying around, or hold on to the caller's buffers
+		Arrays.fill(key, 0);
+		Arrays.fill(keystream, 0);
+		poly1305Keys.fill((byte) 0);
+		poly1305Key.fill((byte) 0);
+		filledLanes = 0;
+
+		inputs = outputs = tags = null;
+		authentic = null;
+	}
+
+	private void addLane(MemorySegment nonce, int message, int block) {
+		counters[filledLanes] = block;
+		nonces0[filledLanes] = ChaCha20Vector.nonceWord(nonce, 0);
+		nonces1[filledLanes] = ChaCha20Vector.nonceWord(nonce, 1);
+		nonces2[filledLanes] = ChaCha20Vector.nonceWord(nonce, 2);
+		laneMessages[filledLanes] = message;
+
+		if (++filledLanes == LANES)
+			flushLanes();
+	}
+
+	private void flushLanes() {
+		if (filledLanes == 0)
+			return;
+
+		// unused lanes are computed anyway, and ignored
+		ChaCha20Vector.keystream(keystream, key, counters, nonces0, nonces1, nonces2);
+
+		for (int lane = 0; lane < filledLanes; lane++) {
+			int message = laneMessages[lane];
+			int block = counters[lane];
+
+			if (block == 0)
+				handleKeyBlock(lane, message);
+			else
+				handleBlock(lane, message, block);
+		}
+
+		filledLanes = 0;
+	}
+
+	private void handleKeyBlock(int lane, int message) {
+		if (decrypting) {
+			ChaCha20Vector.copy(keystream, lane, poly1305Key, 32);
+			authentic[message] = tagMatches(message);
+		} else {
+			ChaCha20Vector.copy(keystream, lane, poly1305Keys.asSlice(message * 32L, 32), 32);
+			if (--blocksRemaining[message] == 0)
+				writeTag(message);
+		}
+	}
+
+	private void handleBlock(int lane, int message, int block) {
+		var input = inputs[message];
+		long offset = (long) (block - 1) * BLOCK_SIZE;
+		ChaCha20Vector.xor(keystream, lane, input, outputs[message], offset, Math.min(BLOCK_SIZE, input.byteSize() - offset));
+
+		// the tag of a decrypted message was checked up front
+		if (--blocksRemaining[message] == 0 && !decrypting)
+			writeTag(message);
+	}
+
+	private void writeTag(int message) {
+		var ciphertext = outputs[message].asSlice(0, inputs[message].byteSize());
+
+		poly1305.init(poly1305Keys.asSlice(message * 32L, 32));
+		poly1305.updatePadded(ciphertext);
+		poly1305.updateLengths(0, ciphertext.byteSize());
+		poly1305.finish(tags[message]);
+	}
+
+	private boolean tagMatches(int message) {
+		var ciphertext = inputs[message];
+
+		poly1305.init(poly1305Key);
+		poly1305.updatePadded(ciphertext);
+		poly1305.updateLengths(0, ciphertext.byteSize());
+		poly1305.finish(expectedTag);
+
+		return expectedTag.mismatch(tags[message]) == -1;
+	}
+
+	private static int blockCount(long length) {
+		return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+}
@@ -0,0 +1,378 @@
+package ax.xz.wireguard.noise.crypto;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static jdk.incubator.vector.VectorOperators.ROL;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/**
+ * ChaCha20 written against the Vector API.
+ *
+ * <p>
+ * Each lane of a vector holds the same word of a different block, so a vector of {@link #LANES} lanes computes that
+ * many consecutive blocks of keystream at once:  4 with 128-bit vectors, 8 with 256-bit vectors, and 16 with 512-bit
+ * vectors.  Once the rounds are done, each block's words are gathered back into vectors of their own and XORed
+ * straight into the output.  A trailing partial block is XORed a byte at a time, and inputs of only a block or two
+ * are done one block at a time without vectors.
+ * </p>
+ */
+final class ChaCha20Vector {
+	private static final VectorSpecies<Integer> SPECIES = species();
+
+	/**
+	 * The number of blocks computed at once
+	 */
+	static final int LANES = SPECIES.length();
+
+	private static final int BLOCK_SIZE = 64;
+
+	// the words of a block are scattered LANES apart in the keystream buffer
+	private static final int[] GATHER_MAP = gatherMap();
+
+	private static final ValueLayout.OfInt WORD = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfLong DOUBLE_WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+	// inputs this short are cheaper to do one block at a time than to compute LANES blocks for
+	private static final int SCALAR_LIMIT = 2 * BLOCK_SIZE;
+
+	// holds the keystream for LANES blocks, word-major
+	private static final ThreadLocal<int[]> KEYSTREAM = ThreadLocal.withInitial(() -> new int[16 * LANES]);
+
+	// holds one block of keystream for short inputs
+	private static final ThreadLocal<int[]> BLOCK_KEYSTREAM = ThreadLocal.withInitial(() -> new int[16]);
+
+	private ChaCha20Vector() {
+	}
+
+	private static VectorSpecies<Integer> species() {
+		var preferred = IntVector.SPECIES_PREFERRED;
+		if (preferred.vectorBitSize() >= 512)
+			return IntVector.SPECIES_512;
+		else if (preferred.vectorBitSize() >= 256)
+			return IntVector.SPECIES_256;
+		else
+			return IntVector.SPECIES_128;
+	}
+
+	private static int[] gatherMap() {
+		var map = new int[LANES];
+		for (int i = 0; i < LANES; i++)
+			map[i] = i * LANES;
+
+		return map;
+	}
+
+	/**
+	 * XORs the input with the ChaCha20 keystream, starting from the given block counter, and writes the result to the
+	 * output.  The input and output may be the same segment.
+	 *
+	 * @param key     the 32 byte key
+	 * @param nonce   the 12 byte nonce
+	 * @param input   the data to encrypt or decrypt
+	 * @param output  where to write the result, which must be at least as large as the input
+	 * @param counter the counter of the first block
+	 */
+	static void chacha20(MemorySegment key, MemorySegment nonce, MemorySegment input, MemorySegment output, int counter) {
+		if (output.byteSize() < input.byteSize()) {
+			throw new IllegalArgumentException("Output buffer must be at least as large as input buffer");
+		}
+
+		if (input.byteSize() <= SCALAR_LIMIT) {
+			chacha20Scalar(key, nonce, input, output, counter);
+			return;
+		}
+
+		int k0 = key.get(WORD, 0), k1 = key.get(WORD, 4), k2 = key.get(WORD, 8), k3 = key.get(WORD, 12);
+		int k4 = key.get(WORD, 16), k5 = key.get(WORD, 20), k6 = key.get(WORD, 24), k7 = key.get(WORD, 28);
+		int n0 = nonce.get(WORD, 0), n1 = nonce.get(WORD, 4), n2 = nonce.get(WORD, 8);
+
+		var keystream = KEYSTREAM.get();
+		var lanes = IntVector.zero(SPECIES).addIndex(1);
+
+		long length = input.byteSize();
+		for (long offset = 0; offset < length; offset += (long) LANES * BLOCK_SIZE, counter += LANES) {
+			keystream(keystream, k0, k1, k2, k3, k4, k5, k6, k7, lanes.add(counter), IntVector.broadcast(SPECIES, n0), IntVector.broadcast(SPECIES, n1), IntVector.broadcast(SPECIES, n2));
+
+			for (int block = 0; block < LANES; block++) {
+				long blockOffset = offset + (long) block * BLOCK_SIZE;
+				if (blockOffset >= length)
+					break;
+
+				if (length - blockOffset >= BLOCK_SIZE)
+					xorBlock(keystream, block, input, output, blockOffset);
+				else
+					xorPartialBlock(keystream, block, input, output, blockOffset, length - blockOffset);
+			}
+		}
+	}
+
+	private static void chacha20Scalar(MemorySegment key, MemorySegment nonce, MemorySegment input, MemorySegment output, int counter) {
+		int k0 = key.get(WORD, 0), k1 = key.get(WORD, 4), k2 = key.get(WORD, 8), k3 = key.get(WORD, 12);
+		int k4 = key.get(WORD, 16), k5 = key.get(WORD, 20), k6 = key.get(WORD, 24), k7 = key.get(WORD, 28);
+		int n0 = nonce.get(WORD, 0), n1 = nonce.get(WORD, 4), n2 = nonce.get(WORD, 8);
+
+		var keystream = BLOCK_KEYSTREAM.get();
+
+		long length = input.byteSize();
+		for (long offset = 0; offset < length; offset += BLOCK_SIZE) {
+			block(keystream, 0x61707865, 0x3320646e, 0x79622d32, 0x6b206574, k0, k1, k2, k3, k4, k5, k6, k7, counter++, n0, n1, n2);
+
+			long blockLength = Math.min(BLOCK_SIZE, length - offset);
+
+			int i = 0;
+			for (; i + 8 <= blockLength; i += 8) {
+				long stream = (keystream[i >>> 2] & 0xFFFFFFFFL) | ((long) keystream[(i >>> 2) + 1] << 32);
+				output.set(DOUBLE_WORD, offset + i, input.get(DOUBLE_WORD, offset + i) ^ stream);
+			}
+
+			for (; i < blockLength; i++) {
+				byte streamByte = (byte) (keystream[i >>> 2] >>> ((i & 3) * 8));
+				output.set(JAVA_BYTE, offset + i, (byte) (input.get(JAVA_BYTE, offset + i) ^ streamByte));
+			}
+		}
+	}
+
+	/**
+	 * Computes {@link #LANES} blocks of keystream under the same key, where each lane has its own counter and nonce.
+	 * This lets short messages under different nonces share one pass through the rounds.  The keystream is stored
+	 * word-major, as for {@link #keystream(int[], int, int, int, int, int, int, int, int, IntVector, IntVector, IntVector, IntVector)},
+	 * and is read back with {@link #xor} and {@link #copy}.
+	 *
+	 * @param keystream where to store the keystream, {@code 16 * LANES} words long
+	 * @param key       the eight key words
+	 * @param counters  each lane's block counter
+	 * @param nonces0   the first word of each lane's nonce
+	 * @param nonces1   the second word of each lane's nonce
+	 * @param nonces2   the third word of each lane's nonce
+	 */
+	static void keystream(int[] keystream, int[] key, int[] counters, int[] nonces0, int[] nonces1, int[] nonces2) {
+		keystream(keystream, key[0], key[1], key[2], key[3], key[4], key[5], key[6], key[7],
+			IntVector.fromArray(SPECIES, counters, 0),
+			IntVector.fromArray(SPECIES, nonces0, 0), IntVector.fromArray(SPECIES, nonces1, 0), IntVector.fromArray(SPECIES, nonces2, 0));
+	}
+
+	/**
+	 * XORs up to a block of input with one lane of keystream computed by {@link #keystream(int[], int[], int[], int[], int[], int[])}
+	 *
+	 * @param length the number of bytes to XOR, at most 64
+	 */
+	static void xor(int[] keystream, int lane, MemorySegment input, MemorySegment output, long offset, long length) {
+		if (length == BLOCK_SIZE)
+			xorBlock(keystream, lane, input, output, offset);
+		else
+			xorPartialBlock(keystream, lane, input, output, offset, length);
+	}
+
+	/**
+	 * Copies the first {@code length} bytes of one lane of keystream computed by
+	 * {@link #keystream(int[], int[], int[], int[], int[], int[])}
+	 *
+	 * @param length the number of bytes to copy, a multiple of 4 and at most 64
+	 */
+	static void copy(int[] keystream, int lane, MemorySegment output, int length) {
+		for (int word = 0; word < length / 4; word++)
+			output.set(WORD, word * 4L, keystream[word * LANES + lane]);
+	}
+
+	/**
+	 * Reads a key into its eight words, for {@link #keystream(int[], int[], int[], int[], int[], int[])}
+	 */
+	static void keyWords(MemorySegment key, int[] words) {
+		for (int i = 0; i < 8; i++)
+			words[i] = key.get(WORD, i * 4L);
+	}
+
+	/**
+	 * Reads word {@code index} of a nonce, for {@link #keystream(int[], int[], int[], int[], int[], int[])}
+	 */
+	static int nonceWord(MemorySegment nonce, int index) {
+		return nonce.get(WORD, index * 4L);
+	}
+
+	private static void xorBlock(int[] keystream, int block, MemorySegment input, MemorySegment output, long offset) {
+		for (int word = 0; word < 16; word += LANES) {
+			var stream = IntVector.fromArray(SPECIES, keystream, word * LANES + block, GATHER_MAP, 0);
+			var in = IntVector.fromMemorySegment(SPECIES, input, offset + word * 4L, ByteOrder.LITTLE_ENDIAN);
+
+			in.lanewise(XOR, stream).intoMemorySegment(output, offset + word * 4L, ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	private static void xorPartialBlock(int[] keystream, int block, MemorySegment input, MemorySegment output, long offset, long length) {
+		for (int i = 0; i < length; i++) {
+			int word = keystream[(i >>> 2) * LANES + block];
+			byte streamByte = (byte) (word >>> ((i & 3) * 8));
+
+			output.set(JAVA_BYTE, offset + i, (byte) (input.get(JAVA_BYTE, offset + i) ^ streamByte));
+		}
+	}
+
+	/**
+	 * Computes LANES blocks of keystream, one for each lane of the counters and nonces, and stores them word-major:
+	 * word {@code w} of block {@code b} ends up at {@code keystream[w * LANES + b]}.
+	 */
+	private static void keystream(int[] keystream, int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7, IntVector counters, IntVector n0, IntVector n1, IntVector n2) {
+		var s0 = IntVector.broadcast(SPECIES, 0x61707865);
+		var s1 = IntVector.broadcast(SPECIES, 0x3320646e);
+		var s2 = IntVector.broadcast(SPECIES, 0x79622d32);
+		var s3 = IntVector.broadcast(SPECIES, 0x6b206574);
+		var s4 = IntVector.broadcast(SPECIES, k0);
+		var s5 = IntVector.broadcast(SPECIES, k1);
+		var s6 = IntVector.broadcast(SPECIES, k2);
+		var s7 = IntVector.broadcast(SPECIES, k3);
+		var s8 = IntVector.broadcast(SPECIES, k4);
+		var s9 = IntVector.broadcast(SPECIES, k5);
+		var s10 = IntVector.broadcast(SPECIES, k6);
+		var s11 = IntVector.broadcast(SPECIES, k7);
+		var s12 = counters;
+		var s13 = n0;
+		var s14 = n1;
+		var s15 = n2;
+
+		var x0 = s0;
+		var x1 = s1;
+		var x2 = s2;
+		var x3 = s3;
+		var x4 = s4;
+		var x5 = s5;
+		var x6 = s6;
+		var x7 = s7;
+		var x8 = s8;
+		var x9 = s9;
+		var x10 = s10;
+		var x11 = s11;
+		var x12 = s12;
+		var x13 = s13;
+		var x14 = s14;
+		var x15 = s15;
+
+		for (int i = 0; i < 10; i++) {
+			// columns
+			x0 = x0.add(x4); x12 = x12.lanewise(XOR, x0).lanewise(ROL, 16);
+			x8 = x8.add(x12); x4 = x4.lanewise(XOR, x8).lanewise(ROL, 12);
+			x0 = x0.add(x4); x12 = x12.lanewise(XOR, x0).lanewise(ROL, 8);
+			x8 = x8.add(x12); x4 = x4.lanewise(XOR, x8).lanewise(ROL, 7);
+
+			x1 = x1.add(x5); x13 = x13.lanewise(XOR, x1).lanewise(ROL, 16);
+			x9 = x9.add(x13); x5 = x5.lanewise(XOR, x9).lanewise(ROL, 12);
+			x1 = x1.add(x5); x13 = x13.lanewise(XOR, x1).lanewise(ROL, 8);
+			x9 = x9.add(x13); x5 = x5.lanewise(XOR, x9).lanewise(ROL, 7);
+
+			x2 = x2.add(x6); x14 = x14.lanewise(XOR, x2).lanewise(ROL, 16);
+			x10 = x10.add(x14); x6 = x6.lanewise(XOR, x10).lanewise(ROL, 12);
+			x2 = x2.add(x6); x14 = x14.lanewise(XOR, x2).lanewise(ROL, 8);
+			x10 = x10.add(x14); x6 = x6.lanewise(XOR, x10).lanewise(ROL, 7);
+
+			x3 = x3.add(x7); x15 = x15.lanewise(XOR, x3).lanewise(ROL, 16);
+			x11 = x11.add(x15); x7 = x7.lanewise(XOR, x11).lanewise(ROL, 12);
+			x3 = x3.add(x7); x15 = x15.lanewise(XOR, x3).lanewise(ROL, 8);
+			x11 = x11.add(x15); x7 = x7.lanewise(XOR, x11).lanewise(ROL, 7);
+
+			// diagonals
+			x0 = x0.add(x5); x15 = x15.lanewise(XOR, x0).lanewise(ROL, 16);
+			x10 = x10.add(x15); x5 = x5.lanewise(XOR, x10).lanewise(ROL, 12);
+			x0 = x0.add(x5); x15 = x15.lanewise(XOR, x0).lanewise(ROL, 8);
+			x10 = x10.add(x15); x5 = x5.lanewise(XOR, x10).lanewise(ROL, 7);
+
+			x1 = x1.add(x6); x12 = x12.lanewise(XOR, x1).lanewise(ROL, 16);
+			x11 = x11.add(x12); x6 = x6.lanewise(XOR, x11).lanewise(ROL, 12);
+			x1 = x1.add(x6); x12 = x12.lanewise(XOR, x1).lanewise(ROL, 8);
+			x11 = x11.add(x12); x6 = x6.lanewise(XOR, x11).lanewise(ROL, 7);
+
+			x2 = x2.add(x7); x13 = x13.lanewise(XOR, x2).lanewise(ROL, 16);
+			x8 = x8.add(x13); x7 = x7.lanewise(XOR, x8).lanewise(ROL, 12);
+			x2 = x2.add(x7); x13 = x13.lanewise(XOR, x2).lanewise(ROL, 8);
+			x8 = x8.add(x13); x7 = x7.lanewise(XOR, x8).lanewise(ROL, 7);
+
+			x3 = x3.add(x4); x14 = x14.lanewise(XOR, x3).lanewise(ROL, 16);
+			x9 = x9.add(x14); x4 = x4.lanewise(XOR, x9).lanewise(ROL, 12);
+			x3 = x3.add(x4); x14 = x14.lanewise(XOR, x3).lanewise(ROL, 8);
+			x9 = x9.add(x14); x4 = x4.lanewise(XOR, x9).lanewise(ROL, 7);
+		}
+
+		x0.add(s0).intoArray(keystream, 0);
+		x1.add(s1).intoArray(keystream, LANES);
+		x2.add(s2).intoArray(keystream, 2 * LANES);
+		x3.add(s3).intoArray(keystream, 3 * LANES);
+		x4.add(s4).intoArray(keystream, 4 * LANES);
+		x5.add(s5).intoArray(keystream, 5 * LANES);
+		x6.add(s6).intoArray(keystream, 6 * LANES);
+		x7.add(s7).intoArray(keystream, 7 * LANES);
+		x8.add(s8).intoArray(keystream, 8 * LANES);
+		x9.add(s9).intoArray(keystream, 9 * LANES);
+		x10.add(s10).intoArray(keystream, 10 * LANES);
+		x11.add(s11).intoArray(keystream, 11 * LANES);
+		x12.add(s12).intoArray(keystream, 12 * LANES);
+		x13.add(s13).intoArray(keystream, 13 * LANES);
+		x14.add(s14).intoArray(keystream, 14 * LANES);
+		x15.add(s15).intoArray(keystream, 15 * LANES);
+	}
+
+	/**
+	 * Computes a single block of keystream from the given state, without vectors, since there's only one block to
+	 * compute.
+	 *
+	 * @param state  the 16 word state, with the block counter already set
+	 * @param output where to write the 64 bytes of keystream
+	 */
+	static void block(MemorySegment state, MemorySegment output) {
+		var keystream = BLOCK_KEYSTREAM.get();
+		block(keystream,
+			state.get(WORD, 0), state.get(WORD, 4), state.get(WORD, 8), state.get(WORD, 12),
+			state.get(WORD, 16), state.get(WORD, 20), state.get(WORD, 24), state.get(WORD, 28),
+			state.get(WORD, 32), state.get(WORD, 36), state.get(WORD, 40), state.get(WORD, 44),
+			state.get(WORD, 48), state.get(WORD, 52), state.get(WORD, 56), state.get(WORD, 60)
+		);
+
+		for (int i = 0; i < 16; i++)
+			output.set(WORD, i * 4L, keystream[i]);
+	}
+
+	private static void block(int[] keystream, int s0, int s1, int s2, int s3, int s4, int s5, int s6, int s7, int s8, int s9, int s10, int s11, int s12, int s13, int s14, int s15) {
+		int x0 = s0, x1 = s1, x2 = s2, x3 = s3, x4 = s4, x5 = s5, x6 = s6, x7 = s7;
+		int x8 = s8, x9 = s9, x10 = s10, x11 = s11, x12 = s12, x13 = s13, x14 = s14, x15 = s15;
+
+		for (int i = 0; i < 10; i++) {
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16); x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8); x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16); x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8); x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16); x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8); x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16); x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8); x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16); x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8); x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16); x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8); x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16); x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8); x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16); x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8); x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+		}
+
+		keystream[0] = x0 + s0;
+		keystream[1] = x1 + s1;
+		keystream[2] = x2 + s2;
+		keystream[3] = x3 + s3;
+		keystream[4] = x4 + s4;
+		keystream[5] = x5 + s5;
+		keystream[6] = x6 + s6;
+		keystream[7] = x7 + s7;
+		keystream[8] = x8 + s8;
+		keystream[9] = x9 + s9;
+		keystream[10] = x10 + s10;
+		keystream[11] = x11 + s11;
+		keystream[12] = x12 + s12;
+		keystream[13] = x13 + s13;
+		keystream[14] = x14 + s14;
+		keystream[15] = x15 + s15;
+	}
+}
@@ -1,8 +1,6 @@
 package ax.xz.wireguard.noise.crypto;
 
-import java.security.DigestException;
 import java.security.MessageDigest;
-import java.util.Arrays;
 
 public class Crypto {
 	public static final int POLY1305_TAG_SIZE = 16;
@@ -15,83 +13,28 @@ public class Crypto {
 
 	/**
 	 * TAI64N(): TAI64N timestamp of current time which is 12 bytes
+	 *
+	 * @param result where to write the timestamp
 	 */
-	public static byte[] TAI64N() {
-		var result = new byte[12];
+	public static void TAI64N(byte[] result) {
 		var time = System.currentTimeMillis() * 1000 + 4611686018427387914L;
 		for (int i = 11; i >= 0; i--) {
 			result[i] = (byte) (time & 0xFF);
 			time >>= 8;
 		}
-		return result;
 	}
 
-	private static final int BLAKE2S_BLOCKBYTES = 64; // Define this constant
-
-	private static final byte[] ipad = new byte[BLAKE2S_BLOCKBYTES];
-	private static final byte[] opad = new byte[BLAKE2S_BLOCKBYTES];
-
-	static {
-		Arrays.fill(ipad, (byte) 0x36);
-		Arrays.fill(opad, (byte) 0x5c);
-	}
-
-	public static void HMAC(byte[] sum, byte[] key, byte[]... messages) {
-		byte[] K;
-		if (key.length > BLAKE2S_BLOCKBYTES) {
-			K = Crypto.BLAKE2s256(key);
-		} else {
-			K = key;
-		}
-
-		byte[] paddedK = new byte[BLAKE2S_BLOCKBYTES];
-		System.arraycopy(K, 0, paddedK, 0, K.length);
-
-		byte[] iKeyPad = new byte[BLAKE2S_BLOCKBYTES];
-		byte[] oKeyPad = new byte[BLAKE2S_BLOCKBYTES];
-
-		for (int i = 0; i < BLAKE2S_BLOCKBYTES; i++) {
-			iKeyPad[i] = (byte) (paddedK[i] ^ ipad[i]);
-			oKeyPad[i] = (byte) (paddedK[i] ^ opad[i]);
-		}
-
-		var b2s = getBlake2s256();
-		b2s.update(iKeyPad);
-		for (var message : messages)
-			b2s.update(message);
-		byte[] innerHash = b2s.digest();
-
-		b2s.update(oKeyPad);
-		b2s.update(innerHash);
-		try {
-			b2s.digest(sum, 0, sum.length);
-		} catch (DigestException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-
-	private static byte[] HKDF_Extract(byte[] salt, byte[] IKM) {
-		byte[] PRK = new byte[BLAKE2S_SIZE_256];
-		HMAC(PRK, salt, IKM);
-		return PRK;
-	}
-
-	private static byte[][] HKDF_Expand(byte[] PRK, byte[] info, int N) {
-		byte[][] T = new byte[N][BLAKE2S_SIZE_256];
-
-		for (int n = 1; n <= N; n++) {
-			if (n > 1)
-				HMAC(T[n - 1], PRK, T[n - 2], info, new byte[]{(byte) n});
-			else
-				HMAC(T[n - 1], PRK, info, new byte[]{(byte) n});
-		}
-
-		return T;
+	public static void HMAC(byte[] sum, byte[] key, byte[] message) {
+		HandshakeCrypto.get().hmac(sum, key, message);
 	}
 
 	public static byte[] deriveKey(byte[] salt, byte[] IKM, int n) {
-		return HKDF_Expand(HKDF_Extract(salt, IKM), new byte[0], n)[n - 1];
+		if (n < 1 || n > 3)
+			throw new IllegalArgumentException("n must be between 1 and 3");
+
+		var result = new byte[BLAKE2S_SIZE_256];
+		HandshakeCrypto.get().kdf(salt, IKM, n == 1 ? result : null, n == 2 ? result : null, n == 3 ? result : null);
+		return result;
 	}
 
 	public static byte[] deriveKey(byte[] salt, byte[] IKM) {
@@ -0,0 +1,226 @@
+package ax.xz.wireguard.noise.crypto;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.util.Arrays;
+
+import static ax.xz.wireguard.noise.crypto.Crypto.BLAKE2S_SIZE_128;
+import static ax.xz.wireguard.noise.crypto.Crypto.BLAKE2S_SIZE_256;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * The hashing done during a handshake:  BLAKE2s, HMAC-BLAKE2s, the KDF built on it, and the keyed BLAKE2s used for
+ * {@code mac1}, {@code mac2} and cookies, along with the keys they're computed under.
+ *
+ * <p>
+ * An instance keeps its own digests and scratch space, and writes its results into arrays owned by the caller, so
+ * nothing is allocated per call.  Instances aren't thread-safe, and are kept one per thread through {@link #get()}.
+ * </p>
+ */
+public final class HandshakeCrypto {
+	private static final ThreadLocal<HandshakeCrypto> INSTANCE = ThreadLocal.withInitial(HandshakeCrypto::new);
+
+	private static final int BLOCK_LENGTH = 64;
+
+	private static final byte[] MAC1_LABEL = "mac1----".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] COOKIE_LABEL = "cookie--".getBytes(StandardCharsets.UTF_8);
+
+	private final Blake2s hash = new Blake2s(BLAKE2S_SIZE_256);
+	private final Blake2s mac = new Blake2s(BLAKE2S_SIZE_128);
+
+	private final byte[] paddedKey = new byte[BLOCK_LENGTH];
+	private final byte[] innerHash = new byte[BLAKE2S_SIZE_256];
+	private final byte[] prk = new byte[BLAKE2S_SIZE_256];
+	private final byte[] t = new byte[BLAKE2S_SIZE_256];
+	private final byte[] macKey = new byte[BLAKE2S_SIZE_256];
+
+	private HandshakeCrypto() {
+	}
+
+	/**
+	 * Returns this thread's instance
+	 */
+	public static HandshakeCrypto get() {
+		return INSTANCE.get();
+	}
+
+	/**
+	 * Computes {@code BLAKE2s(first || second)}.  The output may be one of the inputs.
+	 *
+	 * @param out where to write the 32 byte hash
+	 */
+	public void hash(byte[] out, byte[] first, byte[] second) {
+		hash.update(first);
+		hash.update(second);
+		digest(hash, out);
+	}
+
+	/**
+	 * Computes {@code HMAC-BLAKE2s(key, message)}.  The output may be one of the inputs.
+	 *
+	 * @param out where to write the 32 byte MAC
+	 */
+	public void hmac(byte[] out, byte[] key, byte[] message) {
+		innerHash(key);
+		hash.update(message);
+		outerHash(out);
+	}
+
+	/**
+	 * The WireGuard KDF, which extracts a pseudorandom key from the key and input, and expands it into up to three
+	 * outputs.  Outputs that aren't wanted may be {@code null}, and are then not computed unless a later one is.  The
+	 * outputs may be the key or input, which is how the chaining key is usually updated.
+	 *
+	 * @param key   the chaining key
+	 * @param input the input keying material
+	 * @param out1  where to write the first output, or null
+	 * @param out2  where to write the second output, or null
+	 * @param out3  where to write the third output, or null
+	 */
+	public void kdf(byte[] key, byte[] input, byte[] out1, byte[] out2, byte[] out3) {
+		try {
+			hmac(prk, key, input);
+
+			// T1 = HMAC(PRK, 0x1), Tn = HMAC(PRK, Tn-1 || n)
+			expand(null, (byte) 1);
+			copy(out1);
+
+			if (out2 == null && out3 == null)
+				return;
+
+			expand(t, (byte) 2);
+			copy(out2);
+
+			if (out3 == null)
+				return;
+
+			expand(t, (byte) 3);
+			copy(out3);
+		} finally {
+			Arrays.fill(prk, (byte) 0);
+			Arrays.fill(t, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes the key for the {@code mac1} of handshake messages sent to the given public key, which is
+	 * {@code BLAKE2s("mac1----" || publicKey)}
+	 *
+	 * @param out where to write the 32 byte key
+	 */
+	public void mac1Key(byte[] out, byte[] publicKey) {
+		hash(out, MAC1_LABEL, publicKey);
+	}
+
+	/**
+	 * Computes the key for the cookies sent by the owner of the given public key, which is
+	 * {@code BLAKE2s("cookie--" || publicKey)}
+	 *
+	 * @param out where to write the 32 byte key
+	 */
+	public void cookieKey(byte[] out, byte[] publicKey) {
+		hash(out, COOKIE_LABEL, publicKey);
+	}
+
+	/**
+	 * Computes a handshake message's {@code mac1}, which is {@code BLAKE2s-128(mac1Key, message)}
+	 *
+	 * @param out     where to write the 16 byte MAC
+	 * @param mac1Key the recipient's key, from {@link #mac1Key(byte[], byte[])}
+	 * @param message the message, up to but not including {@code mac1}
+	 */
+	public void mac1(byte[] out, MemorySegment mac1Key, MemorySegment message) {
+		try {
+			MemorySegment.copy(mac1Key, JAVA_BYTE, 0, macKey, 0, macKey.length);
+			mac(out, macKey, message);
+		} finally {
+			Arrays.fill(macKey, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes a handshake message's {@code mac2}, which is {@code BLAKE2s-128(cookie, message)}
+	 *
+	 * @param out     where to write the 16 byte MAC
+	 * @param cookie  the 16 byte cookie the recipient last gave us
+	 * @param message the message, up to but not including {@code mac2}
+	 */
+	public void mac2(byte[] out, byte[] cookie, MemorySegment message) {
+		mac(out, cookie, message);
+	}
+
+	/**
+	 * Computes the cookie for the given source address, which is {@code BLAKE2s-128(secret, address)}
+	 *
+	 * @param out     where to write the 16 byte cookie
+	 * @param secret  the 32 byte secret, which should change every couple of minutes
+	 * @param address the sender's IP address and port
+	 */
+	public void cookie(byte[] out, byte[] secret, MemorySegment address) {
+		mac(out, secret, address);
+	}
+
+	private void mac(byte[] out, byte[] key, MemorySegment message) {
+		mac.setKey(key);
+		mac.update(message);
+		digest(mac, out);
+	}
+
+	private void expand(byte[] previous, byte counter) {
+		innerHash(prk);
+		if (previous != null)
+			hash.update(previous);
+		hash.update(counter);
+		outerHash(t);
+	}
+
+	private void copy(byte[] out) {
+		if (out != null)
+			System.arraycopy(t, 0, out, 0, BLAKE2S_SIZE_256);
+	}
+
+	/**
+	 * Starts the inner hash, {@code H((K ^ ipad) || message)}, leaving the message to the caller
+	 */
+	private void innerHash(byte[] key) {
+		Arrays.fill(paddedKey, (byte) 0);
+		if (key.length > BLOCK_LENGTH) {
+			hash.update(key);
+			digest(hash, paddedKey);
+		} else {
+			System.arraycopy(key, 0, paddedKey, 0, key.length);
+		}
+
+		for (int i = 0; i < BLOCK_LENGTH; i++)
+			paddedKey[i] ^= 0x36;
+
+		hash.update(paddedKey);
+	}
+
+	/**
+	 * Finishes the inner hash, and computes the outer hash {@code H((K ^ opad) || inner)}
+	 */
+	private void outerHash(byte[] out) {
+		digest(hash, innerHash);
+
+		// (K ^ ipad) ^ (ipad ^ opad) = K ^ opad
+		for (int i = 0; i < BLOCK_LENGTH; i++)
+			paddedKey[i] ^= 0x36 ^ 0x5c;
+
+		hash.update(paddedKey);
+		hash.update(innerHash);
+		digest(hash, out);
+
+		Arrays.fill(paddedKey, (byte) 0);
+		Arrays.fill(innerHash, (byte) 0);
+	}
+
+	private static void digest(Blake2s digest, byte[] out) {
+		try {
+			digest.digest(out, 0, digest.getDigestLength());
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
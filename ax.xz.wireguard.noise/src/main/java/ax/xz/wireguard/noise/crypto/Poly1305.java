@@ -7,8 +7,20 @@ import static java.lang.foreign.MemoryLayout.sequenceLayout;
 import static java.lang.foreign.MemoryLayout.structLayout;
 import static java.lang.foreign.ValueLayout.*;
 
+/**
+ * The Poly1305 one-time authenticator.
+ *
+ * <p>
+ * By default this is computed in Java, by {@link Poly1305Java}, and no native library is needed.  If the
+ * {@code ax.xz.wireguard.poly1305} system property is {@code native}, the donna implementation in
+ * {@code libpoly1305-donna} is called through downcalls instead, and has to be on the library path.
+ * </p>
+ */
 public class Poly1305 {
-	static final MethodHandle poly1305_init$MH, poly1305_update$MH, poly1305_finish$MH, poly1305_power_on_self_test$MH;
+	/**
+	 * Whether to use {@code libpoly1305-donna} instead of {@link Poly1305Java}
+	 */
+	static final boolean NATIVE = System.getProperty("ax.xz.wireguard.poly1305", "java").equalsIgnoreCase("native");
 
 	/**
 	 * typedef struct poly1305_context {
@@ -21,70 +33,79 @@ public class Poly1305 {
 		sequenceLayout(136, JAVA_BYTE).withName("opaque")
 	);
 
-	static {
-		System.loadLibrary("poly1305-donna");
-
-		var symbols = SymbolLookup.loaderLookup();
-		var linker = Linker.nativeLinker();
-
-		/**
-		 * void poly1305_init(poly1305_context *ctx, const unsigned char key[32]);
-		 * void poly1305_update(poly1305_context *ctx, const unsigned char *m, size_t bytes);
-		 * void poly1305_finish(poly1305_context *ctx, unsigned char mac[16]);
-		 *
-		 * int poly1305_power_on_self_test(void);
-		 */
-		poly1305_init$MH = linker.downcallHandle(
-			symbols.find("poly1305_init").orElseThrow(),
-			FunctionDescriptor.ofVoid(
-				ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
-				ADDRESS.withTargetLayout(sequenceLayout(32, JAVA_BYTE))
-			)
-		);
-
-		poly1305_update$MH = linker.downcallHandle(
-			symbols.find("poly1305_update").orElseThrow(),
-			FunctionDescriptor.ofVoid(
-				ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
-				ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("m"),
-				JAVA_LONG.withName("bytes")
-			)
-		);
-
-		poly1305_finish$MH = linker.downcallHandle(
-			symbols.find("poly1305_finish").orElseThrow(),
-			FunctionDescriptor.ofVoid(
-				ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
-				ADDRESS.withTargetLayout(sequenceLayout(16, JAVA_BYTE)).withName("mac")
-			)
-		);
-
-		poly1305_power_on_self_test$MH = linker.downcallHandle(
-			symbols.find("poly1305_power_on_self_test").orElseThrow(),
-			FunctionDescriptor.of(JAVA_INT)
-		);
-
-		boolean selfTestResult;
-		try {
-			selfTestResult = ((int) poly1305_power_on_self_test$MH.invokeExact() != 1);
-		} catch (Throwable e) {
-			throw new RuntimeException(e);
-		}
+	private static final class Native {
+		static final MethodHandle poly1305_init$MH, poly1305_update$MH, poly1305_finish$MH, poly1305_power_on_self_test$MH;
+
+		static {
+			System.loadLibrary("poly1305-donna");
+
+			var symbols = SymbolLookup.loaderLookup();
+			var linker = Linker.nativeLinker();
+
+			/**
+			 * void poly1305_init(poly1305_context *ctx, const unsigned char key[32]);
+			 * void poly1305_update(poly1305_context *ctx, const unsigned char *m, size_t bytes);
+			 * void poly1305_finish(poly1305_context *ctx, unsigned char mac[16]);
+			 *
+			 * int poly1305_power_on_self_test(void);
+			 */
+			poly1305_init$MH = linker.downcallHandle(
+				symbols.find("poly1305_init").orElseThrow(),
+				FunctionDescriptor.ofVoid(
+					ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
+					ADDRESS.withTargetLayout(sequenceLayout(32, JAVA_BYTE))
+				)
+			);
+
+			poly1305_update$MH = linker.downcallHandle(
+				symbols.find("poly1305_update").orElseThrow(),
+				FunctionDescriptor.ofVoid(
+					ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
+					ADDRESS.withTargetLayout(sequenceLayout(JAVA_BYTE)).withName("m"),
+					JAVA_LONG.withName("bytes")
+				)
+			);
+
+			poly1305_finish$MH = linker.downcallHandle(
+				symbols.find("poly1305_finish").orElseThrow(),
+				FunctionDescriptor.ofVoid(
+					ADDRESS.withTargetLayout(POLY1305_CONTEXT).withName("ctx"),
+					ADDRESS.withTargetLayout(sequenceLayout(16, JAVA_BYTE)).withName("mac")
+				)
+			);
+
+			poly1305_power_on_self_test$MH = linker.downcallHandle(
+				symbols.find("poly1305_power_on_self_test").orElseThrow(),
+				FunctionDescriptor.of(JAVA_INT)
+			);
+
+			boolean selfTestResult;
+			try {
+				selfTestResult = ((int) poly1305_power_on_self_test$MH.invokeExact() != 1);
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
 
-		if (selfTestResult) {
-			throw new ExceptionInInitializerError("Poly1305 self-test failed");
+			if (selfTestResult) {
+				throw new ExceptionInInitializerError("Poly1305 self-test failed");
+			}
 		}
 	}
 
 	private final MemorySegment context;
+	private final Poly1305Java java;
 	private boolean finished = false, initialised = false;
 
 	Poly1305(Arena arena) {
-		this(arena.allocate(POLY1305_CONTEXT));
+		this(NATIVE ? arena.allocate(POLY1305_CONTEXT) : null);
 	}
 
+	/**
+	 * @param context where to keep the native context, which is ignored unless {@link #NATIVE} is set
+	 */
 	Poly1305(MemorySegment context) {
 		this.context = context;
+		this.java = NATIVE ? null : new Poly1305Java();
 	}
 
 	public Poly1305() {
@@ -92,6 +113,13 @@ public class Poly1305 {
 	}
 
 	public void init(MemorySegment key) {
+		if (!NATIVE) {
+			java.init(key);
+			initialised = true;
+			finished = false;
+			return;
+		}
+
 		Arena arena = null;
 		if (!key.isNative()) {
 			arena = Arena.ofConfined();
@@ -99,7 +127,7 @@ public class Poly1305 {
 		}
 
 		try {
-			poly1305_init$MH.invokeExact(context, key);
+			Native.poly1305_init$MH.invokeExact(context, key);
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -118,6 +146,11 @@ public class Poly1305 {
 			throw new IllegalStateException("Poly1305 context has not been initialised");
 		}
 
+		if (!NATIVE) {
+			java.update(message);
+			return;
+		}
+
 		Arena arena = null;
 		if (!message.isNative()) {
 			arena = Arena.ofConfined();
@@ -125,7 +158,7 @@ public class Poly1305 {
 		}
 
 		try {
-			poly1305_update$MH.invokeExact(context, message, message.byteSize());
+			Native.poly1305_update$MH.invokeExact(context, message, message.byteSize());
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
 		} finally {
@@ -142,6 +175,12 @@ public class Poly1305 {
 			throw new IllegalStateException("Poly1305 context has not been initialised");
 		}
 
+		if (!NATIVE) {
+			java.finish(mac);
+			finished = true;
+			return;
+		}
+
 		Arena arena = null;
 		MemorySegment nativeMac = null;
 		if (!mac.isNative()) {
@@ -151,10 +190,10 @@ public class Poly1305 {
 
 		try {
 			if (nativeMac != null) {
-				poly1305_finish$MH.invokeExact(context, nativeMac);
+				Native.poly1305_finish$MH.invokeExact(context, nativeMac);
 				mac.copyFrom(nativeMac);
 			} else {
-				poly1305_finish$MH.invokeExact(context, mac);
+				Native.poly1305_finish$MH.invokeExact(context, mac);
 			}
 		} catch (Throwable e) {
 			throw new RuntimeException(e);
@@ -0,0 +1,211 @@
+package ax.xz.wireguard.noise.crypto;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Poly1305 in Java, with the accumulator in base 2^64:  two full 64 bit limbs, and a third holding the few bits above
+ * 2^128.  Products of limbs are computed with {@link Math#unsignedMultiplyHigh(long, long)}, so a block costs a handful
+ * of multiplications rather than the 25 of a 26 bit representation.  The reduction follows OpenSSL's
+ * {@code poly1305_blocks}.
+ *
+ * <p>
+ * Nothing is allocated once an instance has been created, and the input is read straight from the given segments.
+ * Besides the general {@link #update(MemorySegment)}, there's {@link #updatePadded(MemorySegment)} and
+ * {@link #updateLengths(long, long)} for the ChaCha20-Poly1305 construction, where every message is padded with zeros
+ * to a multiple of 16 bytes.
+ * </p>
+ */
+final class Poly1305Java {
+	private static final ValueLayout.OfInt WORD = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfLong DOUBLE_WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+	private long r0, r1, s1;
+	private long h0, h1, h2;
+	private long pad0, pad1;
+
+	// holds input that doesn't yet make up a whole block, or a block padded with zeros
+	private final MemorySegment partialBlock = MemorySegment.ofArray(new byte[16]);
+	private int partialLength;
+
+	/**
+	 * Starts a new MAC
+	 *
+	 * @param key the 32 byte one-time key
+	 */
+	void init(MemorySegment key) {
+		// r &= 0xffffffc0ffffffc0ffffffc0fffffff
+		r0 = key.get(DOUBLE_WORD, 0) & 0x0ffffffc0fffffffL;
+		r1 = key.get(DOUBLE_WORD, 8) & 0x0ffffffc0ffffffcL;
+
+		// r1 is a multiple of 4, so this is r1 * 5 / 4
+		s1 = r1 + (r1 >>> 2);
+
+		h0 = h1 = h2 = 0;
+
+		pad0 = key.get(DOUBLE_WORD, 16);
+		pad1 = key.get(DOUBLE_WORD, 24);
+
+		partialLength = 0;
+	}
+
+	/**
+	 * Absorbs the given data
+	 */
+	void update(MemorySegment data) {
+		long length = data.byteSize();
+		long offset = 0;
+
+		if (partialLength > 0) {
+			int taken = (int) Math.min(16 - partialLength, length);
+			MemorySegment.copy(data, 0, partialBlock, partialLength, taken);
+			partialLength += taken;
+			offset += taken;
+
+			if (partialLength < 16)
+				return;
+
+			block(partialBlock, 0, 1);
+			partialLength = 0;
+		}
+
+		for (; offset + 16 <= length; offset += 16)
+			block(data, offset, 1);
+
+		if (offset < length) {
+			MemorySegment.copy(data, offset, partialBlock, 0, length - offset);
+			partialLength = (int) (length - offset);
+		}
+	}
+
+	/**
+	 * Absorbs the given data, followed by as many zeros as it takes to reach a multiple of 16 bytes.  This may only be
+	 * mixed with {@link #update(MemorySegment)} when everything absorbed so far is a multiple of 16 bytes long.
+	 */
+	void updatePadded(MemorySegment data) {
+		assert partialLength == 0;
+
+		long length = data.byteSize();
+
+		long offset = 0;
+		for (; offset + 16 <= length; offset += 16)
+			block(data, offset, 1);
+
+		if (offset < length) {
+			partialBlock.fill((byte) 0);
+			MemorySegment.copy(data, offset, partialBlock, 0, length - offset);
+			block(partialBlock, 0, 1);
+		}
+	}
+
+	/**
+	 * Absorbs the final block of the ChaCha20-Poly1305 construction, which holds the lengths of the additional data
+	 * and of the ciphertext
+	 */
+	void updateLengths(long aadLength, long ciphertextLength) {
+		assert partialLength == 0;
+
+		partialBlock.set(DOUBLE_WORD, 0, aadLength);
+		partialBlock.set(DOUBLE_WORD, 8, ciphertextLength);
+		block(partialBlock, 0, 1);
+	}
+
+	private void block(MemorySegment data, long offset, long padBit) {
+		long m0 = data.get(DOUBLE_WORD, offset), m1 = data.get(DOUBLE_WORD, offset + 8);
+
+		// h += m
+		long sum = h0 + m0;
+		long c = carry(h0, m0, sum);
+		h0 = sum;
+
+		sum = h1 + m1;
+		long c1 = carry(h1, m1, sum);
+		h1 = sum + c;
+		c1 += carry(sum, c, h1);
+
+		h2 += c1 + padBit;
+
+		// d0 = h0 * r0 + h1 * s1
+		long d0Low = h0 * r0, d0High = Math.unsignedMultiplyHigh(h0, r0);
+		long low = h1 * s1;
+		sum = d0Low + low;
+		d0High += Math.unsignedMultiplyHigh(h1, s1) + carry(d0Low, low, sum);
+		d0Low = sum;
+
+		// d1 = h0 * r1 + h1 * r0 + h2 * s1
+		long d1Low = h0 * r1, d1High = Math.unsignedMultiplyHigh(h0, r1);
+		low = h1 * r0;
+		sum = d1Low + low;
+		d1High += Math.unsignedMultiplyHigh(h1, r0) + carry(d1Low, low, sum);
+		d1Low = sum;
+
+		low = h2 * s1;
+		sum = d1Low + low;
+		d1High += carry(d1Low, low, sum);
+		d1Low = sum;
+
+		// h2:h1:h0 = (h2 * r0) << 128 + d1 << 64 + d0, which is h * r "%" p, where "%" is a partial reduction
+		h2 = h2 * r0;
+		h0 = d0Low;
+		h1 = d1Low + d0High;
+		h2 += d1High + carry(d1Low, d0High, h1);
+
+		// h2:h1:h0 = (h2:h1:h0 % 2^130) + (h2:h1:h0 >> 130) * 5
+		c = (h2 >>> 2) + (h2 & ~3L);
+		h2 &= 3;
+		sum = h0 + c;
+		c = carry(h0, c, sum);
+		h0 = sum;
+		sum = h1 + c;
+		c = carry(h1, c, sum);
+		h1 = sum;
+		h2 += c;
+	}
+
+	/**
+	 * Writes the 16 byte tag to the given segment
+	 */
+	void finish(MemorySegment tag) {
+		if (partialLength > 0) {
+			// the final block is padded with a single 1, and doesn't get the 2^128 bit
+			partialBlock.set(ValueLayout.JAVA_BYTE, partialLength, (byte) 1);
+			partialBlock.asSlice(partialLength + 1).fill((byte) 0);
+			block(partialBlock, 0, 0);
+			partialLength = 0;
+		}
+
+		// compute h + -p
+		long g0 = h0 + 5;
+		long c = carry(h0, 5, g0);
+		long g1 = h1 + c;
+		c = carry(h1, c, g1);
+		long g2 = h2 + c;
+
+		// if that carried into bit 130, h >= p, and h - p is what's left in g
+		long useG = -(g2 >>> 2);
+		h0 = (h0 & ~useG) | (g0 & useG);
+		h1 = (h1 & ~useG) | (g1 & useG);
+
+		// tag = (h + pad) % 2^128
+		long t0 = h0 + pad0;
+		long t1 = h1 + pad1 + carry(h0, pad0, t0);
+		tag.set(WORD, 0, (int) t0);
+		tag.set(WORD, 4, (int) (t0 >>> 32));
+		tag.set(WORD, 8, (int) t1);
+		tag.set(WORD, 12, (int) (t1 >>> 32));
+
+		// don't leave the key lying around
+		r0 = r1 = s1 = 0;
+		h0 = h1 = h2 = 0;
+		pad0 = pad1 = 0;
+		partialBlock.fill((byte) 0);
+	}
+
+	/**
+	 * Returns the carry out of {@code sum = a + b}, without branching
+	 */
+	private static long carry(long a, long b, long sum) {
+		return ((a & b) | ((a | b) & ~sum)) >>> 63;
+	}
+}
@@ -0,0 +1,146 @@
+package ax.xz.wireguard.noise.crypto;
+
+import javax.crypto.AEADBadTagException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305NonceSize;
+import static ax.xz.wireguard.noise.crypto.Crypto.POLY1305_NONCE_SIZE;
+
+/**
+ * XChaCha20-Poly1305, the variant of {@link ChaCha20Poly1305} with a 24 byte nonce, which is random enough to pick at
+ * random.  WireGuard only uses it for cookie replies.
+ *
+ * <p>
+ * HChaCha20 derives a subkey from the key and the first 16 bytes of the nonce, and the message is then sealed with
+ * ordinary ChaCha20-Poly1305 under the subkey, with the last 8 bytes of the nonce as the rest of its nonce.  This
+ * follows draft-irtf-cfrg-xchacha.
+ * </p>
+ */
+public final class XChaCha20Poly1305 {
+	private static final ValueLayout.OfInt WORD = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+	private static final int KEY_LENGTH = 32;
+	private static final int HCHACHA20_NONCE_LENGTH = 16;
+
+	private XChaCha20Poly1305() {
+	}
+
+	/**
+	 * Encrypts and authenticates the plaintext
+	 *
+	 * @param aad        the additional data, or null
+	 * @param key        the 32 byte key
+	 * @param nonce      the 24 byte nonce
+	 * @param plaintext  the message
+	 * @param ciphertext where to write the ciphertext, which may be the plaintext
+	 * @param tag        where to write the 16 byte tag
+	 */
+	public static void encrypt(MemorySegment aad, MemorySegment key, MemorySegment nonce, MemorySegment plaintext, MemorySegment ciphertext, MemorySegment tag) {
+		var scratch = Scratch.get(key, nonce);
+		try {
+			ChaCha20Poly1305.poly1305AeadEncrypt(aad, scratch.subkey, scratch.nonce, plaintext, ciphertext, tag);
+		} finally {
+			scratch.subkey.fill((byte) 0);
+		}
+	}
+
+	/**
+	 * Checks the tag, and decrypts the ciphertext if it's authentic
+	 *
+	 * @param aad        the additional data, or null
+	 * @param key        the 32 byte key
+	 * @param nonce      the 24 byte nonce
+	 * @param ciphertext the ciphertext
+	 * @param plaintext  where to write the message, which may be the ciphertext
+	 * @param tag        the 16 byte tag
+	 * @throws AEADBadTagException if the tag doesn't match, in which case nothing is written to {@code plaintext}
+	 */
+	public static void decrypt(MemorySegment aad, MemorySegment key, MemorySegment nonce, MemorySegment ciphertext, MemorySegment plaintext, MemorySegment tag) throws AEADBadTagException {
+		var scratch = Scratch.get(key, nonce);
+		try {
+			ChaCha20Poly1305.poly1305AeadDecrypt(aad, scratch.subkey, scratch.nonce, ciphertext, plaintext, tag);
+		} finally {
+			scratch.subkey.fill((byte) 0);
+		}
+	}
+
+	/**
+	 * Computes HChaCha20, which is the ChaCha20 block function without the final addition of the input, keeping only the
+	 * first and last rows of the state
+	 *
+	 * @param key    the 32 byte key
+	 * @param nonce  the 16 byte nonce
+	 * @param subkey where to write the 32 byte output
+	 */
+	static void hChaCha20(MemorySegment key, MemorySegment nonce, MemorySegment subkey) {
+		if (key.byteSize() != KEY_LENGTH)
+			throw new IllegalArgumentException("Key must be %d bytes (is %d)".formatted(KEY_LENGTH, key.byteSize()));
+		if (nonce.byteSize() < HCHACHA20_NONCE_LENGTH)
+			throw new IllegalArgumentException("Nonce must be at least %d bytes (is %d)".formatted(HCHACHA20_NONCE_LENGTH, nonce.byteSize()));
+
+		int[] x = new int[16];
+		x[0] = 0x61707865;
+		x[1] = 0x3320646e;
+		x[2] = 0x79622d32;
+		x[3] = 0x6b206574;
+
+		for (int i = 0; i < 8; i++)
+			x[4 + i] = key.get(WORD, i * 4L);
+
+		for (int i = 0; i < 4; i++)
+			x[12 + i] = nonce.get(WORD, i * 4L);
+
+		for (int i = 0; i < 10; i++) {
+			// columns
+			quarterRound(x, 0, 4, 8, 12);
+			quarterRound(x, 1, 5, 9, 13);
+			quarterRound(x, 2, 6, 10, 14);
+			quarterRound(x, 3, 7, 11, 15);
+
+			// diagonals
+			quarterRound(x, 0, 5, 10, 15);
+			quarterRound(x, 1, 6, 11, 12);
+			quarterRound(x, 2, 7, 8, 13);
+			quarterRound(x, 3, 4, 9, 14);
+		}
+
+		for (int i = 0; i < 4; i++) {
+			subkey.set(WORD, i * 4L, x[i]);
+			subkey.set(WORD, 16 + i * 4L, x[12 + i]);
+		}
+	}
+
+	private static void quarterRound(int[] x, int a, int b, int c, int d) {
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+	}
+
+	/**
+	 * The subkey and nonce for the inner ChaCha20-Poly1305, kept per thread.  The first 4 bytes of the nonce are always
+	 * zero.
+	 */
+	private record Scratch(MemorySegment subkey, MemorySegment nonce) {
+		private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(() -> new Scratch(
+			MemorySegment.ofArray(new byte[KEY_LENGTH]),
+			MemorySegment.ofArray(new byte[ChaChaPoly1305NonceSize])
+		));
+
+		static Scratch get(MemorySegment key, MemorySegment nonce) {
+			if (nonce.byteSize() != POLY1305_NONCE_SIZE)
+				throw new IllegalArgumentException("Nonce must be %d bytes (is %d)".formatted(POLY1305_NONCE_SIZE, nonce.byteSize()));
+
+			var scratch = SCRATCH.get();
+			hChaCha20(key, nonce.asSlice(0, HCHACHA20_NONCE_LENGTH), scratch.subkey);
+			MemorySegment.copy(nonce, HCHACHA20_NONCE_LENGTH, scratch.nonce, 4, POLY1305_NONCE_SIZE - HCHACHA20_NONCE_LENGTH);
+			return scratch;
+		}
+	}
+}
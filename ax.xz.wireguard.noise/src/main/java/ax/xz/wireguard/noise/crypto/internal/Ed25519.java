@@ -67,8 +67,12 @@ public abstract class Ed25519
 	private static final int PRECOMP_POINTS = 1 << (PRECOMP_TEETH - 1);
 	private static final int PRECOMP_MASK = PRECOMP_POINTS - 1;
 
-	private static final Object PRECOMP_LOCK = new Object();
-	private static int[] PRECOMP_BASE_COMB = null;
+	// The comb table for the base point, built the first time it's used.  Class initialisation makes it visible to
+	// every thread without taking a lock on each scalar multiplication.
+	private static final class PrecompBase
+	{
+		static final int[] COMB = precompute();
+	}
 
 	private static class PointAccum
 	{
@@ -293,13 +297,31 @@ public abstract class Ed25519
 
 		int off = block * PRECOMP_POINTS * 3 * F.SIZE;
 
-		for (int i = 0; i < PRECOMP_POINTS; ++i)
+		pointLookup(PrecompBase.COMB, off, index, p.ymx_h);
+		pointLookup(PrecompBase.COMB, off + F.SIZE, index, p.ypx_h);
+		pointLookup(PrecompBase.COMB, off + 2 * F.SIZE, index, p.xyd);
+	}
+
+	/*
+	 * Selects one coordinate of the index'th point of a block in constant time, by masking in every point's coordinate.
+	 * The limbs are accumulated in locals and written once, rather than conditionally moved into z once per point.
+	 */
+	private static void pointLookup(int[] table, int off, int index, int[] z)
+	{
+		int z0 = 0, z1 = 0, z2 = 0, z3 = 0, z4 = 0, z5 = 0, z6 = 0, z7 = 0, z8 = 0, z9 = 0;
+
+		for (int i = 0; i < PRECOMP_POINTS; ++i, off += 3 * F.SIZE)
 		{
-			int cond = ((i ^ index) - 1) >> 31;
-			F.cmov(cond, PRECOMP_BASE_COMB, off, p.ymx_h, 0);     off += F.SIZE;
-			F.cmov(cond, PRECOMP_BASE_COMB, off, p.ypx_h, 0);     off += F.SIZE;
-			F.cmov(cond, PRECOMP_BASE_COMB, off, p.xyd,   0);     off += F.SIZE;
+			int mask = ((i ^ index) - 1) >> 31;
+			z0 |= table[off    ] & mask;    z1 |= table[off + 1] & mask;
+			z2 |= table[off + 2] & mask;    z3 |= table[off + 3] & mask;
+			z4 |= table[off + 4] & mask;    z5 |= table[off + 5] & mask;
+			z6 |= table[off + 6] & mask;    z7 |= table[off + 7] & mask;
+			z8 |= table[off + 8] & mask;    z9 |= table[off + 9] & mask;
 		}
+
+		z[0] = z0; z[1] = z1; z[2] = z2; z[3] = z3; z[4] = z4;
+		z[5] = z5; z[6] = z6; z[7] = z7; z[8] = z8; z[9] = z9;
 	}
 
 	private static void pointPrecompute(PointAffine p, PointExtended[] points, int pointsOff, int pointsLen,
@@ -327,167 +349,160 @@ public abstract class Ed25519
 		F.one(p.v);
 	}
 
-	public static void precompute()
+	private static int[] precompute()
 	{
-		synchronized (PRECOMP_LOCK)
-		{
-			if (PRECOMP_BASE_COMB != null)
-			{
-				return;
-			}
+		int wnafPoints = 1 << (WNAF_WIDTH_BASE - 2);
+		int combPoints = PRECOMP_BLOCKS * PRECOMP_POINTS;
+		int totalPoints = wnafPoints * 2 + combPoints;
+
+		PointExtended[] points = new PointExtended[totalPoints];
+		PointTemp t = new PointTemp();
 
-			int wnafPoints = 1 << (WNAF_WIDTH_BASE - 2);
-			int combPoints = PRECOMP_BLOCKS * PRECOMP_POINTS;
-			int totalPoints = wnafPoints * 2 + combPoints;
+		PointAffine B = new PointAffine();
+		F.copy(B_x, 0, B.x, 0);
+		F.copy(B_y, 0, B.y, 0);
 
-			PointExtended[] points = new PointExtended[totalPoints];
-			PointTemp t = new PointTemp();
+		pointPrecompute(B, points, 0, wnafPoints, t);
 
-			PointAffine B = new PointAffine();
-			F.copy(B_x, 0, B.x, 0);
-			F.copy(B_y, 0, B.y, 0);
+		PointAffine B128 = new PointAffine();
+		F.copy(B128_x, 0, B128.x, 0);
+		F.copy(B128_y, 0, B128.y, 0);
 
-			pointPrecompute(B, points, 0, wnafPoints, t);
+		pointPrecompute(B128, points, wnafPoints, wnafPoints, t);
 
-			PointAffine B128 = new PointAffine();
-			F.copy(B128_x, 0, B128.x, 0);
-			F.copy(B128_y, 0, B128.y, 0);
+		PointAccum p = new PointAccum();
+		F.copy(B_x, 0, p.x, 0);
+		F.copy(B_y, 0, p.y, 0);
+		F.one(p.z);
+		F.copy(p.x, 0, p.u, 0);
+		F.copy(p.y, 0, p.v, 0);
 
-			pointPrecompute(B128, points, wnafPoints, wnafPoints, t);
+		int pointsIndex = wnafPoints * 2;
+		PointExtended[] toothPowers = new PointExtended[PRECOMP_TEETH];
+		for (int tooth = 0; tooth < PRECOMP_TEETH; ++tooth)
+		{
+			toothPowers[tooth] = new PointExtended();
+		}
 
-			PointAccum p = new PointAccum();
-			F.copy(B_x, 0, p.x, 0);
-			F.copy(B_y, 0, p.y, 0);
-			F.one(p.z);
-			F.copy(p.x, 0, p.u, 0);
-			F.copy(p.y, 0, p.v, 0);
+		PointExtended u = new PointExtended();
+		for (int block = 0; block < PRECOMP_BLOCKS; ++block)
+		{
+			PointExtended sum = points[pointsIndex++] = new PointExtended();
 
-			int pointsIndex = wnafPoints * 2;
-			PointExtended[] toothPowers = new PointExtended[PRECOMP_TEETH];
 			for (int tooth = 0; tooth < PRECOMP_TEETH; ++tooth)
 			{
-				toothPowers[tooth] = new PointExtended();
-			}
-
-			PointExtended u = new PointExtended();
-			for (int block = 0; block < PRECOMP_BLOCKS; ++block)
-			{
-				PointExtended sum = points[pointsIndex++] = new PointExtended();
-
-				for (int tooth = 0; tooth < PRECOMP_TEETH; ++tooth)
+				if (tooth == 0)
 				{
-					if (tooth == 0)
-					{
-						pointCopy(p, sum);
-					}
-					else
-					{
-						pointCopy(p, u);
-						pointAdd(sum, u, sum, t);
-					}
+					pointCopy(p, sum);
+				}
+				else
+				{
+					pointCopy(p, u);
+					pointAdd(sum, u, sum, t);
+				}
 
-					pointDouble(p);
-					pointCopy(p, toothPowers[tooth]);
+				pointDouble(p);
+				pointCopy(p, toothPowers[tooth]);
 
-					if (block + tooth != PRECOMP_BLOCKS + PRECOMP_TEETH - 2)
+				if (block + tooth != PRECOMP_BLOCKS + PRECOMP_TEETH - 2)
+				{
+					for (int spacing = 1; spacing < PRECOMP_SPACING; ++spacing)
 					{
-						for (int spacing = 1; spacing < PRECOMP_SPACING; ++spacing)
-						{
-							pointDouble(p);
-						}
+						pointDouble(p);
 					}
 				}
+			}
 
-				F.negate(sum.x, sum.x);
-				F.negate(sum.t, sum.t);
+			F.negate(sum.x, sum.x);
+			F.negate(sum.t, sum.t);
 
-				for (int tooth = 0; tooth < (PRECOMP_TEETH - 1); ++tooth)
+			for (int tooth = 0; tooth < (PRECOMP_TEETH - 1); ++tooth)
+			{
+				int size = 1 << tooth;
+				for (int j = 0; j < size; ++j, ++pointsIndex)
 				{
-					int size = 1 << tooth;
-					for (int j = 0; j < size; ++j, ++pointsIndex)
-					{
-						points[pointsIndex] = new PointExtended();
-						pointAdd(points[pointsIndex - size], toothPowers[tooth], points[pointsIndex], t);
-					}
+					points[pointsIndex] = new PointExtended();
+					pointAdd(points[pointsIndex - size], toothPowers[tooth], points[pointsIndex], t);
 				}
 			}
+		}
 //            assert pointsIndex == totalPoints;
 
-			// Set each z coordinate to 1/(2.z) to avoid calculating halves of x, y in the following code
-			invertDoubleZs(points);
+		// Set each z coordinate to 1/(2.z) to avoid calculating halves of x, y in the following code
+		invertDoubleZs(points);
 
-			PointPrecomp[] PRECOMP_BASE_WNAF = new PointPrecomp[wnafPoints];
-			for (int i = 0; i < wnafPoints; ++i)
-			{
-				PointExtended q = points[i];
-				PointPrecomp r = PRECOMP_BASE_WNAF[i] = new PointPrecomp();
+		PointPrecomp[] PRECOMP_BASE_WNAF = new PointPrecomp[wnafPoints];
+		for (int i = 0; i < wnafPoints; ++i)
+		{
+			PointExtended q = points[i];
+			PointPrecomp r = PRECOMP_BASE_WNAF[i] = new PointPrecomp();
 
-				// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
-				F.mul(q.x, q.z, q.x);
-				F.mul(q.y, q.z, q.y);
+			// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
+			F.mul(q.x, q.z, q.x);
+			F.mul(q.y, q.z, q.y);
 
-				// y/2 +/- x/2
-				F.apm(q.y, q.x, r.ypx_h, r.ymx_h);
+			// y/2 +/- x/2
+			F.apm(q.y, q.x, r.ypx_h, r.ymx_h);
 
-				// x/2 * y/2 * (4.d) == x.y.d
-				F.mul(q.x, q.y, r.xyd);
-				F.mul(r.xyd, C_d4, r.xyd);
+			// x/2 * y/2 * (4.d) == x.y.d
+			F.mul(q.x, q.y, r.xyd);
+			F.mul(r.xyd, C_d4, r.xyd);
 
-				F.normalize(r.ymx_h);
-				F.normalize(r.ypx_h);
-				F.normalize(r.xyd);
-			}
+			F.normalize(r.ymx_h);
+			F.normalize(r.ypx_h);
+			F.normalize(r.xyd);
+		}
 
-			PointPrecomp[] PRECOMP_BASE128_WNAF = new PointPrecomp[wnafPoints];
-			for (int i = 0; i < wnafPoints; ++i)
-			{
-				PointExtended q = points[wnafPoints + i];
-				PointPrecomp r = PRECOMP_BASE128_WNAF[i] = new PointPrecomp();
+		PointPrecomp[] PRECOMP_BASE128_WNAF = new PointPrecomp[wnafPoints];
+		for (int i = 0; i < wnafPoints; ++i)
+		{
+			PointExtended q = points[wnafPoints + i];
+			PointPrecomp r = PRECOMP_BASE128_WNAF[i] = new PointPrecomp();
 
-				// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
-				F.mul(q.x, q.z, q.x);
-				F.mul(q.y, q.z, q.y);
+			// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
+			F.mul(q.x, q.z, q.x);
+			F.mul(q.y, q.z, q.y);
 
-				// y/2 +/- x/2
-				F.apm(q.y, q.x, r.ypx_h, r.ymx_h);
+			// y/2 +/- x/2
+			F.apm(q.y, q.x, r.ypx_h, r.ymx_h);
 
-				// x/2 * y/2 * (4.d) == x.y.d
-				F.mul(q.x, q.y, r.xyd);
-				F.mul(r.xyd, C_d4, r.xyd);
+			// x/2 * y/2 * (4.d) == x.y.d
+			F.mul(q.x, q.y, r.xyd);
+			F.mul(r.xyd, C_d4, r.xyd);
 
-				F.normalize(r.ymx_h);
-				F.normalize(r.ypx_h);
-				F.normalize(r.xyd);
-			}
+			F.normalize(r.ymx_h);
+			F.normalize(r.ypx_h);
+			F.normalize(r.xyd);
+		}
 
-			PRECOMP_BASE_COMB = F.createTable(combPoints * 3);
-			PointPrecomp s = new PointPrecomp();
-			int off = 0;
-			for (int i = wnafPoints * 2; i < totalPoints; ++i)
-			{
-				PointExtended q = points[i];
+		int[] comb = F.createTable(combPoints * 3);
+		PointPrecomp s = new PointPrecomp();
+		int off = 0;
+		for (int i = wnafPoints * 2; i < totalPoints; ++i)
+		{
+			PointExtended q = points[i];
 
-				// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
-				F.mul(q.x, q.z, q.x);
-				F.mul(q.y, q.z, q.y);
+			// Calculate x/2 and y/2 (because the z value holds half the inverse; see above).
+			F.mul(q.x, q.z, q.x);
+			F.mul(q.y, q.z, q.y);
 
-				// y/2 +/- x/2
-				F.apm(q.y, q.x, s.ypx_h, s.ymx_h);
+			// y/2 +/- x/2
+			F.apm(q.y, q.x, s.ypx_h, s.ymx_h);
 
-				// x/2 * y/2 * (4.d) == x.y.d
-				F.mul(q.x, q.y, s.xyd);
-				F.mul(s.xyd, C_d4, s.xyd);
+			// x/2 * y/2 * (4.d) == x.y.d
+			F.mul(q.x, q.y, s.xyd);
+			F.mul(s.xyd, C_d4, s.xyd);
 
-				F.normalize(s.ymx_h);
-				F.normalize(s.ypx_h);
-				F.normalize(s.xyd);
+			F.normalize(s.ymx_h);
+			F.normalize(s.ypx_h);
+			F.normalize(s.xyd);
 
-				F.copy(s.ymx_h, 0, PRECOMP_BASE_COMB, off);       off += F.SIZE;
-				F.copy(s.ypx_h, 0, PRECOMP_BASE_COMB, off);       off += F.SIZE;
-				F.copy(s.xyd  , 0, PRECOMP_BASE_COMB, off);       off += F.SIZE;
-			}
-//            assert off == PRECOMP_BASE_COMB.length;
+			F.copy(s.ymx_h, 0, comb, off);       off += F.SIZE;
+			F.copy(s.ypx_h, 0, comb, off);       off += F.SIZE;
+			F.copy(s.xyd  , 0, comb, off);       off += F.SIZE;
 		}
+//        assert off == comb.length;
+		return comb;
 	}
 
 	private static void pruneScalar(byte[] n, int nOff, byte[] r)
@@ -507,8 +522,6 @@ public abstract class Ed25519
 //        F.copy(B_y, 0, p.y, 0);
 //        scalarMult(k, p, r);
 
-		precompute();
-
 		int[] n = new int[SCALAR_INTS];
 		ByteBuffer.wrap(k).order(LITTLE_ENDIAN).asIntBuffer().get(n);
 		toSignedDigits(n);
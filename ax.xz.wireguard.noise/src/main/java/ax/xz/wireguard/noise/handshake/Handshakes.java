@@ -1,22 +1,38 @@
 package ax.xz.wireguard.noise.handshake;
 
 import ax.xz.wireguard.noise.crypto.Blake2s;
+import ax.xz.wireguard.noise.crypto.ChaCha20Poly1305;
+import ax.xz.wireguard.noise.crypto.HandshakeCrypto;
+import ax.xz.wireguard.noise.keys.EphemeralKeyPool;
 import ax.xz.wireguard.noise.keys.NoisePresharedKey;
 import ax.xz.wireguard.noise.keys.NoisePrivateKey;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
 
-import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.BadPaddingException;
+import java.lang.foreign.MemorySegment;
 import java.nio.charset.StandardCharsets;
-import java.security.*;
+import java.security.DigestException;
+import java.util.Arrays;
 
 import static ax.xz.wireguard.noise.crypto.Crypto.*;
 import static java.lang.System.Logger;
 import static java.lang.System.Logger.Level.DEBUG;
 
+/**
+ * The Noise_IKpsk2 handshake, as used by WireGuard.
+ *
+ * <p>
+ * The hashing and key derivation is done by this thread's {@link HandshakeCrypto}, writing straight into the
+ * handshake's hash and chaining key, and the intermediate keys are kept in per-thread {@link Scratch} space, so
+ * deriving keys doesn't allocate.  The responder's hash and chaining key are per-thread too, since they don't outlive
+ * the initiation, and sealing and opening go through segments that are made once per thread.  The static-static
+ * shared secret is computed once per peer, by {@link PeerKeys}.
+ * </p>
+ */
 public class Handshakes {
-	private static final byte[] ZeroNonce = new byte[ChaChaPoly1305NonceSize];
+	private static final MemorySegment ZERO_NONCE = MemorySegment.ofArray(new byte[ChaChaPoly1305NonceSize]).asReadOnly();
+	private static final byte[] EMPTY = new byte[0];
+	private static final byte[] ZERO_PRESHARED_KEY = new byte[NoisePresharedKey.LENGTH];
 	private static final byte[] NOISE_CONSTRUCTION = "Noise_IKpsk2_25519_ChaChaPoly_BLAKE2s".getBytes(StandardCharsets.UTF_8);
 	private static final byte[] WG_IDENTIFIER = "WireGuard v1 zx2c4 Jason@zx2c4.com".getBytes(StandardCharsets.UTF_8);
 
@@ -36,36 +52,37 @@ public class Handshakes {
 		INITIAL_HASH = result;
 	}
 
-	public static InitiatorStageOne initiateHandshake(NoisePrivateKey localKeypair, NoisePublicKey remotePublicKey, NoisePresharedKey presharedKey) {
-		return new InitiatorStageOne(localKeypair, remotePublicKey, presharedKey);
+	public static InitiatorStageOne initiateHandshake(NoisePrivateKey localKeypair, PeerKeys peer, NoisePresharedKey presharedKey) {
+		return new InitiatorStageOne(localKeypair, peer, presharedKey);
 	}
 
-	public static ResponderHandshake responderHandshake(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp) throws BadPaddingException {
-		return new ResponderHandshake(localKeypair, remoteEphemeral, encryptedStatic, encryptedTimestamp);
+	/**
+	 * Responds to an initiation from the given peer
+	 *
+	 * @throws BadPaddingException if the initiation can't be decrypted, or is from a different peer
+	 */
+	public static ResponderHandshake responderHandshake(NoisePrivateKey localKeypair, PeerKeys peer, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp) throws BadPaddingException {
+		return new ResponderHandshake(localKeypair, peer, remoteEphemeral, encryptedStatic, encryptedTimestamp);
 	}
 
-	public static NoisePublicKey decryptRemoteStatic(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp) throws BadPaddingException {
+	/**
+	 * Decrypts the static key of the sender of an initiation, without going any further with the handshake
+	 */
+	public static NoisePublicKey decryptRemoteStatic(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic) throws BadPaddingException {
 		var state = ResponderHandshake.HandshakeState.initial();
-		return ResponderHandshake.decryptRemoteStatic(localKeypair, remoteEphemeral, encryptedStatic, encryptedTimestamp, state);
+		try {
+			ResponderHandshake.decryptRemoteStatic(localKeypair, remoteEphemeral, encryptedStatic, state);
+			return new NoisePublicKey(state.remoteStatic.clone());
+		} finally {
+			state.clear();
+		}
 	}
 
 	public static class InitiatorStageOne {
 		private static final Logger logger = System.getLogger(InitiatorStageOne.class.getName());
 
-		private final Cipher chacha20;
-
-		{
-			try {
-				chacha20 = Cipher.getInstance("ChaCha20-Poly1305");
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
-			} catch (NoSuchPaddingException e) {
-				throw new RuntimeException(e);
-			}
-		}
-
 		private final byte[] hash = INITIAL_HASH.clone();
-		private byte[] chainKey = INITIAL_CHAIN_KEY;
+		private final byte[] chainKey = INITIAL_CHAIN_KEY.clone();
 
 		private final NoisePrivateKey localEphemeral;
 		private final NoisePrivateKey localKeypair;
@@ -74,80 +91,81 @@ public class Handshakes {
 		private final byte[] encryptedStatic = new byte[ChaChaPoly1305Overhead + NoisePublicKey.LENGTH];
 		private final byte[] encryptedTimestamp = new byte[ChaChaPoly1305Overhead + 12];
 
-		private InitiatorStageOne(NoisePrivateKey localKeypair, NoisePublicKey remotePublicKey, NoisePresharedKey presharedKey) {
-			this.localEphemeral = NoisePrivateKey.newPrivateKey();
+		private InitiatorStageOne(NoisePrivateKey localKeypair, PeerKeys peer, NoisePresharedKey presharedKey) {
+			this.localEphemeral = EphemeralKeyPool.take();
 			this.localKeypair = localKeypair;
 			this.presharedKey = presharedKey;
 
-			var ephemeral = localEphemeral.publicKey();
-			// create ephemeral key
-			updateHMAC(hash, remotePublicKey.data());
-			chainKey = deriveKey(chainKey, ephemeral.data());
-			updateHMAC(hash, ephemeral.data());
-
-			// encrypt static key
-			var key = new SecretKeySpec(deriveKey(chainKey, localEphemeral.sharedSecret(remotePublicKey).data(), 2), "ChaCha20-Poly1305");
-			chainKey = deriveKey(chainKey, localEphemeral.sharedSecret(remotePublicKey).data(), 1);
+			var crypto = HandshakeCrypto.get();
+			var scratch = Scratch.get();
 
 			try {
-				chacha20.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ZeroNonce));
-				chacha20.updateAAD(hash);
-				chacha20.doFinal(localKeypair.publicKey().data(), 0, NoisePublicKey.LENGTH, encryptedStatic);
+				var remotePublicKey = peer.remoteStatic();
+				var ephemeral = localEphemeral.publicKey();
+				// create ephemeral key
+				crypto.hash(hash, hash, remotePublicKey.data());
+				crypto.kdf(chainKey, ephemeral.data(), chainKey, null, null);
+				crypto.hash(hash, hash, ephemeral.data());
+
+				// encrypt static key
+				crypto.kdf(chainKey, localEphemeral.sharedSecret(remotePublicKey).data(), chainKey, scratch.key, null);
+				seal(scratch, hash, localKeypair.publicKey().data(), encryptedStatic);
 
-				updateHMAC(hash, encryptedStatic);
+				crypto.hash(hash, hash, encryptedStatic);
 
 				// encrypt timestamp
-				key = new SecretKeySpec(deriveKey(chainKey, localKeypair.sharedSecret(remotePublicKey).data(), 2), "ChaCha20-Poly1305");
-				chainKey = deriveKey(chainKey, localKeypair.sharedSecret(remotePublicKey).data(), 1);
-
-				chacha20.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ZeroNonce));
-				chacha20.updateAAD(hash);
-				chacha20.doFinal(TAI64N(), 0, 12, encryptedTimestamp);
-			} catch (
-				ShortBufferException |
-				IllegalBlockSizeException |
-				BadPaddingException |
-				InvalidAlgorithmParameterException |
-				InvalidKeyException e
-			) {
-				throw new RuntimeException(e);
+				peer.copyStaticStatic(scratch.staticStatic);
+				crypto.kdf(chainKey, scratch.staticStatic, chainKey, scratch.key, null);
+				TAI64N(scratch.timestamp);
+				seal(scratch, hash, scratch.timestamp, encryptedTimestamp);
+
+				crypto.hash(hash, hash, encryptedTimestamp);
+			} finally {
+				scratch.clear();
 			}
-
-			updateHMAC(hash, encryptedTimestamp);
 		}
 
 		public SymmetricKeypair consumeMessageResponse(NoisePublicKey remoteEphemeral, byte[] encryptedEmpty) throws BadPaddingException {
-			// lookup handshake by receiver
-			// finish 3-way DH
-			updateHMAC(hash, remoteEphemeral.data());
-			chainKey = deriveKey(chainKey, remoteEphemeral.data());
+			var crypto = HandshakeCrypto.get();
+			var scratch = Scratch.get();
 
-			chainKey = deriveKey(chainKey, localEphemeral.sharedSecret(remoteEphemeral).data());
-			chainKey = deriveKey(chainKey, localKeypair.sharedSecret(remoteEphemeral).data());
+			try {
+				// lookup handshake by receiver
+				// finish 3-way DH
+				crypto.hash(hash, hash, remoteEphemeral.data());
+				crypto.kdf(chainKey, remoteEphemeral.data(), chainKey, null, null);
 
-			// add preshared key (psk)
-			byte[] tau = deriveKey(chainKey, presharedKey.data(), 2);
-			var key = new SecretKeySpec(deriveKey(chainKey, presharedKey.data(), 3), "ChaCha20-Poly1305");
-			chainKey = deriveKey(chainKey, presharedKey.data(), 1);
+				crypto.kdf(chainKey, localEphemeral.sharedSecret(remoteEphemeral).data(), chainKey, null, null);
+				crypto.kdf(chainKey, localKeypair.sharedSecret(remoteEphemeral).data(), chainKey, null, null);
 
-			updateHMAC(hash, tau);
+				// add preshared key (psk)
+				crypto.kdf(chainKey, presharedKey.data(), chainKey, scratch.tau, scratch.key);
 
-			try {
-				chacha20.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ZeroNonce));
-
-				chacha20.updateAAD(hash);
-				chacha20.doFinal(encryptedEmpty);
-			} catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-				throw new IllegalArgumentException(e);
-			} catch (IllegalBlockSizeException e) {
-				throw new Error("unexpected error (we're using a stream cipher)", e);
-			}
-			updateHMAC(hash, encryptedEmpty);
+				crypto.hash(hash, hash, scratch.tau);
+
+				open(scratch, hash, encryptedEmpty, EMPTY);
+				crypto.hash(hash, hash, encryptedEmpty);
 
-			var kp = new SymmetricKeypair(deriveKey(chainKey, new byte[0], 1), deriveKey(chainKey, new byte[0], 2));
+				crypto.kdf(chainKey, EMPTY, scratch.send, scratch.receive, null);
+				var kp = new SymmetricKeypair(scratch.send, scratch.receive);
 
-			logger.log(DEBUG, "DH key exchange completed");
-			return kp;
+				destroy();
+
+				logger.log(DEBUG, "DH key exchange completed");
+				return kp;
+			} finally {
+				scratch.clear();
+			}
+		}
+
+		/**
+		 * Wipes the ephemeral key and the handshake state.  This is done when a response has been consumed, and should
+		 * be done by the caller if it gives up waiting for one.
+		 */
+		public void destroy() {
+			localEphemeral.destroy();
+			Arrays.fill(hash, (byte) 0);
+			Arrays.fill(chainKey, (byte) 0);
 		}
 
 		public NoisePrivateKey getLocalEphemeral() {
@@ -166,79 +184,88 @@ public class Handshakes {
 	public static class ResponderHandshake {
 		private final byte[] encryptedEmpty = new byte[ChaChaPoly1305Overhead];
 
-		private static Cipher getCipher() {
-			try {
-				return Cipher.getInstance("ChaCha20-Poly1305");
-			} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-				throw new RuntimeException(e);
-			}
-		}
-
 		private final SymmetricKeypair keypair;
 		private final NoisePublicKey remotePublicKey;
-		private final NoisePrivateKey localEphemeral;
-
-		ResponderHandshake(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp) throws BadPaddingException {
-			this.localEphemeral = NoisePrivateKey.newPrivateKey();
+		private final NoisePublicKey localEphemeral;
 
+		ResponderHandshake(NoisePrivateKey localKeypair, PeerKeys peer, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp) throws BadPaddingException {
 			var state = HandshakeState.initial();
-
-			this.remotePublicKey = decryptRemoteStatic(localKeypair, remoteEphemeral, encryptedStatic, encryptedTimestamp, state);
-			this.keypair = deriveKeypair(state, localEphemeral, remoteEphemeral, remotePublicKey, encryptedEmpty);
+			try {
+				decryptRemoteStatic(localKeypair, remoteEphemeral, encryptedStatic, state);
+				if (!Arrays.equals(state.remoteStatic, peer.remoteStatic().data()))
+					throw new BadPaddingException("Initiation is from a different peer");
+
+				this.remotePublicKey = peer.remoteStatic();
+				verifyIdentity(peer, encryptedTimestamp, state);
+
+				var ephemeral = EphemeralKeyPool.take();
+				try {
+					this.localEphemeral = ephemeral.publicKey();
+					this.keypair = deriveKeypair(state, ephemeral, remoteEphemeral, remotePublicKey, encryptedEmpty);
+				} finally {
+					ephemeral.destroy();
+				}
+			} finally {
+				state.clear();
+			}
 		}
 
 		/**
-		 * Does the first phase of the responder handshake, which decrypts the remote static key and verifies the identity of the initiator.
+		 * Does the first phase of the responder handshake, which decrypts the remote static key into
+		 * {@link HandshakeState#remoteStatic}.
 		 *
-		 * @param localKeypair       the local keypair
-		 * @param remoteEphemeral    the remote ephemeral key
-		 * @param encryptedStatic    the encrypted static key
-		 * @param encryptedTimestamp the encrypted timestamp
-		 * @param state              the state of the handshake (should be {@link HandshakeState#initial()} when this method is called)
-		 * @return the remote static key
-		 * @throws BadPaddingException if the encrypted static key or the encrypted timestamp are invalid
+		 * @param localKeypair    the local keypair
+		 * @param remoteEphemeral the remote ephemeral key
+		 * @param encryptedStatic the encrypted static key
+		 * @param state           the state of the handshake (should be {@link HandshakeState#initial()} when this method is called)
+		 * @throws BadPaddingException if the encrypted static key is invalid
 		 */
-		private static NoisePublicKey decryptRemoteStatic(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, byte[] encryptedTimestamp, HandshakeState state) throws BadPaddingException {
+		private static void decryptRemoteStatic(NoisePrivateKey localKeypair, NoisePublicKey remoteEphemeral, byte[] encryptedStatic, HandshakeState state) throws BadPaddingException {
 			final var hash = state.hash;
 			final var chainKey = state.chainKey;
 
-			updateHMAC(hash, localKeypair.publicKey().data());
-			updateHMAC(hash, remoteEphemeral.data());
-			state.setChainKey(deriveKey(chainKey, remoteEphemeral.data()));
-
-			byte[] remoteStatic = new byte[NoisePublicKey.LENGTH];
-			byte[] ss = localKeypair.sharedSecret(remoteEphemeral).data();
-
-			var key = new SecretKeySpec(deriveKey(chainKey, ss, 2), "ChaCha20-Poly1305");
-			state.setChainKey(deriveKey(chainKey, ss, 1));
+			var crypto = HandshakeCrypto.get();
+			var scratch = Scratch.get();
 
 			try {
-				var chacha20 = getCipher();
+				crypto.hash(hash, hash, localKeypair.publicKey().data());
+				crypto.hash(hash, hash, remoteEphemeral.data());
+				crypto.kdf(chainKey, remoteEphemeral.data(), chainKey, null, null);
 
-				chacha20.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ZeroNonce));
+				byte[] ss = localKeypair.sharedSecret(remoteEphemeral).data();
 
-				chacha20.updateAAD(hash);
-				chacha20.doFinal(encryptedStatic, 0, encryptedStatic.length, remoteStatic);
-			} catch (ShortBufferException | InvalidKeyException | InvalidAlgorithmParameterException e) {
-				throw new IllegalArgumentException(e);
-			} catch (IllegalBlockSizeException e) {
-				throw new Error("unexpected error (we're using a stream cipher)", e);
-			}
+				crypto.kdf(chainKey, ss, chainKey, scratch.key, null);
+				open(scratch, hash, encryptedStatic, state.remoteStatic);
 
-			updateHMAC(hash, encryptedStatic);
+				crypto.hash(hash, hash, encryptedStatic);
+			} finally {
+				scratch.clear();
+			}
+		}
 
-			// verify identity
-			var remotePublicKey = new NoisePublicKey(remoteStatic);
-			var staticStatic = localKeypair.sharedSecret(remotePublicKey);
-			state.setChainKey(deriveKey(chainKey, staticStatic.data()));
-			updateHMAC(hash, encryptedTimestamp);
+		/**
+		 * Mixes the static-static shared secret and the encrypted timestamp into the handshake
+		 *
+		 * @param peer               the peer whose static key was decrypted by {@link #decryptRemoteStatic(NoisePrivateKey, NoisePublicKey, byte[], HandshakeState)}
+		 * @param encryptedTimestamp the encrypted timestamp
+		 * @param state              the state left by {@link #decryptRemoteStatic(NoisePrivateKey, NoisePublicKey, byte[], HandshakeState)}
+		 */
+		private static void verifyIdentity(PeerKeys peer, byte[] encryptedTimestamp, HandshakeState state) {
+			var crypto = HandshakeCrypto.get();
+			var scratch = Scratch.get();
 
-			return remotePublicKey;
+			try {
+				peer.copyStaticStatic(scratch.staticStatic);
+				crypto.kdf(state.chainKey, scratch.staticStatic, state.chainKey, null, null);
+				crypto.hash(state.hash, state.hash, encryptedTimestamp);
+			} finally {
+				scratch.clear();
+			}
 		}
 
 		/**
 		 * Does the second phase of the responder handshake, which derives the symmetric keys
-		 * @param state the state of the handshake (should be the state left by {@link #decryptRemoteStatic(NoisePrivateKey, NoisePublicKey, byte[], byte[], HandshakeState)} when this method is called)
+		 * @param state the state of the handshake (should be the state left by {@link #verifyIdentity(PeerKeys, byte[], HandshakeState)} when this method is called)
 		 *
 		 * @param localEphemeral the local ephemeral key
 		 * @param remoteEphemeral the remote ephemeral key
@@ -251,39 +278,30 @@ public class Handshakes {
 			final var hash = state.hash;
 			final var chainKey = state.chainKey;
 
-			// create ephemeral key
-			updateHMAC(hash, localEphemeral.publicKey().data());
-			state.setChainKey(deriveKey(chainKey, localEphemeral.publicKey().data()));
+			var crypto = HandshakeCrypto.get();
+			var scratch = Scratch.get();
 
-			state.setChainKey(deriveKey(chainKey, localEphemeral.sharedSecret(remoteEphemeral).data()));
-			state.setChainKey(deriveKey(chainKey, localEphemeral.sharedSecret(remotePublicKey).data()));
+			try {
+				// create ephemeral key
+				crypto.hash(hash, hash, localEphemeral.publicKey().data());
+				crypto.kdf(chainKey, localEphemeral.publicKey().data(), chainKey, null, null);
 
-			// add preshared key
-			NoisePresharedKey presharedKey = new NoisePresharedKey(new byte[NoisePresharedKey.LENGTH]);
+				crypto.kdf(chainKey, localEphemeral.sharedSecret(remoteEphemeral).data(), chainKey, null, null);
+				crypto.kdf(chainKey, localEphemeral.sharedSecret(remotePublicKey).data(), chainKey, null, null);
 
-			var tau = deriveKey(chainKey, presharedKey.data(), 2);
-			var key = new SecretKeySpec(deriveKey(chainKey, presharedKey.data(), 3), "ChaCha20-Poly1305");
-			state.setChainKey(deriveKey(chainKey, presharedKey.data(), 1));
+				// add preshared key
+				crypto.kdf(chainKey, ZERO_PRESHARED_KEY, chainKey, scratch.tau, scratch.key);
 
-			updateHMAC(hash, tau);
+				crypto.hash(hash, hash, scratch.tau);
 
-			try {
-				var chacha20 = getCipher();
-
-				chacha20.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ZeroNonce));
-				chacha20.updateAAD(hash);
-				chacha20.doFinal(encryptedEmpty, 0);
-			} catch (
-				ShortBufferException |
-				IllegalBlockSizeException |
-				BadPaddingException |
-				InvalidAlgorithmParameterException |
-				InvalidKeyException e
-			) {
-				throw new RuntimeException(e);
+				seal(scratch, hash, EMPTY, encryptedEmpty);
+				crypto.hash(hash, hash, encryptedEmpty);
+
+				crypto.kdf(chainKey, EMPTY, scratch.receive, scratch.send, null);
+				return new SymmetricKeypair(scratch.send, scratch.receive);
+			} finally {
+				scratch.clear();
 			}
-			updateHMAC(hash, encryptedEmpty);
-			return new SymmetricKeypair(deriveKey(chainKey, new byte[0], 2), deriveKey(chainKey, new byte[0], 1));
 		}
 
 		public SymmetricKeypair getKeypair() {
@@ -299,38 +317,131 @@ public class Handshakes {
 		}
 
 		public NoisePublicKey getLocalEphemeral() {
-			return localEphemeral.publicKey();
+			return localEphemeral;
 		}
 
-		private record HandshakeState(byte[] hash, byte[] chainKey) {
-			static HandshakeState initial() {
-				return new HandshakeState(INITIAL_HASH.clone(), INITIAL_CHAIN_KEY.clone());
-			}
+		/**
+		 * The responder's side of a handshake, which only lives as long as the initiation is being handled, so is kept
+		 * per thread
+		 */
+		private static final class HandshakeState {
+			private static final ThreadLocal<HandshakeState> STATE = ThreadLocal.withInitial(HandshakeState::new);
 
-			void setHash(byte[] hash) {
-				System.arraycopy(hash, 0, this.hash, 0, hash.length);
+			final byte[] hash = new byte[BLAKE2S_SIZE_256];
+			final byte[] chainKey = new byte[BLAKE2S_SIZE_256];
+			final byte[] remoteStatic = new byte[NoisePublicKey.LENGTH];
+
+			/**
+			 * Returns this thread's state, reset to the start of a handshake.  It should be {@linkplain #clear() cleared}
+			 * once the initiation has been handled.
+			 */
+			static HandshakeState initial() {
+				var state = STATE.get();
+				System.arraycopy(INITIAL_HASH, 0, state.hash, 0, state.hash.length);
+				System.arraycopy(INITIAL_CHAIN_KEY, 0, state.chainKey, 0, state.chainKey.length);
+				return state;
 			}
 
-			void setChainKey(byte[] chainKey) {
-				System.arraycopy(chainKey, 0, this.chainKey, 0, chainKey.length);
+			void clear() {
+				Arrays.fill(hash, (byte) 0);
+				Arrays.fill(chainKey, (byte) 0);
+				Arrays.fill(remoteStatic, (byte) 0);
 			}
 		}
 	}
 
-	private static void updateHMAC(byte[] hmac, byte[] data) {
-		interface DigestHolder {
-			ThreadLocal<MessageDigest> INSTANCE = ThreadLocal.withInitial(() -> new Blake2s(32));
+	/**
+	 * Encrypts the plaintext under the scratch key and a zero nonce, and writes the ciphertext followed by its tag
+	 */
+	private static void seal(Scratch scratch, byte[] aad, byte[] plaintext, byte[] out) {
+		var sealed = scratch.sealed(plaintext.length);
+		System.arraycopy(aad, 0, scratch.aad, 0, scratch.aad.length);
+		System.arraycopy(plaintext, 0, scratch.plaintext, 0, plaintext.length);
+
+		ChaCha20Poly1305.poly1305AeadEncrypt(scratch.aadSegment, scratch.keySegment, ZERO_NONCE, sealed.plaintext, sealed.ciphertext, sealed.tag);
+		System.arraycopy(scratch.ciphertext, 0, out, 0, plaintext.length + ChaChaPoly1305Overhead);
+	}
+
+	/**
+	 * Checks and decrypts a ciphertext followed by its tag, encrypted under the scratch key and a zero nonce
+	 *
+	 * @throws BadPaddingException if the tag doesn't match
+	 */
+	private static void open(Scratch scratch, byte[] aad, byte[] in, byte[] plaintext) throws BadPaddingException {
+		if (in.length != plaintext.length + ChaChaPoly1305Overhead)
+			throw new BadPaddingException("Invalid ciphertext length " + in.length);
+
+		var sealed = scratch.sealed(plaintext.length);
+		System.arraycopy(aad, 0, scratch.aad, 0, scratch.aad.length);
+		System.arraycopy(in, 0, scratch.ciphertext, 0, in.length);
+
+		ChaCha20Poly1305.poly1305AeadDecrypt(scratch.aadSegment, scratch.keySegment, ZERO_NONCE, sealed.ciphertext, sealed.plaintext, sealed.tag);
+		System.arraycopy(scratch.plaintext, 0, plaintext, 0, plaintext.length);
+	}
+
+	/**
+	 * Per-thread space for the keys that only live for the length of one step of a handshake
+	 */
+	private static final class Scratch {
+		private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+		final byte[] key = new byte[32];
+		final byte[] tau = new byte[32];
+		final byte[] send = new byte[32];
+		final byte[] receive = new byte[32];
+		final byte[] staticStatic = new byte[32];
+		final byte[] timestamp = new byte[TIMESTAMP_LENGTH];
+
+		// what is sealed and opened is copied through these, so that the segments over them can be made once
+		final byte[] aad = new byte[BLAKE2S_SIZE_256];
+		final byte[] plaintext = new byte[NoisePublicKey.LENGTH];
+		final byte[] ciphertext = new byte[NoisePublicKey.LENGTH + ChaChaPoly1305Overhead];
+
+		final MemorySegment keySegment = MemorySegment.ofArray(key);
+		final MemorySegment aadSegment = MemorySegment.ofArray(aad);
+
+		// the only lengths of plaintext in a handshake:  the empty message, the timestamp and the static key
+		private final Sealed empty = new Sealed(0), timestamped = new Sealed(TIMESTAMP_LENGTH), keyed = new Sealed(NoisePublicKey.LENGTH);
+
+		static Scratch get() {
+			return SCRATCH.get();
 		}
 
-		var messageDigest = DigestHolder.INSTANCE.get();
-		try {
-			messageDigest.update(hmac);
-			messageDigest.update(data);
-			messageDigest.digest(hmac, 0, hmac.length);
-		} catch (DigestException e) {
-			throw new RuntimeException(e);
-		} finally {
-			messageDigest.reset();
+		/**
+		 * Returns the segments to seal or open a plaintext of the given length through
+		 */
+		Sealed sealed(int length) {
+			return switch (length) {
+				case 0 -> empty;
+				case TIMESTAMP_LENGTH -> timestamped;
+				case NoisePublicKey.LENGTH -> keyed;
+				default -> throw new IllegalArgumentException("Unexpected plaintext length " + length);
+			};
+		}
+
+		void clear() {
+			Arrays.fill(key, (byte) 0);
+			Arrays.fill(tau, (byte) 0);
+			Arrays.fill(send, (byte) 0);
+			Arrays.fill(receive, (byte) 0);
+			Arrays.fill(staticStatic, (byte) 0);
+			Arrays.fill(timestamp, (byte) 0);
+			Arrays.fill(aad, (byte) 0);
+			Arrays.fill(plaintext, (byte) 0);
+			Arrays.fill(ciphertext, (byte) 0);
+		}
+
+		/**
+		 * Views of the scratch plaintext, and of the scratch ciphertext and the tag that follows it, for one length
+		 */
+		private final class Sealed {
+			final MemorySegment plaintext, ciphertext, tag;
+
+			Sealed(int length) {
+				this.plaintext = MemorySegment.ofArray(Scratch.this.plaintext).asSlice(0, length);
+				this.ciphertext = MemorySegment.ofArray(Scratch.this.ciphertext).asSlice(0, length);
+				this.tag = MemorySegment.ofArray(Scratch.this.ciphertext).asSlice(length, ChaChaPoly1305Overhead);
+			}
 		}
 	}
 
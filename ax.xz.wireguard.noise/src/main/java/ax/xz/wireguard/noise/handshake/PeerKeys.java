@@ -0,0 +1,117 @@
+package ax.xz.wireguard.noise.handshake;
+
+import ax.xz.wireguard.noise.crypto.HandshakeCrypto;
+import ax.xz.wireguard.noise.keys.NoisePrivateKey;
+import ax.xz.wireguard.noise.keys.NoisePublicKey;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * The values a handshake with a peer needs that only depend on our static key and the peer's, computed once when the
+ * peer is added rather than on every handshake:
+ * <ul>
+ *     <li>the static-static Diffie-Hellman shared secret, which saves a scalar multiplication per handshake</li>
+ *     <li>the key for the {@code mac1} of messages we send to the peer</li>
+ *     <li>the key for cookies the peer sends us</li>
+ * </ul>
+ *
+ * <p>
+ * They're kept off-heap, where they won't be copied around by the garbage collector, and are zeroed by
+ * {@link #close()}.  Instances may be shared between threads, but mustn't be used after they're closed.
+ * </p>
+ */
+public final class PeerKeys implements AutoCloseable {
+	private static final int KEY_LENGTH = 32;
+
+	private static final long STATIC_STATIC_OFFSET = 0;
+	private static final long MAC1_KEY_OFFSET = KEY_LENGTH;
+	private static final long COOKIE_KEY_OFFSET = 2 * KEY_LENGTH;
+
+	private final NoisePublicKey remoteStatic;
+
+	private final Arena arena = Arena.ofShared();
+	private final MemorySegment keys = arena.allocate(3 * KEY_LENGTH);
+
+	private PeerKeys(NoisePrivateKey localIdentity, NoisePublicKey remoteStatic) {
+		this.remoteStatic = remoteStatic;
+
+		byte[] key = localIdentity.sharedSecret(remoteStatic).data();
+		try {
+			MemorySegment.copy(key, 0, keys, JAVA_BYTE, STATIC_STATIC_OFFSET, KEY_LENGTH);
+
+			var crypto = HandshakeCrypto.get();
+			crypto.mac1Key(key, remoteStatic.data());
+			MemorySegment.copy(key, 0, keys, JAVA_BYTE, MAC1_KEY_OFFSET, KEY_LENGTH);
+
+			crypto.cookieKey(key, remoteStatic.data());
+			MemorySegment.copy(key, 0, keys, JAVA_BYTE, COOKIE_KEY_OFFSET, KEY_LENGTH);
+		} finally {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	/**
+	 * Computes the keys for handshakes between the given local identity and remote peer
+	 */
+	public static PeerKeys of(NoisePrivateKey localIdentity, NoisePublicKey remoteStatic) {
+		return new PeerKeys(localIdentity, remoteStatic);
+	}
+
+	/**
+	 * Computes the key for the {@code mac1} of handshake messages sent to the given public key.  This is derived from a
+	 * public key, so it isn't secret.
+	 */
+	public static MemorySegment mac1Key(NoisePublicKey recipient) {
+		byte[] key = new byte[KEY_LENGTH];
+		HandshakeCrypto.get().mac1Key(key, recipient.data());
+		return MemorySegment.ofArray(key).asReadOnly();
+	}
+
+	/**
+	 * Computes the key for cookie replies sent by the owner of the given public key.  This is derived from a public key,
+	 * so it isn't secret.
+	 */
+	public static MemorySegment cookieKey(NoisePublicKey sender) {
+		byte[] key = new byte[KEY_LENGTH];
+		HandshakeCrypto.get().cookieKey(key, sender.data());
+		return MemorySegment.ofArray(key).asReadOnly();
+	}
+
+	public NoisePublicKey remoteStatic() {
+		return remoteStatic;
+	}
+
+	/**
+	 * Returns the key for the {@code mac1} of handshake messages sent to the peer
+	 */
+	public MemorySegment mac1Key() {
+		return keys.asSlice(MAC1_KEY_OFFSET, KEY_LENGTH).asReadOnly();
+	}
+
+	/**
+	 * Returns the key for cookies sent by the peer
+	 */
+	public MemorySegment cookieKey() {
+		return keys.asSlice(COOKIE_KEY_OFFSET, KEY_LENGTH).asReadOnly();
+	}
+
+	/**
+	 * Copies the static-static shared secret into the given array, which the caller should wipe when done with it
+	 */
+	void copyStaticStatic(byte[] out) {
+		MemorySegment.copy(keys, JAVA_BYTE, STATIC_STATIC_OFFSET, out, 0, KEY_LENGTH);
+	}
+
+	/**
+	 * Zeroes the keys and frees their memory
+	 */
+	@Override
+	public void close() {
+		keys.fill((byte) 0);
+		arena.close();
+	}
+}
@@ -12,6 +12,7 @@ import java.lang.invoke.VarHandle;
 import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305NonceSize;
@@ -82,6 +83,87 @@ public final class SymmetricKeypair {
 		ChaCha20Poly1305.poly1305AeadDecrypt(receiveKey, getNonceBytes(counter), ciphertext, dst, tag);
 	}
 
+	/**
+	 * Scratch space for the batch methods, which need a nonce and a pair of slices per packet
+	 */
+	private static final class Batch {
+		private static final ThreadLocal<Batch> BATCH = ThreadLocal.withInitial(Batch::new);
+
+		MemorySegment[] nonces = new MemorySegment[0];
+		MemorySegment[] texts = new MemorySegment[0];
+		MemorySegment[] tags = new MemorySegment[0];
+
+		static Batch get(int count) {
+			var batch = BATCH.get();
+			if (batch.nonces.length < count) {
+				batch.nonces = new MemorySegment[count];
+				for (int i = 0; i < count; i++)
+					batch.nonces[i] = Arena.global().allocate(ChaChaPoly1305NonceSize, 4);
+
+				batch.texts = new MemorySegment[count];
+				batch.tags = new MemorySegment[count];
+			}
+
+			return batch;
+		}
+
+		void clear(int count) {
+			Arrays.fill(texts, 0, count, null);
+			Arrays.fill(tags, 0, count, null);
+		}
+	}
+
+	/**
+	 * Encrypts several packets at once, which is quicker than calling {@link #cipher(MemorySegment, MemorySegment)} for
+	 * each of them.  The packets are given consecutive counters.
+	 *
+	 * @param src      the plaintexts
+	 * @param dst      where to write each ciphertext, followed by its tag
+	 * @param counters where to write the counter value used as a nonce for each packet
+	 * @param count    the number of packets, from the start of each array
+	 */
+	public void cipher(MemorySegment[] src, MemorySegment[] dst, long[] counters, int count) {
+		var firstCounter = (long)SEND_COUNTER.getAndAdd(this, (long) count);
+
+		var batch = Batch.get(count);
+		for (int i = 0; i < count; i++) {
+			long textLength = src[i].byteSize();
+
+			counters[i] = firstCounter + i;
+			batch.nonces[i].set(JAVA_LONG, 0, counters[i]);
+			batch.texts[i] = dst[i].asSlice(0, textLength);
+			batch.tags[i] = dst[i].asSlice(textLength, 16);
+		}
+
+		ChaCha20Poly1305.poly1305AeadEncrypt(sendKey, batch.nonces, src, batch.texts, batch.tags, count);
+		batch.clear(count);
+	}
+
+	/**
+	 * Decrypts several packets at once, which is quicker than calling {@link #decipher(long, MemorySegment, MemorySegment)}
+	 * for each of them.  Rather than throwing, a packet that fails authentication is marked in {@code authentic}.
+	 *
+	 * @param counters  the counter each packet was sent with
+	 * @param src       the ciphertexts, each followed by its tag
+	 * @param dst       where to write each plaintext
+	 * @param authentic on the way in, which packets to decrypt;  on the way out, which packets were authentic and have
+	 *                  been decrypted
+	 * @param count     the number of packets, from the start of each array
+	 */
+	public void decipher(long[] counters, MemorySegment[] src, MemorySegment[] dst, boolean[] authentic, int count) {
+		var batch = Batch.get(count);
+		for (int i = 0; i < count; i++) {
+			long textLength = src[i].byteSize() - 16;
+
+			batch.nonces[i].set(JAVA_LONG, 0, counters[i]);
+			batch.texts[i] = src[i].asSlice(0, textLength);
+			batch.tags[i] = src[i].asSlice(textLength, 16);
+		}
+
+		ChaCha20Poly1305.poly1305AeadDecrypt(receiveKey, batch.nonces, batch.texts, dst, batch.tags, authentic, count);
+		batch.clear(count);
+	}
+
 	private static void clean(MemorySegment sendKey, MemorySegment receiveKey, Arena arena) {
 		sendKey.fill((byte)0);
 		receiveKey.fill((byte)0);
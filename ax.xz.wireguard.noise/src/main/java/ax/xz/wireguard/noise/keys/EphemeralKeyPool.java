@@ -0,0 +1,66 @@
+package ax.xz.wireguard.noise.keys;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.lang.System.Logger;
+import static java.lang.System.Logger.Level.DEBUG;
+
+/**
+ * A bounded pool of freshly generated ephemeral keys, kept full by a background thread, so that a handshake doesn't
+ * have to do the scalar multiplication for its ephemeral public key on the critical path.
+ *
+ * <p>
+ * Each key is handed out at most once.  When the pool is empty, such as after a burst of handshakes when many peers
+ * reconnect at once, keys are generated on the caller's thread instead.  The size of the pool is set by the
+ * {@code ax.xz.wireguard.ephemeralKeys} system property, and a size of 0 turns the pool off.
+ * </p>
+ */
+public final class EphemeralKeyPool {
+	private static final Logger logger = System.getLogger(EphemeralKeyPool.class.getName());
+
+	private static final int SIZE = Integer.getInteger("ax.xz.wireguard.ephemeralKeys", 64);
+
+	private EphemeralKeyPool() {
+	}
+
+	/**
+	 * Returns a new ephemeral key that nobody else has been given.  The caller should {@linkplain NoisePrivateKey#destroy()
+	 * destroy} it once the handshake is done with it.
+	 */
+	public static NoisePrivateKey take() {
+		if (SIZE <= 0)
+			return NoisePrivateKey.newPrivateKey();
+
+		var key = Pool.KEYS.poll();
+		if (key == null)
+			return NoisePrivateKey.newPrivateKey();
+
+		return key;
+	}
+
+	/**
+	 * The pool itself, which isn't created or filled until the first key is taken
+	 */
+	private static final class Pool {
+		private static final BlockingQueue<NoisePrivateKey> KEYS = new ArrayBlockingQueue<>(SIZE);
+
+		static {
+			Thread.ofPlatform()
+				.name("Ephemeral key generator")
+				.daemon()
+				.priority(Thread.MIN_PRIORITY)
+				.start(Pool::fill);
+		}
+
+		private static void fill() {
+			try {
+				// blocks while the pool is full
+				while (true)
+					KEYS.put(NoisePrivateKey.newPrivateKey());
+			} catch (InterruptedException e) {
+				logger.log(DEBUG, "Ephemeral key generator interrupted", e);
+			}
+		}
+	}
+}
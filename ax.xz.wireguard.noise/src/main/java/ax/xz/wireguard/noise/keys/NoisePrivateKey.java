@@ -12,6 +12,9 @@ import java.util.Objects;
 public record NoisePrivateKey(byte[] data, NoisePublicKey publicKey) implements Serializable {
 	private static final Cleaner CLEANER = Cleaner.create();
 
+	// every handshake generates an ephemeral key, so each thread keeps a generator rather than seeding one per key
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
 	public static final int LENGTH = 32;
 
 	public NoisePrivateKey {
@@ -38,13 +41,20 @@ public record NoisePrivateKey(byte[] data, NoisePublicKey publicKey) implements
 	}
 
 	public static NoisePrivateKey newPrivateKey() {
-		var secureRandom = new SecureRandom();
 		byte[] pk = new byte[LENGTH];
 
-		X25519.generatePrivateKey(secureRandom, pk);
+		X25519.generatePrivateKey(RANDOM.get(), pk);
 		return new NoisePrivateKey(pk);
 	}
 
+	/**
+	 * Overwrites the key with zeros, for keys that are done with before they become unreachable.  The key mustn't be
+	 * used afterwards.
+	 */
+	public void destroy() {
+		Arrays.fill(data, (byte) 0);
+	}
+
 	public NoisePublicKey sharedSecret(NoisePublicKey publicKey) {
 		byte[] sharedSecret = new byte[NoisePublicKey.LENGTH];
 		X25519.calculateAgreement(data, 0, publicKey.data(), 0, sharedSecret, 0);
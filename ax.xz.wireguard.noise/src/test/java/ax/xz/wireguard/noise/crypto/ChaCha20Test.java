@@ -165,6 +165,56 @@ class ChaCha20Test {
 		var result = Arena.global().allocate(plaintext.length());
 		ChaCha20.chacha20(TEST_KEY, TEST_NONCE_1, plaintextMem, result, 1);
 		assertArrayEquals(expectedCiphertext, result.toArray(JAVA_BYTE));
+
+		var vectorResult = Arena.global().allocate(plaintext.length());
+		ChaCha20Vector.chacha20(MemorySegment.ofArray(TEST_KEY), MemorySegment.ofArray(TEST_NONCE_1), plaintextMem, vectorResult, 1);
+		assertArrayEquals(expectedCiphertext, vectorResult.toArray(JAVA_BYTE));
+
+		var nativeResult = Arena.global().allocate(plaintext.length());
+		ChaCha20.chacha20Native(MemorySegment.ofArray(TEST_KEY), MemorySegment.ofArray(TEST_NONCE_1), plaintextMem, nativeResult, 1);
+		assertArrayEquals(expectedCiphertext, nativeResult.toArray(JAVA_BYTE));
+	}
+
+	@Test
+	void vectorMatchesNative() {
+		var random = ThreadLocalRandom.current();
+
+		try (var arena = Arena.ofConfined()) {
+			var key = arena.allocate(32);
+			var nonce = arena.allocate(12);
+			var state = arena.allocate(64, 16);
+			var vectorBlock = arena.allocate(64);
+			var nativeBlock = arena.allocate(64);
+
+			// every length up to a few times the widest batch of blocks, to cover whole batches, whole blocks and tails
+			for (int length = 0; length <= 16 * 64 * 3; length++) {
+				byte[] keyBytes = new byte[32], nonceBytes = new byte[12], plaintextBytes = new byte[length];
+				random.nextBytes(keyBytes);
+				random.nextBytes(nonceBytes);
+				random.nextBytes(plaintextBytes);
+
+				key.copyFrom(MemorySegment.ofArray(keyBytes));
+				nonce.copyFrom(MemorySegment.ofArray(nonceBytes));
+				int counter = random.nextInt(0, 16);
+
+				var plaintext = arena.allocate(Math.max(length, 1)).asSlice(0, length).copyFrom(MemorySegment.ofArray(plaintextBytes));
+				var vectorOutput = arena.allocate(Math.max(length, 1)).asSlice(0, length);
+				var nativeOutput = arena.allocate(Math.max(length, 1)).asSlice(0, length);
+
+				ChaCha20Vector.chacha20(key, nonce, plaintext, vectorOutput, counter);
+				ChaCha20.chacha20Native(key, nonce, plaintext, nativeOutput, counter);
+				assertArrayEquals(nativeOutput.toArray(JAVA_BYTE), vectorOutput.toArray(JAVA_BYTE), "length " + length);
+
+				// in place
+				ChaCha20Vector.chacha20(key, nonce, plaintext, plaintext, counter);
+				assertArrayEquals(nativeOutput.toArray(JAVA_BYTE), plaintext.toArray(JAVA_BYTE), "length " + length + " in place");
+
+				ChaCha20.initializeState(key, nonce, state, counter);
+				ChaCha20Vector.block(state, vectorBlock);
+				ChaCha20.chacha20BlockNative(state, nativeBlock);
+				assertArrayEquals(nativeBlock.toArray(JAVA_BYTE), vectorBlock.toArray(JAVA_BYTE));
+			}
+		}
 	}
 
 	@Test
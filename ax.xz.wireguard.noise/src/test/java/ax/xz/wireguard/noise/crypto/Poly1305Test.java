@@ -3,6 +3,8 @@ package ax.xz.wireguard.noise.crypto;
 import org.junit.jupiter.api.Test;
 
 import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
@@ -15,10 +17,14 @@ import java.security.Key;
 import java.security.spec.AlgorithmParameterSpec;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class Poly1305Test {
 	private static final MethodHandle POLY1305_CONSTRUCTOR, POLY1305_ENGINE_INIT, POLY1305_ENGINE_UPDATE, POLY1305_ENGINE_DO_FINAL;
@@ -91,7 +97,7 @@ public class Poly1305Test {
 			}
 			var end = Instant.now();
 
-			System.out.println("Time taken with Poly1305(): " + Duration.between(start, end).toMillis());
+			System.out.println("Time taken with Poly1305() (" + (Poly1305.NATIVE ? "donna" : "Poly1305Java") + "): " + Duration.between(start, end).toMillis());
 		}
 
 		{
@@ -112,6 +118,50 @@ public class Poly1305Test {
 
 			System.out.println("Time taken with java poly1205(): " + Duration.between(start, end).toMillis());
 		}
+
+		{
+			var poly1305 = new Poly1305Java();
+			var keySegment = MemorySegment.ofBuffer(keybb);
+			var message = MemorySegment.ofBuffer(plaintextbb);
+			var mac = MemorySegment.ofBuffer(outbb);
+
+			var start = Instant.now();
+			for (int i = 0; i < 1_000_000; i++) {
+				poly1305.init(keySegment);
+				poly1305.update(message);
+				poly1305.finish(mac);
+			}
+			var end = Instant.now();
+
+			System.out.println("Time taken with Poly1305Java: " + Duration.between(start, end).toMillis());
+		}
+	}
+
+	@Test
+	void poly1305MatchesJdk() throws Throwable {
+		var random = ThreadLocalRandom.current();
+
+		for (int length = 0; length <= 256; length++) {
+			byte[] key = new byte[32], message = new byte[length];
+			random.nextBytes(key);
+			random.nextBytes(message);
+
+			var jdk = POLY1305_CONSTRUCTOR.invoke();
+			POLY1305_ENGINE_INIT.invoke(jdk, (Key) new SecretKeySpec(key, "ChaCha20-Poly1305"), (AlgorithmParameterSpec) null);
+			POLY1305_ENGINE_UPDATE.invoke(jdk, message, 0, length);
+			var expectedTag = (byte[]) POLY1305_ENGINE_DO_FINAL.invoke(jdk);
+
+			// fed in uneven pieces, to cover blocks that span updates
+			var poly1305 = new Poly1305();
+			poly1305.init(MemorySegment.ofArray(key));
+			for (int offset = 0; offset < length; ) {
+				int piece = Math.min(length - offset, random.nextInt(1, 40));
+				poly1305.update(MemorySegment.ofArray(message).asSlice(offset, piece));
+				offset += piece;
+			}
+
+			assertArrayEquals(expectedTag, poly1305.finish(), "length " + length);
+		}
 	}
 
 	@Test
@@ -219,4 +269,86 @@ public class Poly1305Test {
 		tag[0] ^= 0x01;
 		assertThrows(AEADBadTagException.class, () -> ChaCha20Poly1305.poly1305AeadDecrypt(MemorySegment.ofArray(aad.getBytes(StandardCharsets.UTF_8)), MemorySegment.ofArray(key), MemorySegment.ofArray(nonce), MemorySegment.ofArray(ciphertext), MemorySegment.ofArray(result), MemorySegment.ofArray(tag)));
 	}
+
+	@Test
+	void poly1305AeadMatchesJdk() throws Exception {
+		var random = ThreadLocalRandom.current();
+
+		// every length up to a few chunks, so whole chunks, partial chunks and partial blocks are all covered
+		for (int length = 0; length <= 16 * 64 * 3; length++) {
+			byte[] key = new byte[32], nonce = new byte[12], aad = new byte[random.nextInt(0, 40)], plaintext = new byte[length];
+			random.nextBytes(key);
+			random.nextBytes(nonce);
+			random.nextBytes(aad);
+			random.nextBytes(plaintext);
+
+			var cipher = Cipher.getInstance("ChaCha20-Poly1305");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new IvParameterSpec(nonce));
+			cipher.updateAAD(aad);
+			byte[] expected = cipher.doFinal(plaintext);
+
+			byte[] ciphertext = new byte[length], tag = new byte[16];
+			ChaCha20Poly1305.poly1305AeadEncrypt(MemorySegment.ofArray(aad), MemorySegment.ofArray(key), MemorySegment.ofArray(nonce), MemorySegment.ofArray(plaintext), MemorySegment.ofArray(ciphertext), MemorySegment.ofArray(tag));
+			assertArrayEquals(Arrays.copyOf(expected, length), ciphertext, "length " + length);
+			assertArrayEquals(Arrays.copyOfRange(expected, length, length + 16), tag, "length " + length);
+
+			// in place
+			var buffer = MemorySegment.ofArray(ciphertext);
+			ChaCha20Poly1305.poly1305AeadDecrypt(MemorySegment.ofArray(aad), MemorySegment.ofArray(key), MemorySegment.ofArray(nonce), buffer, buffer, MemorySegment.ofArray(tag));
+			assertArrayEquals(plaintext, buffer.toArray(JAVA_BYTE), "length " + length);
+		}
+	}
+
+	@Test
+	void poly1305AeadBatchMatchesSingle() throws AEADBadTagException {
+		var random = ThreadLocalRandom.current();
+		int count = 40;
+
+		var key = new byte[32];
+		random.nextBytes(key);
+		var keySegment = MemorySegment.ofArray(key);
+
+		MemorySegment[] nonces = new MemorySegment[count], plaintexts = new MemorySegment[count], ciphertexts = new MemorySegment[count], tags = new MemorySegment[count];
+		byte[][] originals = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			// mostly short messages, so that several share a pass, and a few that span several passes
+			var nonce = new byte[12];
+			random.nextBytes(nonce);
+			originals[i] = new byte[i % 8 == 0 ? random.nextInt(0, 1500) : random.nextInt(0, 200)];
+			random.nextBytes(originals[i]);
+
+			nonces[i] = MemorySegment.ofArray(nonce);
+			plaintexts[i] = MemorySegment.ofArray(originals[i].clone());
+			ciphertexts[i] = MemorySegment.ofArray(new byte[originals[i].length]);
+			tags[i] = MemorySegment.ofArray(new byte[16]);
+		}
+
+		ChaCha20Poly1305.poly1305AeadEncrypt(keySegment, nonces, plaintexts, ciphertexts, tags, count);
+
+		for (int i = 0; i < count; i++) {
+			var ciphertext = new byte[originals[i].length];
+			var tag = new byte[16];
+			ChaCha20Poly1305.poly1305AeadEncrypt(keySegment, nonces[i], MemorySegment.ofArray(originals[i]), MemorySegment.ofArray(ciphertext), MemorySegment.ofArray(tag));
+
+			assertArrayEquals(ciphertext, ciphertexts[i].toArray(JAVA_BYTE));
+			assertArrayEquals(tag, tags[i].toArray(JAVA_BYTE));
+		}
+
+		// skip one message, and tamper with another
+		var authentic = new boolean[count];
+		Arrays.fill(authentic, true);
+		authentic[3] = false;
+		tags[5].set(JAVA_BYTE, 0, (byte) (tags[5].get(JAVA_BYTE, 0) ^ 1));
+
+		ChaCha20Poly1305.poly1305AeadDecrypt(keySegment, nonces, ciphertexts, ciphertexts, tags, authentic, count);
+
+		for (int i = 0; i < count; i++) {
+			if (i == 3 || i == 5) {
+				assertFalse(authentic[i]);
+			} else {
+				assertTrue(authentic[i]);
+				assertArrayEquals(originals[i], ciphertexts[i].toArray(JAVA_BYTE));
+			}
+		}
+	}
 }
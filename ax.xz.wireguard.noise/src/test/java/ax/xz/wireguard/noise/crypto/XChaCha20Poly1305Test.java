@@ -0,0 +1,69 @@
+package ax.xz.wireguard.noise.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class XChaCha20Poly1305Test {
+	private static final HexFormat HEX = HexFormat.of();
+
+	// draft-irtf-cfrg-xchacha-03, section 2.2.1
+	@Test
+	void hChaCha20() {
+		var key = MemorySegment.ofArray(HEX.parseHex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"));
+		var nonce = MemorySegment.ofArray(HEX.parseHex("000000090000004a0000000031415927"));
+		var subkey = MemorySegment.ofArray(new byte[32]);
+
+		XChaCha20Poly1305.hChaCha20(key, nonce, subkey);
+
+		assertArrayEquals(HEX.parseHex("82413b4227b27bfed30e42508a877d73a0f9e4d58a74a853c12ec41326d3ecdc"), subkey.toArray(JAVA_BYTE));
+	}
+
+	// draft-irtf-cfrg-xchacha-03, section A.3.1
+	private static final byte[] PLAINTEXT = "Ladies and Gentlemen of the class of '99: If I could offer you only one tip for the future, sunscreen would be it.".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AAD = HEX.parseHex("50515253c0c1c2c3c4c5c6c7");
+	private static final byte[] KEY = HEX.parseHex("808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f");
+	private static final byte[] NONCE = HEX.parseHex("404142434445464748494a4b4c4d4e4f5051525354555657");
+	private static final byte[] CIPHERTEXT = HEX.parseHex(
+		"bd6d179d3e83d43b9576579493c0e939572a1700252bfaccbed2902c21396cbb" +
+		"731c7f1b0b4aa6440bf3a82f4eda7e39ae64c6708c54c216cb96b72e1213b452" +
+		"2f8c9ba40db5d945b11b69b982c1bb9e3f3fac2bc369488f76b2383565d3fff9" +
+		"21f9664c97637da9768812f615c68b13b52e"
+	);
+	private static final byte[] TAG = HEX.parseHex("c0875924c1c7987947deafd8780acf49");
+
+	@Test
+	void encrypt() {
+		byte[] ciphertext = new byte[PLAINTEXT.length];
+		byte[] tag = new byte[16];
+
+		XChaCha20Poly1305.encrypt(MemorySegment.ofArray(AAD), MemorySegment.ofArray(KEY), MemorySegment.ofArray(NONCE), MemorySegment.ofArray(PLAINTEXT), MemorySegment.ofArray(ciphertext), MemorySegment.ofArray(tag));
+
+		assertArrayEquals(CIPHERTEXT, ciphertext);
+		assertArrayEquals(TAG, tag);
+	}
+
+	@Test
+	void decrypt() throws AEADBadTagException {
+		byte[] plaintext = new byte[CIPHERTEXT.length];
+
+		XChaCha20Poly1305.decrypt(MemorySegment.ofArray(AAD), MemorySegment.ofArray(KEY), MemorySegment.ofArray(NONCE), MemorySegment.ofArray(CIPHERTEXT), MemorySegment.ofArray(plaintext), MemorySegment.ofArray(TAG));
+
+		assertArrayEquals(PLAINTEXT, plaintext);
+	}
+
+	@Test
+	void decryptRejectsOtherAdditionalData() {
+		byte[] aad = AAD.clone();
+		aad[0] ^= 1;
+
+		assertThrows(AEADBadTagException.class, () -> XChaCha20Poly1305.decrypt(MemorySegment.ofArray(aad), MemorySegment.ofArray(KEY), MemorySegment.ofArray(NONCE), MemorySegment.ofArray(CIPHERTEXT), MemorySegment.ofArray(new byte[CIPHERTEXT.length]), MemorySegment.ofArray(TAG)));
+	}
+}
@@ -0,0 +1,41 @@
+package ax.xz.wireguard.noise.crypto.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HexFormat;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class X25519Test {
+	@Test
+	void generatePublicKeyMatchesRfc7748() {
+		// RFC 7748, section 6.1
+		byte[] privateKey = HexFormat.of().parseHex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+		byte[] expected = HexFormat.of().parseHex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a");
+
+		byte[] publicKey = new byte[X25519.POINT_SIZE];
+		X25519.generatePublicKey(privateKey, 0, publicKey, 0);
+
+		assertArrayEquals(expected, publicKey);
+	}
+
+	@Test
+	void fixedBaseMatchesLadder() {
+		byte[] basePoint = new byte[X25519.POINT_SIZE];
+		basePoint[0] = 9;
+
+		byte[] scalar = new byte[X25519.SCALAR_SIZE];
+		byte[] fixedBase = new byte[X25519.POINT_SIZE];
+		byte[] ladder = new byte[X25519.POINT_SIZE];
+
+		for (int i = 0; i < 256; i++) {
+			ThreadLocalRandom.current().nextBytes(scalar);
+
+			X25519.generatePublicKey(scalar, 0, fixedBase, 0);
+			X25519.scalarMult(scalar, 0, basePoint, 0, ladder, 0);
+
+			assertArrayEquals(ladder, fixedBase);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package ax.xz.wireguard.noise.handshake;
+
+import ax.xz.wireguard.noise.crypto.HandshakeCrypto;
+import ax.xz.wireguard.noise.keys.NoisePresharedKey;
+import ax.xz.wireguard.noise.keys.NoisePrivateKey;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.BadPaddingException;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HandshakesTest {
+	private static final NoisePrivateKey INITIATOR = NoisePrivateKey.newPrivateKey();
+	private static final NoisePrivateKey RESPONDER = NoisePrivateKey.newPrivateKey();
+
+	// each side's view of the other
+	private static final PeerKeys RESPONDER_PEER = PeerKeys.of(INITIATOR, RESPONDER.publicKey());
+	private static final PeerKeys INITIATOR_PEER = PeerKeys.of(RESPONDER, INITIATOR.publicKey());
+
+	private static final MethodHandle ALLOCATED_BYTES;
+
+	static {
+		try {
+			var threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			var bean = Class.forName("com.sun.management.ThreadMXBean");
+			ALLOCATED_BYTES = MethodHandles.publicLookup()
+				.findVirtual(bean, "getCurrentThreadAllocatedBytes", MethodType.methodType(long.class))
+				.bindTo(threads);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Test
+	void handshakeAgreesOnKeys() throws BadPaddingException {
+		var initiator = Handshakes.initiateHandshake(INITIATOR, RESPONDER_PEER, NoisePresharedKey.zero());
+		var responder = Handshakes.responderHandshake(RESPONDER, INITIATOR_PEER, initiator.getLocalEphemeral().publicKey(), initiator.getEncryptedStatic(), initiator.getEncryptedTimestamp());
+		assertEquals(INITIATOR.publicKey(), responder.getRemotePublicKey());
+
+		var initiatorKeypair = initiator.consumeMessageResponse(responder.getLocalEphemeral(), responder.getEncryptedEmpty());
+		var responderKeypair = responder.getKeypair();
+
+		assertRoundTrip(initiatorKeypair, responderKeypair);
+		assertRoundTrip(responderKeypair, initiatorKeypair);
+	}
+
+	@Test
+	void ephemeralKeysAreDestroyed() throws BadPaddingException {
+		var initiator = Handshakes.initiateHandshake(INITIATOR, RESPONDER_PEER, NoisePresharedKey.zero());
+		var responder = Handshakes.responderHandshake(RESPONDER, INITIATOR_PEER, initiator.getLocalEphemeral().publicKey(), initiator.getEncryptedStatic(), initiator.getEncryptedTimestamp());
+		initiator.consumeMessageResponse(responder.getLocalEphemeral(), responder.getEncryptedEmpty());
+
+		assertArrayEquals(new byte[NoisePrivateKey.LENGTH], initiator.getLocalEphemeral().data());
+	}
+
+	@Test
+	void tamperedResponseIsRejected() throws BadPaddingException {
+		var initiator = Handshakes.initiateHandshake(INITIATOR, RESPONDER_PEER, NoisePresharedKey.zero());
+		var responder = Handshakes.responderHandshake(RESPONDER, INITIATOR_PEER, initiator.getLocalEphemeral().publicKey(), initiator.getEncryptedStatic(), initiator.getEncryptedTimestamp());
+
+		var encryptedEmpty = responder.getEncryptedEmpty().clone();
+		encryptedEmpty[0] ^= 1;
+		assertThrows(BadPaddingException.class, () -> initiator.consumeMessageResponse(responder.getLocalEphemeral(), encryptedEmpty));
+	}
+
+	@Test
+	void tamperedInitiationIsRejected() {
+		var initiator = Handshakes.initiateHandshake(INITIATOR, RESPONDER_PEER, NoisePresharedKey.zero());
+
+		var encryptedStatic = initiator.getEncryptedStatic().clone();
+		encryptedStatic[0] ^= 1;
+		assertThrows(BadPaddingException.class, () -> Handshakes.responderHandshake(RESPONDER, INITIATOR_PEER, initiator.getLocalEphemeral().publicKey(), encryptedStatic, initiator.getEncryptedTimestamp()));
+	}
+
+	@Test
+	void initiationFromAnotherPeerIsRejected() {
+		var impostor = NoisePrivateKey.newPrivateKey();
+		try (var peer = PeerKeys.of(impostor, RESPONDER.publicKey())) {
+			var initiator = Handshakes.initiateHandshake(impostor, peer, NoisePresharedKey.zero());
+			assertThrows(BadPaddingException.class, () -> Handshakes.responderHandshake(RESPONDER, INITIATOR_PEER, initiator.getLocalEphemeral().publicKey(), initiator.getEncryptedStatic(), initiator.getEncryptedTimestamp()));
+		}
+	}
+
+	@Test
+	void remoteStaticIsDecryptedFromInitiation() throws BadPaddingException {
+		var initiator = Handshakes.initiateHandshake(INITIATOR, RESPONDER_PEER, NoisePresharedKey.zero());
+		assertEquals(INITIATOR.publicKey(), Handshakes.decryptRemoteStatic(RESPONDER, initiator.getLocalEphemeral().publicKey(), initiator.getEncryptedStatic()));
+	}
+
+	@Test
+	void peerKeysMatchRecipientKeys() {
+		assertEquals(-1, RESPONDER_PEER.mac1Key().mismatch(PeerKeys.mac1Key(RESPONDER.publicKey())));
+		assertEquals(-1, INITIATOR_PEER.mac1Key().mismatch(PeerKeys.mac1Key(INITIATOR.publicKey())));
+	}
+
+	@Test
+	void hashingAndKeyDerivationDontAllocate() throws Throwable {
+		byte[] hash = new byte[32], chainKey = new byte[32], input = new byte[32], key = new byte[32], tau = new byte[32];
+		byte[] mac1 = new byte[16];
+		var mac1Key = RESPONDER_PEER.mac1Key();
+		var message = MemorySegment.ofArray(new byte[116]);
+
+		// warm up the thread-local state, the JIT and the allocation counter itself
+		allocatedBytes();
+		for (int i = 0; i < 10_000; i++)
+			deriveKeys(hash, chainKey, input, key, tau, mac1, mac1Key, message);
+
+		int rounds = 10_000;
+		long before = allocatedBytes();
+		for (int i = 0; i < rounds; i++)
+			deriveKeys(hash, chainKey, input, key, tau, mac1, mac1Key, message);
+		long allocated = allocatedBytes() - before;
+
+		// less than a byte a round means nothing is allocated per round.  the runtime itself sometimes allocates a
+		// hundred or so bytes once, when it recompiles part of the loop
+		assertTrue(allocated < rounds, allocated + " bytes allocated by " + rounds + " rounds of hashing and key derivation");
+	}
+
+	/**
+	 * Does the hashing and key derivation of a handshake message:  the hash and KDF steps that mix in a key, the one
+	 * that splits off a message key and tau, and the message's mac1
+	 */
+	private static void deriveKeys(byte[] hash, byte[] chainKey, byte[] input, byte[] key, byte[] tau, byte[] mac1, MemorySegment mac1Key, MemorySegment message) {
+		var crypto = HandshakeCrypto.get();
+
+		crypto.hash(hash, hash, input);
+		crypto.kdf(chainKey, input, chainKey, null, null);
+		crypto.kdf(chainKey, input, chainKey, key, null);
+		crypto.kdf(chainKey, input, chainKey, tau, key);
+		crypto.hmac(key, chainKey, input);
+		crypto.mac1(mac1, mac1Key, message);
+	}
+
+	/**
+	 * Returns the number of bytes this thread has allocated.  The management API is looked up reflectively, since this
+	 * module doesn't read {@code jdk.management}.
+	 */
+	private static long allocatedBytes() throws Throwable {
+		return (long) ALLOCATED_BYTES.invokeExact();
+	}
+
+	private static void assertRoundTrip(SymmetricKeypair sender, SymmetricKeypair receiver) throws BadPaddingException {
+		byte[] plaintext = "the quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		byte[] ciphertext = new byte[plaintext.length + 16];
+		byte[] decrypted = new byte[plaintext.length];
+
+		long counter = sender.cipher(MemorySegment.ofArray(plaintext), MemorySegment.ofArray(ciphertext));
+		receiver.decipher(counter, MemorySegment.ofArray(ciphertext), MemorySegment.ofArray(decrypted));
+
+		assertArrayEquals(plaintext, decrypted);
+	}
+}
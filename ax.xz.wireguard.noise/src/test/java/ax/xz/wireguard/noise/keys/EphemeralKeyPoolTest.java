@@ -0,0 +1,34 @@
+package ax.xz.wireguard.noise.keys;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EphemeralKeyPoolTest {
+	@Test
+	void keysAreNeverHandedOutTwice() {
+		var seen = new HashSet<NoisePublicKey>();
+
+		for (int i = 0; i < 1000; i++)
+			assertTrue(seen.add(EphemeralKeyPool.take().publicKey()));
+	}
+
+	@Test
+	void keysMatchTheirPublicKeys() {
+		for (int i = 0; i < 100; i++) {
+			var key = EphemeralKeyPool.take();
+			assertArrayEquals(new NoisePrivateKey(key.data()).publicKey().data(), key.publicKey().data());
+		}
+	}
+
+	@Test
+	void destroyZeroesTheKey() {
+		var key = EphemeralKeyPool.take();
+		key.destroy();
+
+		assertArrayEquals(new byte[NoisePrivateKey.LENGTH], key.data());
+	}
+}
@@ -146,7 +146,8 @@ public class WireGuardConfigParser {
 			throw new RuntimeException("Incomplete [Peer] section in the config.");
 		}
 
-		var filter = allowedIPs.isEmpty() ? IPFilter.allowingAll() : new IPFilter();
+		// a peer without allowed IPs gets no routes, rather than all of them
+		var filter = new IPFilter();
 		for (var entry : allowedIPs) {
 			filter.insert(entry.getKey(), entry.getValue());
 		}
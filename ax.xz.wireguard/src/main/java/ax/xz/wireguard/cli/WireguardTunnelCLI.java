@@ -37,10 +37,10 @@ public class WireguardTunnelCLI {
 		}
 
 		try (
-			var device = new WireguardDevice(config.interfaceConfig().privateKey());
-			var tun = TunProvider.getProvider().open()
+			var tun = TunProvider.getProvider().open(TunnelDeviceBond.TUN_QUEUES, TunnelDeviceBond.TUN_OFFLOAD);
+			var device = new WireguardDevice(config.interfaceConfig().privateKey(), tun.queueCount())
 		) {
-			logger.log(DEBUG, "Opened tun device {0}", tun.toString());
+			logger.log(DEBUG, "Opened tun device {0} with {1} queues (offload {2})", tun.toString(), tun.queueCount(), tun.hasVirtioNetHeaders() ? "enabled" : "disabled");
 			tun.setMTU(1500);
 
 			if (config.interfaceConfig().listenPort() != null)
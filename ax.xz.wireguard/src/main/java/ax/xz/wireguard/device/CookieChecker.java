@@ -0,0 +1,168 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.IncomingHandshakePacket;
+import ax.xz.wireguard.device.message.cookie.CookieReplyPacket;
+import ax.xz.wireguard.device.message.cookie.OutgoingCookieReply;
+import ax.xz.wireguard.device.socket.PeerSocket;
+import ax.xz.wireguard.noise.crypto.HandshakeCrypto;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
+import ax.xz.wireguard.noise.keys.NoisePublicKey;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ax.xz.wireguard.noise.crypto.Crypto.POLY1305_NONCE_SIZE;
+import static java.lang.System.Logger;
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.INFO;
+
+/**
+ * Protects the device from floods of handshake messages, using WireGuard's cookie mechanism.
+ *
+ * <p>
+ * Every handshake message is counted from when it comes off the socket until it has been handled, whether on the
+ * receive thread, a handshake worker or its peer's loop.  While that backlog is deep, and for a second afterwards, the
+ * device is under load, and initiations and responses are only handled if their {@code mac2} was computed under the
+ * cookie for the address they came from.  Those that weren't are answered with a cookie reply holding the cookie, and dropped, so a
+ * flood from spoofed addresses costs a few BLAKE2s invocations per message rather than the scalar multiplications of a
+ * handshake.  A sender that is really at its address gets the reply, and its next attempt goes through, as long as
+ * it stays within the {@link RateLimiter rate limit} for its address.
+ * </p>
+ *
+ * <p>
+ * A cookie is a MAC of the sender's address under a random secret, which is replaced every two minutes, so nothing
+ * needs to be stored per sender.  The size of the backlog that puts the device under load is set by the
+ * {@code ax.xz.wireguard.handshakeBacklog} system property.
+ * </p>
+ *
+ * <p>
+ * Apart from the counting, this is only used by the receive thread.
+ * </p>
+ */
+final class CookieChecker {
+	private static final Logger log = System.getLogger(CookieChecker.class.getName());
+
+	// the number of handshake messages waiting to be handled that puts the device under load
+	private static final int UNDER_LOAD_BACKLOG = Integer.getInteger("ax.xz.wireguard.handshakeBacklog", 16);
+
+	// how long the device stays under load after the backlog was last too deep
+	private static final long UNDER_LOAD_NANOS = Duration.ofSeconds(1).toNanos();
+
+	// how long the secret that cookies are made from is used for
+	private static final long SECRET_LIFETIME_NANOS = Duration.ofMinutes(2).toNanos();
+
+	private final PeerSocket socket;
+	private final Pool pool;
+
+	// the key that our cookie replies are encrypted under, derived from our public key
+	private final MemorySegment cookieKey;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private final byte[] secret = new byte[32];
+	private long secretCreated;
+
+	// limits the handshake messages from each source that pass the cookie check
+	private final RateLimiter rateLimiter = new RateLimiter();
+
+	private final AtomicInteger backlog = new AtomicInteger();
+	private long underLoadUntil;
+	private boolean underLoad;
+
+	// scratch space for the cookie of the message being checked, and the nonce of the reply that carries it
+	private final byte[] cookie = new byte[CookieReplyPacket.COOKIE_LENGTH];
+	private final byte[] address = new byte[16 + 2];
+	private final byte[] nonce = new byte[POLY1305_NONCE_SIZE];
+
+	CookieChecker(NoisePublicKey localIdentity, PeerSocket socket, Pool pool) {
+		this.socket = socket;
+		this.pool = pool;
+		this.cookieKey = PeerKeys.cookieKey(localIdentity);
+
+		random.nextBytes(secret);
+		secretCreated = System.nanoTime();
+	}
+
+	/**
+	 * Counts handshake messages that have come off the socket
+	 */
+	void received(int count) {
+		backlog.addAndGet(count);
+	}
+
+	/**
+	 * Counts a handshake message that has been handled or dropped.  May be called from any thread.
+	 */
+	void handled() {
+		backlog.decrementAndGet();
+	}
+
+	/**
+	 * Decides whether a handshake message should be handled.  If it shouldn't, a cookie reply is sent to its sender,
+	 * and the message should be dropped.
+	 *
+	 * @return true if the message should be handled
+	 */
+	boolean admit(IncomingHandshakePacket message) {
+		long now = System.nanoTime();
+		if (!isUnderLoad(now))
+			return true;
+
+		var source = message.originAddress();
+		byte[] ip = source.getAddress().getAddress();
+
+		computeCookie(ip, source.getPort(), now);
+		if (!message.hasValidMac2(cookie)) {
+			sendCookieReply(message);
+			return false;
+		}
+
+		// the sender has shown that it's really at its address, so it can be held to its share
+		return rateLimiter.allow(ip, now);
+	}
+
+	private boolean isUnderLoad(long now) {
+		if (backlog.get() >= UNDER_LOAD_BACKLOG)
+			underLoadUntil = now + UNDER_LOAD_NANOS;
+
+		boolean wasUnderLoad = underLoad;
+		underLoad = now - underLoadUntil < 0;
+
+		if (underLoad != wasUnderLoad)
+			log.log(INFO, underLoad ? "Under load;  requiring cookies for handshakes" : "No longer under load");
+
+		return underLoad;
+	}
+
+	private void computeCookie(byte[] ip, int port, long now) {
+		if (now - secretCreated >= SECRET_LIFETIME_NANOS) {
+			random.nextBytes(secret);
+			secretCreated = now;
+		}
+
+		System.arraycopy(ip, 0, address, 0, ip.length);
+		address[ip.length] = (byte) (port >>> 8);
+		address[ip.length + 1] = (byte) port;
+
+		HandshakeCrypto.get().cookie(cookie, secret, MemorySegment.ofArray(address).asSlice(0, ip.length + 2));
+	}
+
+	private void sendCookieReply(IncomingHandshakePacket message) {
+		var buffer = pool.tryAcquire();
+		if (buffer == null) {
+			log.log(DEBUG, "Couldn't send cookie reply because the buffer pool is exhausted");
+			return;
+		}
+
+		random.nextBytes(nonce);
+
+		try (var reply = new OutgoingCookieReply(buffer, message.senderIndex(), nonce, cookie, message.mac1(), cookieKey)) {
+			socket.send(reply.transmissiblePacket(), message.originAddress());
+		} catch (IOException e) {
+			log.log(DEBUG, "Couldn't send cookie reply", e);
+		}
+	}
+}
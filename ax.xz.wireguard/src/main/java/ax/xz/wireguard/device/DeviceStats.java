@@ -1,9 +1,20 @@
 package ax.xz.wireguard.device;
 
+import javax.annotation.Nullable;
 import java.io.Serializable;
 
+/**
+ * @param bufferPool     the pool that packets are encrypted and decrypted in
+ * @param receivePool    the pool that datagrams from peers are received into, which is the buffer pool unless the socket
+ *                       coalesces datagrams
+ * @param tunnelReadPool the pool that packets are read from the tun into, or null if the device isn't bonded to one
+ */
 public record DeviceStats(int numPeers, int numHandshakes, long numBytesSent,
-						  long numBytesReceived) implements Serializable {
+						  long numBytesReceived,
+						  long numPacketsSent, long numSendSyscalls,
+						  long numPacketsReceived, long numReceiveSyscalls,
+						  Pool.Stats bufferPool, Pool.Stats receivePool,
+						  @Nullable Pool.Stats tunnelReadPool) implements Serializable {
 	@Override
 	public String toString() {
 		return "DeviceStats[" +
@@ -11,9 +22,43 @@ public record DeviceStats(int numPeers, int numHandshakes, long numBytesSent,
 			   ", numHandshakes=" + numHandshakes +
 			   ", numBytesSent=" + bytesToString(numBytesSent) +
 			   ", numBytesReceived=" + bytesToString(numBytesReceived) +
+			   ", numPacketsSent=" + numPacketsSent +
+			   ", numSendSyscalls=" + numSendSyscalls +
+			   ", numPacketsReceived=" + numPacketsReceived +
+			   ", numReceiveSyscalls=" + numReceiveSyscalls +
+			   ", averageSendBatch=" + String.format("%.2f", averageSendBatch()) +
+			   ", averageReceiveBatch=" + String.format("%.2f", averageReceiveBatch()) +
+			   ", bufferPool=" + bufferPool +
+			   ", receivePool=" + receivePool +
+			   ", tunnelReadPool=" + tunnelReadPool +
 			   ']';
 	}
 
+	/**
+	 * Returns these stats with those of the pool that packets are read from the tun into
+	 */
+	public DeviceStats withTunnelReadPool(Pool.Stats tunnelReadPool) {
+		return new DeviceStats(
+			numPeers, numHandshakes, numBytesSent, numBytesReceived,
+			numPacketsSent, numSendSyscalls, numPacketsReceived, numReceiveSyscalls,
+			bufferPool, receivePool, tunnelReadPool
+		);
+	}
+
+	/**
+	 * Returns the average number of packets sent per syscall.
+	 */
+	public double averageSendBatch() {
+		return numSendSyscalls == 0 ? 0 : (double) numPacketsSent / numSendSyscalls;
+	}
+
+	/**
+	 * Returns the average number of packets received per syscall.
+	 */
+	public double averageReceiveBatch() {
+		return numReceiveSyscalls == 0 ? 0 : (double) numPacketsReceived / numReceiveSyscalls;
+	}
+
 	private static String bytesToString(long bytes) {
 		if (bytes < 1024) {
 			return bytes + " B";
@@ -0,0 +1,85 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.transport.incoming.DecryptedIncomingTransport;
+import ax.xz.wireguard.util.IPUtils;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+
+/**
+ * Decrypted packets waiting to be sent up the protocol stack, split into lanes that are each taken from by one thread.
+ *
+ * <p>
+ * A packet goes into the lane that its source and destination addresses hash to, so every packet of a flow goes into
+ * the same lane.  Each peer hands over its packets in the order they arrived, so as long as every lane has a single
+ * reader, the packets of a flow leave in that order too, however many lanes there are.
+ * </p>
+ */
+public final class InboundTransportQueue {
+	private final BlockingQueue<DecryptedIncomingTransport>[] lanes;
+
+	/**
+	 * @param laneCount the number of lanes
+	 * @param capacity  the most packets that may wait in all of the lanes together
+	 */
+	@SuppressWarnings("unchecked")
+	InboundTransportQueue(int laneCount, int capacity) {
+		if (laneCount <= 0)
+			throw new IllegalArgumentException("Lane count must be positive");
+
+		this.lanes = (BlockingQueue<DecryptedIncomingTransport>[]) new BlockingQueue<?>[laneCount];
+		for (int i = 0; i < laneCount; i++)
+			lanes[i] = WireguardDevice.SYNCRONOUS_PIPELINE ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(Math.max(1, capacity / laneCount));
+	}
+
+	/**
+	 * Enqueues a packet in its flow's lane, unless the lane is full
+	 *
+	 * @return true if the packet was enqueued
+	 */
+	public boolean offer(DecryptedIncomingTransport transport) {
+		return lanes[laneOf(transport.plaintextBuffer())].offer(transport);
+	}
+
+	int laneCount() {
+		return lanes.length;
+	}
+
+	DecryptedIncomingTransport take(int lane) throws InterruptedException {
+		return lanes[lane].take();
+	}
+
+	int take(int lane, Collection<? super DecryptedIncomingTransport> into, int maxPackets) throws InterruptedException {
+		into.add(lanes[lane].take());
+		return 1 + lanes[lane].drainTo(into, maxPackets - 1);
+	}
+
+	private int laneOf(MemorySegment packet) {
+		if (lanes.length == 1)
+			return 0;
+
+		int hash;
+		try {
+			hash = hash(IPUtils.sourceAddressOf(packet)) * 31 + hash(IPUtils.destinationAddressOf(packet));
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			// not a packet that could belong to a flow, so any lane will do
+			return 0;
+		}
+
+		// the top bits of the product depend on every bit of the hash, so they pick the lane
+		return (int) (((hash * 0x9e3779b9) & 0xffffffffL) * lanes.length >>> 32);
+	}
+
+	private static int hash(MemorySegment address) {
+		int hash = 0;
+		for (long i = 0; i < address.byteSize(); i += 4)
+			hash = hash * 31 + address.get(JAVA_INT_UNALIGNED, i);
+
+		return hash;
+	}
+}
@@ -0,0 +1,111 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import static java.lang.System.Logger;
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * The handshake initiations waiting for the Diffie-Hellman that reveals who sent them, and the threads that do it, so
+ * that the receive thread never waits on handshake crypto and transport packets keep flowing through a burst of
+ * initiations.
+ *
+ * <p>
+ * Initiations from addresses a peer is known to be at are taken before those from anywhere else.  Each kind has its
+ * own bounded queue, and an initiation that doesn't fit in its queue is refused, to be dropped by the caller.  The
+ * size of each queue is set by the {@code ax.xz.wireguard.initiationQueue} system property, and the number of threads
+ * by {@code ax.xz.wireguard.handshakeWorkers}.
+ * </p>
+ */
+final class InitiationQueue implements AutoCloseable {
+	private static final Logger log = System.getLogger(InitiationQueue.class.getName());
+
+	private static final int CAPACITY = Integer.getInteger("ax.xz.wireguard.initiationQueue", 1024);
+	private static final int WORKERS = Integer.getInteger("ax.xz.wireguard.handshakeWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	private final BlockingQueue<IncomingInitiation> known = new ArrayBlockingQueue<>(CAPACITY);
+	private final BlockingQueue<IncomingInitiation> unknown = new ArrayBlockingQueue<>(CAPACITY);
+
+	// one permit for every initiation in either queue
+	private final Semaphore available = new Semaphore(0);
+
+	private final Consumer<IncomingInitiation> handler;
+	private final Consumer<IncomingInitiation> dropper;
+
+	private final Thread[] workers = new Thread[WORKERS];
+
+	/**
+	 * @param handler handles an initiation, on one of the queue's threads.  If it throws, it must not have taken
+	 *                ownership of the initiation.
+	 * @param dropper disposes of the initiations still queued when the queue is closed, and of those the handler fails on
+	 */
+	InitiationQueue(Consumer<IncomingInitiation> handler, Consumer<IncomingInitiation> dropper) {
+		this.handler = handler;
+		this.dropper = dropper;
+
+		var threadFactory = Thread.ofPlatform().name("Handshake worker ", 0).daemon().factory();
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = threadFactory.newThread(this::work);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Queues an initiation to be handled
+	 *
+	 * @param fromKnownAddress whether it came from an address that a peer is known to be at
+	 * @return true if it was queued, or false if the queue is full and the caller should drop it
+	 */
+	boolean offer(IncomingInitiation initiation, boolean fromKnownAddress) {
+		if (!(fromKnownAddress ? known : unknown).offer(initiation))
+			return false;
+
+		available.release();
+		return true;
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				available.acquire();
+
+				var initiation = known.poll();
+				if (initiation == null)
+					initiation = unknown.poll();
+
+				// only if the queue has been closed and drained under us
+				if (initiation == null)
+					continue;
+
+				try {
+					handler.accept(initiation);
+				} catch (Throwable e) {
+					log.log(WARNING, "Unhandled exception while handling initiation", e);
+					dropper.accept(initiation);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.log(DEBUG, "Handshake worker interrupted", e);
+		}
+	}
+
+	/**
+	 * Stops the threads, and drops the initiations that are still queued
+	 */
+	@Override
+	public void close() {
+		for (var worker : workers)
+			worker.interrupt();
+
+		for (IncomingInitiation initiation; (initiation = known.poll()) != null; )
+			dropper.accept(initiation);
+		for (IncomingInitiation initiation; (initiation = unknown.poll()) != null; )
+			dropper.accept(initiation);
+	}
+}
@@ -1,132 +1,293 @@
 package ax.xz.wireguard.device;
 
+import ax.xz.wireguard.device.message.IncomingHandshakePacket;
 import ax.xz.wireguard.device.message.IncomingPeerPacket;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
 import ax.xz.wireguard.device.message.tunnel.IncomingTunnelPacket;
 import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
 import ax.xz.wireguard.device.message.response.IncomingResponse;
 import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTransport;
 import ax.xz.wireguard.device.peer.Peer;
+import ax.xz.wireguard.device.peer.SessionIndex;
 import ax.xz.wireguard.noise.handshake.Handshakes;
 import ax.xz.wireguard.noise.keys.NoisePresharedKey;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
-import ax.xz.wireguard.util.IPFilter;
+import ax.xz.wireguard.util.EventLoopGroup;
+import ax.xz.wireguard.util.IPUtils;
+import ax.xz.wireguard.util.IndexTable;
+import ax.xz.wireguard.util.PrefixTable;
 import ax.xz.wireguard.util.ReferenceCounted;
 
 import javax.annotation.Nullable;
 import javax.annotation.WillClose;
 import javax.crypto.BadPaddingException;
+import java.lang.foreign.MemorySegment;
 import java.net.InetSocketAddress;
-import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
 
 class PeerList {
 	private static final System.Logger log = System.getLogger(PeerList.class.getName());
 
 	private final WireguardDevice device;
+	private final CookieChecker cookieChecker;
 
 	private final ReentrantReadWriteLock peerListLock = new ReentrantReadWriteLock();
-	private final UnprotectedPeerList innerList = new UnprotectedPeerList();
+	private final Map<NoisePublicKey, Peer> peers = new HashMap<>();
 
-	private final PeerExecutor peerExecutor = new PeerExecutor();
+	// maps the session indices that messages are addressed to to the sessions or handshakes they belong to, without
+	// locking
+	private final IndexTable<SessionIndex> sessionIndices = new IndexTable<>();
 
-	PeerList(WireguardDevice device) {
+	// the loops that the peers' handshakes, timers and outgoing packets run on
+	private final EventLoopGroup peerLoops = new EventLoopGroup("Peer event loop");
+
+	// maps each peer's allowed IPs to the peer, for outbound routing and inbound source validation
+	private final PrefixTable<Peer> routes = new PrefixTable<>();
+
+	// initiations waiting to be matched to a peer, off the receive thread
+	private final InitiationQueue initiationQueue = new InitiationQueue(this::handleInitiation, this::drop);
+
+	// the addresses peers are known to be at, whose initiations are handled before those from elsewhere
+	private final Map<InetSocketAddress, Peer> configuredEndpoints = new ConcurrentHashMap<>();
+	private final Map<InetSocketAddress, Peer> sessionAddresses = new ConcurrentHashMap<>();
+	private final Map<Peer, InetSocketAddress> sessionAddressOf = new ConcurrentHashMap<>();
+
+	PeerList(WireguardDevice device, CookieChecker cookieChecker) {
 		this.device = device;
+		this.cookieChecker = cookieChecker;
 	}
 
 	// TODO:  this (and the other addPeer) is shit
 	public void addPeer(Peer.PeerConnectionInfo connectionInfo) {
-		var peer = new Peer(device, device.getStaticIdentity(), device.datagramChannel, device.getBufferPool(), device.inboundTransportQueue, connectionInfo);
+		var peer = new Peer(device, peerLoops.next(), device.getStaticIdentity(), device.socket, device.getBufferPool(), device.inboundTransportQueue, connectionInfo);
 		registerPeer(peer);
 	}
 
 	private void addPeer(NoisePublicKey publicKey) {
-		var peer = new Peer(device, device.getStaticIdentity(), device.datagramChannel, device.getBufferPool(), device.inboundTransportQueue, Peer.PeerConnectionInfo.of(publicKey));
+		var peer = new Peer(device, peerLoops.next(), device.getStaticIdentity(), device.socket, device.getBufferPool(), device.inboundTransportQueue, Peer.PeerConnectionInfo.of(publicKey));
 		registerPeer(peer);
 	}
 
-	public void handlePacket(IncomingPeerPacket incomingPeerPacket) {
-		try {
-			int receiverIndex = switch (incomingPeerPacket) {
-				case IncomingInitiation initiation -> addPeerFromInitiation(initiation);
-				case IncomingResponse response -> response.receiverIndex();
-				case UndecryptedIncomingTransport transport -> transport.receiverIndex();
-			};
-
-			var peer = innerList.get(receiverIndex);
-			if (peer == null) {
-				log.log(DEBUG, "Received message from unknown index {0}", receiverIndex);
-				return;
+	/**
+	 * Hands each of a batch of packets received from the socket to the peer it is addressed to.
+	 * @param packets the packets to handle;  the first {@code count} elements are used
+	 * @param count the number of packets in the batch
+	 */
+	public void handlePackets(IncomingPeerPacket[] packets, int count) {
+		// the whole batch counts towards the handshake backlog until each message is handled
+		int handshakes = 0;
+		for (int i = 0; i < count; i++) {
+			if (!(packets[i] instanceof UndecryptedIncomingTransport))
+				handshakes++;
+		}
+		cookieChecker.received(handshakes);
+
+		for (int i = 0; i < count; i++)
+			handlePacket(packets[i]);
+	}
+
+	private void handlePacket(IncomingPeerPacket incomingPeerPacket) {
+		switch (incomingPeerPacket) {
+			case UndecryptedIncomingTransport transport -> routeToPeer(transport, transport.receiverIndex());
+			case IncomingHandshakePacket handshake when !cookieChecker.admit(handshake) -> drop(handshake);
+
+			// finding out who sent an initiation takes a Diffie-Hellman, which is left to the handshake workers
+			case IncomingInitiation initiation -> {
+				if (!initiationQueue.offer(initiation, isKnownAddress(initiation.originAddress()))) {
+					log.log(DEBUG, "Dropped initiation from {0} because the initiation queue is full", initiation.originAddress());
+					drop(initiation);
+				}
 			}
 
-			innerList.get(receiverIndex).routeMessage(incomingPeerPacket);
+			// these finish handshakes that are already under way, so they go straight to their peers, ahead of any
+			// queued initiations
+			case IncomingResponse response -> routeToPeer(response, response.receiverIndex());
+			case IncomingCookieReply reply -> routeToPeer(reply, reply.receiverIndex());
+		}
+	}
+
+	/**
+	 * Works out which peer sent an initiation, adding it if it's new, and hands the initiation to it.  Runs on a
+	 * handshake worker.
+	 */
+	private void handleInitiation(IncomingInitiation initiation) {
+		try {
+			addPeerFromInitiation(initiation).routeMessage(initiation);
 		} catch (BadPaddingException e) {
-			log.log(DEBUG, "Could not decrypt packet", e);
+			log.log(DEBUG, "Could not decrypt initiation", e);
+			drop(initiation);
+		}
+	}
+
+	private void routeToPeer(IncomingPeerPacket incomingPeerPacket, int receiverIndex) {
+		var owner = sessionIndices.get(receiverIndex);
+		if (owner == null) {
+			log.log(DEBUG, "Received message from unknown index {0}", receiverIndex);
+			drop(incomingPeerPacket);
+			return;
 		}
+
+		// a transport message can only be decrypted under the session its index was handed to, and any session
+		// established later will have different keys
+		if (incomingPeerPacket instanceof UndecryptedIncomingTransport && owner instanceof SessionIndex.Handshake) {
+			log.log(DEBUG, "Received transport message for index {0}, which has no session", receiverIndex);
+			drop(incomingPeerPacket);
+			return;
+		}
+
+		// the peer counts handshake messages as handled once it has done so
+		owner.peer().routeMessage(incomingPeerPacket);
+	}
+
+	/**
+	 * Returns true if a peer is known to be at the given address, because it's the peer's configured endpoint or where
+	 * its current session is
+	 */
+	private boolean isKnownAddress(InetSocketAddress address) {
+		return configuredEndpoints.containsKey(address) || sessionAddresses.containsKey(address);
+	}
+
+	/**
+	 * Notes where a peer's session now is, so that initiations from there get priority
+	 * @param address the address of the peer's new session, or null if it no longer has one
+	 */
+	void sessionAddressChanged(Peer peer, @Nullable InetSocketAddress address) {
+		var previous = address == null ? sessionAddressOf.remove(peer) : sessionAddressOf.put(peer, address);
+		if (previous != null)
+			sessionAddresses.remove(previous, peer);
+
+		if (address != null)
+			sessionAddresses.put(address, peer);
+	}
+
+	private void drop(IncomingPeerPacket incomingPeerPacket) {
+		if (!(incomingPeerPacket instanceof UndecryptedIncomingTransport))
+			cookieChecker.handled();
+
+		incomingPeerPacket.close();
 	}
 
 	/**
 	 * Attempts to decrypt the public key in the given initiation message and add it to the peer list.
 	 * @param initiation the initiation message
-	 * @return the index of the peer in the peer list
+	 * @return the peer that sent the initiation
 	 * @throws BadPaddingException if the initiation message could not be decrypted
 	 */
-	private int addPeerFromInitiation(IncomingInitiation initiation) throws BadPaddingException {
-		var originPublicKey = Handshakes.decryptRemoteStatic(device.getStaticIdentity(), initiation.ephemeral(), initiation.encryptedStatic(), initiation.encryptedTimestamp());
+	private Peer addPeerFromInitiation(IncomingInitiation initiation) throws BadPaddingException {
+		var originPublicKey = Handshakes.decryptRemoteStatic(device.getStaticIdentity(), initiation.ephemeral(), initiation.encryptedStatic());
 
 		peerListLock.writeLock().lock(); // must be write lock because we might add a new peer
 
 		try {
-			if (!innerList.contains(originPublicKey))
+			if (!peers.containsKey(originPublicKey))
 				addPeer(originPublicKey);
 
-			return innerList.indexOf(originPublicKey);
+			return peers.get(originPublicKey);
 		} finally {
 			peerListLock.writeLock().unlock();
 		}
 	}
 
+	/**
+	 * Sends an IP packet to the peer whose allowed IPs contain the packet's destination address with the longest prefix.
+	 * Packets that no peer will accept are dropped.
+	 *
+	 * @param data the packet to route
+	 */
+	public void routePacketToPeer(@WillClose IncomingTunnelPacket data) {
+		Peer route;
+		try {
+			route = routes.lookup(IPUtils.destinationAddressOf(data.packet()));
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			log.log(DEBUG, "Dropped malformed packet from tunnel", e);
+			data.close();
+			return;
+		}
+
+		if (route == null) {
+			log.log(DEBUG, "Dropped packet with no route to a peer");
+			data.close();
+			return;
+		}
+
+		route.sendTransportMessage(ReferenceCounted.of(data));
+	}
+
+	/**
+	 * Returns the peer whose allowed IPs contain the given address with the longest prefix.
+	 * @param address a 4-byte IPv4 or 16-byte IPv6 address
+	 * @return the peer the address is routed to, or null if there is none
+	 */
+	@Nullable
+	public Peer routeOf(MemorySegment address) {
+		return routes.lookup(address);
+	}
+
 	public void broadcastPacketToPeers(@WillClose IncomingTunnelPacket data) {
 		peerListLock.readLock().lock();
 
 		try (var rc = ReferenceCounted.of(data)) { // ok because it's reference counted
-			for (var iterator = innerList.iterator(); iterator.hasNext(); ) {
-				var peer = iterator.next();
-
+			for (var peer : peers.values())
 				peer.sendTransportMessage(rc.retain());
-			}
 		}  finally {
 			peerListLock.readLock().unlock();
 		}
 	}
 
-	public int allocateNewIndex(NoisePublicKey peer) {
-		peerListLock.writeLock().lock();
+	/**
+	 * Allocates a random session index, and routes messages addressed to it to the given owner's peer until it's
+	 * released
+	 * @return the index
+	 */
+	public int allocateNewIndex(SessionIndex owner) {
+		return sessionIndices.allocate(owner);
+	}
 
-		try {
-			var existingPeer = innerList.peerOf(peer);
-			if (existingPeer == null)
-				throw new IllegalStateException("Peer does not exist");
+	/**
+	 * Hands an allocated session index to a new owner, such as the session established by the handshake it was
+	 * allocated to
+	 */
+	public void replaceIndex(int index, SessionIndex owner) {
+		sessionIndices.replace(index, owner);
+	}
 
-			return innerList.shuffle(peer);
-		} finally {
-			peerListLock.writeLock().unlock();
-		}
+	/**
+	 * Returns what the given session index is allocated to, or null if it isn't allocated
+	 */
+	@Nullable
+	public SessionIndex indexOwner(int index) {
+		return sessionIndices.get(index);
+	}
+
+	/**
+	 * Stops routing messages addressed to the given session index
+	 */
+	public void releaseIndex(int index) {
+		sessionIndices.remove(index);
 	}
 
 	private void registerPeer(Peer newPeer) {
 		peerListLock.writeLock().lock();
 		try {
-			if (innerList.contains(newPeer.getRemoteStatic()))
+			if (peers.putIfAbsent(newPeer.getRemoteStatic(), newPeer) != null)
 				throw new IllegalStateException("Peer already exists");
 
-			innerList.insert(newPeer);
-			peerExecutor.submit(newPeer);
+			// a prefix stays with the peer that was given it first, so a new peer can't take another's traffic
+			for (var subnet : newPeer.getAllowedIPs().subnets()) {
+				if (!routes.insertIfAbsent(subnet.getKey(), subnet.getValue(), newPeer))
+					log.log(WARNING, "Not routing {0}/{1} to {2}, since another peer already has that prefix", subnet.getKey().getHostAddress(), subnet.getValue(), newPeer);
+			}
+
+			var endpoint = newPeer.getEndpoint();
+			if (endpoint != null)
+				configuredEndpoints.put(endpoint, newPeer);
+
+			newPeer.start();
 
 			log.log(DEBUG, "Registered peer {0}", newPeer);
 		} finally {
@@ -135,160 +296,30 @@ class PeerList {
 	}
 
 	public int peerCount() {
-		return innerList.peerCount();
-	}
-
-	private void deregisterPeer(Peer peer) {
-		peerListLock.writeLock().lock();
+		peerListLock.readLock().lock();
 
 		try {
-			innerList.remove(peer.getRemoteStatic());
-			peerExecutor.stopPeer(peer.getRemoteStatic());
-
-			log.log(DEBUG, "Deregistered peer {0}", peer);
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
-			throw new RuntimeException("Could not stop peer", e);
+			return peers.size();
 		} finally {
-			peerListLock.writeLock().unlock();
-		}
-	}
-
-	private static class UnprotectedPeerList {
-		private final Map<NoisePublicKey, Integer> peerMap = new HashMap<>();
-
-		private final LinkedList<Integer> freeIndices = new LinkedList<>();
-
-		private Peer[] peers;
-
-		public UnprotectedPeerList() {
-			this.peers = new Peer[16];
-			for (int i = 0; i < peers.length; i++) {
-				freeIndices.add(i);
-			}
-		}
-
-		public Peer get(int index) {
-			return peers[index];
-		}
-
-		public Peer remove(int index) {
-			var oldPeer = peers[index];
-			if (oldPeer == null)
-				throw new NoSuchElementException("Peer does not exist");
-
-			peerMap.remove(peers[index].getRemoteStatic());
-			peers[index] = null;
-			freeIndices.addLast(index);
-
-			return oldPeer;
-		}
-
-		public Peer remove(NoisePublicKey peer) {
-			return remove(indexOf(peer));
-		}
-
-		public int shuffle(NoisePublicKey key) {
-			var peer = remove(indexOf(key));
-			return insert(peer);
-		}
-
-		public boolean contains(NoisePublicKey publicKey) {
-			return peerMap.containsKey(publicKey);
-		}
-
-		public int insert(Peer peer) {
-			if (freeIndices.isEmpty()) {
-				resize((int) Math.ceil(peers.length * 1.5));
-			}
-
-			var index = freeIndices.removeFirst();
-			if (peerMap.put(peer.getRemoteStatic(), index) != null) {
-				throw new IllegalStateException("Peer already exists");
-			}
-
-			peers[index] = peer;
-
-			return index;
-		}
-
-		public int indexOf(NoisePublicKey publicKey) {
-			var result = peerMap.get(publicKey);
-			if (result == null)
-				throw new NoSuchElementException("Peer does not exist");
-
-			return result;
-		}
-
-		public Peer peerOf(NoisePublicKey publicKey) {
-			return get(indexOf(publicKey));
-		}
-
-		private void resize(int newSize) {
-			var newPeers = new Peer[newSize];
-			System.arraycopy(peers, 0, newPeers, 0, peers.length);
-			this.peers = newPeers;
-		}
-
-		public int peerCount() {
-			return peers.length - freeIndices.size();
-		}
-
-		public Iterator<Peer> iterator() {
-			return new PeerIterator();
-		}
-
-		private class PeerIterator implements Iterator<Peer> {
-			private final Iterator<Map.Entry<NoisePublicKey, Integer>> delegate = peerMap.entrySet().iterator();
-
-			@Override
-			public boolean hasNext() {
-				return delegate.hasNext();
-			}
-
-			@Override
-			public Peer next() {
-				return peers[delegate.next().getValue()];
-			}
+			peerListLock.readLock().unlock();
 		}
 	}
 
-	private class PeerExecutor implements AutoCloseable {
-		private final ConcurrentHashMap<NoisePublicKey, Thread> peerTasks = new ConcurrentHashMap<>();
-
-		public void submit(Peer peer) {
-			Runnable peerRunnable = () -> {
-				try {
-					peer.run();
-				} finally {
-					log.log(DEBUG, "Peer {0} exited", peer);
-					deregisterPeer(peer);
-				}
-			};
+	/**
+	 * Stops the handshake workers and every peer, and shuts down the loops the peers run on.
+	 */
+	public void close() {
+		initiationQueue.close();
 
-			peerTasks.put(peer.getRemoteStatic(), Thread.ofVirtual().name(peer.toString()).start(peerRunnable));
-		}
+		peerListLock.readLock().lock();
 
-		public void stopPeer(NoisePublicKey publicKey) throws InterruptedException {
-			var task = peerTasks.remove(publicKey);
-			task.interrupt();
-			task.join(Duration.ofSeconds(1));
+		try {
+			for (var peer : peers.values())
+				peer.stop();
+		} finally {
+			peerListLock.readLock().unlock();
 		}
 
-		@Override
-		public void close() {
-			try (var sts = Executors.newVirtualThreadPerTaskExecutor()) {
-				for (var peer : peerTasks.keySet()) {
-					sts.submit(() -> {
-						stopPeer(peer);
-						return null;
-					});
-				}
-
-				sts.awaitTermination(1, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
-		}
+		peerLoops.close();
 	}
 }
@@ -2,23 +2,68 @@ package ax.xz.wireguard.device;
 
 import ax.xz.wireguard.device.message.PacketElement;
 
+import javax.annotation.Nullable;
+import java.io.Serializable;
 import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+import static java.lang.foreign.ValueLayout.*;
 
+/**
+ * A fixed-size slab of packet buffers.
+ *
+ * <p>
+ * The pool reserves all of its memory up front, as one off-heap region divided into equally sized slots, and never
+ * allocates more.  If {@link #HUGE_PAGES} is set, the region is aligned to a huge page and the kernel is asked to back
+ * it with transparent huge pages, which saves TLB misses when packets are spread over a large pool.
+ * </p>
+ *
+ * <p>
+ * Free slots are kept on a lock-free stack (a Treiber stack of slot indices).  The head of the stack is tagged with a
+ * counter that changes on every push and pop, so a thread that read the head before another thread popped and pushed
+ * the same slot fails its compare-and-set instead of corrupting the stack.
+ * </p>
+ *
+ * <p>
+ * Once every slot is in use, {@link #acquire()} waits for one to be released, which pushes back on whoever is producing
+ * packets, and {@link #tryAcquire()} returns null, so that the packet can be dropped.  Threads that sit between other
+ * stages of the pipeline should use {@link #tryAcquire()}, since the buffers they would wait for may be stuck behind
+ * them.
+ * </p>
+ */
 public class Pool implements AutoCloseable {
-	private static final int TCACHE_SIZE = 7;
+	/**
+	 * Whether to back pools with transparent huge pages, on Linux
+	 */
+	public static final boolean HUGE_PAGES = Boolean.getBoolean("ax.xz.wireguard.hugePages");
+
+	private static final long HUGE_PAGE_SIZE = 2 * 1024 * 1024;
+	private static final long PAGE_SIZE = 4096;
+	private static final int MADV_HUGEPAGE = 14;
+
+	private static final int EMPTY = -1;
 
-	private static final VarHandle POOL_SIZE, NUM_ALLOCATED, NUM_RELEASED;
+	private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final VarHandle HEAD, IN_USE, HIGH_WATER, ALLOCATIONS, EXHAUSTIONS;
 
 	static {
 		try {
-			POOL_SIZE = MethodHandles.lookup().findVarHandle(Pool.class, "poolSize", int.class);
-			NUM_ALLOCATED = MethodHandles.lookup().findVarHandle(Pool.class, "numberAllocated", int.class);
-			NUM_RELEASED = MethodHandles.lookup().findVarHandle(Pool.class, "numberReleased", int.class);
+			HEAD = MethodHandles.lookup().findVarHandle(Pool.class, "head", long.class);
+			IN_USE = MethodHandles.lookup().findVarHandle(Pool.class, "inUse", int.class);
+			HIGH_WATER = MethodHandles.lookup().findVarHandle(Pool.class, "highWater", int.class);
+			ALLOCATIONS = MethodHandles.lookup().findVarHandle(Pool.class, "allocations", long.class);
+			EXHAUSTIONS = MethodHandles.lookup().findVarHandle(Pool.class, "exhaustions", long.class);
 		} catch (ReflectiveOperationException e) {
 			throw new ExceptionInInitializerError(e);
 		}
@@ -26,92 +71,195 @@ public class Pool implements AutoCloseable {
 
 	private static final System.Logger logger = System.getLogger(Pool.class.getSimpleName());
 
-	private final int maxPoolSize;
+	private final int slotCount;
+	private final int slotSize;
+
+	private final Arena arena = Arena.ofShared();
+	private final MemorySegment[] slots;
+	private final Consumer<PacketElement>[] releasers;
 
-	private final ConcurrentLinkedQueue<PacketElement.Uninitialised> pool;
-	private final ThreadLocal<PacketElement.Uninitialised[]> tcache = ThreadLocal.withInitial(() -> new PacketElement.Uninitialised[TCACHE_SIZE]);
+	// next[i] is the slot below slot i on the free stack
+	private final int[] next;
 
-	private final Arena arena = Arena.ofAuto();
+	// the index of the slot on top of the free stack lives in the lower half of the head, and its tag in the upper half
+	private volatile long head;
 
-	private volatile int poolSize = 0;
-	private volatile int numberAllocated = 0;
-	private volatile int numberReleased = 0;
+	private volatile int inUse = 0;
+	private volatile int highWater = 0;
+	private volatile long allocations = 0;
+	private volatile long exhaustions = 0;
 
-	public Pool(int maxPoolSize) {
-		this.maxPoolSize = maxPoolSize;
-		this.pool = new ConcurrentLinkedQueue<>();
+	public Pool(int slotCount) {
+		this(slotCount, 4096);
 	}
 
-	private PacketElement.Uninitialised retrieveTcacheIfAvailable() {
-		var tcache = this.tcache.get();
-		for (int i = 0; i < TCACHE_SIZE; i++) {
-			var item = tcache[i];
-			if (item != null) {
-				tcache[i] = null;
-				return item;
-			}
+	@SuppressWarnings("unchecked")
+	public Pool(int slotCount, int slotSize) {
+		if (slotCount <= 0 || slotSize <= 0)
+			throw new IllegalArgumentException("Slot count and size must be positive");
+
+		this.slotCount = slotCount;
+		this.slotSize = slotSize;
+
+		var region = reserveRegion((long) slotCount * slotSize);
+
+		this.slots = new MemorySegment[slotCount];
+		this.releasers = (Consumer<PacketElement>[]) new Consumer<?>[slotCount];
+		this.next = new int[slotCount];
+
+		for (int i = 0; i < slotCount; i++) {
+			int index = i;
+			slots[i] = region.asSlice((long) i * slotSize, slotSize);
+			releasers[i] = p -> release(index, p);
+			next[i] = i + 1 < slotCount ? i + 1 : EMPTY;
 		}
 
-		return null;
+		head = tagged(0, 0);
 	}
 
-	private boolean storeTcacheIfAvailable(PacketElement.Uninitialised item) {
-		var tcache = this.tcache.get();
-		for (int i = 0; i < TCACHE_SIZE; i++) {
-			if (tcache[i] == null) {
-				tcache[i] = item;
-				return true;
-			}
+	private MemorySegment reserveRegion(long size) {
+		if (!HUGE_PAGES || !System.getProperty("os.name").equalsIgnoreCase("linux"))
+			return arena.allocate(size, PAGE_SIZE);
+
+		// round up to whole huge pages, since the kernel only backs fully covered ones
+		long hugeSize = (size + HUGE_PAGE_SIZE - 1) & -HUGE_PAGE_SIZE;
+		var region = arena.allocate(hugeSize, HUGE_PAGE_SIZE);
+
+		try {
+			if ((int) Madvise.madvise$MH.invokeExact(region, hugeSize, MADV_HUGEPAGE) != 0)
+				logger.log(WARNING, "Kernel refused huge pages for the packet pool");
+		} catch (Throwable e) {
+			logger.log(WARNING, "Couldn't ask for huge pages for the packet pool", e);
 		}
 
-		return false;
+		return region.asSlice(0, size);
+	}
+
+	private static long tagged(long tag, int index) {
+		return (tag << 32) | (index & 0xffffffffL);
 	}
 
 	/**
-	 * Acquire a item from the pool. If the pool is empty, a new item is allocated.
-	 * If the needed size is larger than the pool's item size, a warning is logged and a new item is allocated.
-	 *
-	 * @return A item of at least the requested size
+	 * Pops a free slot off the stack, or returns {@link #EMPTY} if there is none
 	 */
-	public PacketElement.Uninitialised acquire() {
-		var result = acquire0();
-		return result;
+	private int pop() {
+		while (true) {
+			long current = head;
+			int index = (int) current;
+			if (index == EMPTY)
+				return EMPTY;
+
+			// if another thread pops this slot first, the tag changes and the compare-and-set fails
+			if (HEAD.compareAndSet(this, current, tagged((current >>> 32) + 1, next[index])))
+				return index;
+		}
 	}
 
-	private PacketElement.Uninitialised acquire0() {
-		var tcacheItem = retrieveTcacheIfAvailable();
-		if (tcacheItem != null)
-			return tcacheItem;
+	private void push(int index) {
+		while (true) {
+			long current = head;
+			next[index] = (int) current;
+
+			if (HEAD.compareAndSet(this, current, tagged((current >>> 32) + 1, index)))
+				return;
+		}
+	}
+
+	/**
+	 * Acquires a buffer from the pool, waiting for one to be released if they're all in use.
+	 *
+	 * @return a buffer of the pool's slot size, which is returned to the pool when it's closed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public PacketElement.Uninitialised acquire() throws InterruptedException {
+		int index = pop();
+
+		if (index == EMPTY) {
+			EXHAUSTIONS.getAndAdd(this, 1L);
+			logger.log(DEBUG, "Packet pool exhausted, waiting for a buffer");
 
-		var pollItem = pool.poll();
-		if (pollItem != null) {
-			POOL_SIZE.getAndAdd(this, -1);
-			return pollItem;
+			long waitNanos = 1000;
+			while ((index = pop()) == EMPTY) {
+				LockSupport.parkNanos(waitNanos);
+				waitNanos = Math.min(waitNanos * 2, MAX_WAIT_NANOS);
+
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
 		}
 
-		NUM_ALLOCATED.getAndAdd(this, 1);
-		logger.log(DEBUG, "Item pool empty, allocating new item (allocated {0}, released {1})", numberAllocated, numberReleased);
+		return take(index);
+	}
 
-		// TODO:  big memory leak!  it crashes after 10 seconds!  oops!
-		return new PacketElement.Uninitialised(arena.allocate(4096), p -> release(PacketElement.Uninitialised.ofMoved(p)));
+	/**
+	 * Acquires a buffer from the pool if one is free.
+	 *
+	 * @return a buffer of the pool's slot size, which is returned to the pool when it's closed, or null if every buffer
+	 * is in use
+	 */
+	@Nullable
+	public PacketElement.Uninitialised tryAcquire() {
+		int index = pop();
+
+		if (index == EMPTY) {
+			EXHAUSTIONS.getAndAdd(this, 1L);
+			return null;
+		}
+
+		return take(index);
 	}
 
-	private void release(PacketElement.Uninitialised item) {
-		if (storeTcacheIfAvailable(item))
-			return;
+	private PacketElement.Uninitialised take(int index) {
+		ALLOCATIONS.getAndAdd(this, 1L);
+		int nowInUse = (int) IN_USE.getAndAdd(this, 1) + 1;
 
-		if (poolSize + 1 > maxPoolSize) {
-			logger.log(DEBUG, "Item pool full, discarding item (allocated {0}, released {1})", numberAllocated, numberReleased);
-			return;
+		int previousHighWater;
+		while (nowInUse > (previousHighWater = highWater) && !HIGH_WATER.compareAndSet(this, previousHighWater, nowInUse)) {
+			Thread.onSpinWait();
 		}
 
-		pool.offer(item);
-		NUM_RELEASED.getAndAdd(this, 1);
-		POOL_SIZE.getAndAdd(this, 1);
+		return new PacketElement.Uninitialised(slots[index], releasers[index]);
+	}
+
+	private void release(int index, PacketElement element) {
+		IN_USE.getAndAdd(this, -1);
+		push(index);
 	}
 
+	public int slotSize() {
+		return slotSize;
+	}
+
+	public Stats stats() {
+		return new Stats(slotCount, inUse, highWater, allocations, exhaustions);
+	}
+
+	/**
+	 * Frees the pool's memory.  Buffers that are still in use become inaccessible.
+	 */
 	@Override
 	public void close() {
-		pool.clear();
+		arena.close();
+	}
+
+	/**
+	 * @param capacity    the number of slots in the pool
+	 * @param inUse       the number of slots currently acquired
+	 * @param highWater   the largest number of slots that have been acquired at once
+	 * @param allocations the number of times a slot has been acquired
+	 * @param exhaustions the number of times a slot was asked for while every slot was in use
+	 */
+	public record Stats(int capacity, int inUse, int highWater, long allocations, long exhaustions) implements Serializable {
+		@Override
+		public String toString() {
+			return "%d/%d in use (high water %d, %d allocations, %d exhaustions)".formatted(inUse, capacity, highWater, allocations, exhaustions);
+		}
+	}
+
+	private static final class Madvise {
+		// int madvise(void *addr, size_t length, int advice)
+		private static final MethodHandle madvise$MH = Linker.nativeLinker().defaultLookup().find("madvise").map(addr -> Linker.nativeLinker().downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, ADDRESS.withName("addr"), JAVA_LONG.withName("length"), JAVA_INT.withName("advice")
+		))).orElseThrow();
 	}
 }
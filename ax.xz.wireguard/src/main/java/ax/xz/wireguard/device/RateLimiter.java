@@ -0,0 +1,174 @@
+package ax.xz.wireguard.device;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Limits how many handshake messages from each source are handled, with a token bucket per IPv4 address or IPv6
+ * {@code /64}.  This follows the kernel's {@code ratelimiter.c}:  each source may send 20 messages a second, in bursts
+ * of up to 5.
+ *
+ * <p>
+ * The buckets are kept in a fixed-size, open-addressed hash table, so checking a message takes constant time and
+ * allocates nothing.  Once a second, buckets that haven't been used for a second, and so are full again, are swept
+ * out by copying the rest into a second table of the same size.  Sources that would make the table more than half full
+ * are refused until the next sweep.  The number of buckets is set by the {@code ax.xz.wireguard.rateLimiterSize}
+ * system property, and is rounded up to a power of two.
+ * </p>
+ *
+ * <p>
+ * Instances aren't thread-safe.
+ * </p>
+ */
+final class RateLimiter {
+	private static final long NANOS_PER_SECOND = Duration.ofSeconds(1).toNanos();
+
+	private static final long PACKETS_PER_SECOND = 20;
+	private static final long PACKETS_BURST = 5;
+
+	// tokens are measured in nanoseconds, and accrue at one per nanosecond
+	private static final long PACKET_COST = NANOS_PER_SECOND / PACKETS_PER_SECOND;
+	private static final long TOKEN_MAX = PACKET_COST * PACKETS_BURST;
+
+	private static final long SWEEP_INTERVAL_NANOS = NANOS_PER_SECOND;
+
+	private static final int DEFAULT_SIZE = Integer.getInteger("ax.xz.wireguard.rateLimiterSize", 8192);
+
+	private static final byte EMPTY = 0;
+	private static final byte IPV4 = 4;
+	private static final byte IPV6 = 6;
+
+	private final int mask;
+	private final int maxEntries;
+
+	// keys the hash function, so that nobody can pick addresses that all land in the same place
+	private final long seed = new SecureRandom().nextLong();
+
+	// the buckets, and the spare table that sweeps copy them into
+	private Table table, spare;
+	private int entries;
+
+	private long lastSweep;
+
+	RateLimiter() {
+		this(DEFAULT_SIZE);
+	}
+
+	RateLimiter(int size) {
+		if (size < 2)
+			throw new IllegalArgumentException("Size must be at least 2");
+
+		int capacity = Integer.highestOneBit(size - 1) << 1;
+		this.mask = capacity - 1;
+		this.maxEntries = capacity / 2;
+
+		this.table = new Table(capacity);
+		this.spare = new Table(capacity);
+		this.lastSweep = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token from the given source's bucket, if there is one to take
+	 *
+	 * @param address the source's IP address, 4 or 16 bytes long
+	 * @param now     the current {@link System#nanoTime()}
+	 * @return true if the source hasn't used up its share, and its message should be handled
+	 */
+	boolean allow(byte[] address, long now) {
+		if (now - lastSweep >= SWEEP_INTERVAL_NANOS)
+			sweep(now);
+
+		byte kind;
+		long key;
+		if (address.length == 4) {
+			kind = IPV4;
+			key = (address[0] & 0xFFL) << 24 | (address[1] & 0xFFL) << 16 | (address[2] & 0xFFL) << 8 | (address[3] & 0xFFL);
+		} else {
+			kind = IPV6;
+			key = 0;
+			for (int i = 0; i < 8; i++)
+				key = key << 8 | (address[i] & 0xFFL);
+		}
+
+		var table = this.table;
+		int slot = table.find(kind, key, hash(kind, key), mask);
+
+		if (table.kinds[slot] == EMPTY) {
+			if (entries >= maxEntries)
+				return false;
+
+			table.kinds[slot] = kind;
+			table.keys[slot] = key;
+			table.lastSeen[slot] = now;
+			table.tokens[slot] = TOKEN_MAX - PACKET_COST;
+			entries++;
+			return true;
+		}
+
+		long tokens = Math.min(TOKEN_MAX, table.tokens[slot] + (now - table.lastSeen[slot]));
+		table.lastSeen[slot] = now;
+
+		if (tokens < PACKET_COST) {
+			table.tokens[slot] = tokens;
+			return false;
+		}
+
+		table.tokens[slot] = tokens - PACKET_COST;
+		return true;
+	}
+
+	/**
+	 * Drops the buckets that haven't been used for a second, by copying the others into the spare table
+	 */
+	private void sweep(long now) {
+		var from = table;
+		var to = spare;
+
+		entries = 0;
+		for (int i = 0; i < from.kinds.length; i++) {
+			byte kind = from.kinds[i];
+			if (kind == EMPTY || now - from.lastSeen[i] >= NANOS_PER_SECOND)
+				continue;
+
+			long key = from.keys[i];
+			int slot = to.find(kind, key, hash(kind, key), mask);
+			to.kinds[slot] = kind;
+			to.keys[slot] = key;
+			to.lastSeen[slot] = from.lastSeen[i];
+			to.tokens[slot] = from.tokens[i];
+			entries++;
+		}
+
+		Arrays.fill(from.kinds, EMPTY);
+		table = to;
+		spare = from;
+		lastSweep = now;
+	}
+
+	private int hash(byte kind, long key) {
+		long h = (key ^ seed) + kind;
+		h *= 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private record Table(byte[] kinds, long[] keys, long[] lastSeen, long[] tokens) {
+		Table(int capacity) {
+			this(new byte[capacity], new long[capacity], new long[capacity], new long[capacity]);
+		}
+
+		/**
+		 * Returns the slot holding the given key, or the empty slot where it belongs if there isn't one.  The table is
+		 * never more than half full, so there always is one.
+		 */
+		int find(byte kind, long key, int hash, int mask) {
+			int slot = hash & mask;
+			while (kinds[slot] != EMPTY && (kinds[slot] != kind || keys[slot] != key))
+				slot = (slot + 1) & mask;
+
+			return slot;
+		}
+	}
+}
@@ -1,25 +1,50 @@
 package ax.xz.wireguard.device;
 
 import ax.xz.raw.spi.Tun;
+import ax.xz.wireguard.device.message.transport.incoming.DecryptedIncomingTransport;
 import ax.xz.wireguard.device.message.tunnel.UninitialisedIncomingTunnelPacket;
+import ax.xz.wireguard.device.offload.TcpCoalescer;
+import ax.xz.wireguard.device.offload.VirtioNetHeader;
 import ax.xz.wireguard.util.PersistentTaskExecutor;
 
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import static java.lang.System.Logger;
+import static java.lang.System.Logger.Level.DEBUG;
 import static java.lang.System.Logger.Level.INFO;
 import static java.lang.System.Logger.Level.WARNING;
 
 public class TunnelDeviceBond {
+	/**
+	 * The number of queues to open the tun with.  Each queue gets its own reader thread, and each of the device's
+	 * inbound lanes gets its own writer thread.  The device should have as many lanes as the tun has queues.
+	 */
+	public static final int TUN_QUEUES = Integer.getInteger("ax.xz.wireguard.tunQueues", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Whether to ask for a tun with TCP segmentation and checksum offload.  The kernel then hands over TCP packets of
+	 * up to 64KiB, which are segmented just before they're encrypted, and accepts coalesced TCP packets in return.
+	 */
+	public static final boolean TUN_OFFLOAD = Boolean.getBoolean("ax.xz.wireguard.tunOffload");
+
+	// the maximum number of decrypted packets to take at once when they may be coalesced before being written
+	private static final int WRITE_BATCH_SIZE = 64;
+
 	private static final Logger logger = System.getLogger(TunnelDeviceBond.class.getName());
 
 	private final WireguardDevice device;
 	private final Tun tunnel;
 
+	// the pool that packets are read from the tun into.  with offloads, a packet may be as long as an IP packet can be
+	private final Pool readPool;
+
 	public TunnelDeviceBond(WireguardDevice device, Tun tunnel) {
 		this.device = device;
 		this.tunnel = tunnel;
+		this.readPool = tunnel.hasVirtioNetHeaders() ? new Pool(0x100, VirtioNetHeader.SIZE + 0xffff) : device.getBufferPool();
 	}
 
 	public void run() throws InterruptedException {
@@ -27,34 +52,108 @@ public class TunnelDeviceBond {
 		try (var sts = new PersistentTaskExecutor<>(RuntimeException::new, logger, Thread.ofPlatform().factory())) {
 			sts.submit(device::run);
 
-			sts.submit("Tunnel read worker", () -> {
-				while (!Thread.interrupted()) {
-					var buffer = new UninitialisedIncomingTunnelPacket(device.getBufferPool().acquire());
+			// the kernel hashes each flow to one queue, so every queue needs a reader of its own
+			for (int i = 0; i < tunnel.queueCount(); i++) {
+				int queue = i;
 
-					try {
-						var packet = buffer.initialise(tunnel::read);
-						device.broadcastPacketToPeers(packet);
-					} catch (IOException e) {
-						logger.log(WARNING, "Error reading from tunnel", e);
-					}
-				}
-			});
-
-			sts.submit("Tunnel write worker", () -> {
-				while (!Thread.interrupted()) {
-					try (var transport = device.receiveIncomingTransport()) {
-						tunnel.write(transport.plaintextBuffer().asByteBuffer());
-					} catch (IOException e) {
-						logger.log(WARNING, "Error writing to tunnel", e);
+				sts.submit("Tunnel read worker " + queue, () -> {
+					while (!Thread.interrupted()) {
+						var buffer = new UninitialisedIncomingTunnelPacket(readPool.acquire());
+
+						try {
+							var packet = tunnel.hasVirtioNetHeaders() ?
+								buffer.initialiseWithVirtioHeader(bb -> tunnel.read(queue, bb)) :
+								buffer.initialise(bb -> tunnel.read(queue, bb));
+							device.routePacketToPeers(packet);
+						} catch (IOException e) {
+							logger.log(WARNING, "Error reading from tunnel", e);
+							buffer.close();
+						} catch (IllegalArgumentException e) {
+							// already released by the initialiser
+							logger.log(DEBUG, "Dropped malformed packet from tunnel", e);
+						}
 					}
-				}
-			});
+				});
+			}
+
+			// the device splits decrypted packets into lanes by flow, so with one writer per lane, each flow's packets
+			// are written in the order they arrived.  any queue may be written to, whichever flow a packet belongs to
+			for (int i = 0; i < device.inboundLaneCount(); i++) {
+				int lane = i;
+				int queue = i % tunnel.queueCount();
+
+				if (tunnel.hasVirtioNetHeaders())
+					sts.submit("Tunnel write worker " + lane, () -> writeCoalescedTransports(lane, queue));
+				else
+					sts.submit("Tunnel write worker " + lane, () -> {
+						while (!Thread.interrupted()) {
+							try (var transport = device.receiveIncomingTransport(lane)) {
+								tunnel.write(queue, transport.plaintextBuffer().asByteBuffer());
+							} catch (IOException e) {
+								logger.log(WARNING, "Error writing to tunnel", e);
+							}
+						}
+					});
+			}
 
 			try (var sch = new ScheduledThreadPoolExecutor(0, Thread.ofVirtual().factory())) {
-				sch.scheduleAtFixedRate(() -> logger.log(INFO, device.getStats().toString()), 0, 10, java.util.concurrent.TimeUnit.SECONDS);
+				sch.scheduleAtFixedRate(() -> logger.log(INFO, getStats().toString()), 0, 10, java.util.concurrent.TimeUnit.SECONDS);
 
 				sts.awaitTermination();
 			}
 		}
 	}
+
+	/**
+	 * Returns the device's stats, along with those of the pool that packets are read from the tun into
+	 */
+	public DeviceStats getStats() {
+		return device.getStats().withTunnelReadPool(readPool.stats());
+	}
+
+	/**
+	 * Writes decrypted packets to a tun with offloads, a batch at a time.  Consecutive TCP segments of the same flow
+	 * are coalesced into one write, and everything else is written with an empty {@code virtio_net_hdr} in the space
+	 * in front of its plaintext.
+	 */
+	private void writeCoalescedTransports(int lane, int queue) throws InterruptedException {
+		var coalescer = new TcpCoalescer();
+		var batch = new ArrayList<DecryptedIncomingTransport>(WRITE_BATCH_SIZE);
+
+		while (!Thread.interrupted()) {
+			device.receiveIncomingTransports(lane, batch, WRITE_BATCH_SIZE);
+
+			try {
+				for (var transport : batch) {
+					var plaintext = transport.plaintextBuffer();
+					if (coalescer.add(plaintext))
+						continue;
+
+					if (!coalescer.isEmpty()) {
+						writeToTunnel(queue, coalescer.flush());
+						if (coalescer.add(plaintext))
+							continue;
+					}
+
+					var packet = transport.plaintextWithHeadroom(VirtioNetHeader.SIZE);
+					VirtioNetHeader.NONE.write(packet);
+					writeToTunnel(queue, packet);
+				}
+
+				if (!coalescer.isEmpty())
+					writeToTunnel(queue, coalescer.flush());
+			} finally {
+				batch.forEach(DecryptedIncomingTransport::close);
+				batch.clear();
+			}
+		}
+	}
+
+	private void writeToTunnel(int queue, MemorySegment packet) {
+		try {
+			tunnel.write(queue, packet.asByteBuffer());
+		} catch (IOException e) {
+			logger.log(WARNING, "Error writing to tunnel", e);
+		}
+	}
 }
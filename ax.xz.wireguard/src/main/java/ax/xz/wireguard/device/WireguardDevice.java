@@ -5,27 +5,24 @@ import ax.xz.wireguard.device.message.tunnel.IncomingTunnelPacket;
 import ax.xz.wireguard.device.message.PacketElement;
 import ax.xz.wireguard.device.message.transport.incoming.DecryptedIncomingTransport;
 import ax.xz.wireguard.device.peer.Peer;
+import ax.xz.wireguard.device.peer.SessionIndex;
+import ax.xz.wireguard.device.socket.PeerSocket;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
 import ax.xz.wireguard.noise.keys.NoisePresharedKey;
 import ax.xz.wireguard.noise.keys.NoisePrivateKey;
-import ax.xz.wireguard.noise.keys.NoisePublicKey;
 import ax.xz.wireguard.util.PersistentTaskExecutor;
 
 import javax.annotation.Nullable;
 import javax.crypto.BadPaddingException;
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.time.Duration;
-import java.util.concurrent.BlockingQueue;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.Logger;
 import static java.lang.System.Logger.Level.*;
@@ -34,51 +31,77 @@ public final class WireguardDevice implements Closeable {
 	// for debugging performance, so flamegraphs look nicer
 	public static final boolean SYNCRONOUS_PIPELINE = false;
 
+	// sends every packet from the tunnel to every peer instead of routing it by the peers' allowed IPs
+	public static final boolean BROADCAST_TO_ALL_PEERS = Boolean.getBoolean("ax.xz.wireguard.broadcast");
+
+	// the maximum number of datagrams to pull from the socket at once
+	private static final int RECEIVE_BATCH_SIZE = 32;
+
 	private static final Logger log = System.getLogger(WireguardDevice.class.getName());
 
 	private final NoisePrivateKey staticIdentity;
 
-	private final PeerList peerList = new PeerList(this);
+	// the key that handshake messages sent to us are MACed under
+	private final MemorySegment mac1Key;
+
+	// decides which handshake messages need a cookie before they're handled
+	private final CookieChecker cookieChecker;
 
-	final DatagramChannel datagramChannel; // TODO:  rethink how this is exposed and how channels are managed
-	private final Selector selector;
+	final PeerList peerList;
 
-	// a list of encrypted, incoming packets waiting to be sent up the protocol stack
-	final BlockingQueue<DecryptedIncomingTransport> inboundTransportQueue =
-		SYNCRONOUS_PIPELINE ?
-			new SynchronousQueue<>() :
-			new LinkedBlockingQueue<>(ForkJoinPool.getCommonPoolParallelism() * 1024);
+	final PeerSocket socket;
+
+	// decrypted, incoming packets waiting to be sent up the protocol stack
+	final InboundTransportQueue inboundTransportQueue;
 
 	private final AtomicInteger handshakeCounter = new AtomicInteger(0);
-	private final AtomicLong bytesSent = new AtomicLong(0);
-	private final AtomicLong bytesReceived = new AtomicLong(0);
 
-	private final Pool bufferPool = new Pool(0x500);
+	// the number of packet buffers that the device reserves up front.  no more are ever allocated
+	private static final int POOL_SLOTS = Integer.getInteger("ax.xz.wireguard.poolSlots", 0x2000);
+
+	private final Pool bufferPool = new Pool(POOL_SLOTS);
+
+	// the pool that datagrams from peers are received into.  if the socket coalesces datagrams, its buffers are big
+	// enough for a whole coalesced run, and they're shared by all of the packets that run is split into
+	private final Pool receivePool;
 
 	public WireguardDevice(NoisePrivateKey staticIdentity) {
+		this(staticIdentity, 1);
+	}
+
+	/**
+	 * @param inboundLanes the number of lanes that decrypted packets are split into by flow, each of which should be
+	 *                     taken from by one thread
+	 */
+	public WireguardDevice(NoisePrivateKey staticIdentity, int inboundLanes) {
 		this.staticIdentity = staticIdentity;
+		this.inboundTransportQueue = new InboundTransportQueue(inboundLanes, ForkJoinPool.getCommonPoolParallelism() * 1024);
+		this.mac1Key = PeerKeys.mac1Key(staticIdentity.publicKey());
 
 		try {
-			datagramChannel = DatagramChannel.open();
-			datagramChannel.configureBlocking(false);
-
-			selector = Selector.open();
-			datagramChannel.register(selector, SelectionKey.OP_READ);
+			socket = PeerSocket.open();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+
+		receivePool = socket.coalescesReceives() ? new Pool(RECEIVE_BATCH_SIZE * 4, PeerSocket.MAX_COALESCED_SIZE) : bufferPool;
+
+		cookieChecker = new CookieChecker(staticIdentity.publicKey(), socket, bufferPool);
+		peerList = new PeerList(this, cookieChecker);
 	}
 
 	public void run() {
 		try (var outerExecutor = new PersistentTaskExecutor<>(RuntimeException::new, log, Thread.ofPlatform().factory())) { // RuntimeException, since we don't expect this to recover
 			outerExecutor.submit("Peer packet listener", () -> {
-				while (!Thread.interrupted()) {
-					try {
-						receiveMessageFromPeer();
-					} catch (IOException e) {
-						log.log(ERROR, "Error receiving packet", e);
-						if (!datagramChannel.isOpen())
-							break;
+				try (var batch = new ReceiveBatch()) {
+					while (!Thread.interrupted()) {
+						try {
+							batch.receive();
+						} catch (IOException e) {
+							log.log(ERROR, "Error receiving packet", e);
+							if (!socket.isOpen())
+								break;
+						}
 					}
 				}
 			});
@@ -94,10 +117,22 @@ public final class WireguardDevice implements Closeable {
 	}
 
 	public void bind(SocketAddress endpoint) throws IOException {
-		datagramChannel.bind(endpoint);
+		socket.bind(endpoint);
 		log.log(DEBUG, "Bound to {0}", endpoint);
 	}
 
+	/**
+	 * Sends an IP packet to the peer whose allowed IPs best match its destination address, or to every
+	 * peer if {@link #BROADCAST_TO_ALL_PEERS} is set.
+	 * @param element an unencrypted packet to encrypt and send
+	 */
+	public void routePacketToPeers(IncomingTunnelPacket element) {
+		if (BROADCAST_TO_ALL_PEERS)
+			peerList.broadcastPacketToPeers(element);
+		else
+			peerList.routePacketToPeer(element);
+	}
+
 	/**
 	 * Sends an IP packet to all of the connected peers.
 	 * @param element an unencrypted packet to encrypt and send to all peers
@@ -107,61 +142,111 @@ public final class WireguardDevice implements Closeable {
 		peerList.broadcastPacketToPeers(element);
 	}
 
-	private void receiveMessageFromPeer() throws IOException {
-		var bg = new PacketElement.UnparsedIncomingPeerPacket(bufferPool.acquire());
-
-		try {
-			if (selector.select() > 0) {
-				var packet = bg.initialise(bb -> (InetSocketAddress) datagramChannel.receive(bb), staticIdentity.publicKey());
-
-				bytesReceived.addAndGet(packet.length());
-
-				handlePacket(packet);
-				selector.selectedKeys().clear();
-			} else {
-				bg.close();
-			}
-		} catch (BadPaddingException e) {
-			log.log(WARNING, "Received message with invalid padding");
-			bg.close();
-		}
+	/**
+	 * Returns the number of lanes that decrypted packets are split into.  The packets of a flow are all in the same
+	 * lane, so they stay in order as long as each lane is only taken from by one thread.
+	 */
+	public int inboundLaneCount() {
+		return inboundTransportQueue.laneCount();
 	}
 
 	/**
 	 * Returns a buffer containing a decrypted transport packet.
 	 *
+	 * @param lane the lane to take the packet from
 	 * @return the buffer containing the decrypted transport packet.  The buffer must be released to this device's buffer pool after use.
 	 * @throws InterruptedException if the thread is interrupted while waiting for a peer to be available
 	 */
-	public DecryptedIncomingTransport receiveIncomingTransport() throws InterruptedException {
-		return inboundTransportQueue.take();
+	public DecryptedIncomingTransport receiveIncomingTransport(int lane) throws InterruptedException {
+		return inboundTransportQueue.take(lane);
+	}
+
+	/**
+	 * Waits for a decrypted transport packet, and then takes as many more as are available, up to the given number.
+	 *
+	 * @param lane       the lane to take the packets from
+	 * @param into       the collection to add the packets to.  Each packet must be closed after use.
+	 * @param maxPackets the maximum number of packets to take
+	 * @return the number of packets taken
+	 * @throws InterruptedException if the thread is interrupted while waiting for a packet
+	 */
+	public int receiveIncomingTransports(int lane, Collection<? super DecryptedIncomingTransport> into, int maxPackets) throws InterruptedException {
+		return inboundTransportQueue.take(lane, into, maxPackets);
+	}
+
+	/**
+	 * Returns the peer whose allowed IPs contain the given address with the longest prefix.
+	 * @param address a 4-byte IPv4 or 16-byte IPv6 address
+	 * @return the peer the address is routed to, or null if there is none
+	 */
+	@Nullable
+	public Peer routeOf(MemorySegment address) {
+		return peerList.routeOf(address);
 	}
 
 	public void addPeer(Peer.PeerConnectionInfo connectionInfo) {
 		peerList.addPeer(connectionInfo);
 	}
 
-	public int allocateNewSessionIndex(NoisePublicKey peer) {
-		return peerList.allocateNewIndex(peer);
+	/**
+	 * Allocates a random session index to a handshake or session, and routes the messages addressed to it to that
+	 * handshake or session's peer until it's released.
+	 *
+	 * @return the index
+	 */
+	public int allocateNewSessionIndex(SessionIndex owner) {
+		return peerList.allocateNewIndex(owner);
 	}
 
-	public NoisePrivateKey getStaticIdentity() {
-		return staticIdentity;
+	/**
+	 * Hands an allocated session index to a new owner, such as the session established by the handshake it was
+	 * allocated to, so that transport messages addressed to it are received under that session.
+	 */
+	public void assignSessionIndex(int index, SessionIndex owner) {
+		peerList.replaceIndex(index, owner);
 	}
 
-	public void close() throws IOException {
-		datagramChannel.close();
+	/**
+	 * Returns the handshake or session that the given session index is allocated to, or null if it isn't allocated.
+	 */
+	@Nullable
+	public SessionIndex sessionIndex(int index) {
+		return peerList.indexOwner(index);
+	}
+
+	/**
+	 * Stops routing the messages addressed to the given session index, once the session or handshake it was allocated
+	 * for is over.
+	 */
+	public void releaseSessionIndex(int index) {
+		peerList.releaseIndex(index);
 	}
 
 	/**
-	 * Handles a message received from the given address.
-	 * Will eventually release the buffer backing message back to the buffer pool.
+	 * Tells the device that a handshake message it handed to a peer has been handled, so that it no longer counts
+	 * towards the backlog that decides whether the device is under load.
+	 */
+	public void handshakeMessageHandled() {
+		cookieChecker.handled();
+	}
+
+	/**
+	 * Tells the device where a peer's session now is, so that initiations from there are handled before those from
+	 * addresses no peer is known to be at.
 	 *
-	 * @param message the message to handle
-	 * @throws BadPaddingException
+	 * @param address the address of the peer's new session, or null if it no longer has one
 	 */
-	private void handlePacket(IncomingPeerPacket message) throws BadPaddingException {
-		peerList.handlePacket(message);
+	public void sessionAddressChanged(Peer peer, @Nullable InetSocketAddress address) {
+		peerList.sessionAddressChanged(peer, address);
+	}
+
+	public NoisePrivateKey getStaticIdentity() {
+		return staticIdentity;
+	}
+
+	public void close() throws IOException {
+		peerList.close();
+		socket.close();
 	}
 
 	public Pool getBufferPool() {
@@ -169,7 +254,86 @@ public final class WireguardDevice implements Closeable {
 	}
 
 	public DeviceStats getStats() {
-		return new DeviceStats(peerList.peerCount(), handshakeCounter.get(), bytesSent.get(), bytesReceived.get());
+		var socketStats = socket.stats();
+		return new DeviceStats(
+			peerList.peerCount(), handshakeCounter.get(), socketStats.bytesSent(), socketStats.bytesReceived(),
+			socketStats.datagramsSent(), socketStats.sendSyscalls(),
+			socketStats.datagramsReceived(), socketStats.receiveSyscalls(),
+			bufferPool.stats(), receivePool.stats(), null
+		);
+	}
+
+	/**
+	 * The buffers that datagrams from peers are received into, a batch at a time.
+	 * Buffers that a receive doesn't fill are kept for the next one.
+	 */
+	private final class ReceiveBatch implements AutoCloseable {
+		private final PacketElement.UnparsedIncomingPeerPacket[] packets = new PacketElement.UnparsedIncomingPeerPacket[RECEIVE_BATCH_SIZE];
+		private final MemorySegment[] buffers = new MemorySegment[RECEIVE_BATCH_SIZE];
+		private final long[] lengths = new long[RECEIVE_BATCH_SIZE];
+		private final long[] segmentSizes = new long[RECEIVE_BATCH_SIZE];
+		private final InetSocketAddress[] senders = new InetSocketAddress[RECEIVE_BATCH_SIZE];
+
+		private IncomingPeerPacket[] parsed = new IncomingPeerPacket[RECEIVE_BATCH_SIZE];
+		private int parsedCount;
+
+		/**
+		 * Receives a batch of datagrams and passes the ones that parse to the peer list.
+		 */
+		void receive() throws IOException, InterruptedException {
+			for (int i = 0; i < RECEIVE_BATCH_SIZE; i++) {
+				if (packets[i] == null) {
+					packets[i] = new PacketElement.UnparsedIncomingPeerPacket(receivePool.acquire());
+					buffers[i] = packets[i].receiveBuffer();
+				}
+			}
+
+			int received = socket.receive(buffers, lengths, segmentSizes, senders);
+
+			for (int i = 0; i < received; i++) {
+				var packet = packets[i];
+				packets[i] = null;
+
+				if (segmentSizes[i] < lengths[i]) {
+					var segments = packet.split(lengths[i], segmentSizes[i]);
+					for (int j = 0; j < segments.length; j++)
+						parse(segments[j], Math.min(segmentSizes[i], lengths[i] - j * segmentSizes[i]), senders[i]);
+				} else {
+					parse(packet, lengths[i], senders[i]);
+				}
+			}
+
+			peerList.handlePackets(parsed, parsedCount);
+			Arrays.fill(parsed, 0, parsedCount, null);
+			Arrays.fill(senders, 0, received, null);
+			parsedCount = 0;
+		}
+
+		private void parse(PacketElement.UnparsedIncomingPeerPacket packet, long length, InetSocketAddress sender) {
+			try {
+				var result = packet.initialise(length, sender, mac1Key);
+
+				if (parsedCount == parsed.length)
+					parsed = Arrays.copyOf(parsed, parsed.length * 2);
+
+				parsed[parsedCount++] = result;
+			} catch (BadPaddingException e) {
+				// spoofed handshakes fail here, so this mustn't cost more than the check did
+				log.log(DEBUG, "Received message with invalid mac1 from {0}", sender);
+			} catch (IllegalArgumentException e) {
+				log.log(DEBUG, "Received malformed message from {0}", sender);
+			}
+		}
+
+		@Override
+		public void close() {
+			for (int i = 0; i < RECEIVE_BATCH_SIZE; i++) {
+				if (packets[i] != null) {
+					packets[i].close();
+					packets[i] = null;
+				}
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,22 @@
+package ax.xz.wireguard.device.message;
+
+import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
+import ax.xz.wireguard.device.message.response.IncomingResponse;
+
+/**
+ * A handshake message coming in from another peer, which carries a {@code mac1} and {@code mac2}.  Its {@code mac1}
+ * has already been checked, and its {@code mac2} only needs to be when we're under load.
+ */
+public sealed interface IncomingHandshakePacket extends IncomingPeerPacket permits IncomingInitiation, IncomingResponse {
+	/**
+	 * Returns the sender's index, which a cookie reply to this message is addressed to
+	 */
+	int senderIndex();
+
+	byte[] mac1();
+
+	/**
+	 * Returns true if the {@code mac2} of this message was computed under the given cookie
+	 */
+	boolean hasValidMac2(byte[] cookie);
+}
@@ -1,7 +1,6 @@
 package ax.xz.wireguard.device.message;
 
-import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
-import ax.xz.wireguard.device.message.response.IncomingResponse;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
 import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTransport;
 
 import java.net.InetSocketAddress;
@@ -9,7 +8,7 @@ import java.net.InetSocketAddress;
 /**
  * A packet coming in from another peer
  */
-public sealed interface IncomingPeerPacket extends AutoCloseable permits IncomingInitiation, IncomingResponse, UndecryptedIncomingTransport {
+public sealed interface IncomingPeerPacket extends AutoCloseable permits IncomingHandshakePacket, IncomingCookieReply, UndecryptedIncomingTransport {
 	InetSocketAddress originAddress();
 
 	long length();
@@ -1,5 +1,6 @@
 package ax.xz.wireguard.device.message;
 
+import ax.xz.wireguard.device.message.cookie.OutgoingCookieReply;
 import ax.xz.wireguard.device.message.initiation.OutgoingInitiation;
 import ax.xz.wireguard.device.message.response.OutgoingResponse;
 import ax.xz.wireguard.device.message.transport.outgoing.EncryptedOutgoingTransport;
@@ -11,7 +12,7 @@ import java.net.InetSocketAddress;
 /**
  * A packet coming in from another peer
  */
-public sealed interface OutgoingPeerPacket extends AutoCloseable permits OutgoingInitiation, OutgoingResponse, EncryptedOutgoingTransport {
+public sealed interface OutgoingPeerPacket extends AutoCloseable permits OutgoingInitiation, OutgoingResponse, OutgoingCookieReply, EncryptedOutgoingTransport {
 	long length();
 	MemorySegment transmissiblePacket();
 
@@ -1,18 +1,18 @@
 package ax.xz.wireguard.device.message;
 
+import ax.xz.wireguard.device.message.cookie.CookieReplyPacket;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
 import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
 import ax.xz.wireguard.device.message.initiation.InitiationPacket;
 import ax.xz.wireguard.device.message.response.IncomingResponse;
 import ax.xz.wireguard.device.message.response.ResponsePacket;
 import ax.xz.wireguard.device.message.transport.TransportPacket;
 import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTransport;
-import ax.xz.wireguard.noise.keys.NoisePublicKey;
+import ax.xz.wireguard.util.ReferenceCounted;
 
 import javax.crypto.BadPaddingException;
-import java.io.IOException;
 import java.lang.foreign.MemorySegment;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.util.function.Consumer;
 
 import static java.lang.foreign.ValueLayout.JAVA_BYTE;
@@ -90,31 +90,91 @@ public class PacketElement implements AutoCloseable {
 		}
 
 		/**
-		 * Initialises the data in this packet with the given function, and then parses the packet.
-		 * May only be called once.
-		 * @param initialiser the consumer that initialises the packet and returns the length of the packet
+		 * Returns the buffer that the datagram should be received into.  Once it has been written, call
+		 * {@link #initialise(long, InetSocketAddress, MemorySegment)} to parse it.
+		 */
+		public MemorySegment receiveBuffer() {
+			if (initialised) {
+				throw new IllegalStateException("Packet already initialised");
+			}
+
+			return backing();
+		}
+
+		/**
+		 * Parses a datagram that has been received into {@link #receiveBuffer()}.
+		 * May only be called once.  If the datagram cannot be parsed, its buffer is released before the exception is thrown.
+		 * @param packetLength the length of the datagram
+		 * @param address the address the datagram was received from
+		 * @param localMac1Key the key that handshake messages sent to us are MACed under
 		 * @return the parsed packet
+		 * @throws BadPaddingException if the packet's MAC is invalid
+		 * @throws IllegalArgumentException if the packet is malformed
 		 */
-		public IncomingPeerPacket initialise(Receiver initialiser, NoisePublicKey localPublicKey) throws IOException, BadPaddingException {
+		public IncomingPeerPacket initialise(long packetLength, InetSocketAddress address, MemorySegment localMac1Key) throws BadPaddingException {
 			if (initialised) {
 				throw new IllegalStateException("Packet already initialised");
 			}
-			var bb = backing().asByteBuffer();
-			var address = initialiser.receive(bb);
-			long packetLength = bb.flip().remaining();
 			initialised = true;
 
-			var type = backing().get(JAVA_BYTE, 0);
-			return switch (type) {
-				case InitiationPacket.TYPE -> new IncomingInitiation(this, localPublicKey, address);
-				case ResponsePacket.TYPE -> new IncomingResponse(this, localPublicKey, address);
-				case TransportPacket.TYPE -> new UndecryptedIncomingTransport(this, packetLength, address);
-				default -> throw new IllegalArgumentException("Invalid message type (%02x)".formatted(type));
-			};
+			// the parsed packet takes ownership of the buffer before it validates it, so keep hold of it until then
+			var buffer = backing();
+			var bufferCleanup = ((PacketElement) this).cleanup;
+
+			try {
+				if (packetLength < 4)
+					throw new IllegalArgumentException("Packet too short (%d bytes)".formatted(packetLength));
+
+				var type = buffer.get(JAVA_BYTE, 0);
+				return switch (type) {
+					case InitiationPacket.TYPE -> new IncomingInitiation(this, localMac1Key, address);
+					case ResponsePacket.TYPE -> new IncomingResponse(this, localMac1Key, address);
+					case CookieReplyPacket.TYPE -> new IncomingCookieReply(this, address);
+					case TransportPacket.TYPE -> new UndecryptedIncomingTransport(this, packetLength, address);
+					default -> throw new IllegalArgumentException("Invalid message type (%02x)".formatted(type));
+				};
+			} catch (BadPaddingException | IllegalArgumentException | IndexOutOfBoundsException e) {
+				if (((PacketElement) this).spoilt)
+					new Uninitialised(buffer, bufferCleanup).close();
+				else
+					close();
+
+				if (e instanceof IndexOutOfBoundsException)
+					throw new IllegalArgumentException("Packet too short (%d bytes)".formatted(packetLength), e);
+
+				throw e;
+			}
 		}
 
-		public interface Receiver {
-			InetSocketAddress receive(ByteBuffer t) throws IOException;
+		/**
+		 * Splits a buffer holding several coalesced datagrams (as received with {@code UDP_GRO}) into one packet per
+		 * datagram, without copying.  The packets share this packet's buffer, which is released once all of them have
+		 * been closed.  Consumes this packet.
+		 * @param length the total length of the datagrams
+		 * @param segmentSize the length of each datagram, except the last, which may be shorter
+		 * @return the datagrams, each of which must be initialised with its own length
+		 */
+		public UnparsedIncomingPeerPacket[] split(long length, long segmentSize) {
+			if (initialised) {
+				throw new IllegalStateException("Packet already initialised");
+			}
+
+			if (segmentSize <= 0)
+				throw new IllegalArgumentException("Segment size must be positive");
+
+			var bufferCleanup = ((PacketElement) this).cleanup;
+			var buffer = moveBacking();
+			var whole = ReferenceCounted.of(new Uninitialised(buffer, bufferCleanup));
+
+			var segments = new UnparsedIncomingPeerPacket[(int) ((length + segmentSize - 1) / segmentSize)];
+			for (int i = 0; i < segments.length; i++) {
+				long offset = i * segmentSize;
+				var reference = whole.retain();
+				segments[i] = new UnparsedIncomingPeerPacket(new Uninitialised(buffer.asSlice(offset, Math.min(segmentSize, length - offset)), p -> reference.close()));
+			}
+
+			whole.close();
+			return segments;
 		}
 	}
 
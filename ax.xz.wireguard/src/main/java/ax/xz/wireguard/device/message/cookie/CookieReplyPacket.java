@@ -0,0 +1,84 @@
+package ax.xz.wireguard.device.message.cookie;
+
+import ax.xz.wireguard.device.message.PacketElement;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+
+import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305Overhead;
+import static ax.xz.wireguard.noise.crypto.Crypto.POLY1305_NONCE_SIZE;
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.MemoryLayout.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * msg = packet_cookie_reply {
+ * u8 message_type
+ * u8 reserved_zero[3]
+ * u32 receiver_index
+ * u8 nonce[24]
+ * u8 encrypted_cookie[AEAD_LEN(16)]
+ * }
+ */
+public abstract sealed class CookieReplyPacket extends PacketElement permits IncomingCookieReply, OutgoingCookieReply {
+	public static final byte TYPE = 3;
+
+	public static final int COOKIE_LENGTH = 16;
+
+	static final StructLayout HEADER_LAYOUT = structLayout(
+		JAVA_BYTE.withName("message_type"),
+		paddingLayout(3),
+		JAVA_INT.withName("receiver_index"),
+
+		sequenceLayout(POLY1305_NONCE_SIZE, JAVA_BYTE).withName("nonce"),
+		sequenceLayout(COOKIE_LENGTH, JAVA_BYTE).withName("encrypted_cookie"),
+		sequenceLayout(ChaChaPoly1305Overhead, JAVA_BYTE).withName("tag")
+	);
+	static final VarHandle MESSAGE_TYPE = HEADER_LAYOUT.varHandle(groupElement("message_type"));
+	static final VarHandle RECEIVER_INDEX = HEADER_LAYOUT.varHandle(groupElement("receiver_index"));
+
+	static final MethodHandle NONCE = HEADER_LAYOUT.sliceHandle(groupElement("nonce"));
+	static final MethodHandle ENCRYPTED_COOKIE = HEADER_LAYOUT.sliceHandle(groupElement("encrypted_cookie"));
+	static final MethodHandle TAG = HEADER_LAYOUT.sliceHandle(groupElement("tag"));
+
+	protected final MemorySegment header;
+
+	protected CookieReplyPacket(PacketElement data) {
+		super(data);
+		this.header = backing().asSlice(0, HEADER_LAYOUT);
+	}
+
+	/**
+	 * Returns the sender index of the handshake message this replies to
+	 */
+	public int receiverIndex() {
+		return (int) RECEIVER_INDEX.get(header);
+	}
+
+	protected MemorySegment nonce() {
+		try {
+			return (MemorySegment) NONCE.invokeExact(header);
+		} catch (Throwable e) {
+			throw new Error(e);
+		}
+	}
+
+	protected MemorySegment encryptedCookie() {
+		try {
+			return (MemorySegment) ENCRYPTED_COOKIE.invokeExact(header);
+		} catch (Throwable e) {
+			throw new Error(e);
+		}
+	}
+
+	protected MemorySegment tag() {
+		try {
+			return (MemorySegment) TAG.invokeExact(header);
+		} catch (Throwable e) {
+			throw new Error(e);
+		}
+	}
+}
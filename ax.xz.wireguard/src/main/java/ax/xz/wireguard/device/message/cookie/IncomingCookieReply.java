@@ -0,0 +1,42 @@
+package ax.xz.wireguard.device.message.cookie;
+
+import ax.xz.wireguard.device.message.IncomingPeerPacket;
+import ax.xz.wireguard.noise.crypto.XChaCha20Poly1305;
+
+import javax.crypto.BadPaddingException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
+
+public final class IncomingCookieReply extends CookieReplyPacket implements IncomingPeerPacket {
+	private final InetSocketAddress sender;
+
+	public IncomingCookieReply(UnparsedIncomingPeerPacket data, InetSocketAddress sender) {
+		super(data);
+		this.sender = sender;
+
+		if ((byte) MESSAGE_TYPE.get(header) != TYPE)
+			throw new IllegalArgumentException("Invalid message type (expected " + TYPE + " but got " + MESSAGE_TYPE.get(header) + ")");
+	}
+
+	/**
+	 * Decrypts the cookie
+	 *
+	 * @param cookieKey the key for cookies from the peer that sent this reply
+	 * @param mac1      the {@code mac1} of the handshake message this replies to
+	 * @param cookie    where to write the 16 byte cookie
+	 * @throws BadPaddingException if the reply wasn't sent by the peer, or not in reply to that message
+	 */
+	public void decryptCookie(MemorySegment cookieKey, byte[] mac1, byte[] cookie) throws BadPaddingException {
+		XChaCha20Poly1305.decrypt(MemorySegment.ofArray(mac1), cookieKey, nonce(), encryptedCookie(), MemorySegment.ofArray(cookie), tag());
+	}
+
+	@Override
+	public InetSocketAddress originAddress() {
+		return sender;
+	}
+
+	@Override
+	public long length() {
+		return HEADER_LAYOUT.byteSize();
+	}
+}
@@ -0,0 +1,36 @@
+package ax.xz.wireguard.device.message.cookie;
+
+import ax.xz.wireguard.device.message.OutgoingPeerPacket;
+import ax.xz.wireguard.noise.crypto.XChaCha20Poly1305;
+
+import java.lang.foreign.MemorySegment;
+
+public final class OutgoingCookieReply extends CookieReplyPacket implements OutgoingPeerPacket {
+	/**
+	 * @param receiverIndex the sender index of the handshake message being replied to
+	 * @param nonce         24 random bytes
+	 * @param cookie        the 16 byte cookie for the address the message came from
+	 * @param mac1          the {@code mac1} of the message being replied to
+	 * @param cookieKey     the key for cookies from us, derived from our public key
+	 */
+	public OutgoingCookieReply(Uninitialised data, int receiverIndex, byte[] nonce, byte[] cookie, byte[] mac1, MemorySegment cookieKey) {
+		super(data);
+
+		MESSAGE_TYPE.set(header, TYPE);
+		RECEIVER_INDEX.set(header, receiverIndex);
+
+		var nonceSegment = nonce();
+		nonceSegment.copyFrom(MemorySegment.ofArray(nonce));
+		XChaCha20Poly1305.encrypt(MemorySegment.ofArray(mac1), cookieKey, nonceSegment, MemorySegment.ofArray(cookie), encryptedCookie(), tag());
+	}
+
+	@Override
+	public long length() {
+		return HEADER_LAYOUT.byteSize();
+	}
+
+	@Override
+	public MemorySegment transmissiblePacket() {
+		return backing().asSlice(0, length());
+	}
+}
@@ -3,6 +3,7 @@ package ax.xz.wireguard.device.message.initiation;
 import ax.xz.wireguard.device.message.OutgoingPeerPacket;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
 
+import javax.annotation.Nullable;
 import java.lang.foreign.MemorySegment;
 import java.net.InetSocketAddress;
 
@@ -19,7 +20,7 @@ import java.net.InetSocketAddress;
  * }
  */
 public final class OutgoingInitiation extends InitiationPacket implements OutgoingPeerPacket {
-	public OutgoingInitiation(Uninitialised data, int senderIndex, NoisePublicKey ephemeral, byte[] encryptedStatic, byte[] encryptedTimestamp, NoisePublicKey responderKey) {
+	public OutgoingInitiation(Uninitialised data, int senderIndex, NoisePublicKey ephemeral, byte[] encryptedStatic, byte[] encryptedTimestamp, MemorySegment responderMac1Key, @Nullable byte[] cookie) {
 		super(data);
 
 		InitiationPacket.MESSAGE_TYPE.set(header, InitiationPacket.TYPE);
@@ -30,8 +31,13 @@ public final class OutgoingInitiation extends InitiationPacket implements Outgoi
 			((MemorySegment) InitiationPacket.ENCRYPTED_STATIC.invokeExact(header)).copyFrom(MemorySegment.ofArray(encryptedStatic));
 			((MemorySegment) InitiationPacket.ENCRYPTED_TIMESTAMP.invokeExact(header)).copyFrom(MemorySegment.ofArray(encryptedTimestamp));
 
-			((MemorySegment) MAC1.invokeExact(header)).copyFrom(MemorySegment.ofArray(calculateMac1(responderKey)));
-			((MemorySegment) MAC2.invokeExact(header)).fill((byte) 0); // TODO:  implement cookie
+			((MemorySegment) MAC1.invokeExact(header)).copyFrom(MemorySegment.ofArray(calculateMac1(responderMac1Key)));
+			// the mac2 is left as zeros unless the recipient has given us a cookie
+			var mac2 = (MemorySegment) MAC2.invokeExact(header);
+			if (cookie == null)
+				mac2.fill((byte) 0);
+			else
+				mac2.copyFrom(MemorySegment.ofArray(calculateMac2(cookie)));
 		} catch (Throwable e) {
 			throw new Error(e);
 		}
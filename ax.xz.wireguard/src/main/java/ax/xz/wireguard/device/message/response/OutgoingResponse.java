@@ -3,13 +3,14 @@ package ax.xz.wireguard.device.message.response;
 import ax.xz.wireguard.device.message.OutgoingPeerPacket;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
 
+import javax.annotation.Nullable;
 import java.lang.foreign.MemorySegment;
 import java.net.InetSocketAddress;
 
 public final class OutgoingResponse extends ResponsePacket implements OutgoingPeerPacket {
 	private final InetSocketAddress destination;
 
-	public OutgoingResponse(Uninitialised data, InetSocketAddress destination, int senderIndex, int receiverIndex, NoisePublicKey ephemeral, byte[] encryptedNothing, NoisePublicKey initiatorKey) {
+	public OutgoingResponse(Uninitialised data, InetSocketAddress destination, int senderIndex, int receiverIndex, NoisePublicKey ephemeral, byte[] encryptedNothing, MemorySegment initiatorMac1Key, @Nullable byte[] cookie) {
 		super(data);
 		this.destination = destination;
 
@@ -21,8 +22,13 @@ public final class OutgoingResponse extends ResponsePacket implements OutgoingPe
 			((MemorySegment) ResponsePacket.UNENCRYPTED_EPHEMERAL.invokeExact(header)).copyFrom(MemorySegment.ofArray(ephemeral.data()));
 			((MemorySegment) ResponsePacket.ENCRYPTED_NOTHING.invokeExact(header)).copyFrom(MemorySegment.ofArray(encryptedNothing));
 
-			((MemorySegment) ResponsePacket.MAC1.invokeExact(header)).copyFrom(MemorySegment.ofArray(calculateMac1(initiatorKey)));
-			((MemorySegment) ResponsePacket.MAC2.invokeExact(header)).fill((byte) 0); // TODO:  implement cookie
+			((MemorySegment) ResponsePacket.MAC1.invokeExact(header)).copyFrom(MemorySegment.ofArray(calculateMac1(initiatorMac1Key)));
+			// the mac2 is left as zeros unless the recipient has given us a cookie
+			var mac2 = (MemorySegment) ResponsePacket.MAC2.invokeExact(header);
+			if (cookie == null)
+				mac2.fill((byte) 0);
+			else
+				mac2.copyFrom(MemorySegment.ofArray(calculateMac2(cookie)));
 		} catch (Throwable e) {
 			throw new Error(e);
 		}
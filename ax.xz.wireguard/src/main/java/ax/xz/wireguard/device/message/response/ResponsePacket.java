@@ -1,14 +1,13 @@
 package ax.xz.wireguard.device.message.response;
 
 import ax.xz.wireguard.device.message.PacketElement;
-import ax.xz.wireguard.noise.crypto.Blake2s;
+import ax.xz.wireguard.noise.crypto.HandshakeCrypto;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
 
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.StructLayout;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.VarHandle;
-import java.nio.charset.StandardCharsets;
 
 import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305Overhead;
 import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
@@ -54,9 +53,6 @@ public abstract sealed class ResponsePacket extends PacketElement permits Incomi
 	static final MethodHandle MAC1 = HEADER_LAYOUT.sliceHandle(groupElement("mac1"));
 	static final MethodHandle MAC2 = HEADER_LAYOUT.sliceHandle(groupElement("mac2"));
 
-	private static final byte[] WG_LABEL_MAC1 = "mac1----".getBytes(StandardCharsets.UTF_8);
-	private static final byte[] WG_LABEL_COOKIE = "cookie--".getBytes(StandardCharsets.UTF_8);
-
 	protected final MemorySegment header;
 
 	protected ResponsePacket(PacketElement data) {
@@ -104,15 +100,21 @@ public abstract sealed class ResponsePacket extends PacketElement permits Incomi
 		}
 	}
 
-	protected byte[] calculateMac1(NoisePublicKey initiatorKey) {
-		var keyHash = new Blake2s(32);
-
-		keyHash.update(WG_LABEL_MAC1);
-		keyHash.update(initiatorKey.data());
-		byte[] mac1Key = keyHash.digest();
+	/**
+	 * Computes the {@code mac1} of this message under the recipient's key
+	 */
+	protected byte[] calculateMac1(MemorySegment mac1Key) {
+		byte[] mac1 = new byte[16];
+		HandshakeCrypto.get().mac1(mac1, mac1Key, backing().asSlice(0, HEADER_LAYOUT.byteOffset(groupElement("mac1"))));
+		return mac1;
+	}
 
-		var macHash = new Blake2s(128 / 8, mac1Key);
-		macHash.update(backing().asSlice(0, HEADER_LAYOUT.byteOffset(groupElement("mac1"))).asByteBuffer());
-		return macHash.digest();
+	/**
+	 * Computes the {@code mac2} of this message under a cookie from the recipient
+	 */
+	protected byte[] calculateMac2(byte[] cookie) {
+		byte[] mac2 = new byte[16];
+		HandshakeCrypto.get().mac2(mac2, cookie, backing().asSlice(0, HEADER_LAYOUT.byteOffset(groupElement("mac2"))));
+		return mac2;
 	}
 }
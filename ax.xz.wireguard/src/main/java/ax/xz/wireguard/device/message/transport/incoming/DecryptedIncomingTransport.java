@@ -2,7 +2,6 @@ package ax.xz.wireguard.device.message.transport.incoming;
 
 import ax.xz.wireguard.device.message.transport.TransportPacket;
 
-import javax.crypto.BadPaddingException;
 import java.lang.foreign.MemorySegment;
 
 import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305Overhead;
@@ -10,7 +9,7 @@ import static ax.xz.wireguard.noise.crypto.Crypto.ChaChaPoly1305Overhead;
 public final class DecryptedIncomingTransport extends TransportPacket {
 	private final MemorySegment plaintextBuffer;
 
-	DecryptedIncomingTransport(UndecryptedIncomingTransport backing, MemorySegment plaintext) throws BadPaddingException {
+	DecryptedIncomingTransport(UndecryptedIncomingTransport backing, MemorySegment plaintext) {
 		super(backing, backing.getCiphertextLength());
 		this.plaintextBuffer = plaintext;
 	}
@@ -18,4 +17,18 @@ public final class DecryptedIncomingTransport extends TransportPacket {
 	public MemorySegment plaintextBuffer() {
 		return plaintextBuffer.asReadOnly();
 	}
+
+	/**
+	 * Returns the plaintext, preceded by up to 16 bytes (the length of the transport header) of writable space.  The transport header isn't needed once the packet has been decrypted, so this lets a prefix be written
+	 * before the plaintext without copying it.
+	 *
+	 * @param headroom the length of the space before the plaintext
+	 * @return a buffer of {@code headroom} bytes followed by the plaintext
+	 */
+	public MemorySegment plaintextWithHeadroom(long headroom) {
+		if (headroom < 0 || headroom > HEADER_LAYOUT.byteSize())
+			throw new IllegalArgumentException("Headroom must be between 0 and " + HEADER_LAYOUT.byteSize());
+
+		return backing().asSlice(HEADER_LAYOUT.byteSize() - headroom, headroom + plaintextBuffer.byteSize());
+	}
 }
@@ -18,7 +18,7 @@ public final class UndecryptedIncomingTransport extends TransportPacket implemen
 	private final InetSocketAddress sender;
 
 	public UndecryptedIncomingTransport(UnparsedIncomingPeerPacket backing, long packetLength, InetSocketAddress sender) {
-		super(backing, packetLength - HEADER_LAYOUT.byteSize());
+		super(backing, ciphertextLengthOf(packetLength));
 		this.sender = sender;
 
 		if (header.get(JAVA_BYTE, 0) != TYPE) {
@@ -26,12 +26,52 @@ public final class UndecryptedIncomingTransport extends TransportPacket implemen
 		}
 	}
 
+	private static long ciphertextLengthOf(long packetLength) {
+		if (packetLength < HEADER_LAYOUT.byteSize() + ChaChaPoly1305Overhead)
+			throw new IllegalArgumentException("Transport packet too short (" + packetLength + " bytes)");
+
+		return packetLength - HEADER_LAYOUT.byteSize();
+	}
+
+	/**
+	 * Decrypts the packet in place, overwriting the ciphertext with the plaintext.  This means a received packet only
+	 * needs a buffer as long as the packet itself.
+	 */
 	public DecryptedIncomingTransport decrypt(DecryptionFunction decryptionFunction) throws BadPaddingException {
-		var plaintextBuffer = backing().asSlice(HEADER_LAYOUT.byteSize() + ciphertextLength, ciphertextLength - ChaChaPoly1305Overhead);
+		var plaintextBuffer = plaintextBuffer();
 		decryptionFunction.decrypt(super.getCounter(), ciphertextBuffer, plaintextBuffer);
 		return new DecryptedIncomingTransport(this, plaintextBuffer);
 	}
 
+	/**
+	 * Returns the counter the packet was encrypted with, for when it's decrypted along with other packets rather than
+	 * through {@link #decrypt(DecryptionFunction)}
+	 */
+	public long counter() {
+		return super.getCounter();
+	}
+
+	/**
+	 * Returns the ciphertext, followed by its tag
+	 */
+	public MemorySegment ciphertextBuffer() {
+		return ciphertextBuffer;
+	}
+
+	/**
+	 * Returns where the plaintext goes, which overlaps the ciphertext
+	 */
+	public MemorySegment plaintextBuffer() {
+		return ciphertextBuffer.asSlice(0, ciphertextLength - ChaChaPoly1305Overhead);
+	}
+
+	/**
+	 * Marks the packet as decrypted, once {@link #plaintextBuffer()} has been filled
+	 */
+	public DecryptedIncomingTransport decrypted() {
+		return new DecryptedIncomingTransport(this, plaintextBuffer());
+	}
+
 	@Override
 	public InetSocketAddress originAddress() {
 		return sender;
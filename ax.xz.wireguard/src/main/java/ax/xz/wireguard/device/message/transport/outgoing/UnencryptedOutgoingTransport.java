@@ -23,6 +23,22 @@ public final class UnencryptedOutgoingTransport extends TransportPacket {
 	 */
 	public EncryptedOutgoingTransport fillCiphertext(Function<MemorySegment, Long> ciphertextFiller) {
 		long counter = ciphertextFiller.apply(super.ciphertextBuffer);
+		return encrypted(counter);
+	}
+
+	/**
+	 * Returns the buffer the ciphertext and its tag go in, for when the ciphertext is filled in along with other
+	 * packets' rather than through {@link #fillCiphertext(Function)}
+	 */
+	public MemorySegment ciphertextBuffer() {
+		return ciphertextBuffer;
+	}
+
+	/**
+	 * Marks the packet as encrypted, once {@link #ciphertextBuffer()} has been filled
+	 * @param counter the counter the ciphertext was encrypted with
+	 */
+	public EncryptedOutgoingTransport encrypted(long counter) {
 		return new EncryptedOutgoingTransport(this, counter);
 	}
 
@@ -1,7 +1,9 @@
 package ax.xz.wireguard.device.message.tunnel;
 
 import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.offload.VirtioNetHeader;
 
+import javax.annotation.Nullable;
 import java.lang.foreign.MemorySegment;
 
 /**
@@ -10,11 +12,21 @@ import java.lang.foreign.MemorySegment;
  * so it may be sent to multiple peers before being returned to the pool.
  */
 public final class IncomingTunnelPacket extends PacketElement {
+	private final long packetOffset;
 	private final long packetLength;
 
+	@Nullable
+	private final VirtioNetHeader segmentation;
+
 	public IncomingTunnelPacket(UninitialisedIncomingTunnelPacket data, long packetLength) {
+		this(data, 0, packetLength, null);
+	}
+
+	IncomingTunnelPacket(UninitialisedIncomingTunnelPacket data, long packetOffset, long packetLength, @Nullable VirtioNetHeader segmentation) {
 		super(data);
+		this.packetOffset = packetOffset;
 		this.packetLength = packetLength;
+		this.segmentation = segmentation;
 	}
 
 	public long length() {
@@ -22,6 +34,15 @@ public final class IncomingTunnelPacket extends PacketElement {
 	}
 
 	public MemorySegment packet() {
-		return backing().asSlice(0, packetLength);
+		return backing().asSlice(packetOffset, packetLength);
+	}
+
+	/**
+	 * Returns the header describing how to segment this packet if it was read from a tun with segmentation offload and
+	 * is too large to be sent as-is, or null otherwise.
+	 */
+	@Nullable
+	public VirtioNetHeader segmentation() {
+		return segmentation;
 	}
 }
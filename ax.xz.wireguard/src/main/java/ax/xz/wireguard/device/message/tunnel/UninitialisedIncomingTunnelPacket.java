@@ -1,6 +1,7 @@
 package ax.xz.wireguard.device.message.tunnel;
 
 import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.offload.VirtioNetHeader;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -34,6 +35,45 @@ public final class UninitialisedIncomingTunnelPacket extends PacketElement {
 		return new IncomingTunnelPacket(this, packetLength);
 	}
 
+	/**
+	 * Initialises the data in this packet with the given function, like {@link #initialise(Receiver)}, but for a tun
+	 * with offloads, which prefixes the packet with a {@code virtio_net_hdr}.  If the packet's checksum is incomplete,
+	 * it's completed here, so that a packet which isn't segmented can be sent to any number of peers without being
+	 * modified again.
+	 *
+	 * @param initialiser the consumer that initialises the packet and returns the length of the packet
+	 * @return the parsed packet
+	 * @throws IllegalArgumentException if the packet or its header is malformed, in which case the packet is released
+	 */
+	public IncomingTunnelPacket initialiseWithVirtioHeader(Receiver initialiser) throws IOException {
+		if (initialised) {
+			throw new IllegalStateException("Packet already initialised");
+		}
+		var bb = backing().asByteBuffer();
+		initialiser.receive(bb);
+		long length = bb.flip().remaining();
+		initialised = true;
+
+		try {
+			if (length < VirtioNetHeader.SIZE)
+				throw new IllegalArgumentException("Packet too short (%d bytes)".formatted(length));
+
+			var header = VirtioNetHeader.read(backing());
+			long packetLength = length - VirtioNetHeader.SIZE;
+
+			if (header.needsSegmentation())
+				return new IncomingTunnelPacket(this, VirtioNetHeader.SIZE, packetLength, header);
+
+			if (header.needsChecksum())
+				header.completeChecksum(backing().asSlice(VirtioNetHeader.SIZE, packetLength));
+
+			return new IncomingTunnelPacket(this, VirtioNetHeader.SIZE, packetLength, null);
+		} catch (IllegalArgumentException e) {
+			close();
+			throw e;
+		}
+	}
+
 	public interface Receiver {
 		void receive(ByteBuffer t) throws IOException;
 	}
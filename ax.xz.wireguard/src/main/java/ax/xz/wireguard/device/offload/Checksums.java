@@ -0,0 +1,93 @@
+package ax.xz.wireguard.device.offload;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Internet checksums (RFC 1071), and the IP and TCP header fields they cover.
+ */
+final class Checksums {
+	static final ValueLayout.OfShort NETWORK_SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	static final ValueLayout.OfInt NETWORK_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	static final int PROTOCOL_TCP = 6;
+
+	static final int IPV4_TOTAL_LENGTH = 2, IPV4_ID = 4, IPV4_FLAGS = 6, IPV4_PROTOCOL = 9, IPV4_CHECKSUM = 10, IPV4_SOURCE = 12;
+	static final int IPV6_PAYLOAD_LENGTH = 4, IPV6_NEXT_HEADER = 6, IPV6_SOURCE = 8, IPV6_HEADER_LENGTH = 40;
+
+	static final int TCP_SEQUENCE = 4, TCP_ACK = 8, TCP_DATA_OFFSET = 12, TCP_FLAGS = 13, TCP_CHECKSUM = 16;
+	static final int TCP_FIN = 0x01, TCP_PSH = 0x08, TCP_ACK_FLAG = 0x10, TCP_CWR = 0x80;
+
+	private Checksums() {
+	}
+
+	/**
+	 * Adds the given bytes, as a sequence of big-endian 16-bit words, to a running one's complement sum.  The bytes
+	 * must start at an even offset of the data being checksummed.
+	 *
+	 * @param data    the bytes to add
+	 * @param initial the sum so far
+	 * @return the new sum, which must be {@linkplain #fold folded} before use
+	 */
+	static long sum(MemorySegment data, long initial) {
+		long sum = initial;
+		long length = data.byteSize();
+
+		long i = 0;
+		for (; i + 4 <= length; i += 4)
+			sum += Integer.toUnsignedLong(data.get(NETWORK_INT, i));
+
+		if (i + 2 <= length) {
+			sum += Short.toUnsignedInt(data.get(NETWORK_SHORT, i));
+			i += 2;
+		}
+
+		if (i < length)
+			sum += Byte.toUnsignedInt(data.get(JAVA_BYTE, i)) << 8;
+
+		return sum;
+	}
+
+	/**
+	 * Folds a running sum into 16 bits, without complementing it
+	 */
+	static int fold(long sum) {
+		while ((sum >>> 16) != 0)
+			sum = (sum & 0xffff) + (sum >>> 16);
+
+		return (int) sum;
+	}
+
+	/**
+	 * Returns the sum of the pseudo-header that the transport checksum of the given IP packet covers
+	 *
+	 * @param packet          the IP packet
+	 * @param transportLength the length of the transport header and payload
+	 */
+	static long pseudoHeaderSum(MemorySegment packet, long transportLength) {
+		if (isIPv4(packet))
+			return sum(packet.asSlice(IPV4_SOURCE, 8), PROTOCOL_TCP + transportLength);
+		else
+			return sum(packet.asSlice(IPV6_SOURCE, 32), PROTOCOL_TCP + transportLength);
+	}
+
+	/**
+	 * Recomputes the header checksum of the given IPv4 packet
+	 */
+	static void updateIPv4Checksum(MemorySegment packet) {
+		int headerLength = (packet.get(JAVA_BYTE, 0) & 0xf) * 4;
+		packet.set(NETWORK_SHORT, IPV4_CHECKSUM, (short) 0);
+		packet.set(NETWORK_SHORT, IPV4_CHECKSUM, (short) ~fold(sum(packet.asSlice(0, headerLength), 0)));
+	}
+
+	static boolean isIPv4(MemorySegment packet) {
+		return (packet.get(JAVA_BYTE, 0) & 0xf0) == 0x40;
+	}
+
+	static boolean isIPv6(MemorySegment packet) {
+		return (packet.get(JAVA_BYTE, 0) & 0xf0) == 0x60;
+	}
+}
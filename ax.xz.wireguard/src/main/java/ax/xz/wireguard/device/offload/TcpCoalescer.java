@@ -0,0 +1,221 @@
+package ax.xz.wireguard.device.offload;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import static ax.xz.wireguard.device.offload.Checksums.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Coalesces consecutive TCP segments of the same flow into one large packet, which the kernel segments again when it's
+ * written to a tun with segmentation offload.  This means a burst of segments costs one write, and one trip through
+ * the kernel's network stack, instead of one per segment.
+ *
+ * <p>
+ * Segments are only coalesced under the same conditions as the kernel's own receive offload:  they must follow each
+ * other in sequence, all but the last must have the same payload length, and their headers may only differ in the
+ * fields that depend on the payload.  Anything else is written as-is.
+ * </p>
+ *
+ * <p>
+ * A coalescer isn't thread-safe, and should be owned by the thread that writes to the tun.
+ * </p>
+ */
+public final class TcpCoalescer {
+	// the longest packet that an IP length field can describe
+	private static final int MAX_LENGTH = 0xffff;
+
+	private final MemorySegment buffer = Arena.ofAuto().allocate(VirtioNetHeader.SIZE + MAX_LENGTH);
+	private final MemorySegment packetBuffer = buffer.asSlice(VirtioNetHeader.SIZE);
+
+	// the number of segments in the current run, and their total length including the first segment's headers
+	private int count;
+	private long length;
+
+	private boolean ipv4;
+	private int transportStart;
+	private int headerLength;
+	private long segmentSize;
+	private int nextSequenceNumber;
+
+	// true once the run has a segment shorter than the others, or one that pushes, after which nothing can follow it
+	private boolean finished;
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Adds a packet to the current run, or starts a new run with it if there is none.  If this returns false, the
+	 * caller should {@link #flush()} the current run and try again, and if it returns false on an empty coalescer, the
+	 * packet can't be coalesced and should be written on its own.
+	 *
+	 * @param packet the IP packet to add, which is copied
+	 * @return true if the packet was added
+	 */
+	public boolean add(MemorySegment packet) {
+		try {
+			int packetHeaderLength = coalescableHeaderLengthOf(packet);
+			if (packetHeaderLength < 0)
+				return false;
+
+			if (count == 0)
+				start(packet, packetHeaderLength);
+			else if (!append(packet, packetHeaderLength))
+				return false;
+
+			if ((packet.get(JAVA_BYTE, transportStart + TCP_FLAGS) & TCP_PSH) != 0) {
+				packetBuffer.set(JAVA_BYTE, transportStart + TCP_FLAGS, (byte) (TCP_ACK_FLAG | TCP_PSH));
+				finished = true;
+			}
+
+			return true;
+		} catch (IndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private void start(MemorySegment packet, int packetHeaderLength) {
+		ipv4 = isIPv4(packet);
+		transportStart = ipv4 ? 20 : IPV6_HEADER_LENGTH;
+		headerLength = packetHeaderLength;
+		segmentSize = packet.byteSize() - headerLength;
+		nextSequenceNumber = packet.get(NETWORK_INT, transportStart + TCP_SEQUENCE) + (int) segmentSize;
+		finished = false;
+
+		MemorySegment.copy(packet, 0, packetBuffer, 0, packet.byteSize());
+		length = packet.byteSize();
+		count = 1;
+	}
+
+	private boolean append(MemorySegment packet, int packetHeaderLength) {
+		long payloadLength = packet.byteSize() - packetHeaderLength;
+
+		if (finished || isIPv4(packet) != ipv4 || packetHeaderLength != headerLength)
+			return false;
+
+		if (payloadLength > segmentSize || length + payloadLength > MAX_LENGTH)
+			return false;
+
+		if (packet.get(NETWORK_INT, transportStart + TCP_SEQUENCE) != nextSequenceNumber || !headersMatch(packet))
+			return false;
+
+		MemorySegment.copy(packet, headerLength, packetBuffer, length, payloadLength);
+		length += payloadLength;
+		count++;
+		nextSequenceNumber += (int) payloadLength;
+
+		if (payloadLength < segmentSize)
+			finished = true;
+
+		return true;
+	}
+
+	/**
+	 * Returns true if the packet belongs to the same flow as the current run, and its headers only differ from the
+	 * run's in fields that the kernel recomputes when it segments the run
+	 */
+	private boolean headersMatch(MemorySegment packet) {
+		if (ipv4) {
+			// version, header length and TOS;  fragmentation flags, TTL and protocol;  addresses
+			if (regionsDiffer(packet, 0, 2) || regionsDiffer(packet, IPV4_FLAGS, IPV4_CHECKSUM) || regionsDiffer(packet, IPV4_SOURCE, 20))
+				return false;
+		} else {
+			// version, traffic class and flow label;  next header and hop limit, and addresses
+			if (regionsDiffer(packet, 0, IPV6_PAYLOAD_LENGTH) || regionsDiffer(packet, IPV6_NEXT_HEADER, IPV6_HEADER_LENGTH))
+				return false;
+		}
+
+		// ports, acknowledgement number and options must match.  the window may differ, in which case the first is kept
+		return !regionsDiffer(packet, transportStart, transportStart + TCP_SEQUENCE)
+			   && !regionsDiffer(packet, transportStart + TCP_ACK, transportStart + TCP_FLAGS)
+			   && !regionsDiffer(packet, transportStart + 20, headerLength);
+	}
+
+	private boolean regionsDiffer(MemorySegment packet, long from, long to) {
+		return MemorySegment.mismatch(packetBuffer, from, to, packet, from, to) != -1;
+	}
+
+	/**
+	 * Returns the length of the packet's IP and TCP headers if it's a TCP segment that can be coalesced, or -1 if it
+	 * isn't.  Only segments with a payload and no flags other than ACK and PSH can be coalesced, and only if they
+	 * aren't fragmented and have no IP options or IPv6 extension headers.
+	 */
+	private static int coalescableHeaderLengthOf(MemorySegment packet) {
+		int transportStart;
+
+		if (isIPv4(packet)) {
+			if ((packet.get(JAVA_BYTE, 0) & 0xf) != 5 || packet.get(JAVA_BYTE, IPV4_PROTOCOL) != PROTOCOL_TCP)
+				return -1;
+
+			// no more fragments flag and fragment offset
+			if ((packet.get(NETWORK_SHORT, IPV4_FLAGS) & 0x3fff) != 0)
+				return -1;
+
+			if (Short.toUnsignedInt(packet.get(NETWORK_SHORT, IPV4_TOTAL_LENGTH)) != packet.byteSize())
+				return -1;
+
+			transportStart = 20;
+		} else if (isIPv6(packet)) {
+			if (packet.get(JAVA_BYTE, IPV6_NEXT_HEADER) != PROTOCOL_TCP)
+				return -1;
+
+			if (Short.toUnsignedInt(packet.get(NETWORK_SHORT, IPV6_PAYLOAD_LENGTH)) + IPV6_HEADER_LENGTH != packet.byteSize())
+				return -1;
+
+			transportStart = IPV6_HEADER_LENGTH;
+		} else {
+			return -1;
+		}
+
+		int headerLength = transportStart + ((packet.get(JAVA_BYTE, transportStart + TCP_DATA_OFFSET) >>> 4) & 0xf) * 4;
+		if (headerLength - transportStart < 20 || headerLength >= packet.byteSize())
+			return -1;
+
+		if ((packet.get(JAVA_BYTE, transportStart + TCP_FLAGS) & ~TCP_PSH) != TCP_ACK_FLAG)
+			return -1;
+
+		return headerLength;
+	}
+
+	/**
+	 * Finishes the current run and returns it, prefixed with the {@code virtio_net_hdr} that tells the kernel how to
+	 * segment it.  The returned buffer is only valid until the next packet is added.
+	 *
+	 * @return the run, ready to be written to the tun
+	 * @throws IllegalStateException if there is no current run
+	 */
+	public MemorySegment flush() {
+		if (count == 0)
+			throw new IllegalStateException("Nothing to flush");
+
+		if (count == 1) {
+			// a lone segment is written exactly as it was received
+			VirtioNetHeader.NONE.write(buffer);
+		} else {
+			var packet = packetBuffer.asSlice(0, length);
+
+			if (ipv4) {
+				packet.set(NETWORK_SHORT, IPV4_TOTAL_LENGTH, (short) length);
+				updateIPv4Checksum(packet);
+			} else {
+				packet.set(NETWORK_SHORT, IPV6_PAYLOAD_LENGTH, (short) (length - IPV6_HEADER_LENGTH));
+			}
+
+			// the kernel completes the checksum of each segment, and expects the checksum field to hold the sum of the
+			// pseudo-header
+			packet.set(NETWORK_SHORT, transportStart + TCP_CHECKSUM, (short) fold(pseudoHeaderSum(packet, length - transportStart)));
+
+			new VirtioNetHeader(
+				VirtioNetHeader.NEEDS_CSUM, ipv4 ? VirtioNetHeader.GSO_TCPV4 : VirtioNetHeader.GSO_TCPV6,
+				headerLength, (int) segmentSize, transportStart, TCP_CHECKSUM
+			).write(buffer);
+		}
+
+		long packetLength = length;
+		count = 0;
+		length = 0;
+
+		return buffer.asSlice(0, VirtioNetHeader.SIZE + packetLength);
+	}
+}
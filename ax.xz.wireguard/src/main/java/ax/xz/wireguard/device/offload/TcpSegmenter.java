@@ -0,0 +1,123 @@
+package ax.xz.wireguard.device.offload;
+
+import java.lang.foreign.MemorySegment;
+
+import static ax.xz.wireguard.device.offload.Checksums.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Splits a TCP packet read from a tun with segmentation offload into the MTU-sized packets that the kernel would
+ * otherwise have sent, in the same way as the kernel's own software segmentation.  Each segment gets a copy of the
+ * packet's headers, with its own lengths, sequence number and checksums.
+ *
+ * <p>
+ * Segments are written straight into the caller's buffer, so a segment can be written into the buffer that it's
+ * going to be encrypted in.
+ * </p>
+ */
+public final class TcpSegmenter {
+	private final MemorySegment packet;
+	private final boolean ipv4;
+
+	private final int transportStart;
+	private final int headerLength;
+	private final int segmentSize;
+	private final int segmentCount;
+
+	private final int flags;
+	private final int sequenceNumber;
+	private final short ipv4Id;
+
+	/**
+	 * @param packet the IP packet, without its {@code virtio_net_hdr}
+	 * @param header the packet's {@code virtio_net_hdr}, which must ask for TCP segmentation
+	 * @throws IllegalArgumentException if the packet or its header is malformed
+	 */
+	public TcpSegmenter(MemorySegment packet, VirtioNetHeader header) {
+		this.packet = packet;
+
+		try {
+			this.ipv4 = switch (header.gsoType() & ~VirtioNetHeader.GSO_ECN) {
+				case VirtioNetHeader.GSO_TCPV4 -> true;
+				case VirtioNetHeader.GSO_TCPV6 -> false;
+				default -> throw new IllegalArgumentException("Unsupported GSO type (%d)".formatted(header.gsoType()));
+			};
+
+			if (ipv4 ? !isIPv4(packet) : !isIPv6(packet))
+				throw new IllegalArgumentException("GSO type doesn't match the IP version");
+
+			if (header.checksumOffset() != TCP_CHECKSUM || header.checksumStart() < (ipv4 ? 20 : IPV6_HEADER_LENGTH))
+				throw new IllegalArgumentException("Invalid checksum location");
+
+			this.transportStart = header.checksumStart();
+			this.headerLength = transportStart + ((packet.get(JAVA_BYTE, transportStart + TCP_DATA_OFFSET) >>> 4) & 0xf) * 4;
+			this.segmentSize = header.gsoSize();
+
+			if (headerLength - transportStart < 20 || headerLength > packet.byteSize())
+				throw new IllegalArgumentException("Invalid TCP header length");
+
+			if (segmentSize <= 0)
+				throw new IllegalArgumentException("Invalid segment size");
+
+			long payloadLength = packet.byteSize() - headerLength;
+			this.segmentCount = (int) Math.max(1, (payloadLength + segmentSize - 1) / segmentSize);
+
+			this.flags = Byte.toUnsignedInt(packet.get(JAVA_BYTE, transportStart + TCP_FLAGS));
+			this.sequenceNumber = packet.get(NETWORK_INT, transportStart + TCP_SEQUENCE);
+			this.ipv4Id = ipv4 ? packet.get(NETWORK_SHORT, IPV4_ID) : 0;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Packet too short (%d bytes)".formatted(packet.byteSize()), e);
+		}
+	}
+
+	public int segmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * Returns the length of the given segment, including its headers
+	 */
+	public long segmentLength(int index) {
+		return headerLength + payloadLengthOf(index);
+	}
+
+	private long payloadLengthOf(int index) {
+		long offset = headerLength + (long) index * segmentSize;
+		return Math.min(segmentSize, packet.byteSize() - offset);
+	}
+
+	/**
+	 * Writes the given segment to the start of the destination buffer
+	 *
+	 * @param index       the index of the segment, between 0 and {@link #segmentCount()}
+	 * @param destination the buffer to write it to, which must be at least {@link #segmentLength(int)} bytes long
+	 */
+	public void writeSegment(int index, MemorySegment destination) {
+		long payloadLength = payloadLengthOf(index);
+		long length = headerLength + payloadLength;
+
+		MemorySegment.copy(packet, 0, destination, 0, headerLength);
+		MemorySegment.copy(packet, headerLength + (long) index * segmentSize, destination, headerLength, payloadLength);
+
+		if (ipv4) {
+			destination.set(NETWORK_SHORT, IPV4_TOTAL_LENGTH, (short) length);
+			destination.set(NETWORK_SHORT, IPV4_ID, (short) (ipv4Id + index));
+			updateIPv4Checksum(destination);
+		} else {
+			destination.set(NETWORK_SHORT, IPV6_PAYLOAD_LENGTH, (short) (length - IPV6_HEADER_LENGTH));
+		}
+
+		// only the last segment finishes the push, and only the first one carries the congestion window reduction
+		int segmentFlags = flags;
+		if (index != segmentCount - 1)
+			segmentFlags &= ~(TCP_FIN | TCP_PSH);
+		if (index != 0)
+			segmentFlags &= ~TCP_CWR;
+
+		var tcp = destination.asSlice(transportStart, length - transportStart);
+		tcp.set(NETWORK_INT, TCP_SEQUENCE, sequenceNumber + index * segmentSize);
+		tcp.set(JAVA_BYTE, TCP_FLAGS, (byte) segmentFlags);
+		tcp.set(NETWORK_SHORT, TCP_CHECKSUM, (short) 0);
+		tcp.set(NETWORK_SHORT, TCP_CHECKSUM, (short) ~fold(sum(tcp, pseudoHeaderSum(destination, tcp.byteSize()))));
+	}
+}
@@ -0,0 +1,119 @@
+package ax.xz.wireguard.device.offload;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.MemoryLayout.structLayout;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT_UNALIGNED;
+
+/**
+ * struct virtio_net_hdr {
+ * u8 flags
+ * u8 gso_type
+ * le16 hdr_len
+ * le16 gso_size
+ * le16 csum_start
+ * le16 csum_offset
+ * }
+ *
+ * <p>
+ * The header that prefixes every packet read from or written to a tun opened with offloads.
+ * </p>
+ *
+ * @param flags      {@link #NEEDS_CSUM} if the packet's transport checksum only covers the pseudo-header
+ * @param gsoType    the kind of segmentation the packet needs, such as {@link #GSO_TCPV4}
+ * @param headerLength the length of the IP and transport headers, which every segment starts with
+ * @param gsoSize    the length of each segment's payload, except the last, which may be shorter
+ * @param checksumStart  the offset from which the transport checksum is computed
+ * @param checksumOffset the offset of the transport checksum from {@code checksumStart}
+ */
+public record VirtioNetHeader(int flags, int gsoType, int headerLength, int gsoSize, int checksumStart, int checksumOffset) {
+	public static final int NEEDS_CSUM = 1;
+
+	public static final int GSO_NONE = 0;
+	public static final int GSO_TCPV4 = 1;
+	public static final int GSO_TCPV6 = 4;
+	public static final int GSO_ECN = 0x80;
+
+	private static final StructLayout LAYOUT = structLayout(
+		JAVA_BYTE.withName("flags"),
+		JAVA_BYTE.withName("gso_type"),
+		JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN).withName("hdr_len"),
+		JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN).withName("gso_size"),
+		JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN).withName("csum_start"),
+		JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN).withName("csum_offset")
+	).withByteAlignment(1);
+
+	private static final VarHandle FLAGS = LAYOUT.varHandle(groupElement("flags"));
+	private static final VarHandle GSO_TYPE = LAYOUT.varHandle(groupElement("gso_type"));
+	private static final VarHandle HDR_LEN = LAYOUT.varHandle(groupElement("hdr_len"));
+	private static final VarHandle GSO_SIZE = LAYOUT.varHandle(groupElement("gso_size"));
+	private static final VarHandle CSUM_START = LAYOUT.varHandle(groupElement("csum_start"));
+	private static final VarHandle CSUM_OFFSET = LAYOUT.varHandle(groupElement("csum_offset"));
+
+	public static final int SIZE = (int) LAYOUT.byteSize();
+
+	/**
+	 * The header of a packet that needs neither segmentation nor a checksum
+	 */
+	public static final VirtioNetHeader NONE = new VirtioNetHeader(0, GSO_NONE, 0, 0, 0, 0);
+
+	/**
+	 * Reads the header at the start of the given buffer.
+	 */
+	public static VirtioNetHeader read(MemorySegment buffer) {
+		return new VirtioNetHeader(
+			Byte.toUnsignedInt((byte) FLAGS.get(buffer)),
+			Byte.toUnsignedInt((byte) GSO_TYPE.get(buffer)),
+			Short.toUnsignedInt((short) HDR_LEN.get(buffer)),
+			Short.toUnsignedInt((short) GSO_SIZE.get(buffer)),
+			Short.toUnsignedInt((short) CSUM_START.get(buffer)),
+			Short.toUnsignedInt((short) CSUM_OFFSET.get(buffer))
+		);
+	}
+
+	/**
+	 * Writes this header to the start of the given buffer.
+	 */
+	public void write(MemorySegment buffer) {
+		FLAGS.set(buffer, (byte) flags);
+		GSO_TYPE.set(buffer, (byte) gsoType);
+		HDR_LEN.set(buffer, (short) headerLength);
+		GSO_SIZE.set(buffer, (short) gsoSize);
+		CSUM_START.set(buffer, (short) checksumStart);
+		CSUM_OFFSET.set(buffer, (short) checksumOffset);
+	}
+
+	/**
+	 * Returns true if the packet has to be split into several before it can be sent
+	 */
+	public boolean needsSegmentation() {
+		return (gsoType & ~GSO_ECN) != GSO_NONE;
+	}
+
+	/**
+	 * Returns true if the packet's transport checksum has to be completed before it can be sent
+	 */
+	public boolean needsChecksum() {
+		return (flags & NEEDS_CSUM) != 0;
+	}
+
+	/**
+	 * Completes the transport checksum of a packet that {@linkplain #needsChecksum() needs one}.  The kernel leaves
+	 * the sum of the pseudo-header in the checksum field, so this adds the rest of the packet to it.
+	 *
+	 * @param packet the IP packet, without its {@code virtio_net_hdr}
+	 * @throws IllegalArgumentException if the checksum lies outside of the packet
+	 */
+	public void completeChecksum(MemorySegment packet) {
+		if (checksumStart + checksumOffset + 2 > packet.byteSize())
+			throw new IllegalArgumentException("Checksum lies outside of the packet");
+
+		var covered = packet.asSlice(checksumStart);
+		covered.set(Checksums.NETWORK_SHORT, checksumOffset, (short) ~Checksums.fold(Checksums.sum(covered, 0)));
+	}
+}
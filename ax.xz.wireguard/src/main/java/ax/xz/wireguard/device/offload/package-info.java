@@ -0,0 +1,11 @@
+/**
+ * This package implements the packet processing that a tun opened with offloads leaves to userspace:  segmenting
+ * the large TCP packets the kernel reads out of the tun, completing partial checksums, and coalescing the TCP
+ * packets written back to it.
+ *
+ * @see ax.xz.raw.spi.Tun#hasVirtioNetHeaders()
+ */
+@ParametersAreNonnullByDefault
+package ax.xz.wireguard.device.offload;
+
+import javax.annotation.ParametersAreNonnullByDefault;
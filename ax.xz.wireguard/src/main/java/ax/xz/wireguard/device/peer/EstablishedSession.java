@@ -1,96 +1,235 @@
 package ax.xz.wireguard.device.peer;
 
 import ax.xz.wireguard.device.message.transport.outgoing.EncryptedOutgoingTransport;
+import ax.xz.wireguard.device.socket.PeerSocket;
 import ax.xz.wireguard.noise.handshake.SymmetricKeypair;
+import ax.xz.wireguard.util.EventLoop;
 
-import javax.crypto.BadPaddingException;
 import java.io.IOException;
 import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.InetSocketAddress;
-import java.nio.channels.DatagramChannel;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.lang.System.Logger.Level.ERROR;
 
-final class EstablishedSession implements AutoCloseable {
+final class EstablishedSession implements SessionIndex, AutoCloseable {
+	// the most packets a flush will hand to the socket in one call
+	private static final int SEND_BATCH_SIZE = 64;
+
 	private static final System.Logger log = System.getLogger(EstablishedSession.class.getName());
 
+	private static final VarHandle FLUSH_SCHEDULED, CONFIRMED, REFERENCES;
+
+	static {
+		try {
+			FLUSH_SCHEDULED = MethodHandles.lookup().findVarHandle(EstablishedSession.class, "flushScheduled", boolean.class);
+			CONFIRMED = MethodHandles.lookup().findVarHandle(EstablishedSession.class, "confirmed", boolean.class);
+			REFERENCES = MethodHandles.lookup().findVarHandle(EstablishedSession.class, "references", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Peer peer;
 	private final SymmetricKeypair keypair;
 	private final InetSocketAddress outboundPacketAddress;
+
+	// the index the peer addresses this session's packets to, and the one we address them to
+	private final int localIndex;
 	private final int remoteIndex;
 
 	private final Duration keepaliveInterval;
 
-	// TODO: make this configurable
-	private final Instant expiration = Instant.now().plusSeconds(120);
+	// the counters received under this session's keys
+	private final ReplayWindow replayWindow = new ReplayWindow();
 
 	/**
 	 * A queue for peer-bound, encrypted, transport packets.
 	 * These packets are here because they don't make sense to send if the session dies, since that presumably
 	 * destroys the remote's keypair.
 	 */
-	private final BlockingQueue<EncryptedOutgoingTransport> outboundSessionQueue = new LinkedBlockingQueue<>();
-
+	private final Queue<EncryptedOutgoingTransport> outboundSessionQueue = new ConcurrentLinkedQueue<>();
 
 	/**
-	 * The worker thread that sends the packets in {@link #outboundSessionQueue}.
+	 * The loop that sends the packets in {@link #outboundSessionQueue}, shared with the rest of the peer
 	 */
-	private final Thread outboundSessionWorker;
+	private final EventLoop loop;
+
+	// true while a flush is waiting to run on the loop, so that a burst of packets only schedules one
+	@SuppressWarnings("unused")
+	private volatile boolean flushScheduled = false;
+	private volatile boolean closed = false;
+
+	// set by the first packet received under the session, so that only one confirmation is handed to the loop
+	private volatile boolean confirmed = false;
+
+	// one held by the session manager until it closes the session, and one for each batch of packets being encrypted
+	// or decrypted under it.  the keys are wiped once the last is released
+	@SuppressWarnings("unused")
+	private volatile int references = 1;
+
+	// only touched by flushes, on the loop
+	private final EncryptedOutgoingTransport[] batch = new EncryptedOutgoingTransport[SEND_BATCH_SIZE];
+	private final MemorySegment[] buffers = new MemorySegment[SEND_BATCH_SIZE];
 
 	/**
-	 * The channel through which we send transport packets to the peer
+	 * The device's socket, through which we send transport packets to the peer
 	 */
-	private final DatagramChannel channel;
+	private final PeerSocket socket;
 
-	public EstablishedSession(SymmetricKeypair keypair, InetSocketAddress outboundPacketAddress, int remoteIndex, Duration keepaliveInterval) throws IOException {
+	public EstablishedSession(Peer peer, EventLoop loop, PeerSocket socket, SymmetricKeypair keypair, InetSocketAddress outboundPacketAddress, int localIndex, int remoteIndex, Duration keepaliveInterval) {
+		this.peer = peer;
+		this.loop = loop;
 		this.keypair = keypair;
 		this.outboundPacketAddress = outboundPacketAddress;
 
+		this.localIndex = localIndex;
 		this.remoteIndex = remoteIndex;
 		this.keepaliveInterval = keepaliveInterval;
-		this.channel = DatagramChannel.open();
-
-		this.outboundSessionWorker = Thread.startVirtualThread(this::outboundSessionWorker);
+		this.socket = socket;
 	}
 
-	private void outboundSessionWorker() {
+	/**
+	 * Sends everything that was queued before the flush was scheduled, in batches of up to {@link #SEND_BATCH_SIZE}.
+	 * If more packets are left after the first batch, another flush is scheduled behind whatever else is waiting on
+	 * the loop, so that one busy session can't hold up the other peers on it.
+	 */
+	private void flush() {
+		// cleared first, so that a packet queued while we're sending schedules another flush
+		flushScheduled = false;
+
+		int count = 0;
+		for (EncryptedOutgoingTransport packet; count < SEND_BATCH_SIZE && (packet = outboundSessionQueue.poll()) != null; count++) {
+			batch[count] = packet;
+			buffers[count] = packet.transmissiblePacket();
+		}
+
 		try {
-			while (!Thread.interrupted()) {
-				try (var packet = outboundSessionQueue.take()) {
-					channel.send(packet.transmissiblePacket().asByteBuffer(), outboundPacketAddress);
-				}
-			}
+			if (count > 0 && !closed)
+				socket.send(buffers, count, outboundPacketAddress);
 		} catch (IOException e) {
 			log.log(ERROR, "Error sending packet", e);
-		} catch (InterruptedException ignored) {
-			// shutdown
+		} finally {
+			for (int i = 0; i < count; i++) {
+				batch[i].close();
+				batch[i] = null;
+				buffers[i] = null;
+			}
 		}
+
+		if (!outboundSessionQueue.isEmpty())
+			scheduleFlush();
 	}
 
-	@Override
-	public void close() throws InterruptedException {
-		outboundSessionWorker.interrupt();
-		keypair.clean();
+	private void scheduleFlush() {
+		if (!FLUSH_SCHEDULED.compareAndSet(this, false, true))
+			return;
 
-		if (!outboundSessionWorker.join(Duration.ofSeconds(5))) {
-			log.log(ERROR, "Failed to join outbound session worker thread");
+		try {
+			loop.execute(this::flush);
+		} catch (RejectedExecutionException e) {
+			// the loop is gone, so nothing will ever send these
+			closed = true;
+			drain();
 		}
 	}
 
+	private void drain() {
+		for (EncryptedOutgoingTransport packet; (packet = outboundSessionQueue.poll()) != null; )
+			packet.close();
+	}
+
+	/**
+	 * Marks the session as confirmed by the peer sending a packet under it
+	 *
+	 * @return true if it wasn't already
+	 */
+	boolean confirm() {
+		// read first, so that the packets after the first don't all contend for the flag
+		return !confirmed && CONFIRMED.compareAndSet(this, false, true);
+	}
+
+	/**
+	 * Takes a reference to the session, so that its keys aren't wiped while they're in use.  Each successful call must
+	 * be matched by a call to {@link #release()}.
+	 *
+	 * @return true if the reference was taken, or false if the session has been closed and its keys wiped
+	 */
+	boolean acquire() {
+		int references = this.references;
+		while (references > 0) {
+			int witness = (int) REFERENCES.compareAndExchange(this, references, references + 1);
+			if (witness == references)
+				return true;
+
+			references = witness;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Releases a reference taken by {@link #acquire()}, wiping the session's keys if it was the last one
+	 */
+	void release() {
+		if ((int) REFERENCES.getAndAdd(this, -1) == 1)
+			keypair.clean();
+	}
+
+	/**
+	 * Drops any packets that haven't been sent yet, and stops sending more.  The keys are wiped once the batches still
+	 * being encrypted or decrypted under the session are done with them.  Must only be called once.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		drain();
+		release();
+	}
+
 	/**
 	 * Enqueues an encrypted transport packet to be sent to the connected peer over a UDP socket.
 	 * @param packet the packet to be sent
 	 * @return true if the packet was successfully enqueued
 	 */
 	public boolean sendOutgoingTransport(EncryptedOutgoingTransport packet) {
-		return outboundSessionQueue.offer(packet);
+		if (closed) {
+			packet.close();
+			return false;
+		}
+
+		outboundSessionQueue.offer(packet);
+		scheduleFlush();
+		return true;
 	}
 
-	public void decryptTransportPacket(long counter, MemorySegment ciphertext, MemorySegment plaintext) throws BadPaddingException {
-		keypair.decipher(counter, ciphertext, plaintext);
+	/**
+	 * Decrypts several transport packets received under this session at once.  A packet whose counter has been seen
+	 * before, or which fails authentication, is marked in {@code authentic} rather than throwing.
+	 *
+	 * @param counters    the counter each packet was sent with
+	 * @param ciphertexts the ciphertexts, each followed by its tag
+	 * @param plaintexts  where to write each plaintext
+	 * @param authentic   where to record which packets were decrypted and may be used
+	 * @param count       the number of packets, from the start of each array
+	 */
+	public void decryptTransportPackets(long[] counters, MemorySegment[] ciphertexts, MemorySegment[] plaintexts, boolean[] authentic, int count) {
+		// rejects most replays before they cost a decryption
+		for (int i = 0; i < count; i++)
+			authentic[i] = replayWindow.check(counters[i]);
+
+		keypair.decipher(counters, ciphertexts, plaintexts, authentic, count);
+
+		// only counters that have been authenticated can move the window
+		for (int i = 0; i < count; i++) {
+			if (authentic[i])
+				authentic[i] = replayWindow.update(counters[i]);
+		}
 	}
 
 	/**
@@ -100,6 +239,23 @@ final class EstablishedSession implements AutoCloseable {
 		return keypair.cipher(plaintext, ciphertext);
 	}
 
+	/**
+	 * Encrypts several packets at once, giving them consecutive counters
+	 *
+	 * @param plaintexts  the packets to encrypt
+	 * @param ciphertexts where to write each ciphertext, followed by its tag
+	 * @param counters    where to write the counter value used as a nonce for each packet
+	 * @param count       the number of packets, from the start of each array
+	 */
+	public void cipher(MemorySegment[] plaintexts, MemorySegment[] ciphertexts, long[] counters, int count) {
+		keypair.cipher(plaintexts, ciphertexts, counters, count);
+	}
+
+	@Override
+	public Peer peer() {
+		return peer;
+	}
+
 	public InetSocketAddress getOutboundPacketAddress() {
 		return outboundPacketAddress;
 	}
@@ -108,11 +264,12 @@ final class EstablishedSession implements AutoCloseable {
 	public String toString() {
 		return "EstablishedSession[" +
 			   "keypair=" + keypair + ", " +
+			   "localIndex=" + localIndex + ", " +
 			   "remoteIndex=" + remoteIndex + ']';
 	}
 
-	public boolean isExpired() {
-		return Instant.now().isAfter(expiration);
+	public int getLocalIndex() {
+		return localIndex;
 	}
 
 	public int getRemoteIndex() {
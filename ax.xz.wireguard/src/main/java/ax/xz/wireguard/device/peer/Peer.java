@@ -1,35 +1,43 @@
 package ax.xz.wireguard.device.peer;
 
+import ax.xz.wireguard.device.InboundTransportQueue;
 import ax.xz.wireguard.device.Pool;
 import ax.xz.wireguard.device.WireguardDevice;
 import ax.xz.wireguard.device.message.IncomingPeerPacket;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
 import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
 import ax.xz.wireguard.device.message.response.IncomingResponse;
-import ax.xz.wireguard.device.message.transport.incoming.DecryptedIncomingTransport;
 import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTransport;
 import ax.xz.wireguard.device.message.tunnel.IncomingTunnelPacket;
+import ax.xz.wireguard.device.socket.PeerSocket;
 import ax.xz.wireguard.noise.keys.NoisePresharedKey;
 import ax.xz.wireguard.noise.keys.NoisePrivateKey;
 import ax.xz.wireguard.noise.keys.NoisePublicKey;
+import ax.xz.wireguard.util.EventLoop;
 import ax.xz.wireguard.util.IPFilter;
 import ax.xz.wireguard.util.ReferenceCounted;
 
 import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
-import java.nio.channels.DatagramChannel;
 import java.time.Duration;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.System.Logger;
 import static java.lang.System.Logger.Level.DEBUG;
 import static java.util.Objects.requireNonNull;
 
-public class Peer implements Runnable {
+/**
+ * A remote peer, and the state of our connection to it.
+ *
+ * <p>
+ * A peer doesn't have threads of its own.  Its handshakes, timers and outgoing packets are all handled on an
+ * {@link EventLoop} that it shares with other peers.
+ * </p>
+ */
+public class Peer {
 	private static final Logger logger = System.getLogger(Peer.class.getName());
 
+	private final WireguardDevice device;
 	private final PeerConnectionInfo connectionInfo;
 
 	private final SessionManager sessionManager;
@@ -38,42 +46,71 @@ public class Peer implements Runnable {
 
 	private final AtomicBoolean started = new AtomicBoolean(false);
 
-	public Peer(WireguardDevice device, NoisePrivateKey localIdentity, DatagramChannel channel, Pool pool, BlockingQueue<DecryptedIncomingTransport> interfaceBoundQueue, PeerConnectionInfo connectionInfo) {
+	public Peer(WireguardDevice device, EventLoop loop, NoisePrivateKey localIdentity, PeerSocket socket, Pool pool, InboundTransportQueue interfaceBoundQueue, PeerConnectionInfo connectionInfo) {
+		this.device = device;
 		this.connectionInfo = connectionInfo;
 
-		this.sessionManager = new SessionManager(device, channel, connectionInfo, localIdentity, pool);
-		this.transportManager = new TransportManager(connectionInfo.filter, sessionManager, pool, interfaceBoundQueue);
-		this.keepaliveSender = new KeepaliveSender(sessionManager, transportManager);
+		this.sessionManager = new SessionManager(this, loop, device, socket, connectionInfo, localIdentity, pool, this::sessionChanged);
+		this.transportManager = new TransportManager(source -> device.routeOf(source) == this, sessionManager, pool, interfaceBoundQueue);
+		this.keepaliveSender = new KeepaliveSender(loop, transportManager);
 	}
 
-	public void run() {
+	/**
+	 * Starts handshaking with the peer, if we know its endpoint.  Otherwise, waits for it to handshake with us.
+	 */
+	public void start() {
 		if (!started.compareAndSet(false, true)) {
 			throw new IllegalStateException("Peer already started");
 		}
 
+		sessionManager.start();
 		logger.log(DEBUG, "Started peer {0}", this);
+	}
 
-		try (var executor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory())) {
-			executor.submit(sessionManager);
-			executor.submit(transportManager);
-			executor.submit(keepaliveSender);
+	/**
+	 * Cancels the peer's timers and drops its session.
+	 */
+	public void stop() {
+		sessionManager.stop();
+		logger.log(DEBUG, "Stopped peer {0}", this);
+	}
 
-			executor.awaitTermination(999_999_999, TimeUnit.DAYS);
-		} catch (InterruptedException e) {
-			logger.log(DEBUG, "Peer {0} interrupted", this);
-		} finally {
-			logger.log(DEBUG, "Stopped peer {0}", this);
-		}
+	/**
+	 * Returns what performs the peer's handshakes and keeps its sessions
+	 */
+	SessionManager sessionManager() {
+		return sessionManager;
+	}
+
+	private void sessionChanged(@Nullable EstablishedSession session) {
+		keepaliveSender.sessionChanged(session);
+		device.sessionAddressChanged(this, session == null ? null : session.getOutboundPacketAddress());
 	}
 
 	public NoisePublicKey getRemoteStatic() {
 		return connectionInfo.remoteStatic;
 	}
 
+	/**
+	 * Returns the endpoint the peer was configured with, or null if we wait for it to find us
+	 */
+	@Nullable
+	public InetSocketAddress getEndpoint() {
+		return connectionInfo.endpoint;
+	}
+
+	/**
+	 * Returns the filter of addresses this peer is allowed to send from, and which are routed to it.
+	 */
+	public IPFilter getAllowedIPs() {
+		return connectionInfo.filter;
+	}
+
 	public void routeMessage(IncomingPeerPacket message) {
 		switch (message) {
 			case IncomingResponse rp -> sessionManager.handleResponse(rp);
 			case IncomingInitiation ip -> sessionManager.handleInitiation(ip);
+			case IncomingCookieReply cr -> sessionManager.handleCookieReply(cr);
 			case UndecryptedIncomingTransport tp -> transportManager.handleIncomingTransport(tp);
 		}
 	}
@@ -114,13 +151,17 @@ public class Peer implements Runnable {
 				presharedKey = NoisePresharedKey.zero();
 		}
 
+		/**
+		 * Returns the connection info of a peer we only know the public key of, such as one that has just sent us an
+		 * initiation.  It has no allowed IPs, so nothing is routed to it and nothing it sends is accepted.
+		 */
 		public static PeerConnectionInfo of(NoisePublicKey remoteStatic) {
 			return new PeerConnectionInfo(
 				remoteStatic,
 				NoisePresharedKey.zero(),
 				null,
 				Duration.ofDays(1_000_000_000),
-				IPFilter.allowingAll()
+				new IPFilter()
 			);
 		}
 
@@ -0,0 +1,135 @@
+package ax.xz.wireguard.device.peer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A sliding window of the transport counters received under one keypair, which rejects counters that have been seen
+ * before or are too old to tell.
+ *
+ * <p>
+ * The window is a bitmap of {@link #BITS} bits in the style of RFC 6479, split into blocks of 32.  Each block shares a
+ * 64-bit word with a tag saying which block of counters it currently holds, so moving a block forward and setting a
+ * bit in it are one compare-and-set, and many decryption workers can update the window at once without a lock.  A
+ * block is only ever moved forward, so a counter whose block has been reused for newer counters is rejected as too
+ * old.  Tags are compared modulo 2^32 blocks, which a peer's counter can't advance by within a session's lifetime.
+ * </p>
+ *
+ * <p>
+ * Counters should be {@linkplain #check checked} before decrypting a packet, which is cheap and filters out most
+ * replays, and {@linkplain #update updated} once the packet has been authenticated.  Only {@link #update} is final,
+ * since two copies of the same packet can both pass {@link #check} while they're decrypted in parallel.
+ * </p>
+ */
+final class ReplayWindow {
+	/**
+	 * The number of bits in the window
+	 */
+	static final int BITS = 2048;
+
+	private static final int BLOCK_BITS = 32;
+	private static final int BLOCK_SHIFT = 5;
+	private static final int BLOCKS = BITS / BLOCK_BITS;
+
+	/**
+	 * How far behind the greatest counter a counter can be and still be accepted.  One block less than the bitmap,
+	 * since the block the greatest counter is in may be only partly used.
+	 */
+	static final long SIZE = BITS - BLOCK_BITS;
+
+	/**
+	 * Counters at or above this (treated as unsigned) are never accepted, so that the sender's counter can't wrap
+	 */
+	static final long REJECT_AFTER_MESSAGES = -(1L << 13) - 1; // 2^64 - 2^13 - 1
+
+	private static final VarHandle BLOCKS_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle GREATEST;
+
+	static {
+		try {
+			GREATEST = MethodHandles.lookup().findVarHandle(ReplayWindow.class, "greatest", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// each word is the low 32 bits of a block number, followed by the 32 bits of that block
+	private final long[] blocks = new long[BLOCKS];
+
+	// the greatest counter accepted so far
+	@SuppressWarnings("unused")
+	private volatile long greatest = 0;
+
+	/**
+	 * Returns false if the given counter has definitely been accepted before, or is too old to tell.
+	 */
+	boolean check(long counter) {
+		if (isOutOfRange(counter))
+			return false;
+
+		long block = counter >>> BLOCK_SHIFT;
+		long word = (long) BLOCKS_HANDLE.getAcquire(blocks, indexOf(block));
+
+		int age = age(block, word);
+		return age > 0 || (age == 0 && (word & bitOf(counter)) == 0);
+	}
+
+	/**
+	 * Records that a packet with the given counter was received, unless a packet with the same counter has been
+	 * accepted before or the counter is too old to tell.
+	 *
+	 * @return true if the counter was accepted, and false if it was a replay
+	 */
+	boolean update(long counter) {
+		if (isOutOfRange(counter))
+			return false;
+
+		long block = counter >>> BLOCK_SHIFT;
+		int index = indexOf(block);
+		long bit = bitOf(counter);
+
+		while (true) {
+			long word = (long) BLOCKS_HANDLE.getAcquire(blocks, index);
+
+			long updated;
+			int age = age(block, word);
+			if (age > 0) // the slot still holds an older block, which has fallen out of the window
+				updated = (block << BLOCK_BITS) | bit;
+			else if (age == 0 && (word & bit) == 0)
+				updated = word | bit;
+			else
+				return false;
+
+			if (BLOCKS_HANDLE.compareAndSet(blocks, index, word, updated))
+				break;
+		}
+
+		long current;
+		while (Long.compareUnsigned(counter, current = greatest) > 0 && !GREATEST.compareAndSet(this, current, counter)) {
+			Thread.onSpinWait();
+		}
+
+		return true;
+	}
+
+	private boolean isOutOfRange(long counter) {
+		// can't overflow, since REJECT_AFTER_MESSAGES + SIZE is still below 2^64
+		return Long.compareUnsigned(counter, REJECT_AFTER_MESSAGES) >= 0 || Long.compareUnsigned(counter + SIZE, greatest) < 0;
+	}
+
+	private static int indexOf(long block) {
+		return (int) block & (BLOCKS - 1);
+	}
+
+	private static long bitOf(long counter) {
+		return 1L << (counter & (BLOCK_BITS - 1));
+	}
+
+	/**
+	 * Returns how many blocks newer the given block is than the one stored in the given word:  positive if the slot
+	 * holds an older block, zero if it holds the same one, and negative if it has moved past it.
+	 */
+	private static int age(long block, long word) {
+		return (int) block - (int) (word >>> BLOCK_BITS);
+	}
+}
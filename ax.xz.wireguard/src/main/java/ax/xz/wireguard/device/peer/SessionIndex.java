@@ -0,0 +1,25 @@
+package ax.xz.wireguard.device.peer;
+
+/**
+ * Whatever a session index was allocated to, which the device looks up to find where a message addressed to the index
+ * goes.
+ *
+ * <p>
+ * An index is allocated to a handshake when we send the first message of it, and is handed over to the session the
+ * handshake establishes, so a transport message is looked up straight to the session whose keys it was encrypted
+ * under, and a response or cookie reply to the peer whose handshake it answers.
+ * </p>
+ */
+public sealed interface SessionIndex permits SessionIndex.Handshake, EstablishedSession {
+	/**
+	 * Returns the peer that the index belongs to
+	 */
+	Peer peer();
+
+	/**
+	 * A handshake with the given peer that hasn't established a session yet, so only handshake messages can be
+	 * addressed to it
+	 */
+	record Handshake(Peer peer) implements SessionIndex {
+	}
+}
@@ -2,156 +2,171 @@ package ax.xz.wireguard.device.peer;
 
 import ax.xz.wireguard.device.Pool;
 import ax.xz.wireguard.device.WireguardDevice;
+import ax.xz.wireguard.device.message.IncomingPeerPacket;
 import ax.xz.wireguard.device.message.OutgoingPeerPacket;
+import ax.xz.wireguard.device.message.cookie.CookieReplyPacket;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
 import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
 import ax.xz.wireguard.device.message.initiation.OutgoingInitiation;
 import ax.xz.wireguard.device.message.response.IncomingResponse;
 import ax.xz.wireguard.device.message.response.OutgoingResponse;
+import ax.xz.wireguard.device.socket.PeerSocket;
 import ax.xz.wireguard.noise.handshake.Handshakes;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
+import ax.xz.wireguard.noise.handshake.SymmetricKeypair;
 import ax.xz.wireguard.noise.keys.NoisePrivateKey;
-import ax.xz.wireguard.util.PersistentTaskExecutor;
+import ax.xz.wireguard.util.EventLoop;
+import ax.xz.wireguard.util.TimingWheel;
 
 import javax.annotation.Nullable;
 import javax.annotation.WillClose;
-import javax.annotation.concurrent.GuardedBy;
 import javax.crypto.BadPaddingException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.DatagramChannel;
 import java.time.Duration;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import static java.lang.System.Logger;
 import static java.lang.System.Logger.Level.*;
 
-final class SessionManager implements Runnable {
+/**
+ * This class performs handshakes with the peer and keeps track of the sessions they establish.
+ *
+ * <p>
+ * Up to three sessions are kept at once, as in the WireGuard paper:
+ * <ul>
+ *     <li>the current session, which packets are sent under</li>
+ *     <li>the previous session, which the current one replaced, so that packets the peer sent under its keys before
+ *     it switched can still be received</li>
+ *     <li>the next session, from a handshake we responded to, which isn't sent under until the peer has shown that it
+ *     has the keys by sending a packet under it.  That packet confirms it, and it becomes current.</li>
+ * </ul>
+ * A handshake we initiated needs no confirmation, since the peer's response shows it has the keys, so its session
+ * becomes current straight away.  Packets are received under whichever session their index names, so none are lost
+ * when a rekey switches sessions.
+ * </p>
+ *
+ * <p>
+ * Each index is allocated to the handshake that sends it, and handed over to the session the handshake establishes,
+ * in the device's {@link SessionIndex} table.  The data path looks each transport packet's session up there by its
+ * index, without going through the slots.
+ * </p>
+ *
+ * <p>
+ * All of the handshake state is owned by the peer's {@link EventLoop}.  Handshake messages from the peer are handed to
+ * the loop as they arrive, and retransmissions, rekeys and expiry are timers that fire on the same loop, so none of it
+ * needs locking.  Only the sessions are read from other threads, by the data path.
+ * </p>
+ */
+final class SessionManager {
 	private static final Duration DEFAULT_KEEPALIVE_INTERVAL = Duration.ofSeconds(25);
+
+	// how long to wait for a response before sending the initiation again
+	private static final Duration REKEY_TIMEOUT = Duration.ofSeconds(5);
 	private static final int HANDSHAKE_ATTEMPTS = 5;
 
-	private static final Logger logger = System.getLogger(SessionManager.class.getName());
+	// how old a session can get before we start a handshake to replace it
+	private static final Duration REKEY_AFTER_TIME = Duration.ofSeconds(120);
 
-	/**
-	 * The lock protecting all the session state
-	 */
-	final ReentrantLock lock = new ReentrantLock();
+	// how old a session can get before it's dropped and its keys are wiped, whichever slot it's in
+	private static final Duration REJECT_AFTER_TIME = Duration.ofSeconds(180);
 
-	/**
-	 * The condition that is signalled when the peer state is modified
-	 */
-	final Condition condition = lock.newCondition();
+	// how long a cookie from the peer can be used for
+	private static final Duration COOKIE_LIFETIME = Duration.ofSeconds(120);
 
-	private final DatagramChannel channel;
+	private static final Logger logger = System.getLogger(SessionManager.class.getName());
 
+	private final Peer peer;
+	private final EventLoop loop;
 
-	// A queue of inbound handshake response messages [other peer -> this peer]
-	private final BlockingQueue<IncomingResponse> inboundHandshakeResponseQueue = new LinkedBlockingQueue<>();
+	// What the indices of our handshakes are allocated to, until they establish sessions
+	private final SessionIndex.Handshake handshakeIndex;
 
-	// A queue of inbound handshake initiation messages [other peer -> this peer]
-	private final BlockingQueue<IncomingInitiation> inboundHandshakeInitiationQueue = new LinkedBlockingQueue<>();
+	// The device's socket, shared with every other peer
+	private final PeerSocket socket;
 
 	// The keys and addresses used to connect to the peer
 	private final Peer.PeerConnectionInfo connectionInfo;
 	private final NoisePrivateKey localIdentity;
 
+	// The shared secret and MAC keys that don't change between handshakes with the peer.  Closed when the peer stops
+	private final PeerKeys peerKeys;
+
 	// The device through which we communicate with the peer
 	private final WireguardDevice device;
 	private final Pool pool;
-	// The current session.  Null iff no session is established and a handshake has not begun. This is private by peerLock.
-	private EstablishedSession session;
 
-	SessionManager(WireguardDevice device, DatagramChannel bidirectionalChannel, Peer.PeerConnectionInfo connectionInfo, NoisePrivateKey localIdentity, Pool pool) {
-		this.connectionInfo = connectionInfo;
-		this.channel = bidirectionalChannel;
-		this.device = device;
-		this.localIdentity = localIdentity;
-		this.pool = pool;
-	}
+	// Told about every change of the current session, on the loop
+	private final Consumer<EstablishedSession> sessionListener;
 
-	public void run() {
-		try (var executor = new PersistentTaskExecutor<>(IOException::new, logger, Thread.ofVirtual().factory())) {
-			executor.submit("Session initiation thread", this::sessionInitiationThread);
-			executor.submit("Handshake responder thread", this::handshakeResponderThread);
-
-			executor.awaitTermination();
-		} catch (InterruptedException e) {
-			logger.log(DEBUG, "Broken connection worker interrupted");
-			Thread.currentThread().interrupt();
-		} catch (Exception e) {
-			logger.log(WARNING, "Unhandled error in broken connection worker", e);
-			throw e;
-		} finally {
-			logger.log(DEBUG, "Broken connection worker;  shutting down");
-			cleanup();
-		}
-	}
+	// The sessions described above, each null if there isn't one.  Only written on the loop, but read by the data path
+	private volatile EstablishedSession current;
+	private volatile EstablishedSession previous;
+	private volatile EstablishedSession next;
 
-	private void sessionInitiationThread() {
-		lock.lock();
+	// The handshake we've sent an initiation for and are waiting on a response to, or null if there is none, and the
+	// session index we gave it
+	private Handshakes.InitiatorStageOne pendingHandshake;
+	private int pendingIndex;
+	private int handshakeAttempts = 0;
 
-		try {
-			while (!Thread.interrupted()) {
-				if (!isSessionAlive() && canInitiateHandshake()) for (int i = 0; i < HANDSHAKE_ATTEMPTS; i++) {
-					logger.log(INFO, "Initiating handshake with {0} (try {1} of {2})", connectionInfo, i + 1, HANDSHAKE_ATTEMPTS);
+	// The last cookie the peer gave us, if it's still fresh, for the mac2 of the handshake messages we send it
+	private final byte[] cookie = new byte[CookieReplyPacket.COOKIE_LENGTH];
+	private long cookieReceived;
+	private boolean hasCookie = false;
 
-					if (attemptInitiatorHandshake()) break;
-				}
+	// The mac1 of the last handshake message we sent, which a cookie reply must be bound to, or null if we aren't
+	// expecting one
+	private byte[] lastMac1;
 
-				condition.await();
-			}
-		} catch (InterruptedException e) {
-			logger.log(DEBUG, "Session initiation thread interrupted");
-			Thread.currentThread().interrupt();
-		} finally {
-			lock.unlock();
-		}
-	}
+	private TimingWheel.Timer handshakeTimer;
+	private TimingWheel.Timer rekeyTimer;
 
-	private void handshakeResponderThread() {
-		lock.lock();
+	private boolean stopped = false;
 
-		try {
-			while (!Thread.interrupted()) {
-				try (var initiation = inboundHandshakeInitiationQueue.take()) {
-					performHandshakeResponse(initiation);
-				}
-			}
-		} catch (InterruptedException e) {
-			logger.log(DEBUG, "Handshake responder interrupted");
-			Thread.currentThread().interrupt();
-		} finally {
-			lock.unlock();
-			logger.log(DEBUG, "Handshake responder shutting down");
-		}
+	SessionManager(Peer peer, EventLoop loop, WireguardDevice device, PeerSocket socket, Peer.PeerConnectionInfo connectionInfo, NoisePrivateKey localIdentity, Pool pool, Consumer<EstablishedSession> sessionListener) {
+		this.peer = peer;
+		this.loop = loop;
+		this.handshakeIndex = new SessionIndex.Handshake(peer);
+		this.connectionInfo = connectionInfo;
+		this.socket = socket;
+		this.device = device;
+		this.localIdentity = localIdentity;
+		this.peerKeys = PeerKeys.of(localIdentity, connectionInfo.remoteStatic());
+		this.pool = pool;
+		this.sessionListener = sessionListener;
 	}
 
-	private void cleanup() {
-		try {
-			channel.close();
-		} catch (IOException e) {
-			logger.log(WARNING, "Failed to close channel", e);
-		}
-
-		if (lock.tryLock()) {
-			try {
-				killSession();
-			} finally {
-				lock.unlock();
-			}
-		} else {
-			logger.log(ERROR, "Failed to acquire lock, even though all workers should be shut down.  This is a bug.");
-		}
+	/**
+	 * Starts a handshake with the peer, if we know where it is.
+	 */
+	void start() {
+		loop.execute(this::beginHandshake);
 	}
 
 	/**
-	 * Returns true if the session is alive, false otherwise
+	 * Cancels any outstanding handshake and drops every session.
 	 */
-	private boolean isSessionAlive() {
-		var session = this.session;
-		return session != null && !session.isExpired();
+	void stop() {
+		loop.execute(() -> {
+			stopped = true;
+			abandonPendingHandshake();
+
+			cancel(handshakeTimer);
+
+			var sessions = new EstablishedSession[]{current, previous, next};
+			current = previous = next = null;
+			for (var session : sessions)
+				retire(session);
+
+			currentChanged();
+
+			peerKeys.close();
+			Arrays.fill(cookie, (byte) 0);
+			hasCookie = false;
+		});
 	}
 
 	/**
@@ -162,58 +177,129 @@ final class SessionManager implements Runnable {
 	}
 
 	/**
-	 * Attempts to initiate a handshake with the peer.  Returns true if the handshake was successful, false otherwise.
-	 *
-	 * @return true if the handshake was successful, false otherwise
+	 * Starts a fresh round of handshake attempts, unless one is already under way.
 	 */
-	@GuardedBy("lock")
-	private boolean attemptInitiatorHandshake() {
-		try {
-			var handshake = Handshakes.initiateHandshake(localIdentity, connectionInfo.remoteStatic(), connectionInfo.presharedKey());
+	private void beginHandshake() {
+		if (stopped || pendingHandshake != null || !canInitiateHandshake())
+			return;
+
+		handshakeAttempts = 0;
+		attemptInitiatorHandshake();
+	}
+
+	/**
+	 * Sends a handshake initiation to the peer and arms a timer to try again if no response arrives in time.
+	 */
+	private void attemptInitiatorHandshake() {
+		if (handshakeAttempts == HANDSHAKE_ATTEMPTS) {
+			logger.log(WARNING, "Giving up on handshake with {0} after {1} tries", connectionInfo, HANDSHAKE_ATTEMPTS);
+			return;
+		}
+
+		handshakeAttempts++;
+		logger.log(INFO, "Initiating handshake with {0} (try {1} of {2})", connectionInfo, handshakeAttempts, HANDSHAKE_ATTEMPTS);
 
-			int localIndex = allocateNewSessionIndex();
+		handshakeTimer = loop.schedule(REKEY_TIMEOUT, this::handshakeTimedOut);
+
+		var buffer = pool.tryAcquire();
+		if (buffer == null) {
+			logger.log(WARNING, "Couldn't send handshake initiation because the buffer pool is exhausted");
+			return;
+		}
+
+		var handshake = Handshakes.initiateHandshake(localIdentity, peerKeys, connectionInfo.presharedKey());
+
+		int localIndex = allocateNewSessionIndex();
+		try {
 			var packet = new OutgoingInitiation(
-				pool.acquire(),
+				buffer,
 				localIndex,
 
 				handshake.getLocalEphemeral().publicKey(),
 				handshake.getEncryptedStatic(),
 				handshake.getEncryptedTimestamp(),
 
-				connectionInfo.remoteStatic()
+				peerKeys.mac1Key(),
+				currentCookie()
 			);
 
+			lastMac1 = packet.mac1();
 			transmit(packet, connectionInfo.endpoint());
+			pendingHandshake = handshake;
+			pendingIndex = localIndex;
+		} catch (IOException e) {
+			handshake.destroy();
+			device.releaseSessionIndex(localIndex);
+			logger.log(WARNING, "Handshake failed", e);
+		}
+	}
 
-			var response = inboundHandshakeResponseQueue.poll(5, TimeUnit.SECONDS);
-			if (response == null) {
-				logger.log(WARNING, "Handshake response timed out");
-				return false;
-			}
+	private void handshakeTimedOut() {
+		if (pendingHandshake != null)
+			logger.log(WARNING, "Handshake response timed out");
 
-			try (response) {
-				var kp = handshake.consumeMessageResponse(response.ephemeral(), response.encryptedNothing());
-				setSession(new EstablishedSession(kp, connectionInfo.endpoint(), response.receiverIndex(), connectionInfo.keepaliveInterval()));
-			} catch (BadPaddingException ex) {
-				throw new IOException("Failed to decrypt response", ex);
-			}
+		abandonPendingHandshake();
+		if (!stopped)
+			attemptInitiatorHandshake();
+	}
+
+	/**
+	 * Stops waiting for a response to the pending handshake, if there is one, wipes its keys and releases its index
+	 */
+	private void abandonPendingHandshake() {
+		if (pendingHandshake != null) {
+			pendingHandshake.destroy();
+			pendingHandshake = null;
+			device.releaseSessionIndex(pendingIndex);
+		}
+	}
+
+	private void consumeResponse(IncomingResponse response) {
+		var handshake = pendingHandshake;
+		if (handshake == null || response.receiverIndex() != pendingIndex) {
+			logger.log(DEBUG, "Received handshake response with no handshake in progress");
+			return;
+		}
+
+		try {
+			var kp = handshake.consumeMessageResponse(response.ephemeral(), response.encryptedNothing());
+
+			pendingHandshake = null;
+			cancel(handshakeTimer);
 
+			// the pending handshake's index now belongs to the session
+			initiatorSessionEstablished(newSession(kp, connectionInfo.endpoint(), pendingIndex, response.senderIndex(), connectionInfo.keepaliveInterval()));
 			logger.log(INFO, "Completed handshake (initiator)");
-			return true;
-		} catch (IOException | InterruptedException e) {
-			logger.log(WARNING, "Handshake failed", e);
-			return false;
+		} catch (BadPaddingException e) {
+			// leave the handshake pending, in case the real response is still on its way
+			logger.log(WARNING, "Failed to decrypt handshake response", e);
 		}
 	}
 
-	@GuardedBy("lock")
-	private void performHandshakeResponse(IncomingInitiation initiation) throws InterruptedException {
+	private void performHandshakeResponse(IncomingInitiation initiation) {
+		var buffer = pool.tryAcquire();
+		if (buffer == null) {
+			logger.log(WARNING, "Couldn't respond to handshake because the buffer pool is exhausted");
+			return;
+		}
+
+		Handshakes.ResponderHandshake handshake;
 		try {
-			var handshake = Handshakes.responderHandshake(localIdentity, initiation.ephemeral(), initiation.encryptedStatic(), initiation.encryptedTimestamp());
+			handshake = Handshakes.responderHandshake(localIdentity, peerKeys, initiation.ephemeral(), initiation.encryptedStatic(), initiation.encryptedTimestamp());
+		} catch (BadPaddingException e) {
+			buffer.close();
+			logger.log(WARNING, "Failed to decrypt handshake initiation", e);
+			return;
+		}
+
+		int localIndex = allocateNewSessionIndex();
 
-			int localIndex = allocateNewSessionIndex();
+		// the index is handed to the session before the response goes out, so the peer's first packet under it can't
+		// arrive to find only the handshake
+		var session = newSession(handshake.getKeypair(), initiation.originAddress(), localIndex, initiation.senderIndex(), DEFAULT_KEEPALIVE_INTERVAL);
+		try {
 			var packet = new OutgoingResponse(
-				pool.acquire(),
+				buffer,
 				initiation.originAddress(),
 
 				localIndex,
@@ -221,33 +307,66 @@ final class SessionManager implements Runnable {
 
 				handshake.getLocalEphemeral(),
 				handshake.getEncryptedEmpty(),
-				handshake.getRemotePublicKey()
+				peerKeys.mac1Key(),
+				currentCookie()
 			);
 
+			lastMac1 = packet.mac1();
+
 			transmit(packet, initiation.originAddress());
 
-			setSession(new EstablishedSession(handshake.getKeypair(), initiation.originAddress(), initiation.senderIndex(), DEFAULT_KEEPALIVE_INTERVAL));
+			responderSessionEstablished(session);
 			logger.log(INFO, "Completed handshake (responder)");
 		} catch (IOException e) {
+			retire(session);
 			logger.log(WARNING, "Failed to complete handshake (responder)", e);
+		}
+	}
+
+	/**
+	 * Stores the cookie from a cookie reply to the last handshake message we sent, so that our next one carries a valid
+	 * mac2.  The message it replies to isn't sent again;  that's left to the retransmission timer.
+	 */
+	private void consumeCookieReply(IncomingCookieReply reply) {
+		if (lastMac1 == null) {
+			logger.log(DEBUG, "Received cookie reply when not expecting one");
+			return;
+		}
+
+		try {
+			reply.decryptCookie(peerKeys.cookieKey(), lastMac1, cookie);
 		} catch (BadPaddingException e) {
-			logger.log(WARNING, "Failed to decrypt handshake initiation", e);
+			logger.log(DEBUG, "Failed to decrypt cookie reply", e);
+			return;
 		}
+
+		// only one reply is accepted per message
+		lastMac1 = null;
+
+		cookieReceived = System.nanoTime();
+		hasCookie = true;
+		logger.log(DEBUG, "Received cookie from {0}", connectionInfo);
 	}
 
 	/**
-	 * Marks the session as dead.  Requires that the peerLock be held.
+	 * Returns the cookie to compute the mac2 of our next handshake message with, or null if we don't have a fresh one
 	 */
-	@GuardedBy("lock")
-	private void killSession() {
-		setSession(null);
+	@Nullable
+	private byte[] currentCookie() {
+		if (hasCookie && System.nanoTime() - cookieReceived >= COOKIE_LIFETIME.toNanos()) {
+			Arrays.fill(cookie, (byte) 0);
+			hasCookie = false;
+		}
+
+		return hasCookie ? cookie : null;
 	}
 
 	/**
-	 * Allocates a new session index and tells the device to route packets with that index to this peer.
+	 * Allocates a new session index for a handshake, and tells the device to route handshake messages with that index
+	 * to this peer, until it's handed to a session or released with {@link WireguardDevice#releaseSessionIndex(int)}.
 	 */
 	private int allocateNewSessionIndex() {
-		return device.allocateNewSessionIndex(connectionInfo.remoteStatic());
+		return device.allocateNewSessionIndex(handshakeIndex);
 	}
 
 	/**
@@ -256,17 +375,121 @@ final class SessionManager implements Runnable {
 	 */
 	private void transmit(@WillClose OutgoingPeerPacket packet, InetSocketAddress destination) throws IOException {
 		try (packet) {
-			channel.send(packet.transmissiblePacket().asByteBuffer(), destination);
+			socket.send(packet.transmissiblePacket(), destination);
+		}
+	}
+
+	/**
+	 * Creates a session and hands it the index of the handshake that established it, so that packets addressed to the
+	 * index are received under it.  It's dropped after {@link #REJECT_AFTER_TIME} in whichever slot it's in by then.
+	 */
+	private EstablishedSession newSession(SymmetricKeypair keypair, InetSocketAddress address, int localIndex, int remoteIndex, Duration keepaliveInterval) {
+		var session = new EstablishedSession(peer, loop, socket, keypair, address, localIndex, remoteIndex, keepaliveInterval);
+		device.assignSessionIndex(localIndex, session);
+		loop.schedule(REJECT_AFTER_TIME, () -> expire(session));
+		return session;
+	}
+
+	/**
+	 * Makes the session from a handshake we initiated current, since the peer's response has confirmed it.  The
+	 * session it replaces is kept as the previous one, unless there's an unconfirmed next session, which is kept
+	 * instead, since the peer might already be sending under it.
+	 */
+	private void initiatorSessionEstablished(EstablishedSession session) {
+		var replaced = current;
+		var dropped = previous;
+		var unconfirmed = next;
+
+		if (unconfirmed != null) {
+			previous = unconfirmed;
+			next = null;
+			current = session;
+			retire(replaced);
+		} else {
+			previous = replaced;
+			current = session;
+		}
+
+		retire(dropped);
+		currentChanged();
+	}
+
+	/**
+	 * Keeps the session from a handshake we responded to as the next one, until the peer confirms it.  The previous
+	 * session is dropped to make room.
+	 */
+	private void responderSessionEstablished(EstablishedSession session) {
+		var replaced = next;
+		var dropped = previous;
+
+		next = session;
+		previous = null;
+
+		retire(replaced);
+		retire(dropped);
+	}
+
+	/**
+	 * Makes the next session current, now that the peer has sent under it, keeping the current one as the previous
+	 */
+	private void confirmNext(EstablishedSession session) {
+		if (next != session)
+			return;
+
+		var dropped = previous;
+
+		previous = current;
+		current = session;
+		next = null;
+
+		retire(dropped);
+		currentChanged();
+		logger.log(DEBUG, "Confirmed session with {0}", connectionInfo);
+	}
+
+	private void expire(EstablishedSession expired) {
+		if (expired == next) {
+			next = null;
+		} else if (expired == previous) {
+			previous = null;
+		} else if (expired == current) {
+			logger.log(WARNING, "Session with {0} expired before it could be replaced", connectionInfo);
+			current = null;
+			currentChanged();
+		} else {
+			return;
 		}
+
+		retire(expired);
 	}
 
 	/**
-	 * Sets the session. Requires that the peerLock be held.
+	 * Closes a session that's no longer in any slot, and releases its index.  Its keys are wiped once nothing is
+	 * using them.
 	 */
-	@GuardedBy("lock")
-	private void setSession(@Nullable EstablishedSession session) {
-		this.session = session;
-		condition.signalAll();
+	private void retire(@Nullable EstablishedSession session) {
+		if (session == null)
+			return;
+
+		session.close();
+		device.releaseSessionIndex(session.getLocalIndex());
+	}
+
+	/**
+	 * Arms a handshake to replace the new current session after {@link #REKEY_AFTER_TIME}, and tells the listener
+	 */
+	private void currentChanged() {
+		var session = current;
+
+		cancel(rekeyTimer);
+		rekeyTimer = session == null ? null : loop.schedule(REKEY_AFTER_TIME, this::beginHandshake);
+
+		sessionListener.accept(session);
+	}
+
+	private static void cancel(@Nullable TimingWheel.Timer timer) {
+		if (timer != null)
+			timer.cancel();
 	}
 
 	/**
@@ -274,8 +497,13 @@ final class SessionManager implements Runnable {
 	 *
 	 * @param message the message to handle
 	 */
-	void handleInitiation(IncomingInitiation message) {
-		inboundHandshakeInitiationQueue.offer(message);
+	void handleInitiation(@WillClose IncomingInitiation message) {
+		dispatch(message, () -> {
+			try (message) {
+				if (!stopped)
+					performHandshakeResponse(message);
+			}
+		});
 	}
 
 	/**
@@ -283,15 +511,104 @@ final class SessionManager implements Runnable {
 	 *
 	 * @param message the message to handle
 	 */
-	void handleResponse(IncomingResponse message) {
-		inboundHandshakeResponseQueue.offer(message);
+	void handleResponse(@WillClose IncomingResponse message) {
+		dispatch(message, () -> {
+			try (message) {
+				consumeResponse(message);
+			}
+		});
+	}
+
+	/**
+	 * Handles an incoming cookie reply from the peer.
+	 *
+	 * @param message the message to handle
+	 */
+	void handleCookieReply(@WillClose IncomingCookieReply message) {
+		dispatch(message, () -> {
+			try (message) {
+				if (!stopped)
+					consumeCookieReply(message);
+			}
+		});
 	}
 
 	/**
-	 * Returns the current session, or null if no session is established.
+	 * Runs the handler for a handshake message on the loop, and tells the device once it's done
+	 */
+	private void dispatch(IncomingPeerPacket message, Runnable handler) {
+		try {
+			loop.execute(() -> {
+				try {
+					handler.run();
+				} finally {
+					device.handshakeMessageHandled();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.log(DEBUG, "Dropped handshake message because the peer is shutting down");
+			message.close();
+			device.handshakeMessageHandled();
+		}
+	}
+
+	/**
+	 * Returns the current session, which packets should be sent under, or null if no session is established.
 	 */
 	@Nullable
 	EstablishedSession tryGetSessionNow() {
-		return session;
+		return current;
+	}
+
+	/**
+	 * Returns the current session like {@link #tryGetSessionNow()}, with a reference taken to it, so that its keys
+	 * can be used until it's {@link EstablishedSession#release() released}.
+	 */
+	@Nullable
+	EstablishedSession acquireSession() {
+		while (true) {
+			// a session is only closed once it's out of its slot, so if it can't be acquired, there's a new one
+			var session = current;
+			if (session == null || session.acquire())
+				return session;
+		}
+	}
+
+	/**
+	 * Returns the session that packets addressed to the given index should be received under, or null if the index
+	 * doesn't belong to one of this peer's sessions
+	 */
+	@Nullable
+	EstablishedSession sessionFor(int localIndex) {
+		return device.sessionIndex(localIndex) instanceof EstablishedSession session && session.peer() == peer ? session : null;
+	}
+
+	/**
+	 * Returns the session for the given index like {@link #sessionFor(int)}, with a reference taken to it, so that its
+	 * keys can be used until it's {@link EstablishedSession#release() released}.
+	 */
+	@Nullable
+	EstablishedSession acquireSessionFor(int localIndex) {
+		// an index names the same session until it's released, which is only once the session has been closed, so if
+		// it can't be acquired, it's gone
+		var session = sessionFor(localIndex);
+		return session != null && session.acquire() ? session : null;
+	}
+
+	/**
+	 * Tells the session manager that an authentic packet was received under the given session.  If it's the next
+	 * session, the peer has shown that it has the keys, and the session becomes current.
+	 */
+	void receivedUnder(EstablishedSession session) {
+		// only the first packet under each session goes to the loop.  it's left to the loop to check whether the
+		// session is the next one, since the packet can arrive before the loop has finished putting it there
+		if (!session.confirm())
+			return;
+
+		try {
+			loop.execute(() -> confirmNext(session));
+		} catch (RejectedExecutionException e) {
+			logger.log(DEBUG, "Couldn't confirm session because the peer is shutting down");
+		}
 	}
 }
@@ -1,5 +1,6 @@
 package ax.xz.wireguard.device.peer;
 
+import ax.xz.wireguard.device.InboundTransportQueue;
 import ax.xz.wireguard.device.Pool;
 import ax.xz.wireguard.device.WireguardDevice;
 import ax.xz.wireguard.device.message.transport.incoming.DecryptedIncomingTransport;
@@ -7,88 +8,199 @@ import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTran
 import ax.xz.wireguard.device.message.transport.outgoing.EncryptedOutgoingTransport;
 import ax.xz.wireguard.device.message.transport.outgoing.UnencryptedOutgoingTransport;
 import ax.xz.wireguard.device.message.tunnel.IncomingTunnelPacket;
-import ax.xz.wireguard.util.IPFilter;
+import ax.xz.wireguard.device.offload.TcpSegmenter;
+import ax.xz.wireguard.util.IPUtils;
 import ax.xz.wireguard.util.ReferenceCounted;
 
 import javax.annotation.WillClose;
-import javax.crypto.BadPaddingException;
 import java.lang.foreign.MemorySegment;
-import java.util.concurrent.BlockingQueue;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
 import static java.lang.System.Logger.Level.DEBUG;
 import static java.lang.System.Logger.Level.WARNING;
-import static java.lang.foreign.ValueLayout.JAVA_BYTE;
 
 /**
  * This class manages the encryption and decryption of inbound and outbound messages.
  *
  * <p>
  * Inbound transport packets from peers arrive at this class through the {@link #handleIncomingTransport(UndecryptedIncomingTransport)}
- * method, which sends them to an executor to be decrypted.  Once decrypted, they're sent up the network stack
- * through the {@link #interfaceBoundQueue} passed to the constructor.
+ * method, which stages them to be decrypted by an executor, each under whichever of the {@link SessionManager}'s
+ * sessions its receiver index names.  Once decrypted, they're sent up the network stack through the
+ * {@link #interfaceBoundQueue} passed to the constructor.
  * </p>
  *
  * <p>
  * Outbound transport packets (which are captured when they're routed to a tun device) are sent to this class
- * through the {@link #sendOutgoingTransport(MemorySegment)} method, which sends them to an executor to be encrypted.
- * Once encrypted, they're sent over the network through the {@link EstablishedSession#sendOutgoingTransport(EncryptedOutgoingTransport)}
+ * through the {@link #sendOutgoingTransport(ReferenceCounted)} method, which stages them to be encrypted by an
+ * executor.  Once encrypted, they're sent over the network through the {@link EstablishedSession#sendOutgoingTransport(EncryptedOutgoingTransport)}
  * method if the passed {@link SessionManager} has a currently established session;  otherwise, they're dropped.
+ * Packets read from a tun with segmentation offload may be too large to send, so they're split into MTU-sized
+ * packets right before they're encrypted.
+ * </p>
+ *
+ * <p>
+ * Staged packets are taken off their queue in batches of up to {@link #TRANSPORT_BATCH_SIZE}, and each batch is
+ * encrypted or decrypted with a single call, so that short packets can share the work of the cipher.  Only one task
+ * per direction is scheduled for a burst of packets, however many there are, and at most one runs at a time, so
+ * packets leave each direction in the order they were staged.
  * </p>
  */
-class TransportManager implements Runnable {
+class TransportManager {
 	private static final Executor packetProcessor = WireguardDevice.SYNCRONOUS_PIPELINE ? Runnable::run : ForkJoinPool.commonPool();
 	private static final System.Logger logger = System.getLogger(TransportManager.class.getName());
 
-	private final IPFilter destinationFilter;
+	// the most packets encrypted or decrypted with one call
+	private static final int TRANSPORT_BATCH_SIZE = 64;
+
+	private static final VarHandle ENCRYPT_SCHEDULED, DECRYPT_SCHEDULED;
+
+	static {
+		try {
+			ENCRYPT_SCHEDULED = MethodHandles.lookup().findVarHandle(TransportManager.class, "encryptScheduled", boolean.class);
+			DECRYPT_SCHEDULED = MethodHandles.lookup().findVarHandle(TransportManager.class, "decryptScheduled", boolean.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// scratch space for batches, which may be drained on several threads at once
+	private static final ThreadLocal<OutgoingBatch> OUTGOING_BATCH = ThreadLocal.withInitial(OutgoingBatch::new);
+	private static final ThreadLocal<IncomingBatch> INCOMING_BATCH = ThreadLocal.withInitial(IncomingBatch::new);
+
+	/**
+	 * Returns true if packets from the given source address may arrive from this peer.
+	 */
+	private final Predicate<MemorySegment> allowedSource;
 	private final SessionManager sessionManager;
 	private final Pool pool;
 
 	/**
 	 * A queue of packets to be sent up the network stack through a tun device.
 	 */
-	private final BlockingQueue<DecryptedIncomingTransport> interfaceBoundQueue;
+	private final InboundTransportQueue interfaceBoundQueue;
+
+	/**
+	 * Packets waiting to be decrypted, and packets waiting to be encrypted
+	 */
+	private final Queue<UndecryptedIncomingTransport> inboundStaging = new ConcurrentLinkedQueue<>();
+	private final Queue<ReferenceCounted<IncomingTunnelPacket>> outboundStaging = new ConcurrentLinkedQueue<>();
 
-	TransportManager(IPFilter destinationFilter, SessionManager sessionManager, Pool pool, BlockingQueue<DecryptedIncomingTransport> interfaceBoundQueue) {
-		this.destinationFilter = destinationFilter;
+	// true while a drain of the corresponding queue is scheduled or running, so that there's only ever one of each
+	@SuppressWarnings("unused")
+	private volatile boolean encryptScheduled = false, decryptScheduled = false;
+
+	TransportManager(Predicate<MemorySegment> allowedSource, SessionManager sessionManager, Pool pool, InboundTransportQueue interfaceBoundQueue) {
+		this.allowedSource = allowedSource;
 		this.sessionManager = sessionManager;
 		this.pool = pool;
 		this.interfaceBoundQueue = interfaceBoundQueue;
 	}
 
-	public void run() {
-		// we don't need to do anything here
-	}
-
 	/**
-	 * Enqueues an inbound transport message to be processed and sent up the network stack.
+	 * Enqueues an inbound transport message to be processed and sent up the network stack.  The device only hands over
+	 * messages whose index names one of our sessions.
 	 * Releases the transport buffer when done with it
 	 *
 	 * @param ciphertextMessage the message to decrypt and send up the network stack
 	 */
 	void handleIncomingTransport(@WillClose UndecryptedIncomingTransport ciphertextMessage) {
-		// no use waiting for a session, since if the session is not established, we will not be able to decrypt the message
-		// because any sessions created in the future will have a different keypair
-		var currentSession = sessionManager.tryGetSessionNow();
-		if (currentSession == null) {
-			ciphertextMessage.close();
-			return;
-		}
+		inboundStaging.offer(ciphertextMessage);
+		if (DECRYPT_SCHEDULED.compareAndSet(this, false, true))
+			packetProcessor.execute(this::decryptStaged);
+	}
+
+	/**
+	 * Decrypts everything in {@link #inboundStaging}, and enqueues the results to be sent up the network stack
+	 */
+	private void decryptStaged() {
+		do {
+			try {
+				drainInbound();
+			} finally {
+				// only cleared once the queue is empty, so that drains never overlap
+				decryptScheduled = false;
+			}
 
-		packetProcessor.execute(() -> decryptAndEnqueue(ciphertextMessage, currentSession));
+			// a packet staged between the last poll and the flag being cleared wouldn't have scheduled a drain
+		} while (!inboundStaging.isEmpty() && DECRYPT_SCHEDULED.compareAndSet(this, false, true));
 	}
 
 	/**
-	 * Decrypts a transport message and enqueues it to be sent up the network stack.
+	 * Decrypts the packets in {@link #inboundStaging} until it's empty, a batch at a time
 	 */
-	private void decryptAndEnqueue(@WillClose UndecryptedIncomingTransport transport, EstablishedSession session) {
+	private void drainInbound() {
+		var batch = INCOMING_BATCH.get();
+
+		// the session the batch is being collected for, which is held until the batch has been decrypted
+		EstablishedSession session = null;
+
 		try {
-			var decryptedTransport = transport.decrypt(session::decryptTransportPacket);
-			processDecryptedTransport(decryptedTransport);
-		} catch (BadPaddingException e) {
-			logger.log(WARNING, "Received transport message with invalid padding");
-			transport.close();
+			for (UndecryptedIncomingTransport transport; (transport = inboundStaging.poll()) != null; ) {
+				// each message is received under the session its index names, which is almost always the last one's
+				int index = transport.receiverIndex();
+				if (session == null || session.getLocalIndex() != index) {
+					if (batch.count > 0)
+						decryptBatch(batch, session);
+
+					if (session != null)
+						session.release();
+
+					session = sessionManager.acquireSessionFor(index);
+					if (session == null) {
+						transport.close();
+						continue;
+					}
+				}
+
+				batch.add(transport);
+				if (batch.count == TRANSPORT_BATCH_SIZE)
+					decryptBatch(batch, session);
+			}
+
+			if (batch.count > 0)
+				decryptBatch(batch, session);
+		} finally {
+			batch.clear();
+
+			if (session != null)
+				session.release();
+		}
+	}
+
+	/**
+	 * Decrypts a batch of transport messages and enqueues them to be sent up the network stack.
+	 */
+	private void decryptBatch(IncomingBatch batch, EstablishedSession session) {
+		try {
+			session.decryptTransportPackets(batch.counters, batch.ciphertexts, batch.plaintexts, batch.authentic, batch.count);
+
+			boolean anyAuthentic = false;
+			for (int i = 0; i < batch.count; i++) {
+				var transport = batch.packets[i];
+				batch.packets[i] = null;
+
+				if (batch.authentic[i]) {
+					anyAuthentic = true;
+					processDecryptedTransport(transport.decrypted());
+				} else {
+					// logged quietly, since anyone can send these
+					logger.log(DEBUG, "Dropped transport message with counter {0} that failed authentication or was replayed", batch.counters[i]);
+					transport.close();
+				}
+			}
+
+			// the first authentic message under a next session confirms it
+			if (anyAuthentic)
+				sessionManager.receivedUnder(session);
+		} finally {
+			batch.clear();
 		}
 	}
 
@@ -103,8 +215,8 @@ class TransportManager implements Runnable {
 		if (plaintext.byteSize() == 0) {
 			logger.log(DEBUG, "Received keepalive");
 			sentToQueue = false;
-		} else if (!destinationFilter.search(destinationIPOf(plaintext))) {
-			logger.log(DEBUG, "Dropped packet with destination outside of allowed range");
+		} else if (!isAllowedSource(plaintext)) {
+			logger.log(DEBUG, "Dropped packet with source outside of allowed range");
 			sentToQueue = false;
 		} else if (!interfaceBoundQueue.offer(transport)) {
 			logger.log(WARNING, "Dropped decrypted packet on its way to the tun device");
@@ -119,14 +231,14 @@ class TransportManager implements Runnable {
 	}
 
 	/**
-	 * Returns the destination IP address of the given packet.
+	 * Returns true if the source address of the given packet is routed to this peer.
 	 */
-	private static MemorySegment destinationIPOf(MemorySegment packet) {
-		return switch (packet.get(JAVA_BYTE, 0) >> 4) {
-			case 4 -> packet.asSlice(16, 4);
-			case 6 -> packet.asSlice(24, 16);
-			default -> throw new IllegalArgumentException("Unknown IP version");
-		};
+	private boolean isAllowedSource(MemorySegment packet) {
+		try {
+			return allowedSource.test(IPUtils.sourceAddressOf(packet));
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return false;
+		}
 	}
 
 	/**
@@ -136,24 +248,221 @@ class TransportManager implements Runnable {
 	 */
 	void sendOutgoingTransportNow(MemorySegment plaintext) {
 		// get the session as close to the send as possible
-		var session = sessionManager.tryGetSessionNow();
+		var session = sessionManager.acquireSession();
 		if (session == null)
 			return;
 
-		var packet = new UnencryptedOutgoingTransport(pool.acquire(), plaintext.byteSize() + 16, session.getRemoteIndex());
+		try {
+			var buffer = pool.tryAcquire();
+			if (buffer == null) {
+				logger.log(DEBUG, "Dropped outgoing packet because the buffer pool is exhausted");
+				return;
+			}
+
+			var packet = new UnencryptedOutgoingTransport(buffer, plaintext.byteSize() + 16, session.getRemoteIndex());
 
-		var outgoing = packet.fillCiphertext(ciphertext -> session.cipher(plaintext, ciphertext));
-		session.sendOutgoingTransport(outgoing);
+			var outgoing = packet.fillCiphertext(ciphertext -> session.cipher(plaintext, ciphertext));
+			session.sendOutgoingTransport(outgoing);
+		} finally {
+			session.release();
+		}
 	}
 
 	/**
 	 * Enqueues an outbound transport message to be encrypted and sent to the peer.
 	 */
 	void sendOutgoingTransport(ReferenceCounted<IncomingTunnelPacket> guard) {
-		packetProcessor.execute(() -> {
-			try (guard) {
-				sendOutgoingTransportNow(guard.get().packet());
+		outboundStaging.offer(guard);
+		if (ENCRYPT_SCHEDULED.compareAndSet(this, false, true))
+			packetProcessor.execute(this::encryptStaged);
+	}
+
+	/**
+	 * Encrypts everything in {@link #outboundStaging}, and sends it to the peer
+	 */
+	private void encryptStaged() {
+		do {
+			try {
+				drainOutbound();
+			} finally {
+				// only cleared once the queue is empty, so that drains never overlap
+				encryptScheduled = false;
 			}
-		});
+
+			// a packet staged between the last poll and the flag being cleared wouldn't have scheduled a drain
+		} while (!outboundStaging.isEmpty() && ENCRYPT_SCHEDULED.compareAndSet(this, false, true));
+	}
+
+	/**
+	 * Encrypts the packets in {@link #outboundStaging} until it's empty, a batch at a time
+	 */
+	private void drainOutbound() {
+		// get the session as close to the send as possible, and hold it until everything has been encrypted under it
+		var session = sessionManager.acquireSession();
+		var batch = OUTGOING_BATCH.get();
+
+		try {
+			for (ReferenceCounted<IncomingTunnelPacket> guard; (guard = outboundStaging.poll()) != null; ) {
+				if (session == null)
+					guard.close();
+				else if (guard.get().segmentation() != null)
+					stageSegments(batch, session, guard);
+				else
+					stagePacket(batch, session, guard);
+			}
+
+			if (batch.count > 0)
+				encryptBatch(batch, session);
+		} finally {
+			batch.clear();
+
+			if (session != null)
+				session.release();
+		}
+	}
+
+	/**
+	 * Adds a packet to the batch, which keeps hold of the tun buffer until the packet has been encrypted
+	 */
+	private void stagePacket(OutgoingBatch batch, EstablishedSession session, @WillClose ReferenceCounted<IncomingTunnelPacket> guard) {
+		var buffer = pool.tryAcquire();
+		if (buffer == null) {
+			logger.log(DEBUG, "Dropped outgoing packet because the buffer pool is exhausted");
+			guard.close();
+			return;
+		}
+
+		var plaintext = guard.get().packet();
+		batch.add(new UnencryptedOutgoingTransport(buffer, plaintext.byteSize() + 16, session.getRemoteIndex()), plaintext, guard);
+		if (batch.count == TRANSPORT_BATCH_SIZE)
+			encryptBatch(batch, session);
+	}
+
+	/**
+	 * Splits a packet read from a tun with segmentation offload into MTU-sized packets and adds them to the batch.
+	 * Each segment is written straight into the buffer that it's encrypted in.
+	 */
+	private void stageSegments(OutgoingBatch batch, EstablishedSession session, @WillClose ReferenceCounted<IncomingTunnelPacket> guard) {
+		try (guard) {
+			var packet = guard.get();
+
+			TcpSegmenter segmenter;
+			try {
+				segmenter = new TcpSegmenter(packet.packet(), packet.segmentation());
+			} catch (IllegalArgumentException e) {
+				logger.log(DEBUG, "Dropped malformed offloaded packet", e);
+				return;
+			}
+
+			for (int i = 0; i < segmenter.segmentCount(); i++) {
+				long length = segmenter.segmentLength(i);
+
+				var buffer = pool.tryAcquire();
+				if (buffer == null) {
+					logger.log(DEBUG, "Dropped outgoing segments because the buffer pool is exhausted");
+					return;
+				}
+
+				var packetBuffer = new UnencryptedOutgoingTransport(buffer, length + 16, session.getRemoteIndex());
+				var plaintext = packetBuffer.ciphertextBuffer().asSlice(0, length);
+				segmenter.writeSegment(i, plaintext);
+
+				batch.add(packetBuffer, plaintext, null);
+				if (batch.count == TRANSPORT_BATCH_SIZE)
+					encryptBatch(batch, session);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts a batch of packets with one call, and sends them to the peer
+	 */
+	private void encryptBatch(OutgoingBatch batch, EstablishedSession session) {
+		try {
+			session.cipher(batch.plaintexts, batch.ciphertexts, batch.counters, batch.count);
+
+			for (int i = 0; i < batch.count; i++) {
+				var encrypted = batch.packets[i].encrypted(batch.counters[i]);
+				batch.packets[i] = null;
+				session.sendOutgoingTransport(encrypted);
+			}
+		} finally {
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Packets staged to be encrypted together
+	 */
+	private static final class OutgoingBatch {
+		final UnencryptedOutgoingTransport[] packets = new UnencryptedOutgoingTransport[TRANSPORT_BATCH_SIZE];
+		final MemorySegment[] plaintexts = new MemorySegment[TRANSPORT_BATCH_SIZE];
+		final MemorySegment[] ciphertexts = new MemorySegment[TRANSPORT_BATCH_SIZE];
+		final long[] counters = new long[TRANSPORT_BATCH_SIZE];
+
+		// the tun buffers that plaintexts point into, which are released once they've been encrypted
+		final ReferenceCounted<?>[] guards = new ReferenceCounted<?>[TRANSPORT_BATCH_SIZE];
+		int count;
+
+		void add(UnencryptedOutgoingTransport packet, MemorySegment plaintext, ReferenceCounted<?> guard) {
+			packets[count] = packet;
+			plaintexts[count] = plaintext;
+			ciphertexts[count] = packet.ciphertextBuffer();
+			guards[count] = guard;
+			count++;
+		}
+
+		/**
+		 * Releases the tun buffers, and any packet buffers that weren't sent
+		 */
+		void clear() {
+			for (int i = 0; i < count; i++) {
+				if (guards[i] != null)
+					guards[i].close();
+				if (packets[i] != null)
+					packets[i].close();
+			}
+
+			Arrays.fill(packets, 0, count, null);
+			Arrays.fill(plaintexts, 0, count, null);
+			Arrays.fill(ciphertexts, 0, count, null);
+			Arrays.fill(guards, 0, count, null);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Packets staged to be decrypted together
+	 */
+	private static final class IncomingBatch {
+		final UndecryptedIncomingTransport[] packets = new UndecryptedIncomingTransport[TRANSPORT_BATCH_SIZE];
+		final MemorySegment[] ciphertexts = new MemorySegment[TRANSPORT_BATCH_SIZE];
+		final MemorySegment[] plaintexts = new MemorySegment[TRANSPORT_BATCH_SIZE];
+		final long[] counters = new long[TRANSPORT_BATCH_SIZE];
+		final boolean[] authentic = new boolean[TRANSPORT_BATCH_SIZE];
+		int count;
+
+		void add(UndecryptedIncomingTransport packet) {
+			packets[count] = packet;
+			ciphertexts[count] = packet.ciphertextBuffer();
+			plaintexts[count] = packet.plaintextBuffer();
+			counters[count] = packet.counter();
+			count++;
+		}
+
+		/**
+		 * Releases any packets that weren't passed on
+		 */
+		void clear() {
+			for (int i = 0; i < count; i++) {
+				if (packets[i] != null)
+					packets[i].close();
+			}
+
+			Arrays.fill(packets, 0, count, null);
+			Arrays.fill(ciphertexts, 0, count, null);
+			Arrays.fill(plaintexts, 0, count, null);
+			count = 0;
+		}
 	}
 }
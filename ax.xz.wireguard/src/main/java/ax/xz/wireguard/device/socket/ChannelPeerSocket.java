@@ -0,0 +1,101 @@
+package ax.xz.wireguard.device.socket;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A {@link PeerSocket} backed by a non-blocking {@link DatagramChannel}.  Each datagram costs one syscall, but once
+ * the selector reports the channel as readable, every queued datagram is drained in the same call to {@link #receive}.
+ */
+final class ChannelPeerSocket implements PeerSocket {
+	private final DatagramChannel channel;
+	private final Selector selector;
+
+	private final SocketStats stats = new SocketStats();
+
+	ChannelPeerSocket() throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void bind(SocketAddress endpoint) throws IOException {
+		channel.bind(endpoint);
+	}
+
+	@Override
+	public int receive(MemorySegment[] buffers, long[] lengths, long[] segmentSizes, InetSocketAddress[] senders) throws IOException {
+		int count = 0;
+		int syscalls = 0;
+		long bytes = 0;
+
+		while (count < buffers.length) {
+			var buffer = buffers[count].asByteBuffer();
+			var sender = (InetSocketAddress) channel.receive(buffer);
+			syscalls++;
+
+			if (sender != null) {
+				lengths[count] = buffer.position();
+				segmentSizes[count] = buffer.position();
+				bytes += buffer.position();
+				senders[count] = sender;
+				count++;
+				continue;
+			}
+
+			if (count > 0 || Thread.currentThread().isInterrupted())
+				break;
+
+			selector.select();
+			selector.selectedKeys().clear();
+
+			if (!channel.isOpen())
+				throw new ClosedChannelException();
+		}
+
+		stats.recordReceive(syscalls, count, bytes);
+		return count;
+	}
+
+	@Override
+	public boolean coalescesReceives() {
+		return false;
+	}
+
+	@Override
+	public void send(MemorySegment packet, InetSocketAddress destination) throws IOException {
+		int sent = channel.send(packet.asByteBuffer(), destination);
+		stats.recordSend(1, sent > 0 ? 1 : 0, sent);
+	}
+
+	@Override
+	public void send(MemorySegment[] packets, int count, InetSocketAddress destination) throws IOException {
+		for (int i = 0; i < count; i++)
+			send(packets[i], destination);
+	}
+
+	@Override
+	public SocketStats stats() {
+		return stats;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		selector.close();
+	}
+}
@@ -0,0 +1,651 @@
+package ax.xz.wireguard.device.socket;
+
+import java.io.IOException;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.MemoryLayout.*;
+import static java.lang.foreign.ValueLayout.*;
+import static java.lang.System.Logger.Level.WARNING;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * A {@link PeerSocket} that calls into libc directly, receiving up to one datagram per buffer with a single
+ * {@code recvmmsg} call.
+ *
+ * <p>
+ * The socket is a dual-stack {@code AF_INET6} socket, so IPv4 peers are addressed by their IPv4-mapped IPv6 address.
+ * A receive timeout is set so that the receiving thread notices interrupts.
+ * </p>
+ *
+ * <p>
+ * With {@link #UDP_OFFLOAD}, a batch send groups each run of same-size datagrams into one {@code mmsghdr} with an
+ * iovec per datagram and a {@code UDP_SEGMENT} control message, so the kernel (or the NIC) splits them, and receives
+ * ask for a {@code UDP_GRO} control message giving the size of the datagrams coalesced into each buffer.  If the
+ * kernel refuses segmentation with {@code EIO}, as it does when the route's device can't checksum offload, it is turned
+ * off for the rest of the socket's life.
+ * </p>
+ */
+final class LinuxPeerSocket implements PeerSocket {
+	private static final System.Logger log = System.getLogger(LinuxPeerSocket.class.getName());
+
+	private static final int AF_INET6 = 10;
+	private static final int SOCK_DGRAM = 2;
+	private static final int SOCK_CLOEXEC = 0x80000;
+	private static final int SOL_SOCKET = 1;
+	private static final int SO_SNDBUF = 7;
+	private static final int SO_RCVBUF = 8;
+	private static final int SO_RCVTIMEO = 20;
+	private static final int IPPROTO_IPV6 = 41;
+	private static final int IPV6_V6ONLY = 26;
+	private static final int SOL_UDP = 17;
+	private static final int UDP_SEGMENT = 103;
+	private static final int UDP_GRO = 104;
+	private static final int SHUT_RDWR = 2;
+	private static final int MSG_WAITFORONE = 0x10000;
+
+	private static final int EINTR = 4;
+	private static final int EIO = 5;
+	private static final int EAGAIN = 11;
+
+	private static final long RECEIVE_TIMEOUT_SECONDS = 1;
+	// batched sends arrive in bursts, so ask for bigger buffers than the default.  the kernel caps these at [rw]mem_max
+	private static final int SOCKET_BUFFER_SIZE = 7 << 20;
+
+	// the kernel's limits on a single UDP_SEGMENT send
+	private static final int MAX_SEGMENTS = 64;
+	private static final int MAX_SEGMENTED_BYTES = 65535 - 40 - 8;
+
+	private static final StructLayout SOCKADDR_IN6 = structLayout(
+		JAVA_SHORT.withName("sin6_family"),
+		JAVA_SHORT.withOrder(BIG_ENDIAN).withName("sin6_port"),
+		JAVA_INT.withName("sin6_flowinfo"),
+		sequenceLayout(16, JAVA_BYTE).withName("sin6_addr"),
+		JAVA_INT.withName("sin6_scope_id")
+	);
+
+	private static final StructLayout IOVEC = structLayout(
+		ADDRESS.withName("iov_base"),
+		JAVA_LONG.withName("iov_len")
+	);
+
+	private static final StructLayout MMSGHDR = structLayout(
+		structLayout(
+			ADDRESS.withName("msg_name"),
+			JAVA_INT.withName("msg_namelen"),
+			paddingLayout(4),
+			ADDRESS.withName("msg_iov"),
+			JAVA_LONG.withName("msg_iovlen"),
+			ADDRESS.withName("msg_control"),
+			JAVA_LONG.withName("msg_controllen"),
+			JAVA_INT.withName("msg_flags"),
+			paddingLayout(4)
+		).withName("msg_hdr"),
+		JAVA_INT.withName("msg_len"),
+		paddingLayout(4)
+	);
+
+	private static final StructLayout CMSGHDR = structLayout(
+		JAVA_LONG.withName("cmsg_len"),
+		JAVA_INT.withName("cmsg_level"),
+		JAVA_INT.withName("cmsg_type")
+	);
+
+	// CMSG_SPACE(sizeof(int)) and CMSG_SPACE(sizeof(uint16_t)), which are the same after alignment
+	private static final long CMSG_SPACE = CMSGHDR.byteSize() + 8;
+
+	private static final StructLayout TIMEVAL = structLayout(
+		JAVA_LONG.withName("tv_sec"),
+		JAVA_LONG.withName("tv_usec")
+	);
+
+	private static final long MSG_NAME = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_name"));
+	private static final long MSG_NAMELEN = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_namelen"));
+	private static final long MSG_IOV = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_iov"));
+	private static final long MSG_IOVLEN = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_iovlen"));
+	private static final long MSG_CONTROL = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_control"));
+	private static final long MSG_CONTROLLEN = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_controllen"));
+	private static final long MSG_LEN = MMSGHDR.byteOffset(groupElement("msg_len"));
+
+	private static final VarHandle SIN6_FAMILY = SOCKADDR_IN6.varHandle(groupElement("sin6_family"));
+	private static final VarHandle SIN6_PORT = SOCKADDR_IN6.varHandle(groupElement("sin6_port"));
+	private static final VarHandle SIN6_SCOPE_ID = SOCKADDR_IN6.varHandle(groupElement("sin6_scope_id"));
+	private static final long SIN6_ADDR = SOCKADDR_IN6.byteOffset(groupElement("sin6_addr"));
+
+	private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+	private static final VarHandle ERRNO = CALL_STATE.varHandle(groupElement("errno"));
+
+	private static final MethodHandle socket$MH;
+	private static final MethodHandle setsockopt$MH;
+	private static final MethodHandle bind$MH;
+	private static final MethodHandle recvmmsg$MH;
+	private static final MethodHandle sendto$MH;
+	private static final MethodHandle sendmmsg$MH;
+	private static final MethodHandle shutdown$MH;
+	private static final MethodHandle close$MH;
+	private static final MethodHandle strerror$MH;
+
+	static {
+		var linker = Linker.nativeLinker();
+		var libc = linker.defaultLookup();
+		var errno = Linker.Option.captureCallState("errno");
+
+		// int socket(int domain, int type, int protocol)
+		socket$MH = libc.find("socket").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("domain"), JAVA_INT.withName("type"), JAVA_INT.withName("protocol")
+		), errno)).orElseThrow();
+
+		// int setsockopt(int sockfd, int level, int optname, const void *optval, socklen_t optlen)
+		setsockopt$MH = libc.find("setsockopt").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("sockfd"), JAVA_INT.withName("level"), JAVA_INT.withName("optname"),
+			ADDRESS.withName("optval"), JAVA_INT.withName("optlen")
+		), errno)).orElseThrow();
+
+		// int bind(int sockfd, const struct sockaddr *addr, socklen_t addrlen)
+		bind$MH = libc.find("bind").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("sockfd"), ADDRESS.withName("addr"), JAVA_INT.withName("addrlen")
+		), errno)).orElseThrow();
+
+		// int recvmmsg(int sockfd, struct mmsghdr *msgvec, unsigned int vlen, int flags, struct timespec *timeout)
+		recvmmsg$MH = libc.find("recvmmsg").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("sockfd"), ADDRESS.withName("msgvec"), JAVA_INT.withName("vlen"),
+			JAVA_INT.withName("flags"), ADDRESS.withName("timeout")
+		), errno)).orElseThrow();
+
+		// ssize_t sendto(int sockfd, const void *buf, size_t len, int flags, const struct sockaddr *dest_addr, socklen_t addrlen)
+		sendto$MH = libc.find("sendto").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_LONG, JAVA_INT.withName("sockfd"), ADDRESS.withName("buf"), JAVA_LONG.withName("len"),
+			JAVA_INT.withName("flags"), ADDRESS.withName("dest_addr"), JAVA_INT.withName("addrlen")
+		), errno)).orElseThrow();
+
+		// int sendmmsg(int sockfd, struct mmsghdr *msgvec, unsigned int vlen, int flags)
+		sendmmsg$MH = libc.find("sendmmsg").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("sockfd"), ADDRESS.withName("msgvec"), JAVA_INT.withName("vlen"),
+			JAVA_INT.withName("flags")
+		), errno)).orElseThrow();
+
+		// int shutdown(int sockfd, int how)
+		shutdown$MH = libc.find("shutdown").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("sockfd"), JAVA_INT.withName("how")
+		), errno)).orElseThrow();
+
+		// int close(int fd)
+		close$MH = libc.find("close").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			JAVA_INT, JAVA_INT.withName("fd")
+		), errno)).orElseThrow();
+
+		// char *strerror(int errnum)
+		strerror$MH = libc.find("strerror").map(addr -> linker.downcallHandle(addr, FunctionDescriptor.of(
+			ADDRESS, JAVA_INT.withName("errnum")
+		))).orElseThrow();
+	}
+
+	private final int fd;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private final SocketStats stats = new SocketStats();
+
+	private final boolean gro;
+	private volatile boolean gso;
+
+	private final ThreadLocal<SendState> sendState = ThreadLocal.withInitial(SendState::new);
+	private ReceiveState receiveState;
+
+	LinuxPeerSocket() throws IOException {
+		try (var arena = Arena.ofConfined()) {
+			var callState = arena.allocate(CALL_STATE);
+
+			fd = (int) socket$MH.invokeExact(callState, AF_INET6, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+			if (fd < 0)
+				throw errnoException("socket", callState);
+
+			try {
+				var v6only = arena.allocate(JAVA_INT, 0);
+				if ((int) setsockopt$MH.invokeExact(callState, fd, IPPROTO_IPV6, IPV6_V6ONLY, v6only, (int) JAVA_INT.byteSize()) < 0)
+					throw errnoException("setsockopt(IPV6_V6ONLY)", callState);
+
+				var bufferSize = arena.allocate(JAVA_INT, SOCKET_BUFFER_SIZE);
+				int ignored = (int) setsockopt$MH.invokeExact(callState, fd, SOL_SOCKET, SO_RCVBUF, bufferSize, (int) JAVA_INT.byteSize());
+				ignored = (int) setsockopt$MH.invokeExact(callState, fd, SOL_SOCKET, SO_SNDBUF, bufferSize, (int) JAVA_INT.byteSize());
+
+				var timeout = arena.allocate(TIMEVAL);
+				timeout.set(JAVA_LONG, 0, RECEIVE_TIMEOUT_SECONDS);
+				if ((int) setsockopt$MH.invokeExact(callState, fd, SOL_SOCKET, SO_RCVTIMEO, timeout, (int) TIMEVAL.byteSize()) < 0)
+					throw errnoException("setsockopt(SO_RCVTIMEO)", callState);
+
+				// older kernels don't know about UDP_GRO, in which case we just receive one datagram per buffer
+				var enable = arena.allocate(JAVA_INT, 1);
+				gro = UDP_OFFLOAD && (int) setsockopt$MH.invokeExact(callState, fd, SOL_UDP, UDP_GRO, enable, (int) JAVA_INT.byteSize()) == 0;
+				gso = UDP_OFFLOAD;
+			} catch (Throwable e) {
+				int ignored = (int) close$MH.invokeExact(callState, fd);
+				throw e;
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Override
+	public void bind(SocketAddress endpoint) throws IOException {
+		if (!(endpoint instanceof InetSocketAddress address))
+			throw new UnsupportedAddressTypeException();
+
+		try (var arena = Arena.ofConfined()) {
+			var callState = arena.allocate(CALL_STATE);
+			var sockaddr = arena.allocate(SOCKADDR_IN6);
+			writeSockaddr(sockaddr, address);
+
+			if ((int) bind$MH.invokeExact(callState, fd, sockaddr, (int) SOCKADDR_IN6.byteSize()) < 0)
+				throw errnoException("bind", callState);
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Override
+	public int receive(MemorySegment[] buffers, long[] lengths, long[] segmentSizes, InetSocketAddress[] senders) throws IOException {
+		if (closed.get())
+			throw new ClosedChannelException();
+
+		if (receiveState == null || receiveState.capacity < buffers.length)
+			receiveState = new ReceiveState(buffers.length, gro);
+
+		var state = receiveState;
+		for (int i = 0; i < buffers.length; i++) {
+			state.iovecs.set(ADDRESS, i * IOVEC.byteSize(), buffers[i]);
+			state.iovecs.set(JAVA_LONG, i * IOVEC.byteSize() + ADDRESS.byteSize(), buffers[i].byteSize());
+			state.messages.set(JAVA_INT, i * MMSGHDR.byteSize() + MSG_NAMELEN, (int) SOCKADDR_IN6.byteSize());
+			if (gro)
+				state.messages.set(JAVA_LONG, i * MMSGHDR.byteSize() + MSG_CONTROLLEN, CMSG_SPACE);
+		}
+
+		int received;
+		try {
+			received = (int) recvmmsg$MH.invokeExact(state.callState, fd, state.messages, buffers.length, MSG_WAITFORONE, MemorySegment.NULL);
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+
+		if (received < 0) {
+			if (closed.get())
+				throw new ClosedChannelException();
+
+			int errno = (int) ERRNO.get(state.callState);
+			if (errno == EAGAIN || errno == EINTR)
+				return 0;
+
+			throw errnoException("recvmmsg", errno);
+		}
+
+		long bytes = 0;
+		int datagrams = 0;
+		for (int i = 0; i < received; i++) {
+			lengths[i] = Integer.toUnsignedLong(state.messages.get(JAVA_INT, i * MMSGHDR.byteSize() + MSG_LEN));
+			segmentSizes[i] = gro ? state.segmentSizeOf(i, lengths[i]) : lengths[i];
+			senders[i] = state.senderOf(i);
+
+			bytes += lengths[i];
+			datagrams += segmentSizes[i] == 0 ? 1 : (int) ((lengths[i] + segmentSizes[i] - 1) / segmentSizes[i]);
+		}
+
+		stats.recordReceive(1, datagrams, bytes);
+		return received;
+	}
+
+	@Override
+	public void send(MemorySegment packet, InetSocketAddress destination) throws IOException {
+		if (closed.get())
+			throw new ClosedChannelException();
+
+		var state = sendState.get();
+		writeSockaddr(state.sockaddr, destination);
+
+		long sent;
+		try {
+			sent = (long) sendto$MH.invokeExact(state.callState, fd, packet, packet.byteSize(), 0, state.sockaddr, (int) SOCKADDR_IN6.byteSize());
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+
+		if (sent < 0) {
+			if (closed.get())
+				throw new ClosedChannelException();
+
+			throw errnoException("sendto", state.callState);
+		}
+
+		stats.recordSend(1, 1, sent);
+	}
+
+	@Override
+	public void send(MemorySegment[] packets, int count, InetSocketAddress destination) throws IOException {
+		if (closed.get())
+			throw new ClosedChannelException();
+
+		var state = sendState.get();
+		state.ensureCapacity(count);
+		writeSockaddr(state.sockaddr, destination);
+
+		for (int i = 0; i < count; i++) {
+			state.iovecs.set(ADDRESS, i * IOVEC.byteSize(), packets[i]);
+			state.iovecs.set(JAVA_LONG, i * IOVEC.byteSize() + ADDRESS.byteSize(), packets[i].byteSize());
+		}
+
+		int sent = 0, syscalls = 0;
+		try {
+			while (sent < count) {
+				boolean segment = gso;
+				int messageCount = state.prepareMessages(packets, sent, count, segment);
+
+				// sendmmsg may stop early, e.g. when the send buffer fills up, so keep going until everything is sent
+				int messagesSent = 0;
+				int result = 0;
+				while (messagesSent < messageCount) {
+					var messages = state.messages.asSlice(messagesSent * MMSGHDR.byteSize());
+					result = (int) sendmmsg$MH.invokeExact(state.callState, fd, messages, messageCount - messagesSent, 0);
+					syscalls++;
+
+					if (result < 0)
+						break;
+
+					messagesSent += result;
+				}
+
+				sent += state.datagramsIn(messagesSent);
+				if (result >= 0)
+					continue;
+
+				if (closed.get())
+					throw new ClosedChannelException();
+
+				int errno = (int) ERRNO.get(state.callState);
+				if (segment && errno == EIO) {
+					log.log(WARNING, "UDP segmentation offload is not supported on this route;  disabling it");
+					gso = false;
+					continue;
+				}
+
+				throw errnoException("sendmmsg", errno);
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		} finally {
+			long bytes = 0;
+			for (int i = 0; i < sent; i++)
+				bytes += packets[i].byteSize();
+
+			stats.recordSend(syscalls, sent, bytes);
+		}
+	}
+
+	@Override
+	public boolean coalescesReceives() {
+		return gro;
+	}
+
+	@Override
+	public SocketStats stats() {
+		return stats;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed.compareAndSet(false, true))
+			return;
+
+		try (var arena = Arena.ofConfined()) {
+			var callState = arena.allocate(CALL_STATE);
+
+			// wake up the receiving thread before the descriptor goes away
+			int ignored = (int) shutdown$MH.invokeExact(callState, fd, SHUT_RDWR);
+			if ((int) close$MH.invokeExact(callState, fd) < 0)
+				throw errnoException("close", callState);
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void writeSockaddr(MemorySegment sockaddr, InetSocketAddress address) {
+		if (address.isUnresolved())
+			throw new UnresolvedAddressException();
+
+		sockaddr.fill((byte) 0);
+		SIN6_FAMILY.set(sockaddr, (short) AF_INET6);
+		SIN6_PORT.set(sockaddr, (short) address.getPort());
+
+		var ip = address.getAddress();
+		var sin6Addr = sockaddr.asSlice(SIN6_ADDR, 16);
+		switch (ip) {
+			case Inet4Address v4 when v4.isAnyLocalAddress() -> {
+				// leave as :: so that the socket accepts both families
+			}
+			case Inet4Address v4 -> {
+				sin6Addr.set(JAVA_SHORT, 10, (short) 0xffff);
+				MemorySegment.copy(v4.getAddress(), 0, sin6Addr, JAVA_BYTE, 12, 4);
+			}
+			case Inet6Address v6 -> {
+				MemorySegment.copy(v6.getAddress(), 0, sin6Addr, JAVA_BYTE, 0, 16);
+				SIN6_SCOPE_ID.set(sockaddr, v6.getScopeId());
+			}
+			default -> throw new UnsupportedAddressTypeException();
+		}
+	}
+
+	private static InetSocketAddress readSockaddr(MemorySegment sockaddr) {
+		var bytes = sockaddr.asSlice(SIN6_ADDR, 16).toArray(JAVA_BYTE);
+		int port = Short.toUnsignedInt((short) SIN6_PORT.get(sockaddr));
+		int scopeId = (int) SIN6_SCOPE_ID.get(sockaddr);
+
+		try {
+			// getByAddress turns IPv4-mapped addresses back into Inet4Addresses
+			var address = scopeId == 0 ? InetAddress.getByAddress(bytes) : Inet6Address.getByAddress(null, bytes, scopeId);
+			return new InetSocketAddress(address, port);
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static IOException errnoException(String call, MemorySegment callState) {
+		return errnoException(call, (int) ERRNO.get(callState));
+	}
+
+	private static IOException errnoException(String call, int errno) {
+		String message;
+		try {
+			message = ((MemorySegment) strerror$MH.invokeExact(errno)).reinterpret(Integer.MAX_VALUE).getUtf8String(0);
+		} catch (Throwable e) {
+			message = "errno " + errno;
+		}
+
+		return new SocketException(call + " failed: " + message);
+	}
+
+	/**
+	 * Native scratch space for a single sending thread.  There is one {@code iovec} per datagram, and every
+	 * {@code mmsghdr} points at a run of them and at the same destination address.
+	 */
+	private static final class SendState {
+		private final MemorySegment callState;
+		private final MemorySegment sockaddr;
+
+		private int capacity;
+		private MemorySegment messages;
+		private MemorySegment iovecs;
+		private MemorySegment controls;
+
+		SendState() {
+			var arena = Arena.ofAuto();
+			callState = arena.allocate(CALL_STATE);
+			sockaddr = arena.allocate(SOCKADDR_IN6);
+		}
+
+		void ensureCapacity(int count) {
+			if (count <= capacity)
+				return;
+
+			var arena = Arena.ofAuto();
+			messages = arena.allocateArray(MMSGHDR, count);
+			iovecs = arena.allocateArray(IOVEC, count);
+			controls = arena.allocate(CMSG_SPACE * count, CMSGHDR.byteAlignment());
+			capacity = count;
+
+			for (int i = 0; i < count; i++) {
+				long message = i * MMSGHDR.byteSize();
+				messages.set(ADDRESS, message + MSG_NAME, sockaddr);
+				messages.set(JAVA_INT, message + MSG_NAMELEN, (int) SOCKADDR_IN6.byteSize());
+			}
+		}
+
+		/**
+		 * Fills in one {@code mmsghdr} per datagram in {@code [from, to)}, or, if {@code segment} is set, one per run
+		 * of datagrams that the kernel can segment:  runs of up to {@link #MAX_SEGMENTS} datagrams of the same size,
+		 * except for the last, which may be shorter.
+		 *
+		 * @return the number of messages
+		 */
+		int prepareMessages(MemorySegment[] packets, int from, int to, boolean segment) {
+			int messageCount = 0;
+
+			for (int first = from; first < to; messageCount++) {
+				long segmentSize = packets[first].byteSize();
+				long total = segmentSize;
+
+				int end = first + 1;
+				while (segment && end < to && end - first < MAX_SEGMENTS) {
+					long size = packets[end].byteSize();
+					if (size > segmentSize || total + size > MAX_SEGMENTED_BYTES)
+						break;
+
+					total += size;
+					end++;
+
+					if (size < segmentSize)
+						break;
+				}
+
+				long message = messageCount * MMSGHDR.byteSize();
+				messages.set(ADDRESS, message + MSG_IOV, iovecs.asSlice(first * IOVEC.byteSize()));
+				messages.set(JAVA_LONG, message + MSG_IOVLEN, end - first);
+
+				if (end - first > 1) {
+					var control = controls.asSlice(messageCount * CMSG_SPACE, CMSG_SPACE);
+					control.set(JAVA_LONG, 0, CMSGHDR.byteSize() + JAVA_SHORT.byteSize());
+					control.set(JAVA_INT, JAVA_LONG.byteSize(), SOL_UDP);
+					control.set(JAVA_INT, JAVA_LONG.byteSize() + JAVA_INT.byteSize(), UDP_SEGMENT);
+					control.set(JAVA_SHORT, CMSGHDR.byteSize(), (short) segmentSize);
+
+					messages.set(ADDRESS, message + MSG_CONTROL, control);
+					messages.set(JAVA_LONG, message + MSG_CONTROLLEN, CMSG_SPACE);
+				} else {
+					messages.set(ADDRESS, message + MSG_CONTROL, MemorySegment.NULL);
+					messages.set(JAVA_LONG, message + MSG_CONTROLLEN, 0);
+				}
+
+				first = end;
+			}
+
+			return messageCount;
+		}
+
+		/**
+		 * Returns the number of datagrams in the first {@code messageCount} prepared messages.
+		 */
+		int datagramsIn(int messageCount) {
+			int datagrams = 0;
+			for (int i = 0; i < messageCount; i++)
+				datagrams += (int) messages.get(JAVA_LONG, i * MMSGHDR.byteSize() + MSG_IOVLEN);
+
+			return datagrams;
+		}
+	}
+
+	/**
+	 * Native scratch space for the receiving thread:  one {@code mmsghdr}, {@code iovec} and {@code sockaddr_in6} per
+	 * buffer.  The last sender is cached so that consecutive datagrams from the same peer share an address object.
+	 */
+	private static final class ReceiveState {
+		private final int capacity;
+
+		private final MemorySegment callState;
+		private final MemorySegment messages;
+		private final MemorySegment iovecs;
+		private final MemorySegment names;
+		private final MemorySegment controls;
+
+		private final MemorySegment lastName;
+		private InetSocketAddress lastSender;
+
+		ReceiveState(int capacity, boolean gro) {
+			this.capacity = capacity;
+
+			var arena = Arena.ofAuto();
+			callState = arena.allocate(CALL_STATE);
+			messages = arena.allocateArray(MMSGHDR, capacity);
+			iovecs = arena.allocateArray(IOVEC, capacity);
+			names = arena.allocateArray(SOCKADDR_IN6, capacity);
+			controls = arena.allocate(CMSG_SPACE * capacity, CMSGHDR.byteAlignment());
+			lastName = arena.allocate(SOCKADDR_IN6);
+
+			for (int i = 0; i < capacity; i++) {
+				long message = i * MMSGHDR.byteSize();
+				messages.set(ADDRESS, message + MSG_NAME, names.asSlice(i * SOCKADDR_IN6.byteSize(), SOCKADDR_IN6));
+				messages.set(ADDRESS, message + MSG_IOV, iovecs.asSlice(i * IOVEC.byteSize(), IOVEC));
+				messages.set(JAVA_LONG, message + MSG_IOVLEN, 1);
+
+				if (gro)
+					messages.set(ADDRESS, message + MSG_CONTROL, controls.asSlice(i * CMSG_SPACE, CMSG_SPACE));
+			}
+		}
+
+		/**
+		 * Returns the size of the datagrams coalesced into the given message, as reported by its {@code UDP_GRO}
+		 * control message, or its length if there isn't one.
+		 */
+		long segmentSizeOf(int index, long length) {
+			long message = index * MMSGHDR.byteSize();
+			if (messages.get(JAVA_LONG, message + MSG_CONTROLLEN) < CMSGHDR.byteSize() + JAVA_INT.byteSize())
+				return length;
+
+			var control = controls.asSlice(index * CMSG_SPACE, CMSG_SPACE);
+			if (control.get(JAVA_INT, JAVA_LONG.byteSize()) != SOL_UDP || control.get(JAVA_INT, JAVA_LONG.byteSize() + JAVA_INT.byteSize()) != UDP_GRO)
+				return length;
+
+			int segmentSize = control.get(JAVA_INT, CMSGHDR.byteSize());
+			return segmentSize > 0 ? Math.min(segmentSize, length) : length;
+		}
+
+		InetSocketAddress senderOf(int index) {
+			long offset = index * SOCKADDR_IN6.byteSize();
+			long size = SOCKADDR_IN6.byteSize();
+
+			if (lastSender == null || MemorySegment.mismatch(names, offset, offset + size, lastName, 0, size) != -1) {
+				var name = names.asSlice(offset, size);
+				lastName.copyFrom(name);
+				lastSender = readSockaddr(name);
+			}
+
+			return lastSender;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package ax.xz.wireguard.device.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * A UDP socket through which a device exchanges packets with its peers.
+ *
+ * <p>
+ * On Linux, {@link #open()} returns a socket that receives and sends datagrams in batches with a single
+ * {@code recvmmsg} or {@code sendmmsg} call.
+ * Elsewhere, or if the {@code ax.xz.wireguard.batchedIO} system property is {@code false}, it returns a socket backed
+ * by a {@link java.nio.channels.DatagramChannel}.
+ * </p>
+ *
+ * <p>
+ * If the {@code ax.xz.wireguard.udpOffload} system property is {@code true}, the Linux socket also uses UDP
+ * segmentation offload ({@code UDP_SEGMENT}) to send runs of same-size datagrams as one, and generic receive offload
+ * ({@code UDP_GRO}) to receive several datagrams from the same sender into one buffer.
+ * </p>
+ *
+ * <p>
+ * {@link #receive} may only be called by one thread at a time.  {@link #send} may be called concurrently.
+ * </p>
+ */
+public sealed interface PeerSocket extends Closeable permits ChannelPeerSocket, LinuxPeerSocket {
+	boolean BATCHED_IO = Boolean.parseBoolean(System.getProperty("ax.xz.wireguard.batchedIO", "true"));
+	boolean UDP_OFFLOAD = Boolean.getBoolean("ax.xz.wireguard.udpOffload");
+
+	/**
+	 * The size that receive buffers should be if {@link #coalescesReceives()} is true
+	 */
+	int MAX_COALESCED_SIZE = 65535;
+
+	static PeerSocket open() throws IOException {
+		if (BATCHED_IO && System.getProperty("os.name").equalsIgnoreCase("linux"))
+			return new LinuxPeerSocket();
+		else
+			return new ChannelPeerSocket();
+	}
+
+	void bind(SocketAddress endpoint) throws IOException;
+
+	/**
+	 * Blocks until at least one datagram is available, and then receives as many datagrams as are available and fit
+	 * in the given buffers.  The i-th datagram is written to the start of {@code buffers[i]}, and its length and sender
+	 * are written to {@code lengths[i]} and {@code senders[i]}.
+	 *
+	 * <p>
+	 * If the socket {@linkplain #coalescesReceives() coalesces receives}, {@code buffers[i]} may instead hold several
+	 * consecutive datagrams from the same sender, each {@code segmentSizes[i]} bytes long except for the last, which
+	 * may be shorter.  Otherwise, {@code segmentSizes[i]} is always {@code lengths[i]}.
+	 * </p>
+	 *
+	 * @param buffers      the native buffers to receive datagrams into
+	 * @param lengths      receives the number of bytes written to each buffer
+	 * @param segmentSizes receives the size of the datagrams in each buffer
+	 * @param senders      receives the sender of each buffer's datagrams
+	 * @return the number of buffers filled, which may be zero if the call timed out or was interrupted
+	 * @throws IOException if the socket is closed or an I/O error occurs
+	 */
+	int receive(MemorySegment[] buffers, long[] lengths, long[] segmentSizes, InetSocketAddress[] senders) throws IOException;
+
+	/**
+	 * Returns true if {@link #receive} may put several datagrams into one buffer, in which case each buffer should be
+	 * {@link #MAX_COALESCED_SIZE} bytes long.
+	 */
+	boolean coalescesReceives();
+
+	/**
+	 * Sends a single datagram.
+	 *
+	 * @param packet      the native buffer containing the datagram
+	 * @param destination the address to send it to
+	 * @throws IOException if an I/O error occurs
+	 */
+	void send(MemorySegment packet, InetSocketAddress destination) throws IOException;
+
+	/**
+	 * Sends a batch of datagrams to the same destination, in as few syscalls as the socket allows.
+	 *
+	 * @param packets     the native buffers containing the datagrams;  the first {@code count} elements are sent
+	 * @param count       the number of datagrams to send
+	 * @param destination the address to send them to
+	 * @throws IOException if an I/O error occurs, in which case only some of the datagrams may have been sent
+	 */
+	void send(MemorySegment[] packets, int count, InetSocketAddress destination) throws IOException;
+
+	SocketStats stats();
+
+	boolean isOpen();
+}
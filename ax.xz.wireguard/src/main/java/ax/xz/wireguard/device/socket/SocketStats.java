@@ -0,0 +1,53 @@
+package ax.xz.wireguard.device.socket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the syscalls a {@link PeerSocket} makes and the datagrams and bytes they carry.
+ * Dividing the number of datagrams by the number of syscalls gives the average batch size.
+ */
+public final class SocketStats {
+	private final LongAdder receiveSyscalls = new LongAdder();
+	private final LongAdder datagramsReceived = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+
+	private final LongAdder sendSyscalls = new LongAdder();
+	private final LongAdder datagramsSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+
+	void recordReceive(int syscalls, int datagrams, long bytes) {
+		receiveSyscalls.add(syscalls);
+		datagramsReceived.add(datagrams);
+		bytesReceived.add(bytes);
+	}
+
+	void recordSend(int syscalls, int datagrams, long bytes) {
+		sendSyscalls.add(syscalls);
+		datagramsSent.add(datagrams);
+		bytesSent.add(bytes);
+	}
+
+	public long receiveSyscalls() {
+		return receiveSyscalls.sum();
+	}
+
+	public long datagramsReceived() {
+		return datagramsReceived.sum();
+	}
+
+	public long bytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long sendSyscalls() {
+		return sendSyscalls.sum();
+	}
+
+	public long datagramsSent() {
+		return datagramsSent.sum();
+	}
+
+	public long bytesSent() {
+		return bytesSent.sum();
+	}
+}
@@ -0,0 +1,8 @@
+/**
+ * This package contains the UDP sockets through which a {@link ax.xz.wireguard.device.WireguardDevice} exchanges
+ * packets with its peers.
+ */
+@ParametersAreNonnullByDefault
+package ax.xz.wireguard.device.socket;
+
+import javax.annotation.ParametersAreNonnullByDefault;
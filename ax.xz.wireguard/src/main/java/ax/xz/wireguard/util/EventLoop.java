@@ -0,0 +1,146 @@
+package ax.xz.wireguard.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * A single thread that runs tasks one at a time.
+ *
+ * <p>
+ * Tasks may be submitted from any thread, and run in the order they were submitted.  Timers are kept by the
+ * {@link TimingWheel} the loop was created with, which submits their tasks to the loop when they fire.  Since
+ * everything submitted to a loop runs on the same thread, state that is only touched by tasks on one loop needs no
+ * locking.
+ * </p>
+ *
+ * <p>
+ * While there is nothing to do, the thread parks until a task is submitted.
+ * </p>
+ */
+public final class EventLoop implements Executor, AutoCloseable {
+	private static final System.Logger logger = System.getLogger(EventLoop.class.getName());
+
+	private static final VarHandle AWAKE;
+
+	static {
+		try {
+			AWAKE = MethodHandles.lookup().findVarHandle(EventLoop.class, "awake", boolean.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Thread thread;
+	private final TimingWheel wheel;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// false while the loop thread is parked, or about to park.  whoever sets it back to true has to unpark the thread
+	private volatile boolean awake = true;
+	private volatile boolean running = true;
+
+	EventLoop(ThreadFactory threadFactory, TimingWheel wheel) {
+		this.wheel = wheel;
+		this.thread = threadFactory.newThread(this::run);
+		thread.start();
+	}
+
+	/**
+	 * Runs the given task on this loop.
+	 *
+	 * @param task the task to run
+	 * @throws RejectedExecutionException if the loop has been closed
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (!running)
+			throw new RejectedExecutionException("Event loop is closed");
+
+		tasks.offer(task);
+
+		if (!awake && AWAKE.compareAndSet(this, false, true))
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Runs the given task on this loop once the given delay has passed.
+	 *
+	 * @param delay the time to wait before running the task
+	 * @param task  the task to run
+	 * @return a handle through which the timer can be cancelled
+	 * @throws RejectedExecutionException if the loop's wheel has been closed
+	 */
+	public TimingWheel.Timer schedule(Duration delay, Runnable task) {
+		return wheel.schedule(delay, this, task);
+	}
+
+	/**
+	 * Returns the wheel that keeps this loop's timers, which is also the clock they're measured against.
+	 */
+	public TimingWheel wheel() {
+		return wheel;
+	}
+
+	/**
+	 * Returns true if the calling thread is this loop's thread.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	private void run() {
+		while (running) {
+			runTasks();
+
+			awake = false;
+
+			// a task may have been submitted after we drained the queue but before we cleared the flag, in which case
+			// the submitter saw the flag set and didn't unpark us
+			if (!tasks.isEmpty() || !running) {
+				awake = true;
+				continue;
+			}
+
+			LockSupport.park(this);
+			awake = true;
+		}
+
+		// let anything submitted before the loop was closed finish, such as whatever cleanup the closer asked for
+		runTasks();
+
+		logger.log(DEBUG, "Event loop {0} stopped", thread.getName());
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			runSafely(task);
+	}
+
+	private static void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable e) {
+			logger.log(WARNING, "Unhandled exception in event loop task", e);
+		}
+	}
+
+	/**
+	 * Stops the loop.  Tasks that were submitted before the loop was closed still run, but timers that fire afterwards
+	 * are dropped.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+}
@@ -0,0 +1,57 @@
+package ax.xz.wireguard.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link EventLoop}s, which work is spread over in turn, and the {@link TimingWheel} that keeps all of
+ * their timers.
+ */
+public final class EventLoopGroup implements AutoCloseable {
+	/**
+	 * The number of loops a group has unless told otherwise
+	 */
+	public static final int DEFAULT_SIZE = Integer.getInteger("ax.xz.wireguard.eventLoops", Runtime.getRuntime().availableProcessors());
+
+	private final TimingWheel wheel;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	public EventLoopGroup(String name) {
+		this(name, DEFAULT_SIZE);
+	}
+
+	public EventLoopGroup(String name, int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Size must be positive");
+
+		var threadFactory = Thread.ofPlatform().name(name + " ", 0).daemon().factory();
+
+		this.wheel = new TimingWheel(name + " timers");
+		this.loops = new EventLoop[size];
+		for (int i = 0; i < size; i++)
+			loops[i] = new EventLoop(threadFactory, wheel);
+	}
+
+	/**
+	 * Returns the next loop in the group, cycling through them in order.
+	 */
+	public EventLoop next() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	public TimingWheel wheel() {
+		return wheel;
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	@Override
+	public void close() {
+		wheel.close();
+
+		for (var loop : loops)
+			loop.close();
+	}
+}
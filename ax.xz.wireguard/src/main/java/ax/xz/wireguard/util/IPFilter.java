@@ -3,42 +3,18 @@ package ax.xz.wireguard.util;
 import java.lang.foreign.MemorySegment;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-import static java.lang.foreign.ValueLayout.JAVA_BYTE;
-
+/**
+ * A set of IP prefixes, such as the allowed IPs of a peer.  Membership checks are backed by a {@link PrefixTable}.
+ */
 public class IPFilter {
-	private final Node root4 = new Node();
-	private final Node root6 = new Node();
-
-	private static class Node {
-		Node[] children = new Node[2];
-		boolean isEndOfSubnet;
-	}
-
-	private boolean getBit(byte[] bytes, int position) {
-		int bytePosition = position / 8;
-		int bitPosition = position % 8;
-		return ((bytes[bytePosition] >>> (7 - bitPosition)) & 1) != 0;
-	}
-
-	private boolean getBit(MemorySegment bytes, int position) {
-		int bytePosition = position / 8;
-		int bitPosition = position % 8;
-		return ((bytes.get(JAVA_BYTE, bytePosition) >>> (7 - bitPosition)) & 1) != 0;
-	}
+	private final PrefixTable<Boolean> prefixes = new PrefixTable<>();
 
 	public void insert(InetAddress subnet, int prefixLength) {
-		byte[] bytes = subnet.getAddress();
-		var node = bytes.length == 4 ? root4 : root6;
-
-		for (int i = 0; i < prefixLength; i++) {
-			int bit = getBit(bytes, i) ? 1 : 0;
-			if (node.children[bit] == null) {
-				node.children[bit] = new Node();
-			}
-			node = node.children[bit];
-		}
-		node.isEndOfSubnet = true;
+		prefixes.insert(subnet, prefixLength, Boolean.TRUE);
 	}
 
 	/**
@@ -47,28 +23,34 @@ public class IPFilter {
 	 * @return true if the given IP address is in the filter
 	 */
 	public boolean search(MemorySegment ipBytes) {
-		var node = ipBytes.byteSize() == 4 ? root4 : root6;
-
-		boolean found = false;
-		for (int i = 0; i < ipBytes.byteSize() * 8; i++) {
-			if (node.isEndOfSubnet) found = true;
-
-			int bit = getBit(ipBytes, i) ? 1 : 0;
-			node = node.children[bit];
-			if (node == null) break;
-		}
-		return found;
+		return prefixes.lookup(ipBytes) != null;
 	}
 
 	public boolean search(InetAddress address) {
 		return search(MemorySegment.ofArray(address.getAddress()));
 	}
 
+	/**
+	 * Returns the prefixes in this filter, as pairs of addresses and prefix lengths.
+	 */
+	public Set<Map.Entry<InetAddress, Integer>> subnets() {
+		var result = new HashSet<Map.Entry<InetAddress, Integer>>();
+		for (var route : prefixes.routes())
+			result.add(Map.entry(route.address(), route.prefixLength()));
+
+		return result;
+	}
+
+	/**
+	 * Returns a filter containing every IPv4 and IPv6 address.  Since allowed IPs are also routes, a peer with this
+	 * filter is the default route, so it's only for callers that ask for that explicitly;  an empty or missing set of
+	 * allowed IPs is a {@code new IPFilter()}, which routes nothing.
+	 */
 	public static IPFilter allowingAll() {
 		var filter = new IPFilter();
 		try {
-			filter.insert(InetAddress.getByName("0.0.0.0"), 32);
-			filter.insert(InetAddress.getByName("::"), 128);
+			filter.insert(InetAddress.getByName("0.0.0.0"), 0);
+			filter.insert(InetAddress.getByName("::"), 0);
 		} catch (UnknownHostException e) {
 			throw new Error(e);
 		}
@@ -93,4 +75,3 @@ public class IPFilter {
 	}
 
 }
-
@@ -1,9 +1,12 @@
 package ax.xz.wireguard.util;
 
+import java.lang.foreign.MemorySegment;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
 public class IPUtils {
 	public static InetAddress fullNetmask(boolean isIpv6) {
 		var maskBytes = new byte[isIpv6 ? 16 : 4];
@@ -37,4 +40,39 @@ public class IPUtils {
 			throw new Error(e);
 		}
 	}
+
+	/**
+	 * Returns the source IP address of the given IP packet.
+	 * @param packet an IPv4 or IPv6 packet
+	 * @return a slice of the packet containing the source address
+	 * @throws IllegalArgumentException if the packet is neither IPv4 nor IPv6
+	 */
+	public static MemorySegment sourceAddressOf(MemorySegment packet) {
+		return switch (ipVersionOf(packet)) {
+			case 4 -> packet.asSlice(12, 4);
+			case 6 -> packet.asSlice(8, 16);
+			default -> throw new IllegalArgumentException("Unknown IP version");
+		};
+	}
+
+	/**
+	 * Returns the destination IP address of the given IP packet.
+	 * @param packet an IPv4 or IPv6 packet
+	 * @return a slice of the packet containing the destination address
+	 * @throws IllegalArgumentException if the packet is neither IPv4 nor IPv6
+	 */
+	public static MemorySegment destinationAddressOf(MemorySegment packet) {
+		return switch (ipVersionOf(packet)) {
+			case 4 -> packet.asSlice(16, 4);
+			case 6 -> packet.asSlice(24, 16);
+			default -> throw new IllegalArgumentException("Unknown IP version");
+		};
+	}
+
+	private static int ipVersionOf(MemorySegment packet) {
+		if (packet.byteSize() == 0)
+			throw new IllegalArgumentException("Empty packet");
+
+		return (packet.get(JAVA_BYTE, 0) >> 4) & 0xf;
+	}
 }
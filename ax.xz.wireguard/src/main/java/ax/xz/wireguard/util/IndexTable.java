@@ -0,0 +1,175 @@
+package ax.xz.wireguard.util;
+
+import javax.annotation.Nullable;
+import java.security.SecureRandom;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of values under random 32-bit indices, such as the session indices that WireGuard messages are addressed
+ * to.
+ *
+ * <p>
+ * The table is open-addressed with linear probing.  Each slot holds an immutable entry pairing an index with its
+ * value, so a lookup is a read of one slot after another until it finds the index or an empty slot, and never locks,
+ * allocates or retries.  The table is never more than half full, counting the slots of removed entries, so there is
+ * always an empty slot to stop at.  The indices are chosen uniformly at random, so their low bits are used as the hash.
+ * </p>
+ *
+ * <p>
+ * Allocations and removals are made under a lock.  When the table gets too full, the live entries are copied into a
+ * new table, which is then published in place of the old one;  lookups already under way finish against the old table.
+ * </p>
+ *
+ * @param <T> the type of value the indices map to
+ */
+public final class IndexTable<T> {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// left in the slot of a removed entry, so that probes for entries past it don't stop there
+	private static final Entry<?> REMOVED = new Entry<>(0, null);
+
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile AtomicReferenceArray<Entry<T>> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+	// guarded by this
+	private int size, removed;
+
+	/**
+	 * Returns the value under the given index, or null if there is none
+	 */
+	@Nullable
+	public T get(int index) {
+		var table = this.table;
+		int mask = table.length() - 1;
+
+		for (int slot = index & mask; ; slot = (slot + 1) & mask) {
+			var entry = table.get(slot);
+			if (entry == null)
+				return null;
+
+			if (entry.index == index && entry != REMOVED)
+				return entry.value;
+		}
+	}
+
+	/**
+	 * Puts the given value under a new random index
+	 *
+	 * @return the index
+	 */
+	public synchronized int allocate(T value) {
+		Objects.requireNonNull(value);
+
+		if ((size + removed + 1) * 2 > table.length())
+			rebuild();
+
+		var table = this.table;
+		int mask = table.length() - 1;
+
+		while (true) {
+			int index = random.nextInt();
+
+			// the first removed slot along the way can be reused, once we know the index isn't already taken
+			int free = -1;
+			int slot = index & mask;
+			for (Entry<T> entry; (entry = table.get(slot)) != null; slot = (slot + 1) & mask) {
+				if (entry == REMOVED) {
+					if (free < 0)
+						free = slot;
+				} else if (entry.index == index) {
+					break;
+				}
+			}
+
+			if (table.get(slot) != null)
+				continue; // taken
+
+			if (free >= 0) {
+				slot = free;
+				removed--;
+			}
+
+			table.set(slot, new Entry<>(index, value));
+			size++;
+			return index;
+		}
+	}
+
+	/**
+	 * Puts a new value under an index that's already in the table, if it's there.  Lookups see either the old value or
+	 * the new one, never neither.
+	 */
+	public synchronized void replace(int index, T value) {
+		Objects.requireNonNull(value);
+
+		var table = this.table;
+		int mask = table.length() - 1;
+
+		for (int slot = index & mask; ; slot = (slot + 1) & mask) {
+			var entry = table.get(slot);
+			if (entry == null)
+				return;
+
+			if (entry.index == index && entry != REMOVED) {
+				table.set(slot, new Entry<>(index, value));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes the given index from the table, if it's there
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void remove(int index) {
+		var table = this.table;
+		int mask = table.length() - 1;
+
+		for (int slot = index & mask; ; slot = (slot + 1) & mask) {
+			var entry = table.get(slot);
+			if (entry == null)
+				return;
+
+			if (entry.index == index && entry != REMOVED) {
+				table.set(slot, (Entry<T>) REMOVED);
+				size--;
+				removed++;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Copies the live entries into a new table big enough that it is at most a quarter full, and publishes it
+	 */
+	private void rebuild() {
+		var from = table;
+
+		int capacity = INITIAL_CAPACITY;
+		while ((size + 1) * 4 > capacity)
+			capacity *= 2;
+
+		var to = new AtomicReferenceArray<Entry<T>>(capacity);
+		int mask = capacity - 1;
+
+		for (int i = 0; i < from.length(); i++) {
+			var entry = from.get(i);
+			if (entry == null || entry == REMOVED)
+				continue;
+
+			int slot = entry.index & mask;
+			while (to.get(slot) != null)
+				slot = (slot + 1) & mask;
+
+			to.set(slot, entry);
+		}
+
+		removed = 0;
+		table = to;
+	}
+
+	private record Entry<T>(int index, T value) {
+	}
+}
@@ -0,0 +1,411 @@
+package ax.xz.wireguard.util;
+
+import javax.annotation.Nullable;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * A longest-prefix-match table that maps IPv4 and IPv6 prefixes to values.
+ *
+ * <p>
+ * Lookups run against an immutable, compiled multibit trie in the style of a poptrie.  Each level of the trie
+ * consumes 6 bits of the address.  A node is a 64-bit bitmap of the slots that have child nodes and a 64-bit bitmap
+ * marking where runs of identical leaves begin;  children and leaves are stored contiguously, so the position of a
+ * slot's child or leaf is found with a population count instead of a pointer per slot.  An IPv4 lookup visits at most
+ * 6 nodes and an IPv6 lookup at most 22, each costing a few primitive array reads.  Lookups never lock or allocate.
+ * </p>
+ *
+ * <p>
+ * Modifications are made to the set of routes under a lock, and the trie is recompiled on the first lookup after a
+ * modification, so adding many routes at once costs a single compilation.  Inserting a prefix that is already in the
+ * table replaces its value.
+ * </p>
+ *
+ * @param <T> the type of value the prefixes map to
+ */
+public final class PrefixTable<T> {
+	private static final int STRIDE = 6;
+
+	private static final ValueLayout.OfInt BIG_ENDIAN_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	private static final ValueLayout.OfLong BIG_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	private final Map<Prefix, T> routes = new HashMap<>();
+
+	// null when the routes have been modified since the last compilation
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Adds a route to the table, replacing any existing route with the same prefix.
+	 *
+	 * @param address      the address of the prefix.  Bits past the prefix length are ignored.
+	 * @param prefixLength the length of the prefix, in bits
+	 * @param value        the value to map the prefix to
+	 */
+	public synchronized void insert(InetAddress address, int prefixLength, T value) {
+		routes.put(Prefix.of(address, prefixLength), Objects.requireNonNull(value));
+		snapshot = null;
+	}
+
+	/**
+	 * Adds a route to the table, unless there is already a route with the same prefix.
+	 *
+	 * @param address      the address of the prefix.  Bits past the prefix length are ignored.
+	 * @param prefixLength the length of the prefix, in bits
+	 * @param value        the value to map the prefix to
+	 * @return true if the route was added, or false if the prefix was already routed
+	 */
+	public synchronized boolean insertIfAbsent(InetAddress address, int prefixLength, T value) {
+		boolean added = routes.putIfAbsent(Prefix.of(address, prefixLength), Objects.requireNonNull(value)) == null;
+		if (added)
+			snapshot = null;
+
+		return added;
+	}
+
+	/**
+	 * Removes the route with the given prefix.
+	 *
+	 * @return true if there was a route with the given prefix
+	 */
+	public synchronized boolean remove(InetAddress address, int prefixLength) {
+		boolean removed = routes.remove(Prefix.of(address, prefixLength)) != null;
+		if (removed)
+			snapshot = null;
+
+		return removed;
+	}
+
+	/**
+	 * Removes every route that maps to the given value.
+	 *
+	 * @return true if any route was removed
+	 */
+	public synchronized boolean removeValue(T value) {
+		boolean removed = routes.values().removeIf(v -> v == value);
+		if (removed)
+			snapshot = null;
+
+		return removed;
+	}
+
+	/**
+	 * Returns the routes in this table.
+	 */
+	public synchronized List<Route<T>> routes() {
+		var result = new ArrayList<Route<T>>(routes.size());
+		for (var entry : routes.entrySet())
+			result.add(new Route<>(entry.getKey().toAddress(), entry.getKey().length, entry.getValue()));
+
+		return result;
+	}
+
+	/**
+	 * Returns the value of the longest prefix containing the given address.
+	 *
+	 * @param address a 4-byte IPv4 or 16-byte IPv6 address, in network byte order
+	 * @return the value of the longest matching prefix, or null if no prefix matches
+	 */
+	@Nullable
+	public T lookup(MemorySegment address) {
+		if (address.byteSize() == 4)
+			return lookup4(address.get(BIG_ENDIAN_INT, 0));
+		else if (address.byteSize() == 16)
+			return lookup6(address.get(BIG_ENDIAN_LONG, 0), address.get(BIG_ENDIAN_LONG, 8));
+		else
+			throw new IllegalArgumentException("Address must be 4 or 16 bytes long (is " + address.byteSize() + ")");
+	}
+
+	@Nullable
+	public T lookup(InetAddress address) {
+		return lookup(MemorySegment.ofArray(address.getAddress()));
+	}
+
+	/**
+	 * Returns the value of the longest IPv4 prefix containing the given address.
+	 */
+	@Nullable
+	public T lookup4(int address) {
+		var snapshot = compiledSnapshot();
+		return snapshot.valueOf(snapshot.ipv4.lookup((long) address << 32, 0));
+	}
+
+	/**
+	 * Returns the value of the longest IPv6 prefix containing the address made of the given high and low 64 bits.
+	 */
+	@Nullable
+	public T lookup6(long high, long low) {
+		var snapshot = compiledSnapshot();
+		return snapshot.valueOf(snapshot.ipv6.lookup(high, low));
+	}
+
+	private Snapshot compiledSnapshot() {
+		var snapshot = this.snapshot;
+		if (snapshot != null)
+			return snapshot;
+
+		return compile();
+	}
+
+	private synchronized Snapshot compile() {
+		if (snapshot != null)
+			return snapshot;
+
+		var values = new ArrayList<Object>();
+		var valueIndices = new IdentityHashMap<Object, Integer>();
+		var routes4 = new ArrayList<CompiledRoute>();
+		var routes6 = new ArrayList<CompiledRoute>();
+
+		for (var entry : routes.entrySet()) {
+			int valueIndex = valueIndices.computeIfAbsent(entry.getValue(), v -> {
+				values.add(v);
+				return values.size();
+			});
+
+			var prefix = entry.getKey();
+			(prefix.isIPv6 ? routes6 : routes4).add(new CompiledRoute(prefix.high, prefix.low, prefix.length, valueIndex));
+		}
+
+		var result = new Snapshot(Trie.compile(routes4), Trie.compile(routes6), values.toArray());
+		snapshot = result;
+		return result;
+	}
+
+	/**
+	 * Extracts the {@link #STRIDE} bits of the 128-bit key (high, low) starting at the given bit offset.
+	 * Bits past the end of the key read as zero.
+	 */
+	private static int extract(long high, long low, int offset) {
+		if (offset + STRIDE <= 64)
+			return (int) (high >>> (64 - STRIDE - offset)) & 63;
+		if (offset >= 64) {
+			offset -= 64;
+			if (offset + STRIDE <= 64)
+				return (int) (low >>> (64 - STRIDE - offset)) & 63;
+
+			return (int) (low << (offset - (64 - STRIDE))) & 63;
+		}
+
+		return (int) ((high << (offset - (64 - STRIDE))) | (low >>> (128 - STRIDE - offset))) & 63;
+	}
+
+	/**
+	 * A route in the table.
+	 */
+	public record Route<T>(InetAddress address, int prefixLength, T value) {
+	}
+
+	private record Snapshot(Trie ipv4, Trie ipv6, Object[] values) {
+		@SuppressWarnings("unchecked")
+		<T> T valueOf(int leaf) {
+			return leaf == 0 ? null : (T) values[leaf - 1];
+		}
+	}
+
+	private record CompiledRoute(long high, long low, int length, int valueIndex) {
+	}
+
+	/**
+	 * A compiled trie.  Node {@code i} is described by {@code childBitmap[i]}, {@code leafBitmap[i]},
+	 * {@code leafBase[i]} and {@code childBase[i]}.  Leaves are indices into {@link Snapshot#values}, offset by one so
+	 * that zero means no route.
+	 */
+	private record Trie(long[] childBitmap, long[] leafBitmap, int[] leafBase, int[] childBase, int[] leaves) {
+		int lookup(long high, long low) {
+			int index = 0;
+			int offset = 0;
+
+			long children = childBitmap[0];
+			int slot = extract(high, low, 0);
+
+			while ((children & (1L << slot)) != 0) {
+				index = childBase[index] + Long.bitCount(children & ((2L << slot) - 1)) - 1;
+				children = childBitmap[index];
+
+				offset += STRIDE;
+				slot = extract(high, low, offset);
+			}
+
+			return leaves[leafBase[index] + Long.bitCount(leafBitmap[index] & ((2L << slot) - 1)) - 1];
+		}
+
+		static Trie compile(List<CompiledRoute> routes) {
+			var sorted = new ArrayList<>(routes);
+			sorted.sort(Comparator.comparingInt(CompiledRoute::length));
+
+			int defaultLeaf = 0;
+			var nonDefault = new ArrayList<CompiledRoute>(sorted.size());
+			for (var route : sorted) {
+				if (route.length == 0)
+					defaultLeaf = route.valueIndex;
+				else
+					nonDefault.add(route);
+			}
+
+			var builder = new Builder();
+			builder.reserveNodes(1);
+			builder.compileNode(nonDefault, 0, defaultLeaf, 0);
+			return builder.build();
+		}
+	}
+
+	private static final class Builder {
+		private long[] childBitmap = new long[16], leafBitmap = new long[16];
+		private int[] leafBase = new int[16], childBase = new int[16];
+		private int nodeCount = 0;
+
+		private int[] leaves = new int[64];
+		private int leafCount = 0;
+
+		int reserveNodes(int count) {
+			int first = nodeCount;
+			nodeCount += count;
+
+			if (nodeCount > childBitmap.length) {
+				int capacity = Math.max(nodeCount, childBitmap.length * 2);
+				childBitmap = Arrays.copyOf(childBitmap, capacity);
+				leafBitmap = Arrays.copyOf(leafBitmap, capacity);
+				leafBase = Arrays.copyOf(leafBase, capacity);
+				childBase = Arrays.copyOf(childBase, capacity);
+			}
+
+			return first;
+		}
+
+		private void appendLeaf(int leaf) {
+			if (leafCount == leaves.length)
+				leaves = Arrays.copyOf(leaves, leaves.length * 2);
+
+			leaves[leafCount++] = leaf;
+		}
+
+		/**
+		 * Compiles the node at the given depth into the given (already reserved) node index.
+		 *
+		 * @param routes    the routes below this node, all longer than depth, sorted by ascending prefix length
+		 * @param depth     the number of address bits consumed before this node
+		 * @param inherited the leaf of the longest route at most depth bits long on the path to this node
+		 * @param index     the index of this node
+		 */
+		@SuppressWarnings("unchecked")
+		void compileNode(List<CompiledRoute> routes, int depth, int inherited, int index) {
+			var slotLeaves = new int[64];
+			Arrays.fill(slotLeaves, inherited);
+
+			var childRoutes = (List<CompiledRoute>[]) new List<?>[64];
+			long children = 0;
+
+			for (var route : routes) {
+				int slot = extract(route.high, route.low, depth);
+
+				if (route.length <= depth + STRIDE) {
+					int span = 1 << (depth + STRIDE - route.length);
+					Arrays.fill(slotLeaves, slot & -span, (slot & -span) + span, route.valueIndex);
+				} else {
+					if (childRoutes[slot] == null)
+						childRoutes[slot] = new ArrayList<>();
+
+					childRoutes[slot].add(route);
+					children |= 1L << slot;
+				}
+			}
+
+			var childLeaves = slotLeaves.clone();
+
+			// leaves under a child are never read, so extend the previous run over them
+			long leafRuns = 0;
+			leafBase[index] = leafCount;
+			for (int slot = 0; slot < 64; slot++) {
+				if (slot > 0 && (children & (1L << slot)) != 0)
+					slotLeaves[slot] = slotLeaves[slot - 1];
+
+				if (slot == 0 || slotLeaves[slot] != slotLeaves[slot - 1]) {
+					leafRuns |= 1L << slot;
+					appendLeaf(slotLeaves[slot]);
+				}
+			}
+
+			childBitmap[index] = children;
+			leafBitmap[index] = leafRuns;
+
+			if (children == 0)
+				return;
+
+			int firstChild = reserveNodes(Long.bitCount(children));
+			childBase[index] = firstChild;
+
+			int child = firstChild;
+			for (int slot = 0; slot < 64; slot++) {
+				if (childRoutes[slot] != null)
+					compileNode(childRoutes[slot], depth + STRIDE, childLeaves[slot], child++);
+			}
+		}
+
+		Trie build() {
+			return new Trie(
+				Arrays.copyOf(childBitmap, nodeCount),
+				Arrays.copyOf(leafBitmap, nodeCount),
+				Arrays.copyOf(leafBase, nodeCount),
+				Arrays.copyOf(childBase, nodeCount),
+				Arrays.copyOf(leaves, leafCount)
+			);
+		}
+	}
+
+	/**
+	 * A prefix, left-aligned in a 128-bit key, with the bits past its length cleared.
+	 */
+	private record Prefix(boolean isIPv6, long high, long low, int length) {
+		static Prefix of(InetAddress address, int length) {
+			var bytes = address.getAddress();
+			if (length < 0 || length > bytes.length * 8)
+				throw new IllegalArgumentException("Invalid prefix length " + length + " for " + address);
+
+			var segment = MemorySegment.ofArray(bytes);
+
+			long high, low;
+			if (bytes.length == 4) {
+				high = (long) segment.get(BIG_ENDIAN_INT, 0) << 32;
+				low = 0;
+			} else {
+				high = segment.get(BIG_ENDIAN_LONG, 0);
+				low = segment.get(BIG_ENDIAN_LONG, 8);
+			}
+
+			high &= mask(length);
+			low &= mask(length - 64);
+
+			return new Prefix(bytes.length == 16, high, low, length);
+		}
+
+		private static long mask(int bits) {
+			if (bits <= 0)
+				return 0;
+			if (bits >= 64)
+				return -1;
+
+			return -1L << (64 - bits);
+		}
+
+		InetAddress toAddress() {
+			var bytes = new byte[isIPv6 ? 16 : 4];
+			var segment = MemorySegment.ofArray(bytes);
+
+			if (isIPv6) {
+				segment.set(BIG_ENDIAN_LONG, 0, high);
+				segment.set(BIG_ENDIAN_LONG, 8, low);
+			} else {
+				segment.set(BIG_ENDIAN_INT, 0, (int) (high >>> 32));
+			}
+
+			try {
+				return InetAddress.getByAddress(bytes);
+			} catch (UnknownHostException e) {
+				throw new Error(e);
+			}
+		}
+	}
+}
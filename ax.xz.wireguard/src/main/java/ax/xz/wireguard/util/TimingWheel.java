@@ -0,0 +1,287 @@
+package ax.xz.wireguard.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * A hierarchical timing wheel, which fires timers on a single thread and hands their tasks to the executors they were
+ * scheduled on.
+ *
+ * <p>
+ * Time is divided into ticks of {@link #TICK_NANOS}.  The wheel has {@link #LEVELS} levels of {@link #SLOTS} slots
+ * each;  a slot on the bottom level holds the timers due in one tick, and a slot on each level above holds as many
+ * ticks as the whole level below it.  Every time a level wraps around, the next slot of the level above is emptied
+ * into the levels below it, so timers work their way down until they fire.  With four levels of 64 slots, the wheel
+ * covers about 46 hours;  timers further away than that are parked in the top level until they come within range.
+ * </p>
+ *
+ * <p>
+ * Scheduling and cancelling are both O(1).  A new timer is handed to the wheel thread through a queue, and is only
+ * put into a slot by that thread, so the slots need no locking.  A cancelled timer is only marked as such, and is
+ * dropped when the wheel reaches it.  Timers fire up to a tick late, never early.
+ * </p>
+ *
+ * <p>
+ * The wheel is the one source of time for everything scheduled on it:  deadlines are measured against
+ * {@link #nanoTime()}, which is {@link System#nanoTime()} relative to when the wheel was created.
+ * </p>
+ */
+public final class TimingWheel implements AutoCloseable {
+	private static final System.Logger logger = System.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * The length of one tick of the wheel
+	 */
+	public static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	static final int LEVELS = 4;
+	static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	// the number of ticks the whole wheel spans
+	private static final long SPAN = 1L << (LEVELS * SLOT_BITS);
+
+	// delays at least this long are treated as forever, so that they can't overflow the tick count
+	private static final long MAX_DELAY_NANOS = Long.MAX_VALUE / 4;
+
+	private static final VarHandle PARKED;
+
+	static {
+		try {
+			PARKED = MethodHandles.lookup().findVarHandle(TimingWheel.class, "parked", boolean.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final long origin = System.nanoTime();
+
+	private final Thread thread;
+
+	// timers that have been scheduled, but not yet put into a slot
+	private final ConcurrentLinkedQueue<Timer> incoming = new ConcurrentLinkedQueue<>();
+
+	// only touched by the wheel thread.  each slot is the head of a singly linked list of timers
+	private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+	private long tick = 0;
+	private int size = 0;
+
+	// true while the wheel thread is parked with no timers to wait for, in which case new timers have to wake it
+	@SuppressWarnings("unused")
+	private volatile boolean parked = false;
+	private volatile boolean running = true;
+
+	public TimingWheel(String name) {
+		this.thread = Thread.ofPlatform().name(name).daemon().unstarted(this::run);
+		thread.start();
+	}
+
+	/**
+	 * Returns the number of nanoseconds since the wheel was created.
+	 */
+	public long nanoTime() {
+		return System.nanoTime() - origin;
+	}
+
+	/**
+	 * Runs the given task on the given executor once the given delay has passed.
+	 *
+	 * @param delay    the time to wait before running the task
+	 * @param executor the executor to run the task on
+	 * @param task     the task to run
+	 * @return a handle through which the timer can be cancelled
+	 */
+	public Timer schedule(Duration delay, Executor executor, Runnable task) {
+		long delayNanos;
+		try {
+			delayNanos = Math.max(delay.toNanos(), 0);
+		} catch (ArithmeticException e) {
+			delayNanos = Long.MAX_VALUE;
+		}
+
+		// round up, so that the timer never fires early
+		long deadline = (nanoTime() + Math.min(delayNanos, MAX_DELAY_NANOS) + TICK_NANOS - 1) / TICK_NANOS;
+		var timer = new Timer(deadline, executor, task);
+
+		if (delayNanos >= MAX_DELAY_NANOS)
+			return timer; // it will never fire, so there's no point keeping it around
+
+		if (!running)
+			throw new RejectedExecutionException("Timing wheel is closed");
+
+		incoming.offer(timer);
+		if (parked && PARKED.compareAndSet(this, true, false))
+			LockSupport.unpark(thread);
+
+		return timer;
+	}
+
+	private void run() {
+		while (running) {
+			long now = nanoTime() / TICK_NANOS;
+
+			while (tick <= now) {
+				admitIncoming();
+				advance();
+			}
+
+			admitIncoming();
+
+			if (size > 0) {
+				LockSupport.parkNanos(this, tick * TICK_NANOS - nanoTime());
+				continue;
+			}
+
+			parked = true;
+
+			// a timer may have been scheduled after we drained the queue but before we set the flag, in which case
+			// the scheduler saw the flag cleared and didn't unpark us
+			if (incoming.isEmpty() && running)
+				LockSupport.park(this);
+
+			parked = false;
+		}
+
+		logger.log(DEBUG, "Timing wheel stopped with {0} timers outstanding", size + incoming.size());
+	}
+
+	private void admitIncoming() {
+		Timer timer;
+		while ((timer = incoming.poll()) != null) {
+			size++;
+			insert(timer);
+		}
+	}
+
+	/**
+	 * Fires the timers due in the current tick, and moves on to the next.
+	 */
+	private void advance() {
+		// when a level wraps around, bring the next slot of the level above down, starting from the top so that
+		// timers can fall more than one level at once
+		for (int level = LEVELS - 1; level > 0; level--) {
+			if ((tick & ((1L << (level * SLOT_BITS)) - 1)) == 0)
+				cascade(level, (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+		}
+
+		int slot = (int) tick & SLOT_MASK;
+		var timer = slots[0][slot];
+		slots[0][slot] = null;
+
+		while (timer != null) {
+			var next = timer.next;
+			timer.next = null;
+
+			if (timer.cancelled) {
+				size--;
+			} else if (timer.deadline > tick) {
+				insert(timer); // it was too far away to fit in the wheel when it was inserted
+			} else {
+				size--;
+				fire(timer);
+			}
+
+			timer = next;
+		}
+
+		tick++;
+	}
+
+	private void cascade(int level, int slot) {
+		var timer = slots[level][slot];
+		slots[level][slot] = null;
+
+		while (timer != null) {
+			var next = timer.next;
+			timer.next = null;
+
+			if (timer.cancelled)
+				size--;
+			else
+				insert(timer);
+
+			timer = next;
+		}
+	}
+
+	private void insert(Timer timer) {
+		long deadline = Math.min(Math.max(timer.deadline, tick), tick + SPAN - 1);
+		long delta = deadline - tick;
+
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS))
+			level++;
+
+		int slot = (int) (deadline >>> (level * SLOT_BITS)) & SLOT_MASK;
+		timer.next = slots[level][slot];
+		slots[level][slot] = timer;
+	}
+
+	private static void fire(Timer timer) {
+		try {
+			timer.executor.execute(timer::run);
+		} catch (RejectedExecutionException e) {
+			logger.log(DEBUG, "Dropped timer because its executor is shut down");
+		} catch (Throwable e) {
+			logger.log(WARNING, "Failed to dispatch timer", e);
+		}
+	}
+
+	/**
+	 * Stops the wheel.  Timers that haven't fired yet never will.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * A task that is scheduled to run at some point in the future.
+	 */
+	public static final class Timer {
+		// the tick that the timer is due in
+		private final long deadline;
+		private final Executor executor;
+		private final Runnable task;
+
+		// the next timer in the same slot
+		private Timer next;
+
+		private volatile boolean cancelled = false;
+
+		private Timer(long deadline, Executor executor, Runnable task) {
+			this.deadline = deadline;
+			this.executor = executor;
+			this.task = task;
+		}
+
+		private void run() {
+			// checked again here, so that cancelling a timer from its own executor always works
+			if (!cancelled)
+				task.run();
+		}
+
+		/**
+		 * Stops the timer from running, if it hasn't already.  If this is called from the executor the timer runs on,
+		 * the timer is guaranteed not to run afterwards.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.IncomingHandshakePacket;
+import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.message.cookie.CookieReplyPacket;
+import ax.xz.wireguard.device.message.cookie.IncomingCookieReply;
+import ax.xz.wireguard.device.message.initiation.OutgoingInitiation;
+import ax.xz.wireguard.device.socket.PeerSocket;
+import ax.xz.wireguard.noise.handshake.Handshakes;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
+import ax.xz.wireguard.noise.keys.NoisePresharedKey;
+import ax.xz.wireguard.noise.keys.NoisePrivateKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.lang.foreign.MemorySegment;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CookieCheckerTest {
+	private final NoisePrivateKey responder = NoisePrivateKey.newPrivateKey();
+	private final NoisePrivateKey initiator = NoisePrivateKey.newPrivateKey();
+
+	private Pool pool;
+	private PeerSocket socket;
+	private CookieChecker checker;
+
+	// where the initiator is, and so where cookie replies are sent
+	private DatagramSocket initiatorSocket;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		pool = new Pool(16);
+		socket = PeerSocket.open();
+		socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		checker = new CookieChecker(responder.publicKey(), socket, pool);
+
+		initiatorSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		initiatorSocket.setSoTimeout(5000);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		initiatorSocket.close();
+		socket.close();
+		pool.close();
+	}
+
+	@Test
+	void everythingIsAdmittedWhileNotUnderLoad() throws Exception {
+		try (var outgoing = initiation(null)) {
+			assertTrue(admit(outgoing, initiatorAddress()));
+		}
+	}
+
+	@Test
+	void cookieFromReplyIsAcceptedUnderLoad() throws Exception {
+		checker.received(1000);
+
+		byte[] cookie = new byte[CookieReplyPacket.COOKIE_LENGTH];
+		try (var outgoing = initiation(null)) {
+			assertFalse(admit(outgoing, initiatorAddress()));
+
+			try (var reply = receiveCookieReply()) {
+				reply.decryptCookie(PeerKeys.cookieKey(responder.publicKey()), outgoing.mac1(), cookie);
+			}
+		}
+
+		try (var outgoing = initiation(cookie)) {
+			assertTrue(admit(outgoing, initiatorAddress()));
+		}
+	}
+
+	@Test
+	void cookieIsOnlyGoodForItsAddress() throws Exception {
+		checker.received(1000);
+
+		byte[] cookie = new byte[CookieReplyPacket.COOKIE_LENGTH];
+		try (var outgoing = initiation(null)) {
+			assertFalse(admit(outgoing, initiatorAddress()));
+
+			try (var reply = receiveCookieReply()) {
+				reply.decryptCookie(PeerKeys.cookieKey(responder.publicKey()), outgoing.mac1(), cookie);
+			}
+		}
+
+		var elsewhere = new InetSocketAddress(initiatorAddress().getAddress(), initiatorAddress().getPort() + 1);
+		try (var outgoing = initiation(cookie)) {
+			assertFalse(admit(outgoing, elsewhere));
+		}
+	}
+
+	@Test
+	void wrongCookieIsRefused() throws Exception {
+		checker.received(1000);
+
+		try (var outgoing = initiation(new byte[CookieReplyPacket.COOKIE_LENGTH])) {
+			assertFalse(admit(outgoing, initiatorAddress()));
+		}
+
+		// and answered with a cookie reply, like a message with no mac2 at all
+		try (var reply = receiveCookieReply()) {
+			assertNotNull(reply);
+		}
+	}
+
+	private InetSocketAddress initiatorAddress() {
+		return (InetSocketAddress) initiatorSocket.getLocalSocketAddress();
+	}
+
+	private OutgoingInitiation initiation(@Nullable byte[] cookie) throws Exception {
+		var handshake = Handshakes.initiateHandshake(initiator, PeerKeys.of(initiator, responder.publicKey()), NoisePresharedKey.zero());
+		return new OutgoingInitiation(pool.acquire(), 1, handshake.getLocalEphemeral().publicKey(), handshake.getEncryptedStatic(), handshake.getEncryptedTimestamp(), PeerKeys.mac1Key(responder.publicKey()), cookie);
+	}
+
+	/**
+	 * Checks the given initiation as if it had come off the socket from the given address
+	 */
+	private boolean admit(OutgoingInitiation outgoing, InetSocketAddress from) throws Exception {
+		var datagram = outgoing.transmissiblePacket();
+
+		var incoming = new PacketElement.UnparsedIncomingPeerPacket(pool.acquire());
+		MemorySegment.copy(datagram, 0, incoming.receiveBuffer(), 0, datagram.byteSize());
+
+		try (var parsed = (IncomingHandshakePacket) incoming.initialise(datagram.byteSize(), from, PeerKeys.mac1Key(responder.publicKey()))) {
+			return checker.admit(parsed);
+		}
+	}
+
+	private IncomingCookieReply receiveCookieReply() throws Exception {
+		var buffer = new byte[pool.slotSize()];
+		var datagram = new DatagramPacket(buffer, buffer.length);
+		initiatorSocket.receive(datagram);
+
+		var incoming = new PacketElement.UnparsedIncomingPeerPacket(pool.acquire());
+		MemorySegment.copy(MemorySegment.ofArray(buffer), 0, incoming.receiveBuffer(), 0, datagram.getLength());
+
+		var parsed = incoming.initialise(datagram.getLength(), (InetSocketAddress) datagram.getSocketAddress(), PeerKeys.mac1Key(initiator.publicKey()));
+		return assertInstanceOf(IncomingCookieReply.class, parsed);
+	}
+}
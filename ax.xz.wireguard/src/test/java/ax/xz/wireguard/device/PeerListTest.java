@@ -0,0 +1,115 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.IncomingPeerPacket;
+import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.message.initiation.OutgoingInitiation;
+import ax.xz.wireguard.device.peer.Peer;
+import ax.xz.wireguard.noise.handshake.Handshakes;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
+import ax.xz.wireguard.noise.keys.NoisePresharedKey;
+import ax.xz.wireguard.noise.keys.NoisePrivateKey;
+import ax.xz.wireguard.util.IPFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerListTest {
+	private WireguardDevice device;
+	private PeerList peerList;
+
+	@BeforeEach
+	void setUp() {
+		device = new WireguardDevice(NoisePrivateKey.newPrivateKey());
+		peerList = device.peerList;
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		device.close();
+	}
+
+	@Test
+	void unknownInitiatorCantChangeRoutes() throws Exception {
+		peerList.addPeer(peer(IPFilter.allowingAll()));
+		var configured = routeOf("10.0.0.1");
+		assertNotNull(configured);
+
+		receiveInitiationFrom(NoisePrivateKey.newPrivateKey());
+
+		long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (peerList.peerCount() < 2) {
+			assertTrue(System.nanoTime() < deadline, "initiator was never added");
+			Thread.sleep(10);
+		}
+
+		assertSame(configured, routeOf("10.0.0.1"));
+		assertSame(configured, routeOf("192.0.2.1"));
+		assertSame(configured, routeOf("2001:db8::1"));
+	}
+
+	@Test
+	void peerCantTakeAnotherPeersPrefix() throws Exception {
+		peerList.addPeer(peer(filter("10.0.0.0", 8)));
+		var first = routeOf("10.0.0.1");
+
+		var filter = filter("10.0.0.0", 8);
+		filter.insert(InetAddress.getByName("10.1.0.0"), 16);
+		peerList.addPeer(peer(filter));
+
+		assertSame(first, routeOf("10.0.0.1"));
+		assertSame(first, routeOf("10.2.0.1"));
+
+		var second = routeOf("10.1.0.1");
+		assertNotNull(second);
+		assertNotSame(first, second);
+	}
+
+	@Test
+	void peerWithoutAllowedIPsHasNoRoutes() throws Exception {
+		peerList.addPeer(Peer.PeerConnectionInfo.of(NoisePrivateKey.newPrivateKey().publicKey()));
+
+		assertNull(routeOf("10.0.0.1"));
+		assertNull(routeOf("2001:db8::1"));
+	}
+
+	/**
+	 * Hands the peer list an initiation from the owner of the given key, as if it had come off the socket
+	 */
+	private void receiveInitiationFrom(NoisePrivateKey initiator) throws Exception {
+		var localKey = device.getStaticIdentity().publicKey();
+		var handshake = Handshakes.initiateHandshake(initiator, PeerKeys.of(initiator, localKey), NoisePresharedKey.zero());
+		var pool = device.getBufferPool();
+
+		try (var outgoing = new OutgoingInitiation(pool.acquire(), 1, handshake.getLocalEphemeral().publicKey(), handshake.getEncryptedStatic(), handshake.getEncryptedTimestamp(), PeerKeys.mac1Key(localKey), null)) {
+			var datagram = outgoing.transmissiblePacket();
+
+			var incoming = new PacketElement.UnparsedIncomingPeerPacket(pool.acquire());
+			MemorySegment.copy(datagram, 0, incoming.receiveBuffer(), 0, datagram.byteSize());
+
+			var parsed = incoming.initialise(datagram.byteSize(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 9), PeerKeys.mac1Key(localKey));
+			peerList.handlePackets(new IncomingPeerPacket[]{parsed}, 1);
+		}
+	}
+
+	private Peer routeOf(String address) throws IOException {
+		return peerList.routeOf(MemorySegment.ofArray(InetAddress.getByName(address).getAddress()));
+	}
+
+	private static IPFilter filter(String address, int prefixLength) throws IOException {
+		var filter = new IPFilter();
+		filter.insert(InetAddress.getByName(address), prefixLength);
+		return filter;
+	}
+
+	private static Peer.PeerConnectionInfo peer(IPFilter allowedIPs) {
+		return new Peer.PeerConnectionInfo(NoisePrivateKey.newPrivateKey().publicKey(), null, null, null, allowedIPs);
+	}
+}
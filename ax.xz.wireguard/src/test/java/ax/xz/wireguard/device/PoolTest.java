@@ -0,0 +1,153 @@
+package ax.xz.wireguard.device;
+
+import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.message.tunnel.IncomingTunnelPacket;
+import ax.xz.wireguard.device.message.tunnel.UninitialisedIncomingTunnelPacket;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoolTest {
+	@Test
+	void tryAcquireReturnsNullOnceEveryBufferIsInUse() {
+		try (var pool = new Pool(4, 64)) {
+			var buffers = new ArrayList<PacketElement>();
+			for (int i = 0; i < 4; i++) {
+				var buffer = pool.tryAcquire();
+				assertNotNull(buffer);
+				buffers.add(buffer);
+			}
+
+			assertNull(pool.tryAcquire());
+			assertEquals(4, pool.stats().inUse());
+			assertEquals(1, pool.stats().exhaustions());
+
+			buffers.removeFirst().close();
+			assertEquals(3, pool.stats().inUse());
+
+			assertNotNull(pool.tryAcquire());
+			assertEquals(4, pool.stats().highWater());
+		}
+	}
+
+	@Test
+	void buffersDontOverlap() throws Exception {
+		try (var pool = new Pool(16, 64)) {
+			var packets = new ArrayList<IncomingTunnelPacket>();
+			for (int i = 0; i < 16; i++)
+				packets.add(write(pool, i));
+
+			for (int i = 0; i < 16; i++) {
+				assertEquals(64, packets.get(i).length());
+				assertEquals(i, packets.get(i).packet().get(JAVA_INT_UNALIGNED, 60));
+			}
+
+			packets.forEach(IncomingTunnelPacket::close);
+			assertEquals(0, pool.stats().inUse());
+		}
+	}
+
+	@Test
+	void acquireWaitsForABufferToBeReleased() throws Exception {
+		try (var pool = new Pool(1, 64)) {
+			var held = pool.acquire();
+
+			var acquired = new CountDownLatch(1);
+			var waiter = Thread.ofPlatform().start(() -> {
+				try {
+					pool.acquire().close();
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			});
+
+			assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+
+			held.close();
+			assertTrue(acquired.await(5, TimeUnit.SECONDS));
+			waiter.join();
+		}
+	}
+
+	@Test
+	void acquireCanBeInterrupted() throws Exception {
+		try (var pool = new Pool(1, 64)) {
+			var held = pool.acquire();
+
+			var interrupted = new AtomicInteger();
+			var waiter = Thread.ofPlatform().start(() -> {
+				try {
+					pool.acquire();
+				} catch (InterruptedException e) {
+					interrupted.incrementAndGet();
+				}
+			});
+
+			waiter.interrupt();
+			waiter.join();
+			assertEquals(1, interrupted.get());
+
+			held.close();
+		}
+	}
+
+	@Test
+	void concurrentUseNeverHandsOutABufferTwice() throws Exception {
+		int threads = 8;
+		int rounds = 20_000;
+
+		try (var pool = new Pool(4, 64)) {
+			var failures = new AtomicInteger();
+
+			var workers = new ArrayList<Thread>();
+			for (int i = 0; i < threads; i++) {
+				int id = i;
+				workers.add(Thread.ofPlatform().start(() -> {
+					for (int round = 0; round < rounds; round++) {
+						try (var packet = write(pool, id)) {
+							// another thread holding the same buffer would have overwritten this by now
+							Thread.onSpinWait();
+							if (packet.packet().get(JAVA_INT_UNALIGNED, 60) != id)
+								failures.incrementAndGet();
+						} catch (Exception e) {
+							failures.incrementAndGet();
+						}
+					}
+				}));
+			}
+
+			for (var worker : workers)
+				worker.join();
+
+			assertEquals(0, failures.get());
+			assertEquals(0, pool.stats().inUse());
+			assertTrue(pool.stats().highWater() <= 4);
+			assertEquals((long) threads * rounds, pool.stats().allocations());
+		}
+	}
+
+	@Test
+	void sizesMustBePositive() {
+		assertThrows(IllegalArgumentException.class, () -> new Pool(0, 64));
+		assertThrows(IllegalArgumentException.class, () -> new Pool(4, 0));
+	}
+
+	/**
+	 * Acquires a buffer and fills it with the given value, in the last four bytes
+	 */
+	private static IncomingTunnelPacket write(Pool pool, int value) throws InterruptedException, IOException {
+		return new UninitialisedIncomingTunnelPacket(pool.acquire()).initialise(bb -> {
+			bb.position(60);
+			bb.order(ByteOrder.nativeOrder()).putInt(value);
+		});
+	}
+}
@@ -0,0 +1,123 @@
+package ax.xz.wireguard.device;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	void allowsABurstOfFive() throws UnknownHostException {
+		var limiter = new RateLimiter(64);
+		long now = System.nanoTime();
+		var source = address("192.0.2.1");
+
+		for (int i = 0; i < 5; i++)
+			assertTrue(limiter.allow(source, now), "message " + i);
+
+		assertFalse(limiter.allow(source, now));
+	}
+
+	@Test
+	void refillsAtTwentyASecond() throws UnknownHostException {
+		var limiter = new RateLimiter(64);
+		long now = System.nanoTime();
+		var source = address("192.0.2.1");
+
+		for (int i = 0; i < 5; i++)
+			limiter.allow(source, now);
+		assertFalse(limiter.allow(source, now));
+
+		// one message's worth every 50ms
+		assertFalse(limiter.allow(source, now + 40 * MILLIS));
+		assertTrue(limiter.allow(source, now + 50 * MILLIS));
+		assertFalse(limiter.allow(source, now + 60 * MILLIS));
+
+		// but never more than a burst's worth, however long the source is quiet
+		now += 10_000 * MILLIS;
+		for (int i = 0; i < 5; i++)
+			assertTrue(limiter.allow(source, now));
+		assertFalse(limiter.allow(source, now));
+	}
+
+	@Test
+	void sourcesHaveTheirOwnBuckets() throws UnknownHostException {
+		var limiter = new RateLimiter(64);
+		long now = System.nanoTime();
+
+		for (int i = 0; i < 5; i++)
+			limiter.allow(address("192.0.2.1"), now);
+
+		assertFalse(limiter.allow(address("192.0.2.1"), now));
+		assertTrue(limiter.allow(address("192.0.2.2"), now));
+	}
+
+	@Test
+	void ipv6SourcesShareABucketPerSlash64() throws UnknownHostException {
+		var limiter = new RateLimiter(64);
+		long now = System.nanoTime();
+
+		for (int i = 0; i < 5; i++)
+			limiter.allow(address("2001:db8::" + (i + 1)), now);
+
+		assertFalse(limiter.allow(address("2001:db8::ffff"), now));
+		assertTrue(limiter.allow(address("2001:db8:0:1::1"), now));
+	}
+
+	@Test
+	void ipv4AndIpv6SourcesWithTheSameBitsAreKeptApart() throws UnknownHostException {
+		var limiter = new RateLimiter(64);
+		long now = System.nanoTime();
+
+		for (int i = 0; i < 5; i++)
+			limiter.allow(address("1.2.3.4"), now);
+
+		// the same 64 bits as the IPv4 key
+		assertTrue(limiter.allow(address("0:0:102:304::"), now));
+	}
+
+	@Test
+	void newSourcesAreRefusedWhileTheTableIsFull() throws UnknownHostException {
+		// eight slots, of which at most four are used
+		var limiter = new RateLimiter(8);
+		long now = System.nanoTime();
+
+		for (int i = 1; i <= 4; i++)
+			assertTrue(limiter.allow(address("192.0.2." + i), now));
+
+		assertFalse(limiter.allow(address("192.0.2.5"), now));
+		assertTrue(limiter.allow(address("192.0.2.1"), now));
+	}
+
+	@Test
+	void sweepsDropOnlyIdleSources() throws UnknownHostException {
+		var limiter = new RateLimiter(8);
+		long now = System.nanoTime();
+
+		for (int i = 1; i <= 4; i++)
+			assertTrue(limiter.allow(address("192.0.2." + i), now));
+
+		// keeps the first source's bucket in use through the next sweep
+		assertTrue(limiter.allow(address("192.0.2.1"), now + 500 * MILLIS));
+
+		now += 1200 * MILLIS;
+		for (int i = 5; i <= 7; i++)
+			assertTrue(limiter.allow(address("192.0.2." + i), now));
+
+		assertFalse(limiter.allow(address("192.0.2.8"), now));
+	}
+
+	@Test
+	void sizeMustBeAtLeastTwo() {
+		assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1));
+	}
+
+	private static byte[] address(String address) throws UnknownHostException {
+		return InetAddress.getByName(address).getAddress();
+	}
+}
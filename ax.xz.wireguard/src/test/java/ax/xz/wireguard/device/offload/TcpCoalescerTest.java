@@ -0,0 +1,140 @@
+package ax.xz.wireguard.device.offload;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ax.xz.wireguard.device.offload.Checksums.*;
+import static ax.xz.wireguard.device.offload.TcpPackets.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpCoalescerTest {
+	@Test
+	void ipv4RunsSegmentBackIntoTheSamePackets() {
+		runsRoundTrip(true);
+	}
+
+	@Test
+	void ipv6RunsSegmentBackIntoTheSamePackets() {
+		runsRoundTrip(false);
+	}
+
+	private static void runsRoundTrip(boolean ipv4) {
+		var segments = run(ipv4, 5000, 1000, 1000, 1000, 500);
+		var coalescer = new TcpCoalescer();
+
+		for (var segment : segments)
+			assertTrue(coalescer.add(segment));
+
+		var flushed = coalescer.flush();
+		assertTrue(coalescer.isEmpty());
+
+		var header = VirtioNetHeader.read(flushed);
+		assertTrue(header.needsChecksum());
+		assertTrue(header.needsSegmentation());
+		assertEquals(1000, header.gsoSize());
+		assertEquals(ipv4 ? IPV4_HEADERS : IPV6_HEADERS, header.headerLength());
+
+		// the kernel would segment the run into exactly the packets that went into it
+		var packet = flushed.asSlice(VirtioNetHeader.SIZE);
+		var segmenter = new TcpSegmenter(packet, header);
+		assertEquals(segments.size(), segmenter.segmentCount());
+
+		for (int i = 0; i < segments.size(); i++) {
+			var segment = MemorySegment.ofArray(new byte[(int) segmenter.segmentLength(i)]);
+			segmenter.writeSegment(i, segment);
+			assertEquals(-1, segment.mismatch(segments.get(i)), "segment " + i);
+		}
+
+		// and its checksum is completed from the pseudo-header sum left in it
+		header.completeChecksum(packet);
+		assertTrue(checksumsAreValid(packet));
+	}
+
+	@Test
+	void aLoneSegmentIsWrittenAsReceived() {
+		var segment = packet(true, 1, 0, TCP_ACK_FLAG, 700);
+		var coalescer = new TcpCoalescer();
+
+		assertTrue(coalescer.add(segment));
+		var flushed = coalescer.flush();
+
+		assertEquals(VirtioNetHeader.NONE, VirtioNetHeader.read(flushed));
+		assertEquals(-1, flushed.asSlice(VirtioNetHeader.SIZE).mismatch(segment));
+	}
+
+	@Test
+	void segmentsOutOfSequenceStartANewRun() {
+		var coalescer = new TcpCoalescer();
+		assertTrue(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG, 1000)));
+
+		// a gap, and a retransmission
+		assertFalse(coalescer.add(packet(true, 2, 2000, TCP_ACK_FLAG, 1000)));
+		assertFalse(coalescer.add(packet(true, 2, 0, TCP_ACK_FLAG, 1000)));
+
+		assertTrue(coalescer.add(packet(true, 2, 1000, TCP_ACK_FLAG, 1000)));
+	}
+
+	@Test
+	void nothingFollowsAShortOrPushingSegment() {
+		var coalescer = new TcpCoalescer();
+		assertTrue(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG, 1000)));
+		assertTrue(coalescer.add(packet(true, 2, 1000, TCP_ACK_FLAG, 500)));
+		assertFalse(coalescer.add(packet(true, 3, 1500, TCP_ACK_FLAG, 500)));
+		coalescer.flush();
+
+		assertTrue(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG | TCP_PSH, 1000)));
+		assertFalse(coalescer.add(packet(true, 2, 1000, TCP_ACK_FLAG, 1000)));
+	}
+
+	@Test
+	void longerSegmentsAndOtherFlowsStartANewRun() {
+		var coalescer = new TcpCoalescer();
+		assertTrue(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG, 500)));
+		assertFalse(coalescer.add(packet(true, 2, 500, TCP_ACK_FLAG, 1000)));
+
+		var otherFlow = packet(true, 2, 500, TCP_ACK_FLAG, 500);
+		otherFlow.set(NETWORK_SHORT, 20, (short) 4321);
+		assertFalse(coalescer.add(otherFlow));
+
+		assertFalse(coalescer.add(packet(false, 0, 500, TCP_ACK_FLAG, 500)));
+	}
+
+	@Test
+	void onlyPlainDataSegmentsAreCoalesced() {
+		var coalescer = new TcpCoalescer();
+
+		// connection setup and teardown, and bare acknowledgements
+		assertFalse(coalescer.add(packet(true, 1, 0, 0x02, 0)));
+		assertFalse(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG | TCP_FIN, 100)));
+		assertFalse(coalescer.add(packet(true, 1, 0, TCP_ACK_FLAG, 0)));
+
+		// a fragment
+		var fragment = packet(true, 1, 0, TCP_ACK_FLAG, 100);
+		fragment.set(NETWORK_SHORT, IPV4_FLAGS, (short) 0x2000);
+		assertFalse(coalescer.add(fragment));
+
+		assertTrue(coalescer.isEmpty());
+	}
+
+	@Test
+	void flushingNothingFails() {
+		assertThrows(IllegalStateException.class, () -> new TcpCoalescer().flush());
+	}
+
+	/**
+	 * Returns the consecutive segments of a flow, with the given payload lengths, and a push on the last one
+	 */
+	private static List<MemorySegment> run(boolean ipv4, int sequenceNumber, int... payloadLengths) {
+		var segments = new ArrayList<MemorySegment>();
+		for (int i = 0; i < payloadLengths.length; i++) {
+			int flags = i == payloadLengths.length - 1 ? TCP_ACK_FLAG | TCP_PSH : TCP_ACK_FLAG;
+			segments.add(packet(ipv4, 0x1234 + i, sequenceNumber, flags, payloadLengths[i]));
+			sequenceNumber += payloadLengths[i];
+		}
+
+		return segments;
+	}
+}
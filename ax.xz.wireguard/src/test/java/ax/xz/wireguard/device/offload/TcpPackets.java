@@ -0,0 +1,79 @@
+package ax.xz.wireguard.device.offload;
+
+import java.lang.foreign.MemorySegment;
+
+import static ax.xz.wireguard.device.offload.Checksums.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Builds and checks the TCP packets that the offload tests work with
+ */
+final class TcpPackets {
+	static final int IPV4_HEADERS = 20 + 20, IPV6_HEADERS = IPV6_HEADER_LENGTH + 20;
+
+	private TcpPackets() {
+	}
+
+	static int transportStart(boolean ipv4) {
+		return ipv4 ? 20 : IPV6_HEADER_LENGTH;
+	}
+
+	/**
+	 * Returns a TCP packet from 10.0.0.1:1234 to 10.0.0.2:80 (or between fd00::1 and fd00::2) with correct checksums,
+	 * whose payload is numbered from the given sequence number
+	 */
+	static MemorySegment packet(boolean ipv4, int ipv4Id, int sequenceNumber, int flags, int payloadLength) {
+		int transportStart = transportStart(ipv4);
+		int length = transportStart + 20 + payloadLength;
+		var packet = MemorySegment.ofArray(new byte[length]);
+
+		if (ipv4) {
+			packet.set(JAVA_BYTE, 0, (byte) 0x45);
+			packet.set(NETWORK_SHORT, IPV4_TOTAL_LENGTH, (short) length);
+			packet.set(NETWORK_SHORT, IPV4_ID, (short) ipv4Id);
+			packet.set(NETWORK_SHORT, IPV4_FLAGS, (short) 0x4000); // don't fragment
+			packet.set(JAVA_BYTE, 8, (byte) 64);
+			packet.set(JAVA_BYTE, IPV4_PROTOCOL, (byte) PROTOCOL_TCP);
+			packet.set(NETWORK_INT, IPV4_SOURCE, 0x0a000001);
+			packet.set(NETWORK_INT, IPV4_SOURCE + 4, 0x0a000002);
+			updateIPv4Checksum(packet);
+		} else {
+			packet.set(JAVA_BYTE, 0, (byte) 0x60);
+			packet.set(NETWORK_SHORT, IPV6_PAYLOAD_LENGTH, (short) (length - IPV6_HEADER_LENGTH));
+			packet.set(JAVA_BYTE, IPV6_NEXT_HEADER, (byte) PROTOCOL_TCP);
+			packet.set(JAVA_BYTE, IPV6_NEXT_HEADER + 1, (byte) 64);
+			packet.set(NETWORK_SHORT, IPV6_SOURCE, (short) 0xfd00);
+			packet.set(JAVA_BYTE, IPV6_SOURCE + 15, (byte) 1);
+			packet.set(NETWORK_SHORT, IPV6_SOURCE + 16, (short) 0xfd00);
+			packet.set(JAVA_BYTE, IPV6_SOURCE + 31, (byte) 2);
+		}
+
+		var tcp = packet.asSlice(transportStart);
+		tcp.set(NETWORK_SHORT, 0, (short) 1234);
+		tcp.set(NETWORK_SHORT, 2, (short) 80);
+		tcp.set(NETWORK_INT, TCP_SEQUENCE, sequenceNumber);
+		tcp.set(NETWORK_INT, TCP_ACK, 1000);
+		tcp.set(JAVA_BYTE, TCP_DATA_OFFSET, (byte) (5 << 4));
+		tcp.set(JAVA_BYTE, TCP_FLAGS, (byte) flags);
+		tcp.set(NETWORK_SHORT, 14, (short) 0xffff);
+
+		// each payload byte is the low byte of its own sequence number, so that misplaced payload shows up
+		for (int i = 0; i < payloadLength; i++)
+			tcp.set(JAVA_BYTE, 20 + i, (byte) (sequenceNumber + i));
+
+		tcp.set(NETWORK_SHORT, TCP_CHECKSUM, (short) ~fold(sum(tcp, pseudoHeaderSum(packet, tcp.byteSize()))));
+		return packet;
+	}
+
+	/**
+	 * Returns true if the packet's IP header checksum (if it has one) and TCP checksum are both correct
+	 */
+	static boolean checksumsAreValid(MemorySegment packet) {
+		boolean ipv4 = isIPv4(packet);
+		if (ipv4 && fold(sum(packet.asSlice(0, 20), 0)) != 0xffff)
+			return false;
+
+		var tcp = packet.asSlice(transportStart(ipv4));
+		return fold(sum(tcp, pseudoHeaderSum(packet, tcp.byteSize()))) == 0xffff;
+	}
+}
@@ -0,0 +1,94 @@
+package ax.xz.wireguard.device.offload;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+
+import static ax.xz.wireguard.device.offload.Checksums.*;
+import static ax.xz.wireguard.device.offload.TcpPackets.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TcpSegmenterTest {
+	@Test
+	void ipv4PacketsAreSplitIntoValidSegments() {
+		segmentsAreValid(true);
+	}
+
+	@Test
+	void ipv6PacketsAreSplitIntoValidSegments() {
+		segmentsAreValid(false);
+	}
+
+	private static void segmentsAreValid(boolean ipv4) {
+		int headers = ipv4 ? IPV4_HEADERS : IPV6_HEADERS;
+		int flags = TCP_ACK_FLAG | TCP_PSH | TCP_CWR;
+		var packet = packet(ipv4, 0x1234, 5000, flags, 3500);
+
+		var segmenter = new TcpSegmenter(packet, gso(ipv4, 1000));
+		assertEquals(4, segmenter.segmentCount());
+
+		for (int i = 0; i < 4; i++) {
+			int payloadLength = i < 3 ? 1000 : 500;
+			assertEquals(headers + payloadLength, segmenter.segmentLength(i));
+
+			var segment = MemorySegment.ofArray(new byte[(int) segmenter.segmentLength(i)]);
+			segmenter.writeSegment(i, segment);
+
+			assertTrue(checksumsAreValid(segment), "segment " + i);
+
+			if (ipv4) {
+				assertEquals(segment.byteSize(), Short.toUnsignedInt(segment.get(NETWORK_SHORT, IPV4_TOTAL_LENGTH)));
+				assertEquals(0x1234 + i, segment.get(NETWORK_SHORT, IPV4_ID));
+			} else {
+				assertEquals(segment.byteSize() - IPV6_HEADER_LENGTH, Short.toUnsignedInt(segment.get(NETWORK_SHORT, IPV6_PAYLOAD_LENGTH)));
+			}
+
+			var tcp = segment.asSlice(transportStart(ipv4));
+			assertEquals(5000 + i * 1000, tcp.get(NETWORK_INT, TCP_SEQUENCE));
+
+			// the push only on the last segment, the congestion window reduction only on the first
+			int segmentFlags = Byte.toUnsignedInt(tcp.get(JAVA_BYTE, TCP_FLAGS));
+			assertEquals(i == 3, (segmentFlags & TCP_PSH) != 0);
+			assertEquals(i == 0, (segmentFlags & TCP_CWR) != 0);
+
+			assertEquals(-1, MemorySegment.mismatch(segment, headers, segment.byteSize(), packet, headers + i * 1000L, headers + i * 1000L + payloadLength));
+		}
+	}
+
+	@Test
+	void aPacketNoLongerThanOneSegmentIsOneSegment() {
+		var packet = packet(true, 1, 0, TCP_ACK_FLAG, 600);
+		var segmenter = new TcpSegmenter(packet, gso(true, 1000));
+
+		assertEquals(1, segmenter.segmentCount());
+		assertEquals(packet.byteSize(), segmenter.segmentLength(0));
+
+		var segment = MemorySegment.ofArray(new byte[(int) packet.byteSize()]);
+		segmenter.writeSegment(0, segment);
+		assertEquals(-1, segment.mismatch(packet));
+	}
+
+	@Test
+	void malformedPacketsAreRefused() {
+		var ipv4 = packet(true, 1, 0, TCP_ACK_FLAG, 3000);
+
+		// the wrong IP version for the GSO type
+		assertThrows(IllegalArgumentException.class, () -> new TcpSegmenter(ipv4, gso(false, 1000)));
+		// UDP segmentation
+		assertThrows(IllegalArgumentException.class, () -> new TcpSegmenter(ipv4, new VirtioNetHeader(VirtioNetHeader.NEEDS_CSUM, 5, IPV4_HEADERS, 1000, 20, TCP_CHECKSUM)));
+		// a checksum that isn't the TCP checksum
+		assertThrows(IllegalArgumentException.class, () -> new TcpSegmenter(ipv4, new VirtioNetHeader(VirtioNetHeader.NEEDS_CSUM, VirtioNetHeader.GSO_TCPV4, IPV4_HEADERS, 1000, 20, 6)));
+		// no segment size
+		assertThrows(IllegalArgumentException.class, () -> new TcpSegmenter(ipv4, gso(true, 0)));
+		// cut off partway through the TCP header
+		assertThrows(IllegalArgumentException.class, () -> new TcpSegmenter(ipv4.asSlice(0, 30), gso(true, 1000)));
+	}
+
+	static VirtioNetHeader gso(boolean ipv4, int segmentSize) {
+		return new VirtioNetHeader(
+			VirtioNetHeader.NEEDS_CSUM, ipv4 ? VirtioNetHeader.GSO_TCPV4 : VirtioNetHeader.GSO_TCPV6,
+			ipv4 ? IPV4_HEADERS : IPV6_HEADERS, segmentSize, transportStart(ipv4), TCP_CHECKSUM
+		);
+	}
+}
@@ -0,0 +1,147 @@
+package ax.xz.wireguard.device.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static ax.xz.wireguard.device.peer.ReplayWindow.REJECT_AFTER_MESSAGES;
+import static ax.xz.wireguard.device.peer.ReplayWindow.SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayWindowTest {
+	@Test
+	void inOrderCountersAreAccepted() {
+		var window = new ReplayWindow();
+
+		for (long counter = 0; counter < 10 * SIZE; counter++) {
+			assertTrue(window.check(counter));
+			assertTrue(window.update(counter));
+		}
+	}
+
+	@Test
+	void outOfOrderCountersAreAccepted() {
+		var window = new ReplayWindow();
+
+		assertTrue(window.update(100));
+		assertTrue(window.update(50));
+		assertTrue(window.update(99));
+		assertTrue(window.update(0));
+		assertTrue(window.update(101));
+		assertTrue(window.update(75));
+	}
+
+	@Test
+	void duplicatesAreRejected() {
+		var window = new ReplayWindow();
+
+		for (long counter : new long[]{0, 5, 3, 1000, 999}) {
+			assertTrue(window.update(counter));
+			assertFalse(window.check(counter));
+			assertFalse(window.update(counter));
+		}
+	}
+
+	@Test
+	void checkDoesNotRecordTheCounter() {
+		var window = new ReplayWindow();
+
+		assertTrue(window.check(10));
+		assertTrue(window.check(10));
+		assertTrue(window.update(10));
+		assertFalse(window.check(10));
+	}
+
+	@Test
+	void countersAtTheEdgeOfTheWindowAreAccepted() {
+		var window = new ReplayWindow();
+		long greatest = SIZE + 100;
+		assertTrue(window.update(greatest));
+
+		assertTrue(window.check(greatest - SIZE));
+		assertTrue(window.update(greatest - SIZE));
+		assertFalse(window.update(greatest - SIZE));
+	}
+
+	@Test
+	void countersBehindTheWindowAreRejected() {
+		var window = new ReplayWindow();
+		long greatest = SIZE + 100;
+		assertTrue(window.update(greatest));
+
+		assertFalse(window.check(greatest - SIZE - 1));
+		assertFalse(window.update(greatest - SIZE - 1));
+		assertFalse(window.update(0));
+	}
+
+	@Test
+	void jumpLargerThanTheWindowForgetsOldCounters() {
+		var window = new ReplayWindow();
+		for (long counter = 0; counter < 64; counter++)
+			assertTrue(window.update(counter));
+
+		long jump = 1_000_000;
+		assertTrue(window.update(jump));
+
+		// everything from before the jump is too old now
+		assertFalse(window.update(5));
+		assertFalse(window.update(63));
+		assertFalse(window.update(jump));
+
+		// whereas everything within the window behind the new greatest counter is new, even in reused blocks
+		assertTrue(window.update(jump - SIZE));
+		assertTrue(window.update(jump - 1));
+		assertTrue(window.update(jump + 1));
+		assertFalse(window.update(jump - 1));
+	}
+
+	@Test
+	void countersPastRejectAfterMessagesAreRejected() {
+		var window = new ReplayWindow();
+		assertTrue(window.update(0));
+
+		assertFalse(window.check(REJECT_AFTER_MESSAGES));
+		assertFalse(window.update(REJECT_AFTER_MESSAGES));
+		assertFalse(window.update(REJECT_AFTER_MESSAGES + 1));
+		assertFalse(window.update(-1L));
+
+		// and they don't move the window, so the counters before them are still accepted
+		assertTrue(window.update(1));
+	}
+
+	@Test
+	void concurrentUpdatesOfTheSameCounterAcceptItOnce() throws Exception {
+		int threads = 8;
+		int counters = 20_000;
+
+		var window = new ReplayWindow();
+		var accepted = new AtomicIntegerArray(counters);
+		var barrier = new CyclicBarrier(threads);
+
+		var workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(Thread.ofPlatform().start(() -> {
+				try {
+					barrier.await();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+
+				for (int counter = 0; counter < counters; counter++) {
+					if (window.update(counter))
+						accepted.incrementAndGet(counter);
+				}
+			}));
+		}
+
+		for (var worker : workers)
+			worker.join();
+
+		// whichever update of a counter finishes first can't have been overtaken by the window, since every thread
+		// updates it before any greater counter
+		for (int counter = 0; counter < counters; counter++)
+			assertEquals(1, accepted.get(counter), "counter " + counter);
+	}
+}
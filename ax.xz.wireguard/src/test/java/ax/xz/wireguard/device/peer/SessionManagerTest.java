@@ -0,0 +1,252 @@
+package ax.xz.wireguard.device.peer;
+
+import ax.xz.wireguard.device.Pool;
+import ax.xz.wireguard.device.WireguardDevice;
+import ax.xz.wireguard.device.message.IncomingPeerPacket;
+import ax.xz.wireguard.device.message.PacketElement;
+import ax.xz.wireguard.device.message.initiation.IncomingInitiation;
+import ax.xz.wireguard.device.message.initiation.OutgoingInitiation;
+import ax.xz.wireguard.device.message.response.IncomingResponse;
+import ax.xz.wireguard.device.message.response.OutgoingResponse;
+import ax.xz.wireguard.device.message.transport.incoming.UndecryptedIncomingTransport;
+import ax.xz.wireguard.device.message.transport.outgoing.UnencryptedOutgoingTransport;
+import ax.xz.wireguard.noise.handshake.Handshakes;
+import ax.xz.wireguard.noise.handshake.PeerKeys;
+import ax.xz.wireguard.noise.handshake.SymmetricKeypair;
+import ax.xz.wireguard.noise.keys.NoisePresharedKey;
+import ax.xz.wireguard.noise.keys.NoisePrivateKey;
+import ax.xz.wireguard.noise.keys.NoisePublicKey;
+import ax.xz.wireguard.util.IPFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs a device with one peer, whose side of each handshake and transport message is played by hand over a loopback
+ * socket
+ */
+class SessionManagerTest {
+	private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+	private final NoisePrivateKey remoteKey = NoisePrivateKey.newPrivateKey();
+	private int nextRemoteIndex = 1;
+
+	private WireguardDevice device;
+	private InetSocketAddress deviceAddress;
+	private DatagramSocket remote;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		remote = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		remote.setSoTimeout((int) TIMEOUT.toMillis());
+
+		device = new WireguardDevice(NoisePrivateKey.newPrivateKey());
+		deviceAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort());
+		device.bind(deviceAddress);
+		Thread.ofPlatform().daemon().start(device::run);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		device.close();
+		remote.close();
+	}
+
+	@Test
+	void initiatorSessionBecomesCurrent() throws Exception {
+		var sessions = addPeer((InetSocketAddress) remote.getLocalSocketAddress()).sessionManager();
+		var keys = respondToInitiation();
+
+		await(() -> sessions.tryGetSessionNow() != null, "the session never became current");
+		assertEquals(keys.localIndex(), sessions.tryGetSessionNow().getLocalIndex());
+		assertSame(sessions.tryGetSessionNow(), sessions.sessionFor(keys.localIndex()));
+
+		send(keys, 1);
+		assertEquals(1, receive());
+	}
+
+	@Test
+	void responderSessionIsNextUntilConfirmed() throws Exception {
+		var sessions = addPeer(null).sessionManager();
+		var keys = initiate();
+
+		await(() -> sessions.sessionFor(keys.localIndex()) != null, "the session was never established");
+		assertNull(sessions.tryGetSessionNow());
+	}
+
+	@Test
+	void firstPacketConfirmsResponderSession() throws Exception {
+		var sessions = addPeer(null).sessionManager();
+		var keys = initiate();
+
+		await(() -> sessions.sessionFor(keys.localIndex()) != null, "the session was never established");
+		var next = sessions.sessionFor(keys.localIndex());
+
+		send(keys, 1);
+		assertEquals(1, receive());
+		await(() -> sessions.tryGetSessionNow() == next, "the session was never confirmed");
+	}
+
+	@Test
+	void previousSessionIsStillReceivedUnder() throws Exception {
+		var sessions = addPeer(null).sessionManager();
+		var first = initiate();
+
+		send(first, 1);
+		assertEquals(1, receive());
+		await(() -> sessions.tryGetSessionNow() != null, "the first session was never confirmed");
+		var previous = sessions.tryGetSessionNow();
+
+		// a rekey, after which a packet the peer sent under the old keys arrives late
+		var second = initiate();
+		send(second, 2);
+		assertEquals(2, receive());
+		await(() -> sessions.tryGetSessionNow() != previous, "the second session was never confirmed");
+
+		send(first, 3);
+		assertEquals(3, receive());
+		assertSame(previous, sessions.sessionFor(first.localIndex()));
+	}
+
+	/**
+	 * The keys the peer sends under, and the index the device gave the session
+	 */
+	private record Keys(SymmetricKeypair keypair, int localIndex) {
+	}
+
+	/**
+	 * Sends the device an initiation from the peer, and returns the keys established by its response
+	 */
+	private Keys initiate() throws Exception {
+		int senderIndex = nextRemoteIndex++;
+		var handshake = Handshakes.initiateHandshake(remoteKey, PeerKeys.of(remoteKey, localKey()), NoisePresharedKey.zero());
+
+		try (var initiation = new OutgoingInitiation(pool().acquire(), senderIndex, handshake.getLocalEphemeral().publicKey(), handshake.getEncryptedStatic(), handshake.getEncryptedTimestamp(), PeerKeys.mac1Key(localKey()), null)) {
+			transmit(initiation.transmissiblePacket());
+		}
+
+		try (var response = assertInstanceOf(IncomingResponse.class, receiveHandshake())) {
+			assertEquals(senderIndex, response.receiverIndex());
+			return new Keys(handshake.consumeMessageResponse(response.ephemeral(), response.encryptedNothing()), response.senderIndex());
+		}
+	}
+
+	/**
+	 * Responds to the device's initiation as the peer, and returns the keys established by the response
+	 */
+	private Keys respondToInitiation() throws Exception {
+		try (var initiation = assertInstanceOf(IncomingInitiation.class, receiveHandshake())) {
+			var handshake = Handshakes.responderHandshake(remoteKey, PeerKeys.of(remoteKey, localKey()), initiation.ephemeral(), initiation.encryptedStatic(), initiation.encryptedTimestamp());
+
+			try (var response = new OutgoingResponse(pool().acquire(), deviceAddress, nextRemoteIndex++, initiation.senderIndex(), handshake.getLocalEphemeral(), handshake.getEncryptedEmpty(), PeerKeys.mac1Key(localKey()), null)) {
+				transmit(response.transmissiblePacket());
+			}
+
+			return new Keys(handshake.getKeypair(), initiation.senderIndex());
+		}
+	}
+
+	/**
+	 * Returns the next handshake message the device sends the peer, skipping its keepalives
+	 */
+	private IncomingPeerPacket receiveHandshake() throws Exception {
+		var datagram = new DatagramPacket(new byte[2048], 2048);
+
+		while (true) {
+			remote.receive(datagram);
+
+			var incoming = new PacketElement.UnparsedIncomingPeerPacket(pool().acquire());
+			MemorySegment.copy(MemorySegment.ofArray(datagram.getData()), 0, incoming.receiveBuffer(), 0, datagram.getLength());
+
+			var parsed = incoming.initialise(datagram.getLength(), deviceAddress, PeerKeys.mac1Key(remoteKey.publicKey()));
+			if (!(parsed instanceof UndecryptedIncomingTransport))
+				return parsed;
+
+			parsed.close();
+		}
+	}
+
+	/**
+	 * Sends the device an IPv4 packet from 10.0.0.2 under the given keys, carrying the given number
+	 */
+	private void send(Keys keys, int number) throws Exception {
+		var plaintext = Arena.ofAuto().allocate(28);
+		plaintext.asByteBuffer()
+			.put((byte) 0x45).put((byte) 0).putShort((short) 28).putInt(0).put((byte) 64).put((byte) 17).putShort((short) 0)
+			.put(new byte[]{10, 0, 0, 2}).put(new byte[]{10, 0, 0, 1})
+			.putInt(number).putInt(0);
+
+		var packet = new UnencryptedOutgoingTransport(pool().acquire(), plaintext.byteSize() + 16, keys.localIndex());
+		try (var transport = packet.fillCiphertext(ciphertext -> keys.keypair().cipher(plaintext, ciphertext))) {
+			transmit(transport.transmissiblePacket());
+		}
+	}
+
+	/**
+	 * Returns the number carried by the next packet the device decrypts
+	 */
+	private int receive() throws Exception {
+		var received = new FutureTask<>(() -> {
+			try (var transport = device.receiveIncomingTransport(0)) {
+				return transport.plaintextBuffer().asByteBuffer().getInt(20);
+			}
+		});
+
+		Thread.ofVirtual().start(received);
+		try {
+			return received.get(TIMEOUT.toMillis(), MILLISECONDS);
+		} finally {
+			received.cancel(true);
+		}
+	}
+
+	private Peer addPeer(InetSocketAddress endpoint) throws IOException {
+		var allowedIPs = new IPFilter();
+		allowedIPs.insert(InetAddress.getByName("10.0.0.0"), 8);
+
+		device.addPeer(new Peer.PeerConnectionInfo(remoteKey.publicKey(), null, endpoint, null, allowedIPs));
+		return device.routeOf(MemorySegment.ofArray(new byte[]{10, 0, 0, 2}));
+	}
+
+	private void transmit(MemorySegment packet) throws IOException {
+		var bytes = packet.toArray(JAVA_BYTE);
+		remote.send(new DatagramPacket(bytes, bytes.length, deviceAddress));
+	}
+
+	private NoisePublicKey localKey() {
+		return device.getStaticIdentity().publicKey();
+	}
+
+	private Pool pool() {
+		return device.getBufferPool();
+	}
+
+	private static int freePort() throws IOException {
+		try (var socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void await(BooleanSupplier condition, String failure) throws InterruptedException {
+		long deadline = System.nanoTime() + TIMEOUT.toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, failure);
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package ax.xz.wireguard.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopTest {
+	private EventLoopGroup group;
+	private EventLoop loop;
+
+	@BeforeEach
+	void setUp() {
+		group = new EventLoopGroup("test loop", 1);
+		loop = group.next();
+	}
+
+	@AfterEach
+	void tearDown() {
+		group.close();
+	}
+
+	@Test
+	void tasksRunInOrderOnTheLoopThread() throws Exception {
+		int submitters = 4;
+		int tasks = 10_000;
+
+		// only touched on the loop, so they need no synchronisation
+		var last = new int[submitters];
+		var outOfOrder = new int[1];
+		var offLoop = new AtomicInteger();
+		var done = new CountDownLatch(submitters * tasks);
+
+		var threads = new ArrayList<Thread>();
+		for (int i = 0; i < submitters; i++) {
+			int submitter = i;
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (int task = 1; task <= tasks; task++) {
+					int sequence = task;
+					loop.execute(() -> {
+						if (!loop.inEventLoop())
+							offLoop.incrementAndGet();
+						if (last[submitter] != sequence - 1)
+							outOfOrder[0]++;
+
+						last[submitter] = sequence;
+						done.countDown();
+					});
+				}
+			}));
+		}
+
+		for (var thread : threads)
+			thread.join();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, offLoop.get());
+
+		var checked = new CountDownLatch(1);
+		var outOfOrderSeen = new AtomicInteger();
+		loop.execute(() -> {
+			outOfOrderSeen.set(outOfOrder[0]);
+			checked.countDown();
+		});
+		assertTrue(checked.await(5, TimeUnit.SECONDS));
+		assertEquals(0, outOfOrderSeen.get());
+	}
+
+	@Test
+	void aFailingTaskDoesntStopTheLoop() throws InterruptedException {
+		loop.execute(() -> {
+			throw new IllegalStateException("expected");
+		});
+
+		var ran = new CountDownLatch(1);
+		loop.execute(ran::countDown);
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void scheduledTasksRunOnTheLoop() throws InterruptedException {
+		var onLoop = new AtomicBoolean();
+		var ran = new CountDownLatch(1);
+
+		loop.schedule(Duration.ofMillis(20), () -> {
+			onLoop.set(loop.inEventLoop());
+			ran.countDown();
+		});
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertTrue(onLoop.get());
+	}
+
+	@Test
+	void timersCancelledOnTheLoopNeverRun() throws InterruptedException {
+		var timerRan = new AtomicBoolean();
+		var done = new CountDownLatch(1);
+
+		var timer = loop.schedule(Duration.ofMillis(30), () -> timerRan.set(true));
+
+		// holds up the loop past the timer's deadline, so that it has fired and is queued behind this by the time it's
+		// cancelled
+		loop.execute(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+
+			timer.cancel();
+		});
+		loop.execute(done::countDown);
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		var settled = new CountDownLatch(1);
+		loop.execute(settled::countDown);
+		assertTrue(settled.await(5, TimeUnit.SECONDS));
+		assertFalse(timerRan.get());
+	}
+
+	@Test
+	void tasksSubmittedBeforeCloseStillRun() throws InterruptedException {
+		var ran = new CountDownLatch(1);
+		loop.execute(ran::countDown);
+		loop.close();
+
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertThrows(RejectedExecutionException.class, () -> loop.execute(() -> {}));
+	}
+}
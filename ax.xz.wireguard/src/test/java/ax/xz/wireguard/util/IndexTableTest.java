@@ -0,0 +1,129 @@
+package ax.xz.wireguard.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexTableTest {
+	@Test
+	void allocatedValuesCanBeFoundUntilRemoved() {
+		var table = new IndexTable<String>();
+
+		int first = table.allocate("first");
+		int second = table.allocate("second");
+
+		assertNotEquals(first, second);
+		assertEquals("first", table.get(first));
+		assertEquals("second", table.get(second));
+
+		table.remove(first);
+		assertNull(table.get(first));
+		assertEquals("second", table.get(second));
+	}
+
+	@Test
+	void unknownIndicesAreAbsent() {
+		var table = new IndexTable<String>();
+		int index = table.allocate("value");
+
+		assertNull(table.get(index + 1));
+
+		// removing something that isn't there is harmless
+		table.remove(index + 1);
+		assertEquals("value", table.get(index));
+	}
+
+	@Test
+	void replacingKeepsTheIndex() {
+		var table = new IndexTable<String>();
+		int index = table.allocate("pending");
+		int other = table.allocate("other");
+
+		table.replace(index, "established");
+		assertEquals("established", table.get(index));
+		assertEquals("other", table.get(other));
+
+		// replacing something that isn't there doesn't add it
+		table.remove(index);
+		table.replace(index, "late");
+		assertNull(table.get(index));
+	}
+
+	@Test
+	void indicesAreUniqueAsTheTableGrows() {
+		var table = new IndexTable<Integer>();
+		var indices = new HashMap<Integer, Integer>();
+
+		for (int i = 0; i < 10_000; i++)
+			assertNull(indices.put(table.allocate(i), i), "index handed out twice");
+
+		indices.forEach((index, value) -> assertEquals(value, table.get(index)));
+	}
+
+	@Test
+	void entriesSurviveRebuildsAfterManyRemovals() {
+		var table = new IndexTable<Integer>();
+		var live = new HashMap<Integer, Integer>();
+		var removed = new HashSet<Integer>();
+
+		// churns through far more entries than the table ever holds, so that removed slots have to be cleared out
+		// by rebuilds rather than growth
+		var order = new ArrayList<Integer>();
+		for (int i = 0; i < 20_000; i++) {
+			int index = table.allocate(i);
+			live.put(index, i);
+			order.add(index);
+
+			if (order.size() > 20) {
+				int oldest = order.removeFirst();
+				table.remove(oldest);
+				live.remove(oldest);
+				removed.add(oldest);
+			}
+		}
+
+		live.forEach((index, value) -> assertEquals(value, table.get(index)));
+		for (int index : removed) {
+			if (!live.containsKey(index))
+				assertNull(table.get(index));
+		}
+	}
+
+	@Test
+	void lookupsDuringAllocationSeeEveryEarlierEntry() throws InterruptedException {
+		var table = new IndexTable<Integer>();
+		var published = new int[50_000];
+		var count = new AtomicInteger();
+		var failures = new AtomicInteger();
+
+		var reader = Thread.ofPlatform().start(() -> {
+			while (count.get() < published.length) {
+				int seen = count.get();
+				for (int i = Math.max(0, seen - 64); i < seen; i++) {
+					var value = table.get(published[i]);
+					if (value == null || value != i)
+						failures.incrementAndGet();
+				}
+			}
+		});
+
+		for (int i = 0; i < published.length; i++) {
+			published[i] = table.allocate(i);
+			count.set(i + 1);
+		}
+
+		reader.join();
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	void nullValuesAreRefused() {
+		var table = new IndexTable<String>();
+		assertThrows(NullPointerException.class, () -> table.allocate(null));
+	}
+}
@@ -0,0 +1,143 @@
+package ax.xz.wireguard.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrefixTableTest {
+	@Test
+	void longestPrefixWins() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		table.insert(InetAddress.getByName("10.0.0.0"), 8, "a");
+		table.insert(InetAddress.getByName("10.1.0.0"), 16, "b");
+		table.insert(InetAddress.getByName("10.1.2.3"), 32, "c");
+
+		assertEquals("a", table.lookup(InetAddress.getByName("10.2.0.1")));
+		assertEquals("b", table.lookup(InetAddress.getByName("10.1.9.9")));
+		assertEquals("c", table.lookup(InetAddress.getByName("10.1.2.3")));
+		assertEquals("b", table.lookup(InetAddress.getByName("10.1.2.4")));
+		assertNull(table.lookup(InetAddress.getByName("11.0.0.0")));
+	}
+
+	@Test
+	void bitsPastThePrefixAreIgnored() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		table.insert(InetAddress.getByName("192.168.1.77"), 24, "a");
+
+		assertEquals("a", table.lookup(InetAddress.getByName("192.168.1.0")));
+		assertEquals("a", table.lookup(InetAddress.getByName("192.168.1.255")));
+		assertEquals(InetAddress.getByName("192.168.1.0"), table.routes().getFirst().address());
+	}
+
+	@Test
+	void emptyPrefixMatchesEverythingInItsFamily() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		table.insert(InetAddress.getByName("0.0.0.0"), 0, "v4");
+
+		assertEquals("v4", table.lookup(InetAddress.getByName("203.0.113.9")));
+		assertNull(table.lookup(InetAddress.getByName("2001:db8::1")));
+
+		table.insert(InetAddress.getByName("::"), 0, "v6");
+		assertEquals("v6", table.lookup(InetAddress.getByName("2001:db8::1")));
+	}
+
+	@Test
+	void ipv6PrefixesAreMatched() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		table.insert(InetAddress.getByName("2001:db8::"), 32, "a");
+		table.insert(InetAddress.getByName("2001:db8:0:1::"), 64, "b");
+		table.insert(InetAddress.getByName("2001:db8:0:1::5"), 128, "c");
+
+		assertEquals("a", table.lookup(InetAddress.getByName("2001:db8:ffff::1")));
+		assertEquals("b", table.lookup(InetAddress.getByName("2001:db8:0:1::6")));
+		assertEquals("c", table.lookup(InetAddress.getByName("2001:db8:0:1::5")));
+		assertNull(table.lookup(InetAddress.getByName("2001:db9::")));
+	}
+
+	@Test
+	void insertIfAbsentKeepsTheExistingRoute() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		var address = InetAddress.getByName("10.0.0.0");
+
+		assertTrue(table.insertIfAbsent(address, 8, "a"));
+		assertFalse(table.insertIfAbsent(address, 8, "b"));
+		assertEquals("a", table.lookup(InetAddress.getByName("10.0.0.1")));
+
+		table.insert(address, 8, "b");
+		assertEquals("b", table.lookup(InetAddress.getByName("10.0.0.1")));
+	}
+
+	@Test
+	void removedRoutesStopMatching() throws UnknownHostException {
+		var table = new PrefixTable<String>();
+		table.insert(InetAddress.getByName("10.0.0.0"), 8, "a");
+		table.insert(InetAddress.getByName("10.1.0.0"), 16, "b");
+		table.insert(InetAddress.getByName("172.16.0.0"), 12, "b");
+
+		assertEquals("b", table.lookup(InetAddress.getByName("10.1.0.1")));
+		assertTrue(table.remove(InetAddress.getByName("10.1.0.0"), 16));
+		assertFalse(table.remove(InetAddress.getByName("10.1.0.0"), 16));
+		assertEquals("a", table.lookup(InetAddress.getByName("10.1.0.1")));
+
+		assertTrue(table.removeValue("b"));
+		assertNull(table.lookup(InetAddress.getByName("172.16.0.1")));
+		assertEquals(1, table.routes().size());
+	}
+
+	@Test
+	void matchesALinearSearchOfRandomPrefixes() throws UnknownHostException {
+		var random = new Random(1);
+		var table = new PrefixTable<Integer>();
+		var prefixes = new ArrayList<byte[]>();
+		var lengths = new ArrayList<Integer>();
+
+		for (int i = 0; i < 500; i++) {
+			var address = new byte[random.nextBoolean() ? 4 : 16];
+			random.nextBytes(address);
+
+			// mostly short prefixes under a few common first bytes, so that they nest
+			address[0] = (byte) random.nextInt(4);
+			int length = random.nextInt(address.length * 8 + 1);
+
+			table.insert(InetAddress.getByAddress(address), length, i);
+			prefixes.add(address);
+			lengths.add(length);
+		}
+
+		for (int i = 0; i < 20_000; i++) {
+			var address = new byte[random.nextBoolean() ? 4 : 16];
+			random.nextBytes(address);
+			address[0] = (byte) random.nextInt(4);
+
+			Integer expected = null;
+			int expectedLength = -1;
+			for (int j = 0; j < prefixes.size(); j++) {
+				// later insertions of the same prefix replace earlier ones, so ties go to the later one
+				if (lengths.get(j) >= expectedLength && matches(prefixes.get(j), lengths.get(j), address)) {
+					expected = j;
+					expectedLength = lengths.get(j);
+				}
+			}
+
+			assertEquals(expected, table.lookup(InetAddress.getByAddress(address)));
+		}
+	}
+
+	private static boolean matches(byte[] prefix, int length, byte[] address) {
+		if (prefix.length != address.length)
+			return false;
+
+		for (int bit = 0; bit < length; bit++) {
+			int mask = 0x80 >>> (bit % 8);
+			if ((prefix[bit / 8] & mask) != (address[bit / 8] & mask))
+				return false;
+		}
+
+		return true;
+	}
+}
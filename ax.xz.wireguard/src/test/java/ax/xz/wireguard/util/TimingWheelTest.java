@@ -0,0 +1,122 @@
+package ax.xz.wireguard.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+	private TimingWheel wheel;
+
+	@BeforeEach
+	void setUp() {
+		wheel = new TimingWheel("test timers");
+	}
+
+	@AfterEach
+	void tearDown() {
+		wheel.close();
+	}
+
+	@Test
+	void timersNeverFireEarly() throws InterruptedException {
+		for (long delayMillis : new long[]{0, 5, 30, 120}) {
+			var firedAt = new AtomicLong();
+			var fired = new CountDownLatch(1);
+
+			long scheduledAt = wheel.nanoTime();
+			wheel.schedule(Duration.ofMillis(delayMillis), Runnable::run, () -> {
+				firedAt.set(wheel.nanoTime());
+				fired.countDown();
+			});
+
+			assertTrue(fired.await(5, TimeUnit.SECONDS));
+			assertTrue(firedAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(delayMillis), "fired early after " + delayMillis + "ms");
+		}
+	}
+
+	@Test
+	void timersFireInDeadlineOrder() throws InterruptedException {
+		var order = Collections.synchronizedList(new ArrayList<Integer>());
+		var fired = new CountDownLatch(4);
+
+		for (int delayMillis : new int[]{200, 40, 120, 80}) {
+			wheel.schedule(Duration.ofMillis(delayMillis), Runnable::run, () -> {
+				order.add(delayMillis);
+				fired.countDown();
+			});
+		}
+
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals(List.of(40, 80, 120, 200), order);
+	}
+
+	@Test
+	void timersBeyondTheBottomLevelCascadeDown() throws InterruptedException {
+		// further away than the bottom level's 64 ticks, so it starts on the level above
+		long delayMillis = TimeUnit.NANOSECONDS.toMillis(TimingWheel.TICK_NANOS) * TimingWheel.SLOTS * 3 / 2;
+		var fired = new CountDownLatch(1);
+		var firedAt = new AtomicLong();
+
+		long scheduledAt = wheel.nanoTime();
+		wheel.schedule(Duration.ofMillis(delayMillis), Runnable::run, () -> {
+			firedAt.set(wheel.nanoTime());
+			fired.countDown();
+		});
+
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertTrue(firedAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(delayMillis));
+	}
+
+	@Test
+	void cancelledTimersDontFire() throws InterruptedException {
+		var cancelledFired = new AtomicBoolean();
+		var cancelled = wheel.schedule(Duration.ofMillis(20), Runnable::run, () -> cancelledFired.set(true));
+		cancelled.cancel();
+		assertTrue(cancelled.isCancelled());
+
+		// a timer due afterwards shows that the wheel has gone past the cancelled one
+		var fired = new CountDownLatch(1);
+		wheel.schedule(Duration.ofMillis(60), Runnable::run, fired::countDown);
+
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertFalse(cancelledFired.get());
+	}
+
+	@Test
+	void timersRunOnTheirExecutor() throws InterruptedException {
+		var ranOn = new ArrayList<Runnable>();
+		var fired = new CountDownLatch(1);
+
+		wheel.schedule(Duration.ZERO, task -> {
+			ranOn.add(task);
+			task.run();
+		}, fired::countDown);
+
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals(1, ranOn.size());
+	}
+
+	@Test
+	void effectivelyInfiniteDelaysAreAccepted() {
+		var timer = wheel.schedule(Duration.ofSeconds(Long.MAX_VALUE), Runnable::run, () -> fail("fired"));
+		assertFalse(timer.isCancelled());
+	}
+
+	@Test
+	void closedWheelRejectsTimers() {
+		wheel.close();
+		assertThrows(RejectedExecutionException.class, () -> wheel.schedule(Duration.ofMillis(10), Runnable::run, () -> {}));
+	}
+}